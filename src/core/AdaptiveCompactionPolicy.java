@@ -0,0 +1,257 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.RollingHistogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Default compaction policy: compacts rows within a target delay after they
+ * stop receiving new data points, without overloading HBase.
+ * <p>
+ * Each shard is asked to compact a fraction of its rows proportional to the
+ * time left before its oldest row misses the target, so the work is spread
+ * until the deadline, and once the deadline is near, everything it can.
+ * <p>
+ * Two things slow compactions down.  The number of rows compacted
+ * concurrently is halved whenever the 95th percentile of the time it takes
+ * to compact a row goes over a limit, and slowly grows back otherwise.  And
+ * the number of RPCs sent to HBase per second can be capped: every row
+ * compacted uses up {@link #RPCS_PER_ROW} RPCs from a budget that's refilled
+ * at the maximum rate, and shards are only given as many rows as the budget
+ * allows.  All the shards draw from the same budget, and the rows given to
+ * a shard are taken out of it right away, so the shards together never go
+ * over the cap.  Rows a shard doesn't compact are put back in the budget.
+ * <p>
+ * This policy is configured with the following system properties:
+ * <ul>
+ * <li>{@code tsd.core.compaction_interval}: how often (in seconds) each
+ * shard is flushed (default: 10).</li>
+ * <li>{@code tsd.core.compaction_target_delay}: how long after a row stops
+ * receiving new data points (in seconds) it should be compacted (default:
+ * 1800).</li>
+ * <li>{@code tsd.core.compaction_min_flush}: minimum number of rows
+ * compacted at once (default: 100).</li>
+ * <li>{@code tsd.core.compaction_max_concurrency}: maximum number of rows
+ * compacted concurrently (default: 10000).</li>
+ * <li>{@code tsd.core.compaction_max_latency}: time (in ms) to compact a row
+ * past which concurrency is reduced (default: 5000).</li>
+ * <li>{@code tsd.core.compaction_max_rpc_rate}: maximum number of RPCs sent
+ * per second for compactions, 0 for no maximum (default: 0).</li>
+ * </ul>
+ */
+final class AdaptiveCompactionPolicy implements CompactionPolicy {
+
+  /** Number of RPCs it takes to compact a row: a get, a put and a delete.  */
+  static final int RPCS_PER_ROW = 3;
+
+  /** Window (in seconds) over which the latency of compactions is looked at. */
+  private static final int LATENCY_WINDOW = 30;
+
+  /** How often shards are flushed (in seconds).  */
+  private final int interval;
+
+  /** How long after a row is closed it should be compacted (in seconds).  */
+  private final int target_delay;
+
+  /** Minimum number of rows compacted at once.  */
+  private final int min_flush;
+
+  /** Maximum number of rows compacted concurrently.  */
+  private final int max_concurrency;
+
+  /** Latency (in ms) past which concurrency is reduced.  */
+  private final int max_latency;
+
+  /** Maximum number of RPCs per second, or 0.  */
+  private final int max_rpc_rate;
+
+  /** Current maximum number of rows compacted concurrently.  */
+  private volatile int concurrency;
+
+  /** When concurrency was last adjusted (in ms).  */
+  private long last_adjustment;
+
+  /** RPCs we can still send.  Guarded by {@code this}. */
+  private double rpc_budget;
+
+  /** When the RPC budget was last refilled (in ms).  */
+  private long last_refill;
+
+  /** How long it takes to compact a row.  */
+  private final RollingHistogram latency =
+    new RollingHistogram(16000, (short) 2, 100);
+
+  private final AtomicLong compacted_rows = new AtomicLong();
+  private final AtomicLong failed_rows = new AtomicLong();
+  private final AtomicLong rate_throttled = new AtomicLong();
+  private final AtomicLong latency_throttled = new AtomicLong();
+
+  /** Constructor, configured from system properties.  */
+  public AdaptiveCompactionPolicy() {
+    this(Integer.getInteger("tsd.core.compaction_interval", 10),
+         Integer.getInteger("tsd.core.compaction_target_delay", 1800),
+         Integer.getInteger("tsd.core.compaction_min_flush", 100),
+         Integer.getInteger("tsd.core.compaction_max_concurrency", 10000),
+         Integer.getInteger("tsd.core.compaction_max_latency", 5000),
+         Integer.getInteger("tsd.core.compaction_max_rpc_rate", 0),
+         System.currentTimeMillis());
+  }
+
+  /**
+   * Constructor.
+   * @param interval How often shards are flushed (in seconds).
+   * @param target_delay How long after a row is closed it should be
+   * compacted (in seconds).
+   * @param min_flush Minimum number of rows compacted at once.
+   * @param max_concurrency Maximum number of rows compacted concurrently.
+   * @param max_latency Latency (in ms) past which concurrency is reduced.
+   * @param max_rpc_rate Maximum number of RPCs per second, 0 for no maximum.
+   * @param now The current time (in ms).
+   * @throws IllegalArgumentException if one of the numbers is invalid.
+   */
+  AdaptiveCompactionPolicy(final int interval, final int target_delay,
+                           final int min_flush, final int max_concurrency,
+                           final int max_latency, final int max_rpc_rate,
+                           final long now) {
+    if (interval <= 0 || target_delay < 0 || min_flush <= 0
+        || max_concurrency <= 0 || max_latency <= 0 || max_rpc_rate < 0) {
+      throw new IllegalArgumentException("Invalid compaction policy:"
+        + " interval=" + interval + ", target_delay=" + target_delay
+        + ", min_flush=" + min_flush + ", max_concurrency=" + max_concurrency
+        + ", max_latency=" + max_latency + ", max_rpc_rate=" + max_rpc_rate);
+    }
+    this.interval = interval;
+    this.target_delay = target_delay;
+    this.min_flush = min_flush;
+    this.max_concurrency = max_concurrency;
+    this.max_latency = max_latency;
+    this.max_rpc_rate = max_rpc_rate;
+    concurrency = max_concurrency;
+    last_adjustment = now;
+    last_refill = now;
+    rpc_budget = maxBudget();
+  }
+
+  public long flushInterval() {
+    return interval * 1000L;
+  }
+
+  public int maxFlushes(final int size, final long oldest_age) {
+    return maxFlushes(size, oldest_age, System.currentTimeMillis());
+  }
+
+  /** Same as {@link #maxFlushes(int, long)} as of the given time (in ms).  */
+  synchronized int maxFlushes(final int size, final long oldest_age,
+                              final long now) {
+    adjustConcurrency(now);
+    if (size == 0 || oldest_age < 0) {
+      return 0;  // Nothing to compact yet.
+    }
+    final long time_left = target_delay - oldest_age;
+    int flushes;
+    if (time_left <= interval) {
+      flushes = size;  // We're late, or about to be.
+    } else {
+      // `size' also counts rows not closed yet, so we'll be flushing a bit
+      // faster than we need, which is fine.
+      flushes = (int) Math.max(min_flush, (long) size * interval / time_left);
+    }
+    if (max_rpc_rate > 0) {
+      refill(now);
+      final int allowed = rpc_budget <= 0
+        ? 0 : (int) Math.min(Integer.MAX_VALUE, rpc_budget / RPCS_PER_ROW);
+      if (flushes > allowed) {
+        rate_throttled.incrementAndGet();
+        flushes = allowed;
+      }
+      rpc_budget -= (double) flushes * RPCS_PER_ROW;
+    }
+    return flushes;
+  }
+
+  public synchronized void unused(final int rows) {
+    if (max_rpc_rate > 0 && rows > 0) {
+      rpc_budget = Math.min(rpc_budget + (double) rows * RPCS_PER_ROW,
+                            maxBudget());
+    }
+  }
+
+  public int maxConcurrentFlushes() {
+    return concurrency;
+  }
+
+  public void compacted(final int latency, final boolean success) {
+    this.latency.add(Math.max(0, latency));
+    if (success) {
+      compacted_rows.incrementAndGet();
+    } else {
+      failed_rows.incrementAndGet();
+    }
+  }
+
+  public void collectStats(final StatsCollector collector) {
+    collector.record("compaction.latency", latency, null);
+    collector.record("compaction.rows", compacted_rows, "result=success");
+    collector.record("compaction.rows", failed_rows, "result=failure");
+    collector.record("compaction.concurrency", concurrency);
+    collector.record("compaction.throttled", rate_throttled, "reason=rate");
+    collector.record("compaction.throttled", latency_throttled,
+                     "reason=latency");
+  }
+
+  /**
+   * Halves concurrency if compactions are too slow, or grows it back, at
+   * most once per flush interval.  Must be called with the lock held.
+   */
+  private void adjustConcurrency(final long now) {
+    if (now - last_adjustment < flushInterval()) {
+      return;
+    }
+    last_adjustment = now;
+    if (latency.count(LATENCY_WINDOW) == 0) {
+      return;  // We don't know how HBase is doing.
+    }
+    if (latency.percentile(95, LATENCY_WINDOW) > max_latency) {
+      latency_throttled.incrementAndGet();
+      concurrency = Math.max(1, concurrency / 2);
+    } else if (concurrency < max_concurrency) {
+      concurrency = Math.min(max_concurrency,
+                             concurrency + Math.max(1, max_concurrency / 10));
+    }
+  }
+
+  /**
+   * Adds to the RPC budget what the maximum rate allows since the last
+   * refill.  Must be called with the lock held.
+   */
+  private void refill(final long now) {
+    rpc_budget += (now - last_refill) * max_rpc_rate / 1000.0;
+    rpc_budget = Math.min(rpc_budget, maxBudget());
+    last_refill = now;
+  }
+
+  /** The RPC budget can't hold more than one flush interval's worth.  */
+  private double maxBudget() {
+    return (double) max_rpc_rate * interval;
+  }
+
+  public String toString() {
+    return "AdaptiveCompactionPolicy(target_delay=" + target_delay
+      + "s, concurrency=" + concurrency + '/' + max_concurrency
+      + ", max_rpc_rate=" + max_rpc_rate + ')';
+  }
+
+}
@@ -0,0 +1,404 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Local checkpoint of the compaction queue, so rows left to compact aren't
+ * forgotten when the TSD restarts or crashes.
+ * <p>
+ * The checkpoint is made of a snapshot of the rows in the queue, and of log
+ * segments to which every row added to the queue since is appended.  A
+ * background thread periodically starts a new log segment, writes a new
+ * snapshot, and deletes the log segments the snapshot made obsolete.  Rows
+ * compacted since the last snapshot are still in the checkpoint, which is
+ * harmless: compacting a row twice only costs a read.
+ * <p>
+ * On startup, the rows of the snapshot and of the log segments are added
+ * back to the queue, and a new snapshot is written.  A last snapshot is
+ * written on shutdown, so the queue doesn't need to be flushed.  The few
+ * rows still added after it are logged and flushed right away.  Each record
+ * is checksummed, so a log segment truncated by a crash is read up to its
+ * last complete record.
+ * <p>
+ * This class is thread-safe.
+ */
+final class CompactionCheckpoint {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CompactionCheckpoint.class);
+
+  /** How often (in seconds) a new snapshot is written.  */
+  private static final int SNAPSHOT_INTERVAL =
+    Integer.getInteger("tsd.core.compaction_checkpoint_interval", 300);
+  /** How often (in ms) the log is flushed to the file system.  */
+  private static final int FLUSH_INTERVAL = 1000;
+  /** Maximum length of a row key.  */
+  private static final int MAX_KEY_LENGTH = 0xFFFF;
+
+  private static final String SNAPSHOT = "compactionq.snapshot";
+  private static final String PREFIX = "compactionq-";
+  private static final String SUFFIX = ".log";
+
+  private final CompactionQueue compactionq;
+  private final File dir;
+
+  /** On how many bytes do we encode metrics IDs.  */
+  private final short metric_width;
+
+  /** Log segment being written to, or {@code null}.  */
+  private File current_file;
+  private DataOutputStream current;
+  /** Sequence number of the next log segment.  */
+  private long next_seq;
+  private volatile boolean closed;
+
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong snapshots = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  /** Number of rows in the last snapshot.  */
+  private volatile long snapshot_rows;
+
+  private final Checkpointer checkpointer = new Checkpointer();
+
+  /**
+   * Constructor.
+   * Adds the rows found in the directory back to the compaction queue, then
+   * starts logging the rows added to the queue.
+   * @param compactionq The compaction queue to checkpoint.
+   * @param metric_width On how many bytes metrics IDs are encoded.
+   * @param dir The directory where to keep the checkpoint.
+   * @throws IllegalArgumentException if the directory can't be used.
+   */
+  CompactionCheckpoint(final CompactionQueue compactionq,
+                       final short metric_width, final File dir) {
+    this.compactionq = compactionq;
+    this.metric_width = metric_width;
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalArgumentException("Not a directory: " + dir);
+    }
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IllegalArgumentException("Can't list the checkpoint"
+                                         + " directory " + dir);
+    }
+    Arrays.sort(files);  // The sequence numbers are zero-padded.
+    final long start = System.currentTimeMillis();
+    long rows = load(new File(dir, SNAPSHOT));
+    for (final File f : files) {
+      final long seq = segmentNumber(f);
+      if (seq >= 0) {
+        next_seq = Math.max(next_seq, seq + 1);
+        rows += load(f);
+      }
+    }
+    if (rows > 0) {
+      LOG.info("Added back " + rows + " rows to the compaction queue from "
+               + dir + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+    try {
+      snapshot();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Can't write a snapshot of the"
+                                         + " compaction queue in " + dir, e);
+    }
+    compactionq.setCheckpoint(this);
+    checkpointer.start();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("compaction.checkpoint.appended", appended);
+    collector.record("compaction.checkpoint.snapshots", snapshots);
+    collector.record("compaction.checkpoint.snapshot_rows", snapshot_rows);
+    collector.record("compaction.checkpoint.errors", errors);
+  }
+
+  /**
+   * Logs a row added to the compaction queue.
+   * @param row The row key.
+   */
+  synchronized void append(final byte[] row) {
+    if (row.length > MAX_KEY_LENGTH) {
+      return;
+    }
+    try {
+      if (current == null) {
+        current_file = new File(dir, String.format("%s%016x%s", PREFIX,
+                                                   next_seq++, SUFFIX));
+        current = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(current_file), 65536));
+      }
+      writeRecord(current, row);
+      if (closed) {
+        current.flush();  // Nobody else will flush it now.
+      }
+      appended.incrementAndGet();
+    } catch (IOException e) {
+      if (errors.incrementAndGet() % 100 == 1) {  // Don't flood the logs.
+        LOG.error("Failed to append to the compaction checkpoint "
+                  + current_file, e);
+      }
+    }
+  }
+
+  /**
+   * Stops checkpointing in the background and writes a last snapshot.
+   * This should be called once no more rows are added to the compaction
+   * queue.  The rows still in it will be compacted after the next startup.
+   */
+  void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    checkpointer.interrupt();
+    try {
+      checkpointer.join();
+    } catch (InterruptedException e) {
+      LOG.error("Interrupted while waiting for the compaction checkpointer",
+                e);
+      Thread.currentThread().interrupt();
+    }
+    try {
+      snapshot();
+    } catch (IOException e) {
+      // The log segments are still there, so nothing is lost.
+      LOG.error("Failed to write the last snapshot of the compaction queue"
+                + " in " + dir, e);
+    }
+    flush();
+  }
+
+  /**
+   * Writes a snapshot of the compaction queue, and deletes the log segments
+   * that it made obsolete.
+   */
+  private void snapshot() throws IOException {
+    final long start = System.currentTimeMillis();
+    final long first_seq_to_keep;
+    synchronized (this) {
+      // Rows added from now on go to a new segment.  Those added before are
+      // in the queue, or have been compacted.
+      closeSegment();
+      first_seq_to_keep = next_seq;
+    }
+    final File tmp = new File(dir, SNAPSHOT + ".tmp");
+    final FileOutputStream file = new FileOutputStream(tmp);
+    final DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(file, 65536));
+    long rows = 0;
+    try {
+      for (int i = 0; i < compactionq.numShards(); i++) {
+        for (final byte[] row : compactionq.rows(i)) {
+          writeRecord(out, row);
+          rows++;
+        }
+      }
+      out.flush();
+      file.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(new File(dir, SNAPSHOT))) {
+      throw new IOException("Failed to rename " + tmp + " to " + SNAPSHOT);
+    }
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (final File f : files) {
+        final long seq = segmentNumber(f);
+        if (seq >= 0 && seq < first_seq_to_keep && !f.delete()) {
+          LOG.error("Failed to delete the obsolete compaction checkpoint"
+                    + " segment " + f);
+        }
+      }
+    }
+    snapshots.incrementAndGet();
+    snapshot_rows = rows;
+    LOG.debug("Wrote a snapshot of " + rows + " rows of the compaction queue"
+              + " in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Closes the log segment being written to.
+   * Must be called while holding the monitor of this object.
+   */
+  private void closeSegment() {
+    if (current == null) {
+      return;
+    }
+    try {
+      current.close();
+    } catch (IOException e) {
+      errors.incrementAndGet();
+      LOG.error("Failed to close the compaction checkpoint segment "
+                + current_file, e);
+    }
+    current = null;
+    current_file = null;
+  }
+
+  /** Flushes the log segment being written to.  */
+  private synchronized void flush() {
+    if (current == null) {
+      return;
+    }
+    try {
+      current.flush();
+    } catch (IOException e) {
+      if (errors.incrementAndGet() % 100 == 1) {
+        LOG.error("Failed to flush the compaction checkpoint segment "
+                  + current_file, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the sequence number of a log segment, or -1 if the file isn't a
+   * log segment.
+   */
+  private static long segmentNumber(final File f) {
+    final String name = f.getName();
+    if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(PREFIX.length(),
+                                           name.length() - SUFFIX.length()),
+                            16);
+    } catch (NumberFormatException e) {
+      LOG.warn("Ignoring unexpected file in the compaction checkpoint: " + f);
+      return -1;
+    }
+  }
+
+  /**
+   * Adds the rows of a snapshot or of a log segment to the compaction queue.
+   * @return The number of rows read.
+   */
+  private long load(final File f) {
+    if (!f.exists()) {
+      return 0;
+    }
+    long rows = 0;
+    try {
+      final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(f), 65536));
+      try {
+        byte[] row;
+        while ((row = readRecord(in)) != null) {
+          compactionq.add(row);
+          rows++;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      errors.incrementAndGet();
+      LOG.error("Skipping the rest of the corrupted compaction checkpoint "
+                + f + " after " + rows + " rows", e);
+    }
+    return rows;
+  }
+
+  private static void writeRecord(final DataOutputStream out,
+                                  final byte[] row) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(row);
+    out.writeShort(row.length);
+    out.writeInt((int) crc.getValue());
+    out.write(row);
+  }
+
+  /**
+   * Reads the next record.
+   * @return The row key, or {@code null} if we reached the end of the file.
+   * @throws IOException if the record is truncated or corrupted.
+   */
+  private byte[] readRecord(final DataInputStream in) throws IOException {
+    final int length;
+    try {
+      length = in.readUnsignedShort();
+    } catch (EOFException e) {
+      return null;
+    }
+    final int checksum = in.readInt();
+    final byte[] row = new byte[length];
+    in.readFully(row);
+    final CRC32 crc = new CRC32();
+    crc.update(row);
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Checksum mismatch");
+    } else if (length < metric_width + Const.TIMESTAMP_BYTES) {
+      throw new IOException("Invalid row key length: " + length);
+    }
+    return row;
+  }
+
+  /** Flushes the log and writes snapshots in the background.  */
+  private final class Checkpointer extends Thread {
+
+    Checkpointer() {
+      super("CompactionCheckpointer");
+      setDaemon(true);
+    }
+
+    public void run() {
+      long last_snapshot = System.currentTimeMillis();
+      while (!closed) {
+        try {
+          Thread.sleep(FLUSH_INTERVAL);
+          flush();
+          final long now = System.currentTimeMillis();
+          if (now - last_snapshot >= SNAPSHOT_INTERVAL * 1000L) {
+            last_snapshot = now;
+            snapshot();
+          }
+        } catch (InterruptedException e) {
+          if (!closed) {
+            LOG.error("Compaction checkpointer interrupted", e);
+          }
+          return;
+        } catch (Exception e) {
+          errors.incrementAndGet();
+          LOG.error("Uncaught exception in the compaction checkpointer", e);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,79 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Decides how fast the rows of the compaction queue are compacted.
+ * <p>
+ * Each shard of the queue has a thread that wakes up periodically, asks the
+ * policy how many of its rows to compact, and compacts up to that many of
+ * the rows old enough to be compacted, with a limited number of them being
+ * compacted concurrently.  The policy is told how long each row took to be
+ * compacted, so it can slow down when HBase is struggling.
+ * <p>
+ * A single instance is shared by all the shards, so implementations must be
+ * thread-safe.  They must also have a public constructor without arguments,
+ * so they can be given by class name in the {@code tsd.core.compaction_policy}
+ * system property.
+ */
+public interface CompactionPolicy {
+
+  /** Returns how long compaction threads sleep between two flushes (in ms). */
+  long flushInterval();
+
+  /**
+   * Returns how many rows of a shard to compact now.
+   * <p>
+   * The rows returned are reserved for the shard.  Those it doesn't end up
+   * compacting, for instance because they're not old enough, are given back
+   * with {@link #unused}.
+   * @param size The number of rows in the shard, including those that aren't
+   * old enough to be compacted yet.
+   * @param oldest_age How long ago (in seconds) the oldest row of the shard
+   * stopped receiving new data points.  Negative if the shard doesn't have
+   * any row old enough to be compacted.
+   * @return The maximum number of rows to compact, 0 to not compact any.
+   */
+  int maxFlushes(int size, long oldest_age);
+
+  /**
+   * Gives back rows returned by {@link #maxFlushes} that weren't compacted.
+   * @param rows The number of rows.
+   */
+  void unused(int rows);
+
+  /**
+   * Returns the maximum number of rows compacted concurrently, over all the
+   * shards.
+   */
+  int maxConcurrentFlushes();
+
+  /**
+   * Called every time the compaction of a row is done.
+   * @param latency How long (in ms) it took to read the row back, write its
+   * compacted form and delete the individual cells.
+   * @param success Whether the compaction succeeded.  A row that couldn't
+   * be compacted because HBase asked us to throttle (and that will be
+   * compacted again later) didn't succeed.
+   */
+  void compacted(int latency, boolean success);
+
+  /**
+   * Collects the stats and metrics tracked by this policy.
+   * @param collector The collector to use.
+   */
+  void collectStats(StatsCollector collector);
+
+}
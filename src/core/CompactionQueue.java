@@ -14,9 +14,6 @@ package net.opentsdb.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -37,10 +34,10 @@ import net.opentsdb.stats.StatsCollector;
  * "Queue" of rows to compact.
  * <p>
  * Whenever we write a data point to HBase, the row key we write to is added
- * to this queue, which is effectively a sorted set.  There is a separate
- * thread that periodically goes through the queue and look for "old rows" to
- * compact.  A row is considered "old" if the timestamp in the row key is
- * older than a certain threshold.
+ * to this queue, which is effectively a set sorted by base time.  There is a
+ * separate thread that periodically goes through the queue and look for "old
+ * rows" to compact.  A row is considered "old" if the timestamp in the row
+ * key is older than a certain threshold.
  * <p>
  * The compaction process consists in reading all the cells within a given row
  * and writing them back out as a single big cell.  Once that writes succeeds,
@@ -49,16 +46,38 @@ import net.opentsdb.stats.StatsCollector;
  * This process is effective because in HBase the row key is repeated for
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
+ * <p>
+ * A single thread can't keep up with a high rate of new rows, so the queue
+ * is split in shards, each with its own thread.  All the rows of a series go
+ * to the same shard, picked by hashing the series.  Each shard keeps its rows
+ * in a {@link PendingRows}, which only stores each series once, so that the
+ * queue can hold millions of rows without exhausting the heap.
+ * <p>
+ * Reading rows back is a third of the I/O of compactions, so the queue can
+ * also keep the data points written to each row in memory, up to a limit,
+ * and compact the row from there.  This only works if this TSD saw all the
+ * data points of the row: rows it may have missed some points of (because
+ * it started after the row, because it ran out of buffer space, or because
+ * some points were written by other means) are read back as usual.  This
+ * mode must not be used if several TSDs write to the same rows, since each
+ * of them would overwrite the compacted cell with only its own points.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
-  /**
-   * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
-   */
-  private final AtomicInteger size = new AtomicInteger();
+  /** Number of shards, each drained by its own compaction thread.  */
+  private static final int SHARDS =
+    Math.max(1, Integer.getInteger("tsd.core.compaction_threads", 4));
+
+  /** How many keys to copy at a time when listing the rows of a shard.  */
+  private static final int KEYS_BATCH_SIZE = 1024;
+
+  /** The shards of this queue.  */
+  private final Shard[] shards;
+
+  /** Decides how fast the shards are compacted.  */
+  private final CompactionPolicy policy;
 
   private final AtomicLong trivial_compactions = new AtomicLong();
   private final AtomicLong complex_compactions = new AtomicLong();
@@ -71,30 +90,156 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   /** On how many bytes do we encode metrics IDs.  */
   private final short metric_width;
 
+  /**
+   * Maximum number of bytes used to buffer data points, 0 if we don't
+   * buffer any.
+   */
+  private final long buffer_limit;
+
+  /** Number of bytes used to buffer data points.  */
+  private final AtomicLong buffered_bytes = new AtomicLong();
+
+  /** Number of rows compacted from memory instead of being read back.  */
+  private final AtomicLong reads_saved = new AtomicLong();
+
+  /** Number of rows buffered that had to be read back after all.  */
+  private final AtomicLong buffers_discarded = new AtomicLong();
+
+  /** Where new rows are logged, or {@code null}.  */
+  private volatile CompactionCheckpoint checkpoint;
+
+  /**
+   * Whether compacted cells are written in the {@link CompressedCell} format.
+   * Set the {@code tsd.feature.compressed_cells} system property to
+   * {@code true} to enable it, once all the TSDs reading the table can read
+   * that format.
+   */
+  private final boolean compress_cells =
+    Boolean.getBoolean("tsd.feature.compressed_cells");
+
+  /** Number of compressed cells written.  */
+  private final AtomicLong compressed_cells = new AtomicLong();
+
+  /** When we started (UNIX timestamp in seconds).  */
+  private final long start_time = System.currentTimeMillis() / 1000;
+
   /**
    * Constructor.
+   * The size of the buffer of data points is given in MB in the
+   * {@code tsd.core.compaction_buffer_mb} system property (default: 0).
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
+    this(tsdb, Integer.getInteger("tsd.core.compaction_buffer_mb", 0)
+         * 1024L * 1024L);
+  }
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @param buffer_limit Maximum number of bytes used to buffer data points,
+   * 0 to not buffer any.
+   */
+  CompactionQueue(final TSDB tsdb, final long buffer_limit) {
     this.tsdb = tsdb;
+    this.buffer_limit = Math.max(0, buffer_limit);
     metric_width = tsdb.metrics.width();
+    policy = newPolicy();
+    shards = new Shard[SHARDS];
+    for (int i = 0; i < SHARDS; i++) {
+      shards[i] = new Shard(i);
+    }
     if (TSDB.enable_compactions) {
-      startCompactionThread();
+      for (final Shard shard : shards) {
+        startCompactionThread(shard);
+      }
+    }
+  }
+
+  /**
+   * Instantiates the policy given in the {@code tsd.core.compaction_policy}
+   * system property, or the default one.
+   * @throws IllegalArgumentException if the policy can't be instantiated.
+   */
+  private static CompactionPolicy newPolicy() {
+    final String name = System.getProperty("tsd.core.compaction_policy");
+    if (name == null) {
+      return new AdaptiveCompactionPolicy();
+    }
+    try {
+      return (CompactionPolicy) Class.forName(name).newInstance();
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Can't instantiate the compaction"
+                                         + " policy " + name, e);
     }
   }
 
-  @Override
+  /** Returns the number of rows in the queue.  */
   public int size() {
-    return size.get();
+    int size = 0;
+    for (final Shard shard : shards) {
+      size += shard.size();
+    }
+    return size;
   }
 
+  /**
+   * Adds a row to compact, without any of its data points.
+   * If buffered, the row will have to be read back.
+   * @param row The row key.
+   */
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
+    add(row, (short) 0, null);
+  }
+
+  /**
+   * Adds a row to compact, along with a data point written to it.
+   * @param row The row key.
+   * @param qualifier The qualifier of the data point.
+   * @param value The value of the data point.
+   */
+  public void add(final byte[] row, final short qualifier, final byte[] value) {
+    if (shardFor(row).add(row, qualifier, value)) {
+      final CompactionCheckpoint checkpoint = this.checkpoint;
+      if (checkpoint != null) {
+        checkpoint.append(row);
+      }
     }
   }
 
+  /**
+   * Sets where to log the rows added to the queue from now on.
+   * @param checkpoint The checkpoint, or {@code null} to stop logging rows.
+   */
+  void setCheckpoint(final CompactionCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /** Returns the number of shards of this queue.  */
+  int numShards() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the keys of all the rows of a shard, including those being
+   * compacted, oldest first.
+   * Rows added while the keys are being listed may be missed.
+   * @param shard The index of the shard.
+   */
+  ArrayList<byte[]> rows(final int shard) {
+    return shards[shard].keys();
+  }
+
+  /**
+   * Returns the shard in which the given row goes.
+   * All the rows of a series go in the same shard.
+   */
+  private Shard shardFor(final byte[] row) {
+    int h = PendingRows.hash(row, metric_width);
+    h ^= h >>> 16;  // The low bits alone don't vary much between rows.
+    return shards[(h & 0x7FFFFFFF) % shards.length];
+  }
+
   /**
    * Forces a flush of the all old entries in the compaction queue.
    * @return A deferred that will be called back once everything has been
@@ -107,8 +252,20 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     if (size > 0) {
       LOG.info("Flushing all old outstanding rows out of " + size + " rows");
     }
-    final long now = System.currentTimeMillis();
-    return flush(now / 1000 - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
+    return flush(System.currentTimeMillis() / 1000 - Const.MAX_TIMESPAN - 1);
+  }
+
+  /**
+   * Flushes all the rows older than the cutoff time.
+   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+   */
+  Deferred<ArrayList<Object>> flush(final long cut_off) {
+    final ArrayList<Deferred<ArrayList<Object>>> ds =
+      new ArrayList<Deferred<ArrayList<Object>>>(shards.length);
+    for (final Shard shard : shards) {
+      ds.add(shard.flush(cut_off, Integer.MAX_VALUE));
+    }
+    return Deferred.group(ds);
   }
 
   /**
@@ -122,77 +279,477 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return;
     }
     // The remaining stats only make sense with compactions enabled.
-    collector.record("compaction.queue.size", size);
+    final long now = System.currentTimeMillis();
+    int rows = 0;
+    long bytes = 0;
+    for (final Shard shard : shards) {
+      shard.collectStats(collector, now);
+      rows += shard.size();
+      bytes += shard.bytes();
+    }
+    collector.record("compaction.queue.bytes_per_row",
+                     rows == 0 ? 0 : bytes / rows);
+    policy.collectStats(collector);
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    if (compress_cells) {
+      collector.record("compaction.compressed", compressed_cells);
+    }
+    if (buffer_limit > 0) {
+      collector.record("compaction.reads_saved", reads_saved);
+      collector.record("compaction.buffer.bytes", buffered_bytes);
+      collector.record("compaction.buffer.discarded", buffers_discarded);
+    }
   }
 
   /**
-   * Flushes all the rows in the compaction queue older than the cutoff time.
-   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
-   * @param maxflushes How many rows to flush off the queue at once.
-   * This integer is expected to be strictly positive.
-   * @return A deferred that will be called back once everything has been
-   * flushed.
-   */
-  private Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
-    assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
-    // We can't possibly flush more entries than size().
-    maxflushes = Math.min(maxflushes, size());
-    if (maxflushes == 0) {  // Because size() might be 0.
-      return Deferred.fromResult(new ArrayList<Object>(0));
-    }
-    final ArrayList<Deferred<Object>> ds =
-      new ArrayList<Deferred<Object>>(Math.min(maxflushes,
-                                               MAX_CONCURRENT_FLUSHES));
-    int nflushes = 0;
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
-        break;
-      }
-      final long base_time = Bytes.getUnsignedInt(row, metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == MAX_CONCURRENT_FLUSHES) {
-        // We kicked off the compaction of too many rows already, let's wait
-        // until they're done before kicking off more.
-        break;
-      }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
-      }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
-      ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
-    }
-    final Deferred<ArrayList<Object>> group = Deferred.group(ds);
-    if (nflushes == MAX_CONCURRENT_FLUSHES && maxflushes > 0) {
-      // We're not done yet.  Once this group of flushes completes, we need
-      // to kick off more.
-      tsdb.flush();  // Speed up this batch by telling the client to flush.
-      final int maxflushez = maxflushes;  // Make it final for closure.
-      final class FlushMoreCB implements Callback<Deferred<ArrayList<Object>>,
-                                                  ArrayList<Object>> {
-        public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
-          return flush(cut_off, maxflushez);
+   * Returns whether we may see all the data points of a row we're starting
+   * to buffer now.
+   */
+  private boolean canBuffer(final byte[] row) {
+    final long base_time = Bytes.getUnsignedInt(row, metric_width);
+    // If we started after the row, we missed its first data points.  If the
+    // row is old enough to be compacted, it may have been compacted already.
+    return base_time >= start_time
+      && base_time > System.currentTimeMillis() / 1000 - Const.MAX_TIMESPAN - 1;
+  }
+
+  /**
+   * One shard of the queue, drained by its own compaction thread.
+   * <p>
+   * The rows of a shard are only accessed with the lock of the shard held.
+   */
+  final class Shard {
+
+    /** Index of this shard, used in its stats and its thread's name.  */
+    private final int id;
+
+    /** The rows to compact, with their buffer if we have one.  */
+    private final PendingRows<Buffer> rows;
+
+    /**
+     * How many items are currently in this shard.
+     * So it can be read without holding the lock.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Number of rows taken off this shard to be compacted, not counting
+     * those put back because HBase asked us to throttle.
+     */
+    private final AtomicLong flushed = new AtomicLong();
+
+    /**
+     * The keys of the rows being compacted, in batches, so we can tell the
+     * checkpoint about them too.
+     */
+    private final ArrayList<ArrayList<byte[]>> in_flight =
+      new ArrayList<ArrayList<byte[]>>();
+
+    Shard(final int id) {
+      this.id = id;
+      rows = new PendingRows<Buffer>(metric_width);
+    }
+
+    int size() {
+      return size.get();
+    }
+
+    /**
+     * Adds a row to this shard.
+     * @param row The row key.
+     * @param qualifier The qualifier of a data point written to the row.
+     * @param value The value of that data point, or {@code null}.
+     * @return {@code true} if the row wasn't already in this shard.
+     */
+    synchronized boolean add(final byte[] row, final short qualifier,
+                             final byte[] value) {
+      if (rows.add(row)) {
+        size.incrementAndGet();  // We added a new entry, count it.
+        if (buffer_limit > 0 && value != null && canBuffer(row)) {
+          final Buffer buffer = new Buffer();
+          if (buffer.add(qualifier, value)) {
+            rows.set(row, buffer);
+          }
+        }
+        return true;
+      } else if (buffer_limit > 0) {
+        final Buffer buffer = rows.get(row);
+        if (buffer != null && !buffer.add(qualifier, value)) {
+          rows.set(row, null);  // We'll have to read the row back.
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Returns the keys of all the rows of this shard.
+     * The lock is only held to copy a few keys at a time, so we don't hold
+     * up the writes to this shard while it's being checkpointed.
+     */
+    ArrayList<byte[]> keys() {
+      final ArrayList<byte[]> keys = new ArrayList<byte[]>(size());
+      long from = 0;
+      do {
+        synchronized (this) {
+          from = rows.keys(from, KEYS_BATCH_SIZE, keys);
         }
-        public String toString() {
-          return "Continue flushing with cut_off=" + cut_off
-            + ", maxflushes=" + maxflushez;
+      } while (from != -1);
+      // Do this last, as rows taken meanwhile are now in flight.
+      synchronized (this) {
+        for (final ArrayList<byte[]> batch : in_flight) {
+          keys.addAll(batch);
         }
       }
-      group.addCallbackDeferring(new FlushMoreCB());
+      return keys;
+    }
+
+    /**
+     * Throws away all the rows of this shard.
+     * @return The number of rows thrown away.
+     */
+    int clear() {
+      final ArrayList<Buffer> buffers = new ArrayList<Buffer>();
+      final int sz;
+      synchronized (this) {
+        sz = rows.take(Long.MAX_VALUE, Integer.MAX_VALUE, null, buffers);
+        size.set(0);
+      }
+      for (final Buffer buffer : buffers) {
+        if (buffer != null) {
+          buffer.close(null);
+        }
+      }
+      return sz;
+    }
+
+    /**
+     * Returns how long ago (in seconds) the oldest row of this shard became
+     * old enough to be compacted, or a negative number if none are.
+     * @param now The current time (in ms).
+     */
+    long oldestAge(final long now) {
+      final long base_time;
+      synchronized (this) {
+        base_time = rows.oldestBaseTime();
+      }
+      if (base_time < 0) {
+        return -1;
+      }
+      return now / 1000 - Const.MAX_TIMESPAN - 1 - base_time;
+    }
+
+    /** Returns an estimate of the number of bytes used by the rows.  */
+    synchronized long bytes() {
+      return rows.bytes();
+    }
+
+    void collectStats(final StatsCollector collector, final long now) {
+      collector.record("compaction.queue.size", size, "shard=" + id);
+      collector.record("compaction.queue.age", Math.max(0, oldestAge(now)),
+                       "shard=" + id);
+      collector.record("compaction.queue.flushed", flushed, "shard=" + id);
+      final int series;
+      final long bytes;
+      synchronized (this) {
+        series = rows.seriesCount();
+        bytes = rows.bytes();
+      }
+      collector.record("compaction.queue.series", series, "shard=" + id);
+      collector.record("compaction.queue.bytes", bytes, "shard=" + id);
+    }
+
+    /**
+     * Flushes all the rows in this shard older than the cutoff time.
+     * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+     * @param maxflushes How many rows to flush off the shard at once.
+     * This integer is expected to be strictly positive.
+     * @return A deferred that will be called back once everything has been
+     * flushed.
+     */
+    Deferred<ArrayList<Object>> flush(final long cut_off,
+                                      final int maxflushes) {
+      return flush(cut_off, maxflushes, false);
     }
-    return group;
+
+    /**
+     * Flushes all the rows in this shard older than the cutoff time.
+     * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+     * @param maxflushes How many rows to flush off the shard at once.
+     * This integer is expected to be strictly positive.
+     * @param reserved Whether {@code maxflushes} was given by the policy,
+     * in which case the rows we don't flush are given back to it.
+     * @return A deferred that will be called back once everything has been
+     * flushed.
+     */
+    Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes,
+                                      final boolean reserved) {
+      assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
+      final int wanted = maxflushes;
+      // We can't possibly flush more entries than size().
+      maxflushes = Math.min(maxflushes, size());
+      if (maxflushes == 0) {  // Because size() might be 0.
+        if (reserved) {
+          policy.unused(wanted);
+        }
+        return Deferred.fromResult(new ArrayList<Object>(0));
+      }
+      // The shards share the concurrency allowed by the policy, so adding
+      // shards doesn't put more load on HBase.
+      final int max_concurrent_flushes =
+        Math.max(1, policy.maxConcurrentFlushes() / shards.length);
+      // We can't kick off the compaction of more rows than that at once.
+      // Once they're done, we'll kick off more.
+      final int batch = Math.min(maxflushes, max_concurrent_flushes);
+      final ArrayList<byte[]> keys = new ArrayList<byte[]>(batch);
+      final ArrayList<Buffer> buffers =
+        buffer_limit > 0 ? new ArrayList<Buffer>(batch) : null;
+      final int nflushes;
+      synchronized (this) {
+        nflushes = rows.take(cut_off, batch, keys, buffers);
+        size.addAndGet(-nflushes);
+        if (nflushes > 0) {
+          in_flight.add(keys);
+        }
+      }
+      maxflushes -= nflushes;
+      final CompactedCB compactedcb = new CompactedCB(flushed);
+      final ArrayList<Deferred<Object>> ds =
+        new ArrayList<Deferred<Object>>(nflushes);
+      for (int i = 0; i < nflushes; i++) {
+        final byte[] row = keys.get(i);
+        final Buffer buffer = buffers == null ? null : buffers.get(i);
+        final ArrayList<KeyValue> cells =
+          buffer == null ? null : buffer.close(row);
+        final Deferred<ArrayList<KeyValue>> d;
+        if (cells == null) {
+          d = tsdb.get(row);
+        } else {
+          reads_saved.incrementAndGet();
+          d = Deferred.fromResult(cells);
+        }
+        ds.add(d.addCallbacks(compactcb, handle_read_error)
+               .addBoth(compactedcb));
+      }
+      final Deferred<ArrayList<Object>> group = Deferred.group(ds);
+      if (nflushes > 0) {
+        /** Forgets the rows of the batch, which are no longer in flight.  */
+        final class CompactedBatchCB
+          implements Callback<ArrayList<Object>, ArrayList<Object>> {
+          public ArrayList<Object> call(final ArrayList<Object> arg) {
+            forget();
+            return arg;
+          }
+          void forget() {
+            synchronized (Shard.this) {
+              for (int i = 0; i < in_flight.size(); i++) {
+                if (in_flight.get(i) == keys) {
+                  in_flight.remove(i);
+                  break;
+                }
+              }
+            }
+          }
+          public String toString() {
+            return "forget rows compacted in shard " + id;
+          }
+
+          /** Same, when some rows of the batch failed to compact.  */
+          final class ErrorCB implements Callback<Exception, Exception> {
+            public Exception call(final Exception e) {
+              forget();
+              return e;
+            }
+            public String toString() {
+              return "forget rows that failed to compact in shard " + id;
+            }
+          }
+        }
+        final CompactedBatchCB compacted = new CompactedBatchCB();
+        group.addCallbacks(compacted, compacted.new ErrorCB());
+      }
+      final boolean more = nflushes == max_concurrent_flushes && maxflushes > 0;
+      if (reserved) {
+        // Give back what we won't flush, now or in the next rounds.
+        final int unused = wanted - nflushes - (more ? maxflushes : 0);
+        if (unused > 0) {
+          policy.unused(unused);
+        }
+      }
+      if (more) {
+        // We're not done yet.  Once this group of flushes completes, we need
+        // to kick off more.
+        tsdb.flush();  // Speed up this batch by telling the client to flush.
+        final int maxflushez = maxflushes;  // Make it final for closure.
+        final class FlushMoreCB implements Callback<Deferred<ArrayList<Object>>,
+                                                    ArrayList<Object>> {
+          public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
+            return flush(cut_off, maxflushez, reserved);
+          }
+          public String toString() {
+            return "Continue flushing shard " + id + " with cut_off="
+              + cut_off + ", maxflushes=" + maxflushez;
+          }
+        }
+        group.addCallbackDeferring(new FlushMoreCB());
+      }
+      return group;
+    }
+
+    public String toString() {
+      return "CompactionQueue.Shard(id=" + id + ", size=" + size.get() + ')';
+    }
+
+  }
+
+  /**
+   * The data points written to a row, kept so the row can be compacted
+   * without reading it back.
+   * <p>
+   * Values are stored like in {@link IncomingDataPoints}.  Rows that may
+   * have data points we didn't see don't have a buffer.  Buffers are only
+   * accessed with the lock of their shard held, until their row is taken
+   * off the queue.
+   */
+  private final class Buffer {
+
+    /** Qualifiers, or {@code null} once discarded or closed.  */
+    private short[] qualifiers = new short[4];
+
+    /** Values, or {@code null} once discarded or closed.  */
+    private long[] values = new long[4];
+
+    /** Number of data points buffered.  */
+    private int size;
+
+    Buffer() {
+      buffered_bytes.addAndGet(bytes());
+    }
+
+    /**
+     * Adds a data point written to the row.
+     * @param qualifier The qualifier of the data point.
+     * @param value The value of the data point, or {@code null} if we don't
+     * know it, in which case the row will have to be read back.
+     * @return {@code false} if the buffer had to be discarded, in which case
+     * the row will have to be read back.
+     */
+    boolean add(final short qualifier, final byte[] value) {
+      if (value == null
+          || value.length != (qualifier & Const.LENGTH_MASK) + 1
+          || (value.length != 8 && value.length != 4)
+          || buffered_bytes.get() > buffer_limit) {
+        discard();
+        return false;
+      }
+      if (size == qualifiers.length) {
+        if (size >= Const.MAX_TIMESPAN * 2) {  // Lots of duplicates?!
+          discard();
+          return false;
+        }
+        buffered_bytes.addAndGet(bytes());  // We're doubling the size.
+        qualifiers = Arrays.copyOf(qualifiers, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      qualifiers[size] = qualifier;
+      values[size] = (value.length == 8
+                      ? Bytes.getLong(value)
+                      : Bytes.getInt(value) & 0x00000000FFFFFFFFL);
+      size++;
+      return true;
+    }
+
+    /**
+     * Called once the row was taken off the queue.
+     * @param key The row key, or {@code null} to throw the data points away.
+     * @return The cells of the row, sorted, without duplicates, or
+     * {@code null} if the data points were thrown away.
+     */
+    ArrayList<KeyValue> close(final byte[] key) {
+      if (key == null) {
+        discard();
+        return null;
+      }
+      // Sort by qualifier.  Data points are usually written in order, so
+      // an insertion sort is about linear.  It's stable, so data points
+      // with the same qualifier stay in the order they were written.
+      for (int i = 1; i < size; i++) {
+        final short q = qualifiers[i];
+        final long v = values[i];
+        int j = i - 1;
+        while (j >= 0 && (qualifiers[j] & 0xFFFF) > (q & 0xFFFF)) {
+          qualifiers[j + 1] = qualifiers[j];
+          values[j + 1] = values[j];
+          j--;
+        }
+        qualifiers[j + 1] = q;
+        values[j + 1] = v;
+      }
+      final ArrayList<KeyValue> cells = new ArrayList<KeyValue>(size);
+      for (int i = 0; i < size; i++) {
+        final short q = qualifiers[i];
+        if (i + 1 < size && q == qualifiers[i + 1]) {
+          continue;  // Overwritten later, HBase only kept the last value.
+        }
+        final byte[] value = (q & Const.LENGTH_MASK) == 7
+          ? Bytes.fromLong(values[i])
+          : Bytes.fromInt((int) values[i]);
+        cells.add(new KeyValue(key, TSDB.FAMILY, Bytes.fromShort(q), value));
+      }
+      buffered_bytes.addAndGet(-bytes());
+      qualifiers = null;
+      values = null;
+      return cells;
+    }
+
+    /** Throws the data points away: the row will have to be read back.  */
+    private void discard() {
+      buffers_discarded.incrementAndGet();
+      buffered_bytes.addAndGet(-bytes());
+      qualifiers = null;
+      values = null;
+      size = 0;
+    }
+
+    /** Returns the number of bytes used by the data points.  */
+    private int bytes() {
+      return qualifiers.length * (2 + 8);
+    }
+
+  }
+
+  /**
+   * Callback to tell the policy how long it took to compact a row.
+   * Compactions started together share the same instance.
+   */
+  private final class CompactedCB implements Callback<Object, Object> {
+
+    private final long start_time = System.currentTimeMillis();
+
+    /** Counts the rows of the shard that won't be compacted again.  */
+    private final AtomicLong flushed;
+
+    CompactedCB(final AtomicLong flushed) {
+      this.flushed = flushed;
+    }
+
+    public Object call(final Object arg) {
+      if (arg != THROTTLED) {
+        flushed.incrementAndGet();
+      }
+      policy.compacted((int) (System.currentTimeMillis() - start_time),
+                       !(arg instanceof Exception) && arg != THROTTLED);
+      return arg;
+    }
+
+    public String toString() {
+      return "record compaction latency";
+    }
+
   }
 
   private final CompactCB compactcb = new CompactCB();
@@ -224,6 +781,20 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     return compacted[0];
   }
 
+  /**
+   * Compacts a row and writes the compacted form back to HBase right away.
+   * <p>
+   * Unlike rows added to the queue, the row is written back however recent
+   * it is, so the caller must make sure no TSD is still writing to it.
+   * @param row The row containing all the KVs to compact.
+   * @return A deferred that completes once the compacted cell has been
+   * written and the cells it replaces deleted.
+   */
+  Deferred<Object> compactNow(final ArrayList<KeyValue> row) {
+    final Deferred<Object> d = compact(row, null);
+    return d == null ? Deferred.fromResult(null) : d;
+  }
+
   /**
    * Compacts a row into a single {@link KeyValue}.
    * <p>
@@ -274,7 +845,8 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     // compaction.  Otherwise, we have a partially compacted row, and the
     // logic required to compact it is more complex.
     boolean write = true;  // Do we need to write a compacted cell?
-    final KeyValue compact;
+    final KeyValue compact;  // What we write back.
+    final KeyValue uncompressed;  // What we give back to the caller.
     {
       boolean trivial = true;  // Are we doing a trivial compaction?
       int qual_len = 0;  // Pre-compute the size of the qualifier we'll need.
@@ -348,10 +920,12 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         return compact(row, compacted);
       } else if (trivial) {
         trivial_compactions.incrementAndGet();
-        compact = trivialCompact(row, qual_len, val_len);
+        uncompressed = trivialCompact(row, qual_len, val_len);
+        compact = compress(uncompressed);
       } else {
         complex_compactions.incrementAndGet();
-        compact = complexCompact(row, qual_len / 2);
+        uncompressed = complexCompact(row);
+        compact = compress(uncompressed);
         // Now it's vital that we check whether the compact KV has the same
         // qualifier as one of the qualifiers that were already in the row.
         // Otherwise we might do a `put' in this cell, followed by a delete.
@@ -404,7 +978,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       }
     }
     if (compacted != null) {  // Caller is interested in the compacted form.
-      compacted[0] = compact;
+      compacted[0] = uncompressed;
       final long base_time = Bytes.getUnsignedInt(compact.key(), metric_width);
       final long cut_off = System.currentTimeMillis() / 1000
         - Const.MAX_TIMESPAN - 1;
@@ -434,6 +1008,24 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
+  /**
+   * Returns the form in which a compacted cell should be written.
+   * @param kv A compacted cell.
+   * @return The compressed form of {@code kv} if cells must be compressed
+   * and compressing this one saves space, otherwise {@code kv} itself.
+   */
+  private KeyValue compress(final KeyValue kv) {
+    if (!compress_cells) {
+      return kv;
+    }
+    final KeyValue compressed = CompressedCell.encode(kv);
+    if (compressed == null) {
+      return kv;
+    }
+    compressed_cells.incrementAndGet();
+    return compressed;
+  }
+
   /**
    * Performs a trivial compaction of a row.
    * <p>
@@ -543,43 +1135,6 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     return value;
   }
 
-  /**
-   * Helper class for complex compaction cases.
-   * <p>
-   * This is simply a glorified pair of (qualifier, value) that's comparable.
-   * Only the qualifier is used to make comparisons.
-   * @see #complexCompact
-   */
-  private static final class Cell implements Comparable<Cell> {
-    /** Tombstone used as a helper during the complex compaction.  */
-    static final Cell SKIP = new Cell(null, null);
-
-    final byte[] qualifier;
-    final byte[] value;
-
-    Cell(final byte[] qualifier, final byte[] value) {
-      this.qualifier = qualifier;
-      this.value = value;
-    }
-
-    public int compareTo(final Cell other) {
-      return Bytes.memcmp(qualifier, other.qualifier);
-    }
-
-    public boolean equals(final Object o) {
-      return o != null && o instanceof Cell && compareTo((Cell) o) == 0;
-    }
-
-    public int hashCode() {
-      return Arrays.hashCode(qualifier);
-    }
-
-    public String toString() {
-      return "Cell(" + Arrays.toString(qualifier)
-        + ", " + Arrays.toString(value) + ')';
-    }
-  }
-
   /**
    * Compacts a partially compacted row.
    * <p>
@@ -589,157 +1144,306 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * races involved with TSDs trying to compact the same row at the same
    * time, or old data being slowly written to a TSD.
    * @param row The row to compact.  Assumed to have 2 elements or more.
-   * @param estimated_nvalues Estimate of the number of values to compact.
-   * Used to pre-allocate a collection of the right size, so it's better to
-   * overshoot a bit to avoid re-allocations.
    * @return a {@link KeyValue} containing the result of the merge of all the
    * {@code KeyValue}s given in argument.
    * @throws IllegalDataException if one of the cells cannot be read because
    * it's corrupted or in a format we don't understand.
    */
-  static KeyValue complexCompact(final ArrayList<KeyValue> row,
-                                 final int estimated_nvalues) {
-    // We know at least one of the cells contains multiple values, and we need
-    // to merge all the cells together in a sorted fashion.  We use a simple
-    // strategy: split all the cells into individual objects, sort them,
-    // merge the result while ignoring duplicates (same qualifier & value).
-    final ArrayList<Cell> cells = breakDownValues(row, estimated_nvalues);
-    Collections.sort(cells);
-
-    // Now let's done one pass first to compute the length of the compacted
-    // value and to find if we have any bad duplicates (same qualifier,
-    // different value).
-    int nvalues = 0;
-    int val_len = 1;  // Reserve an extra byte for meta-data.
-    short last_delta = -1;  // Time delta, extracted from the qualifier.
-    int ncells = cells.size();
-    for (int i = 0; i < ncells; i++) {
-      final Cell cell = cells.get(i);
-      final short delta = (short) ((Bytes.getShort(cell.qualifier) & 0xFFFF)
-                                   >>> Const.FLAG_BITS);
-      // Because we sorted `cells' by qualifier, and because the time delta
-      // occupies the most significant bits, this should never trigger.
-      assert delta >= last_delta: ("WTF? It's supposed to be sorted: " + cells
-                                   + " at " + i + " delta=" + delta
-                                   + ", last_delta=" + last_delta);
-      // The only troublesome case is where we have two (or more) consecutive
-      // cells with the same time delta, but different flags or values.
-      if (delta == last_delta) {
-        // Find the previous cell.  Because we potentially replace the one
-        // right before `i' with a tombstone, we might need to look further
-        // back a bit more.
-        Cell prev = Cell.SKIP;
-        // i > 0 because we can't get here during the first iteration.
-        // Also the first Cell cannot be Cell.SKIP, so `j' will never
-        // underflow.  And even if it does, we'll get an exception.
-        for (int j = i - 1; prev == Cell.SKIP; j--) {
-          prev = cells.get(j);
+  static KeyValue complexCompact(final ArrayList<KeyValue> row) {
+    // Merge the uncompressed form of compressed cells, without changing the
+    // caller's row since it also tells which cells to delete.
+    ArrayList<KeyValue> cells = row;
+    for (int i = 0; i < row.size(); i++) {
+      final KeyValue kv = row.get(i);
+      if (CompressedCell.isCompressed(kv)) {
+        if (cells == row) {
+          cells = new ArrayList<KeyValue>(row);
         }
-        if (cell.qualifier[1] != prev.qualifier[1]
-            || !Bytes.equals(cell.value, prev.value)) {
-          throw new IllegalDataException("Found out of order or duplicate"
-            + " data: cell=" + cell + ", delta=" + delta + ", prev cell="
-            + prev + ", last_delta=" + last_delta + ", in row=" + row
-            + " -- run an fsck.");
+        cells.set(i, CompressedCell.decode(kv));
+      }
+    }
+    int max_values = 0;
+    int max_bytes = 0;
+    for (final KeyValue kv : cells) {
+      max_values += kv.qualifier().length / 2;
+      max_bytes += kv.value().length;
+    }
+    final Merger merger = Merger.get(max_values, max_bytes);
+    try {
+      merger.breakDown(cells);
+      return merger.merge(cells);
+    } finally {
+      merger.clear();
+    }
+  }
+
+  /**
+   * Merges the values of a row for {@link #complexCompact}.
+   * <p>
+   * We know at least one of the cells contains multiple values, and we need
+   * to merge all the cells together in a sorted fashion.  The cells of a row
+   * come back from HBase sorted by qualifier, and compacted cells are sorted
+   * unless they were written by a buggy version of OpenTSDB, so we break down
+   * all the values into the few runs of values already sorted, and do a k-way
+   * merge of these runs while ignoring duplicates (same qualifier & value).
+   * When two values have the same qualifier, the one from the earliest run
+   * comes first, which is what a stable sort of all the values would do.
+   * <p>
+   * Values aren't copied until they're written in the compacted cell: we
+   * only keep track of where they are, in primitive arrays.  Each thread
+   * keeps its {@code Merger} to reuse these arrays, so compacting a row
+   * allocates little more than the compacted cell itself.
+   */
+  private static final class Merger {
+
+    /** Mergers for rows with more values than this aren't kept around.  */
+    private static final int MAX_CACHED_VALUES = 16384;
+
+    private static final ThreadLocal<Merger> mergers =
+      new ThreadLocal<Merger>();
+
+    /** Qualifier of each value, as an unsigned short, with fixed flags.  */
+    private final int[] qualifiers;
+    /** The array in which each value is, and where.  */
+    private final byte[][] sources;
+    private final int[] offsets;
+    private final int[] lengths;
+    /** Next value of each run, and where each run ends (exclusive).  */
+    private final int[] run_pos;
+    private final int[] run_end;
+    /**
+     * Min-heap of the runs with values left to merge.  Each entry is the
+     * next qualifier of the run in the upper 32 bits, and the index of the
+     * run in the lower 32 bits, to break ties.
+     */
+    private final long[] heap;
+    /** Where the merged qualifiers and values are written.  */
+    private final byte[] qualifier;
+    private final byte[] value;
+
+    /** Number of values and runs of the row being merged.  */
+    private int nvalues;
+    private int nruns;
+
+    private Merger(final int max_values, final int max_bytes) {
+      qualifiers = new int[max_values];
+      sources = new byte[max_values][];
+      offsets = new int[max_values];
+      lengths = new int[max_values];
+      run_pos = new int[max_values];
+      run_end = new int[max_values];
+      heap = new long[max_values];
+      qualifier = new byte[max_values * 2];
+      value = new byte[max_bytes];
+    }
+
+    /**
+     * Returns a merger for the current thread, big enough for a row.
+     * @param max_values Maximum number of values in the row.
+     * @param max_bytes Maximum number of bytes of the values in the row.
+     */
+    static Merger get(final int max_values, final int max_bytes) {
+      Merger merger = mergers.get();
+      if (merger != null && merger.qualifiers.length >= max_values
+          && merger.value.length >= max_bytes) {
+        return merger;
+      }
+      int values = max_values;
+      int bytes = max_bytes;
+      if (merger != null) {  // Grow geometrically to not re-allocate often.
+        values = Math.max(values, merger.qualifiers.length * 2);
+        bytes = Math.max(bytes, merger.value.length * 2);
+      }
+      merger = new Merger(values, bytes);
+      if (values <= MAX_CACHED_VALUES && bytes <= MAX_CACHED_VALUES * 8) {
+        mergers.set(merger);
+      }
+      return merger;
+    }
+
+    /**
+     * Breaks down all the values in a row into sorted runs.
+     * @param row The row to compact.
+     * @throws IllegalDataException if one of the cells cannot be read because
+     * it's corrupted or in a format we don't understand.
+     */
+    void breakDown(final ArrayList<KeyValue> row) {
+      for (final KeyValue kv : row) {
+        final byte[] qual = kv.qualifier();
+        final int len = qual.length;
+        final byte[] val = kv.value();
+        if (len == 2) {  // Single-value cell.
+          // Maybe we need to fix the value and the flags in the qualifier.
+          final byte[] actual_val = fixFloatingPointValue(qual[1], val);
+          final byte q = fixQualifierFlags(qual[1], actual_val.length);
+          add((qual[0] & 0xFF) << 8 | (q & 0xFF),
+              actual_val, 0, actual_val.length);
+          continue;
+        }
+        // else: we have a multi-value cell.
+        // First check that the last byte is 0, otherwise it might mean that
+        // this compacted cell has been written by a future version of
+        // OpenTSDB and we don't know how to decode it, so we shouldn't touch
+        // it.
+        if (val.length == 0 || val[val.length - 1] != 0) {
+          throw new IllegalDataException("Don't know how to read this value:"
+            + Arrays.toString(val) + " found in " + kv
+            + " -- this compacted value might have been written by a future"
+            + " version of OpenTSDB, or could be corrupt.");
+        }
+        // Remember the last byte is metadata, so we don't consume it.
+        final int val_len = val.length - 1;
+        int val_idx = 0;
+        int i = 0;
+        for (; i < len - 1; i += 2) {
+          final int q = (qual[i] & 0xFF) << 8 | (qual[i + 1] & 0xFF);
+          final int vlen = (q & Const.LENGTH_MASK) + 1;
+          if (val_idx + vlen > val_len) {
+            break;  // Not enough bytes left for this value.
+          }
+          add(q, val, val_idx, vlen);
+          val_idx += vlen;
+        }
+        // Check we consumed exactly all the qualifiers and value bytes.
+        if (i < len - 1 || val_idx != val_len) {
+          throw new IllegalDataException("Corrupted value: couldn't break down"
+            + " into individual values (consumed " + val_idx + " bytes, but"
+            + " was expecting to consume " + val_len + "): " + kv);
         }
-        // else: we're good, this is a true duplicate (same qualifier & value).
-        // Just replace it with a tombstone so we'll skip it.  We don't delete
-        // it from the array because that would cause a re-allocation.
-        cells.set(i, Cell.SKIP);
-        continue;
       }
-      last_delta = delta;
+      for (int r = 0; r < nruns - 1; r++) {
+        run_end[r] = run_pos[r + 1];
+      }
+      if (nruns > 0) {
+        run_end[nruns - 1] = nvalues;
+      }
+    }
+
+    /** Adds a value, starting a new run if it's out of order.  */
+    private void add(final int q, final byte[] source,
+                     final int offset, final int length) {
+      if (nvalues == 0 || q < qualifiers[nvalues - 1]) {
+        run_pos[nruns++] = nvalues;
+      }
+      qualifiers[nvalues] = q;
+      sources[nvalues] = source;
+      offsets[nvalues] = offset;
+      lengths[nvalues] = length;
       nvalues++;
-      val_len += cell.value.length;
     }
 
-    final byte[] qualifier = new byte[nvalues * 2];
-    final byte[] value = new byte[val_len];
-    // Now populate the arrays by copying qualifiers/values over.
-    int qual_idx = 0;
-    int val_idx = 0;
-    for (final Cell cell : cells) {
-      if (cell == Cell.SKIP) {
-        continue;
+    /**
+     * Merges all the runs into a compacted cell.
+     * @param row The row to compact, must be what was broken down.
+     * @throws IllegalDataException if two values have the same time delta
+     * but different flags or values.
+     */
+    KeyValue merge(final ArrayList<KeyValue> row) {
+      for (int r = 0; r < nruns; r++) {
+        heap[r] = heapEntry(r);
+      }
+      int heap_size = nruns;
+      for (int i = heap_size / 2 - 1; i >= 0; i--) {
+        siftDown(i, heap_size);
+      }
+      int qual_idx = 0;
+      int val_idx = 0;
+      int last = -1;  // Index of the last value written.
+      int last_delta = -1;  // Time delta, extracted from the qualifier.
+      while (heap_size > 0) {
+        final int r = (int) heap[0];
+        final int i = run_pos[r]++;
+        if (run_pos[r] < run_end[r]) {
+          heap[0] = heapEntry(r);
+        } else {
+          heap[0] = heap[--heap_size];
+        }
+        siftDown(0, heap_size);
+
+        final int q = qualifiers[i];
+        final int delta = q >>> Const.FLAG_BITS;
+        // The only troublesome case is where we have two (or more) values
+        // with the same time delta, but different flags or values.
+        if (delta == last_delta) {
+          if ((q & 0xFF) != (qualifiers[last] & 0xFF) || !sameValue(i, last)) {
+            throw new IllegalDataException("Found out of order or duplicate"
+              + " data: " + toString(i) + ", delta=" + delta + ", prev "
+              + toString(last) + ", in row=" + row + " -- run an fsck.");
+          }
+          // else: we're good, this is a true duplicate (same qualifier &
+          // value), just skip it.
+          continue;
+        }
+        last_delta = delta;
+        last = i;
+        qualifier[qual_idx++] = (byte) (q >>> 8);
+        qualifier[qual_idx++] = (byte) q;
+        System.arraycopy(sources[i], offsets[i], value, val_idx, lengths[i]);
+        val_idx += lengths[i];
       }
-      byte[] b = cell.qualifier;
-      System.arraycopy(b, 0, qualifier, qual_idx, b.length);
-      qual_idx += b.length;
-      b = cell.value;
-      System.arraycopy(b, 0, value, val_idx, b.length);
-      val_idx += b.length;
+
+      final byte[] qual = Arrays.copyOf(qualifier, qual_idx);
+      // Right now we leave the last byte all zeros, this last byte will be
+      // used in the future to introduce more formats/encodings.
+      final byte[] val = new byte[val_idx + 1];
+      System.arraycopy(value, 0, val, 0, val_idx);
+      final KeyValue first = row.get(0);
+      return new KeyValue(first.key(), first.family(), qual, val);
     }
-    // Right now we leave the last byte all zeros, this last byte will be
-    // used in the future to introduce more formats/encodings.
 
-    final KeyValue first = row.get(0);
-    final KeyValue kv = new KeyValue(first.key(), first.family(),
-                                     qualifier, value);
-    return kv;
-  }
+    /** Returns the heap entry for the next value of the given run.  */
+    private long heapEntry(final int run) {
+      return (long) qualifiers[run_pos[run]] << 32 | run;
+    }
 
-  /**
-   * Breaks down all the values in a row into individual {@link Cell}s.
-   * @param row The row to compact.  Assumed to have 2 elements or more.
-   * @param estimated_nvalues Estimate of the number of values to compact.
-   * Used to pre-allocate a collection of the right size, so it's better to
-   * overshoot a bit to avoid re-allocations.
-   * @throws IllegalDataException if one of the cells cannot be read because
-   * it's corrupted or in a format we don't understand.
-   */
-  private static ArrayList<Cell> breakDownValues(final ArrayList<KeyValue> row,
-                                                 final int estimated_nvalues) {
-    final ArrayList<Cell> cells = new ArrayList<Cell>(estimated_nvalues);
-    for (final KeyValue kv : row) {
-      final byte[] qual = kv.qualifier();
-      final int len = qual.length;
-      final byte[] val = kv.value();
-      if (len == 2) {  // Single-value cell.
-        // Maybe we need to fix the flags in the qualifier.
-        final byte[] actual_val = fixFloatingPointValue(qual[1], val);
-        final byte q = fixQualifierFlags(qual[1], actual_val.length);
-        final byte[] actual_qual;
-        if (q != qual[1]) {  // We need to fix the qualifier.
-          actual_qual = new byte[] { qual[0], q };  // So make a copy.
-        } else {
-          actual_qual = qual;  // Otherwise use the one we already have.
+    /** Restores the heap property from the given entry down.  */
+    private void siftDown(int i, final int heap_size) {
+      final long entry = heap[i];
+      int child;
+      while ((child = 2 * i + 1) < heap_size) {
+        if (child + 1 < heap_size && heap[child + 1] < heap[child]) {
+          child++;
         }
-        final Cell cell = new Cell(actual_qual, actual_val);
-        cells.add(cell);
-        continue;
-      }
-      // else: we have a multi-value cell.  We need to break it down into
-      // individual Cell objects.
-      // First check that the last byte is 0, otherwise it might mean that
-      // this compacted cell has been written by a future version of OpenTSDB
-      // and we don't know how to decode it, so we shouldn't touch it.
-      if (val[val.length - 1] != 0) {
-        throw new IllegalDataException("Don't know how to read this value:"
-          + Arrays.toString(val) + " found in " + kv
-          + " -- this compacted value might have been written by a future"
-          + " version of OpenTSDB, or could be corrupt.");
-      }
-      // Now break it down into Cells.
-      int val_idx = 0;
-      for (int i = 0; i < len; i += 2) {
-        final byte[] q = new byte[] { qual[i], qual[i + 1] };
-        final int vlen = (q[1] & Const.LENGTH_MASK) + 1;
-        final byte[] v = new byte[vlen];
-        System.arraycopy(val, val_idx, v, 0, vlen);
-        val_idx += vlen;
-        final Cell cell = new Cell(q, v);
-        cells.add(cell);
+        if (entry <= heap[child]) {
+          break;
+        }
+        heap[i] = heap[child];
+        i = child;
       }
-      // Check we consumed all the bytes of the value.  Remember the last byte
-      // is metadata, so it's normal that we didn't consume it.
-      if (val_idx != val.length - 1) {
-        throw new IllegalDataException("Corrupted value: couldn't break down"
-          + " into individual values (consumed " + val_idx + " bytes, but was"
-          + " expecting to consume " + (val.length - 1) + "): " + kv
-          + ", cells so far: " + cells);
+      heap[i] = entry;
+    }
+
+    /** Returns whether two values have the same bytes.  */
+    private boolean sameValue(final int a, final int b) {
+      final int len = lengths[a];
+      if (len != lengths[b]) {
+        return false;
+      }
+      final byte[] src_a = sources[a];
+      final byte[] src_b = sources[b];
+      final int off_a = offsets[a];
+      final int off_b = offsets[b];
+      for (int i = 0; i < len; i++) {
+        if (src_a[off_a + i] != src_b[off_b + i]) {
+          return false;
+        }
       }
+      return true;
     }
-    return cells;
+
+    /** Forgets the row merged, so we don't hold on to its arrays.  */
+    void clear() {
+      Arrays.fill(sources, 0, nvalues, null);
+      nvalues = 0;
+      nruns = 0;
+    }
+
+    private String toString(final int i) {
+      return "qualifier=0x" + Integer.toHexString(qualifiers[i]) + ", value="
+        + Arrays.toString(Arrays.copyOfRange(sources[i], offsets[i],
+                                             offsets[i] + lengths[i]));
+    }
+
   }
 
   /**
@@ -776,6 +1480,13 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   private final HandleErrorCB handle_write_error = new HandleErrorCB("write");
   private final HandleErrorCB handle_delete_error = new HandleErrorCB("delete");
 
+  /**
+   * What the compaction of a row returns when it was given up on because
+   * HBase asked us to throttle, and the row was put back in the queue.
+   * It's told apart from other results by identity.
+   */
+  private static final Boolean THROTTLED = new Boolean(true);
+
   /**
    * Callback to handle exceptions during the compaction process.
    */
@@ -801,7 +1512,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           // get, put or delete, we should re-schedule this row for a future
           // compaction.
           add(((HBaseRpc.HasKey) rpc).key());
-          return Boolean.TRUE;  // We handled it, so don't return an exception.
+          return THROTTLED;  // We handled it, so don't return an exception.
         } else {  // Should never get in this clause.
           LOG.error("WTF?  Cannot retry this RPC, and this shouldn't happen: "
                     + rpc);
@@ -819,84 +1530,52 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
-  /** Starts a compaction thread.  Only one such thread is needed.  */
-  private void startCompactionThread() {
-    final Thrd thread = new Thrd();
+  /** Starts the compaction thread of a shard.  */
+  private void startCompactionThread(final Shard shard) {
+    final Thrd thread = new Thrd(shard);
     thread.setDaemon(true);
     thread.start();
   }
 
-  /** How frequently the compaction thread wakes up flush stuff.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_INTERVAL = 10;  // seconds
-
-  /** Minimum number of rows we'll attempt to compact at once.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MIN_FLUSH_THRESHOLD = 100;  // rows
-
-  /** Maximum number of rows we'll compact concurrently.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MAX_CONCURRENT_FLUSHES = 10000;  // rows
-
-  /** If this is X then we'll flush X times faster than we really need.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_SPEED = 2;  // multiplicative factor
-
   /**
-   * Background thread to trigger periodic compactions.
+   * Background thread to trigger periodic compactions of a shard.
    */
   final class Thrd extends Thread {
-    public Thrd() {
-      super("CompactionThread");
+
+    /** The shard this thread compacts.  */
+    private final Shard shard;
+
+    public Thrd(final Shard shard) {
+      super("CompactionThread #" + shard.id);
+      this.shard = shard;
     }
 
     public void run() {
-      long last_flush = 0;
       while (true) {
         try {
           final long now = System.currentTimeMillis();
-          final int size = size();
-          // Let's suppose MAX_TIMESPAN = 1h.  We have `size' rows to compact,
-          // and we better compact them all before in less than 1h, otherwise
-          // we're going to "fall behind" when a new hour start (as we'll be
-          // creating a ton of new rows then).  So slice MAX_TIMESPAN using
-          // FLUSH_INTERVAL to compute what fraction of `size' we need to
-          // flush at each iteration.  Note that `size' will usually account
-          // for many rows that can't be flushed yet (not old enough) so we're
-          // overshooting a bit (flushing more aggressively than necessary).
-          // This isn't a problem at all.  The only thing that matters is that
-          // the rate at which we flush stuff is proportional to how much work
-          // is sitting in the queue.  The multiplicative factor FLUSH_SPEED
-          // is added to make flush even faster than we need.  For example, if
-          // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
-          // for the previous hour, we'll take only 30m.  This is desirable so
-          // that we evict old entries from the queue a bit faster.
-          final int maxflushes = Math.max(MIN_FLUSH_THRESHOLD,
-            size * FLUSH_INTERVAL * FLUSH_SPEED / Const.MAX_TIMESPAN);
-          // Flush if either (1) it's been too long since the last flush
-          // or (2) we have too many rows to recompact already.
-          // Note that in the case (2) we might not be able to flush anything
-          // if the rows aren't old enough.
-          if (last_flush - now > Const.MAX_TIMESPAN  // (1)
-              || size > maxflushes) {                // (2)
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+          final int size = shard.size();
+          final int maxflushes = policy.maxFlushes(size, shard.oldestAge(now));
+          // Note that we might not be able to flush anything if the rows
+          // aren't old enough.
+          if (maxflushes > 0) {
+            shard.flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes,
+                        true);
             if (LOG.isDebugEnabled()) {
-              final int newsize = size();
-              LOG.debug("flush() took " + (System.currentTimeMillis() - now)
-                        + "ms, new queue size=" + newsize
+              final int newsize = shard.size();
+              LOG.debug("flush() of shard " + shard.id + " took "
+                        + (System.currentTimeMillis() - now)
+                        + "ms, new shard size=" + newsize
                         + " (" + (newsize - size) + ')');
             }
           }
         } catch (Exception e) {
           LOG.error("Uncaught exception in compaction thread", e);
         } catch (OutOfMemoryError e) {
-          // Let's free up some memory by throwing away the compaction queue.
-          final int sz = size.get();
-          CompactionQueue.super.clear();
-          size.set(0);
-          LOG.error("Discarded the compaction queue, size=" + sz, e);
+          // Let's free up some memory by throwing away this shard.
+          final int sz = shard.clear();
+          LOG.error("Discarded shard " + shard.id + " of the compaction"
+                    + " queue, size=" + sz, e);
         } catch (Throwable e) {
           LOG.error("Uncaught *Throwable* in compaction thread", e);
           // Catching this kind of error is totally unexpected and is really
@@ -913,40 +1592,19 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             LOG.error("Compaction thread interrupted in error handling", i);
             return;  // Don't flush, we're truly hopeless.
           }
-          startCompactionThread();
+          startCompactionThread(shard);
           return;
         }
         try {
-          Thread.sleep(FLUSH_INTERVAL * 1000);
+          Thread.sleep(policy.flushInterval());
         } catch (InterruptedException e) {
           LOG.error("Compaction thread interrupted, doing one last flush", e);
-          flush();
+          shard.flush(System.currentTimeMillis() / 1000
+                      - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
           return;
         }
       }
     }
   }
 
-  /**
-   * Helper to sort the byte arrays in the compaction queue.
-   * <p>
-   * This comparator sorts things by timestamp first, this way we can find
-   * all rows of the same age at once.
-   */
-  private static final class Cmp implements Comparator<byte[]> {
-
-    /** On how many bytes do we encode metrics IDs.  */
-    private final short metric_width;
-
-    public Cmp(final TSDB tsdb) {
-      metric_width = tsdb.metrics.width();
-    }
-
-    public int compare(final byte[] a, final byte[] b) {
-      final int c = Bytes.memcmp(a, b, metric_width, Const.TIMESTAMP_BYTES);
-      // If the timestamps are equal, sort according to the entire row key.
-      return c != 0 ? c : Bytes.memcmp(a, b);
-    }
-  }
-
 }
@@ -0,0 +1,448 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Compressed encoding of compacted cells.
+ * <p>
+ * A regular compacted cell has a 2-byte qualifier per data point, and its
+ * value is the concatenation of the values of the data points followed by a
+ * meta-data byte that's always 0.  A compressed cell is recognized by its
+ * meta-data byte, which is {@link #VERSION}.  Its qualifier only has the
+ * qualifiers of its first and last data points, so code that only looks at
+ * the last qualifier of a cell keeps working.  Its value starts with the
+ * number of data points as a varint, followed by a bit stream where each
+ * data point is encoded in turn:
+ * <ul>
+ * <li>Its flags: a 0 bit if they're the same as the previous data point's,
+ * otherwise a 1 bit followed by the {@link Const#FLAG_BITS} bits of flags.
+ * </li>
+ * <li>Its timestamp, except for the first data point whose timestamp is in
+ * the qualifier: the delta of the delta with the previous timestamp.  A 0
+ * bit when it's 0, otherwise 10, 110, 1110 or 1111 followed by the delta of
+ * delta on 7, 9, 12 or 13 bits.</li>
+ * <li>Integer values: the difference with the previous integer value of the
+ * cell, zig-zag encoded.  A 0 bit when it's 0, otherwise a 1 bit followed
+ * by the difference as a varint.</li>
+ * <li>Floating point values: the XOR of their bits with those of the
+ * previous floating point value of the cell.  A 0 bit when the value is the
+ * same, 10 followed by the meaningful bits of the XOR when they fit in the
+ * same window as the previous one, otherwise 11 followed by the number of
+ * leading zeros on 6 bits, the number of meaningful bits minus 1 on 6 bits,
+ * and the meaningful bits.</li>
+ * </ul>
+ * The bit stream is padded with 0 bits to a whole number of bytes.
+ * <p>
+ * For counters and gauges with data points at a regular interval, this
+ * takes 1 to 2 bytes per data point instead of about 10.
+ * <p>
+ * This class is stateless and thread-safe.
+ */
+final class CompressedCell {
+
+  /** Value of the meta-data byte of compressed cells.  */
+  static final byte VERSION = 1;
+
+  private CompressedCell() {
+    // Can't instantiate.
+  }
+
+  /**
+   * Returns whether or not the given cell is a compressed cell.
+   * @param kv The cell to check.
+   */
+  static boolean isCompressed(final KeyValue kv) {
+    final byte[] qual = kv.qualifier();
+    final byte[] val = kv.value();
+    return qual.length == 4 && val.length > 0
+      && val[val.length - 1] == VERSION;
+  }
+
+  /**
+   * Compresses a compacted cell.
+   * @param kv A compacted cell, as created by the {@link CompactionQueue},
+   * with at least 2 data points ordered by time.
+   * @return A compressed cell with the same data points as {@code kv}, or
+   * {@code null} if the cell can't be compressed or if compressing it
+   * doesn't save any space.
+   */
+  static KeyValue encode(final KeyValue kv) {
+    return encode(kv, false);
+  }
+
+  /**
+   * Compresses a compacted cell.
+   * @param kv A compacted cell, as created by the {@link CompactionQueue},
+   * with at least 2 data points ordered by time.
+   * @param even_if_larger If {@code true}, the cell is compressed even if
+   * its compressed form takes more space.
+   * @return A compressed cell with the same data points as {@code kv}, or
+   * {@code null} if the cell can't be compressed.
+   */
+  static KeyValue encode(final KeyValue kv, final boolean even_if_larger) {
+    final byte[] qual = kv.qualifier();
+    final byte[] val = kv.value();
+    final int npoints = qual.length / 2;
+    if (npoints < 2 || qual.length % 2 != 0
+        || val.length == 0 || val[val.length - 1] != 0) {
+      return null;
+    }
+    final BitWriter out = new BitWriter(val.length);
+    out.writeVarint(npoints);
+    int last_flags = -1;
+    int last_delta = 0;
+    int last_interval = 0;  // Time between the last two data points.
+    long last_long = 0;
+    long last_bits = 0;
+    int leading = -1;  // Window of the last XOR, -1 if there's none yet.
+    int trailing = 0;
+    int val_idx = 0;
+    for (int i = 0; i < qual.length; i += 2) {
+      final int q = Bytes.getUnsignedShort(qual, i);
+      final int flags = q & Const.FLAGS_MASK;
+      final int delta = q >>> Const.FLAG_BITS;
+      final int vlen = (flags & Const.LENGTH_MASK) + 1;
+      if (val_idx + vlen > val.length - 1) {
+        return null;
+      }
+      final boolean is_float = (flags & Const.FLAG_FLOAT) != 0;
+      if (is_float ? vlen != 4 && vlen != 8
+          : vlen != 1 && vlen != 2 && vlen != 4 && vlen != 8) {
+        return null;
+      }
+
+      if (flags == last_flags) {
+        out.write(0, 1);
+      } else {
+        out.write(1, 1);
+        out.write(flags, Const.FLAG_BITS);
+        last_flags = flags;
+      }
+
+      if (i > 0) {
+        if (delta <= last_delta) {
+          return null;  // Out of order or duplicate data.
+        }
+        final int interval = delta - last_delta;
+        final int dod = interval - last_interval;
+        if (dod == 0) {
+          out.write(0, 1);
+        } else if (dod >= -63 && dod <= 64) {
+          out.write(2, 2);
+          out.write(dod + 63, 7);
+        } else if (dod >= -255 && dod <= 256) {
+          out.write(6, 3);
+          out.write(dod + 255, 9);
+        } else if (dod >= -2047 && dod <= 2048) {
+          out.write(14, 4);
+          out.write(dod + 2047, 12);
+        } else {
+          out.write(15, 4);
+          out.write(dod + 4095, 13);
+        }
+        last_interval = interval;
+      }
+      last_delta = delta;
+
+      if (is_float) {
+        final long bits = vlen == 8 ? Bytes.getLong(val, val_idx)
+          : Bytes.getUnsignedInt(val, val_idx);
+        final long xor = bits ^ last_bits;
+        last_bits = bits;
+        if (xor == 0) {
+          out.write(0, 1);
+        } else {
+          final int lead = Long.numberOfLeadingZeros(xor);
+          final int trail = Long.numberOfTrailingZeros(xor);
+          if (leading >= 0 && lead >= leading && trail >= trailing) {
+            out.write(2, 2);
+            out.write(xor >>> trailing, 64 - leading - trailing);
+          } else {
+            leading = lead;
+            trailing = trail;
+            final int meaningful = 64 - lead - trail;
+            out.write(3, 2);
+            out.write(lead, 6);
+            out.write(meaningful - 1, 6);
+            out.write(xor >>> trail, meaningful);
+          }
+        }
+      } else {
+        final long value = RowSeq.extractIntegerValue(val, val_idx,
+                                                      (byte) flags);
+        final long diff = value - last_long;
+        last_long = value;
+        if (diff == 0) {
+          out.write(0, 1);
+        } else {
+          out.write(1, 1);
+          out.writeVarint((diff << 1) ^ (diff >> 63));
+        }
+      }
+      val_idx += vlen;
+    }
+    if (val_idx != val.length - 1) {
+      return null;
+    }
+    final byte[] value = out.toBytes(1);
+    if (!even_if_larger && value.length + 4 >= val.length + qual.length) {
+      return null;  // Not worth it.
+    }
+    value[value.length - 1] = VERSION;
+    final byte[] newqual = { qual[0], qual[1],
+                             qual[qual.length - 2], qual[qual.length - 1] };
+    return new KeyValue(kv.key(), kv.family(), newqual, value);
+  }
+
+  /**
+   * Decompresses a compressed cell.
+   * @param kv A cell for which {@link #isCompressed} returns {@code true}.
+   * @return A regular compacted cell with the same data points.
+   * @throws IllegalDataException if the cell is corrupted.
+   */
+  static KeyValue decode(final KeyValue kv) {
+    final byte[] qual = kv.qualifier();
+    final byte[] val = kv.value();
+    try {
+      final BitReader in = new BitReader(val, val.length - 1);
+      final int npoints = (int) in.readVarint();
+      // There can't be more data points than possible time deltas.
+      if (npoints < 2 || npoints > 1 << (Short.SIZE - Const.FLAG_BITS)) {
+        throw new IllegalDataException("Invalid number of data points: "
+                                       + npoints);
+      }
+      final byte[] newqual = new byte[npoints * 2];
+      byte[] newval = new byte[npoints * 4 + 1];
+      int val_idx = 0;
+      int flags = -1;
+      int delta = Bytes.getUnsignedShort(qual, 0) >>> Const.FLAG_BITS;
+      int last_interval = 0;
+      long last_long = 0;
+      long last_bits = 0;
+      int leading = -1;
+      int trailing = 0;
+      for (int i = 0; i < npoints; i++) {
+        if (in.readBit()) {
+          flags = (int) in.read(Const.FLAG_BITS);
+        } else if (flags < 0) {
+          throw new IllegalDataException("No flags for the first data point");
+        }
+
+        if (i > 0) {
+          final int dod;
+          if (!in.readBit()) {
+            dod = 0;
+          } else if (!in.readBit()) {
+            dod = (int) in.read(7) - 63;
+          } else if (!in.readBit()) {
+            dod = (int) in.read(9) - 255;
+          } else if (!in.readBit()) {
+            dod = (int) in.read(12) - 2047;
+          } else {
+            dod = (int) in.read(13) - 4095;
+          }
+          last_interval += dod;
+          delta += last_interval;
+          if (last_interval <= 0 || !RowSeq.canTimeDeltaFit(delta)) {
+            throw new IllegalDataException("Invalid time delta " + delta
+              + " for data point #" + i);
+          }
+        }
+        Bytes.setShort(newqual, (short) (delta << Const.FLAG_BITS | flags),
+                       i * 2);
+
+        final int vlen = (flags & Const.LENGTH_MASK) + 1;
+        if (val_idx + vlen + 1 > newval.length) {
+          newval = Arrays.copyOf(newval, newval.length * 2 + vlen);
+        }
+        if ((flags & Const.FLAG_FLOAT) != 0) {
+          if (!in.readBit()) {
+            // Same value as before.
+          } else if (!in.readBit()) {
+            if (leading < 0) {
+              throw new IllegalDataException("No XOR window for data point #"
+                                             + i);
+            }
+            last_bits ^= in.read(64 - leading - trailing) << trailing;
+          } else {
+            leading = (int) in.read(6);
+            final int meaningful = (int) in.read(6) + 1;
+            trailing = 64 - leading - meaningful;
+            if (trailing < 0) {
+              throw new IllegalDataException("Invalid XOR window for data"
+                                             + " point #" + i);
+            }
+            last_bits ^= in.read(meaningful) << trailing;
+          }
+          if (vlen == 8) {
+            Bytes.setLong(newval, last_bits, val_idx);
+          } else if (vlen == 4) {
+            Bytes.setInt(newval, (int) last_bits, val_idx);
+          } else {
+            throw new IllegalDataException("Invalid length for a floating"
+              + " point value: " + vlen + " for data point #" + i);
+          }
+        } else {
+          if (in.readBit()) {
+            final long zigzag = in.readVarint();
+            last_long += (zigzag >>> 1) ^ -(zigzag & 1);
+          }
+          switch (vlen) {
+            case 8: Bytes.setLong(newval, last_long, val_idx); break;
+            case 4: Bytes.setInt(newval, (int) last_long, val_idx); break;
+            case 2: Bytes.setShort(newval, (short) last_long, val_idx); break;
+            case 1: newval[val_idx] = (byte) last_long; break;
+            default:
+              throw new IllegalDataException("Invalid length for an integer"
+                + " value: " + vlen + " for data point #" + i);
+          }
+        }
+        val_idx += vlen;
+      }
+      if (!in.atEnd()) {
+        throw new IllegalDataException("Trailing bytes after " + npoints
+                                       + " data points");
+      }
+      if (newqual[0] != qual[0] || newqual[1] != qual[1]
+          || newqual[npoints * 2 - 2] != qual[2]
+          || newqual[npoints * 2 - 1] != qual[3]) {
+        throw new IllegalDataException("Qualifiers of the first and last data"
+          + " points don't match the cell's qualifier");
+      }
+      newval = Arrays.copyOf(newval, val_idx + 1);  // Meta-data byte is 0.
+      return new KeyValue(kv.key(), kv.family(), newqual, newval);
+    } catch (IllegalDataException e) {
+      throw new IllegalDataException("Corrupted compressed cell: "
+                                     + e.getMessage() + " in " + kv);
+    }
+  }
+
+  /** Writes a stream of bits, most significant bits first.  */
+  private static final class BitWriter {
+
+    private byte[] buf;
+    /** Number of bits written so far.  */
+    private int nbits;
+
+    BitWriter(final int size_hint) {
+      buf = new byte[Math.max(size_hint, 16)];
+    }
+
+    /** Writes an unsigned varint, as groups of 8 bits.  */
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((value & 0x7F) | 0x80, 8);
+        value >>>= 7;
+      }
+      write(value, 8);
+    }
+
+    /**
+     * Writes the {@code n} least significant bits of {@code value}.
+     * @param n A number between 1 and 64.
+     */
+    void write(final long value, int n) {
+      ensure(n);
+      while (n > 0) {
+        final int free = 8 - (nbits & 7);
+        final int take = Math.min(free, n);
+        final int chunk = (int) (value >>> (n - take)) & ((1 << take) - 1);
+        buf[nbits >>> 3] |= chunk << (free - take);
+        nbits += take;
+        n -= take;
+      }
+    }
+
+    /**
+     * Returns the bytes written.
+     * @param extra Number of extra bytes to leave at the end.
+     */
+    byte[] toBytes(final int extra) {
+      return Arrays.copyOf(buf, ((nbits + 7) >>> 3) + extra);
+    }
+
+    private void ensure(final int n) {
+      if (((nbits + n + 7) >>> 3) > buf.length) {
+        buf = Arrays.copyOf(buf, buf.length * 2 + 8);
+      }
+    }
+
+  }
+
+  /** Reads the stream of bits written by a {@link BitWriter}.  */
+  private static final class BitReader {
+
+    private final byte[] buf;
+    /** Number of bytes we can read from {@code buf}.  */
+    private final int limit;
+    /** Number of bits read so far.  */
+    private int pos;
+
+    BitReader(final byte[] buf, final int limit) {
+      this.buf = buf;
+      this.limit = limit;
+    }
+
+    /** Reads an unsigned varint.  */
+    long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        final int b = (int) read(8);
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalDataException("Varint too long");
+    }
+
+    boolean readBit() {
+      return read(1) != 0;
+    }
+
+    /**
+     * Reads {@code n} bits.
+     * @param n A number between 1 and 64.
+     * @throws IllegalDataException if there are fewer than {@code n} bits
+     * left.
+     */
+    long read(int n) {
+      if (pos + n > limit << 3) {
+        throw new IllegalDataException("Truncated value");
+      }
+      long value = 0;
+      while (n > 0) {
+        final int avail = 8 - (pos & 7);
+        final int take = Math.min(avail, n);
+        final int chunk = (buf[pos >>> 3] >>> (avail - take))
+          & ((1 << take) - 1);
+        value = (value << take) | chunk;
+        pos += take;
+        n -= take;
+      }
+      return value;
+    }
+
+    /** Returns whether all the bytes were read, ignoring padding bits.  */
+    boolean atEnd() {
+      return ((pos + 7) >>> 3) == limit;
+    }
+
+  }
+
+}
@@ -12,18 +12,20 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 import org.hbase.async.Bytes;
 import org.hbase.async.PutRequest;
 
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.RollingHistogram;
 
 /**
  * Receives new data points and stores them in HBase.
@@ -42,7 +44,8 @@ final class IncomingDataPoints implements WritableDataPoints {
    * We want buckets up to 16s, with 2 ms interval between each bucket up to
    * 100 ms after we which we switch to exponential buckets.
    */
-  static final Histogram putlatency = new Histogram(16000, (short) 2, 100);
+  static final RollingHistogram putlatency =
+    new RollingHistogram(16000, (short) 2, 100);
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
@@ -105,14 +108,73 @@ final class IncomingDataPoints implements WritableDataPoints {
   /**
    * Returns a partially initialized row key for this metric and these tags.
    * The only thing left to fill in is the base timestamp.
+   * <p>
+   * The tags are resolved concurrently, see {@link #rowKeyTemplateAsync},
+   * so a new series costs one or two round trips to HBase instead of one
+   * per name.
+   * @throws net.opentsdb.uid.NoSuchUniqueName if the metric doesn't exist
+   * and metrics aren't created automatically, in which case no tag is
+   * created either.
    */
   static byte[] rowKeyTemplate(final TSDB tsdb,
                                final String metric,
                                final Map<String, String> tags) {
+    return Tags.join(rowKeyTemplateAsync(tsdb, metric, tags));
+  }
+
+  /**
+   * Asynchronous version of {@link #rowKeyTemplate}.
+   * <p>
+   * This never blocks waiting on HBase or on the assignment of new IDs,
+   * so it's safe to call from an I/O thread.
+   * <p>
+   * If metrics are created automatically, the tags are resolved along with
+   * the metric.  Otherwise they're only resolved once we know the metric
+   * exists, so that writes to unknown metrics don't create new tags.
+   * @return A deferred row key with a zero base time.  The deferred fails
+   * with a {@link net.opentsdb.uid.NoSuchUniqueName} if the metric doesn't
+   * exist and metrics aren't created automatically.
+   */
+  static Deferred<byte[]> rowKeyTemplateAsync(final TSDB tsdb,
+                                              final String metric,
+                                              final Map<String, String> tags) {
+    final Deferred<ArrayList<byte[]>> tag_ids = AUTO_METRIC
+      ? Tags.resolveOrCreateAllAsync(tsdb, tags) : null;
+    final class RowKeyCB implements Callback<Deferred<byte[]>, byte[]> {
+      public Deferred<byte[]> call(final byte[] metric_id) {
+        final class BuildRowKey implements Callback<byte[], ArrayList<byte[]>> {
+          public byte[] call(final ArrayList<byte[]> tag_ids) {
+            return rowKey(tsdb, metric_id, tag_ids);
+          }
+          public String toString() {
+            return "build row key for metric=" + metric;
+          }
+        }
+        return (tag_ids != null ? tag_ids
+                : Tags.resolveOrCreateAllAsync(tsdb, tags))
+          .addCallback(new BuildRowKey());
+      }
+      public String toString() {
+        return "resolve tags for metric=" + metric;
+      }
+    }
+    return (AUTO_METRIC ? tsdb.metrics.getOrCreateIdAsync(metric)
+            : tsdb.metrics.getIdAsync(metric))
+      .addCallbackDeferring(new RowKeyCB());
+  }
+
+  /**
+   * Builds a row key with a zero base time.
+   * @param metric_id The ID of the metric.
+   * @param tag_ids The sorted IDs of the tags.
+   */
+  private static byte[] rowKey(final TSDB tsdb,
+                               final byte[] metric_id,
+                               final List<byte[]> tag_ids) {
     final short metric_width = tsdb.metrics.width();
     final short tag_name_width = tsdb.tag_names.width();
     final short tag_value_width = tsdb.tag_values.width();
-    final short num_tags = (short) tags.size();
+    final short num_tags = (short) tag_ids.size();
 
     int row_size = (metric_width + Const.TIMESTAMP_BYTES
                     + tag_name_width * num_tags
@@ -121,13 +183,12 @@ final class IncomingDataPoints implements WritableDataPoints {
 
     short pos = 0;
 
-    copyInRowKey(row, pos, (AUTO_METRIC ? tsdb.metrics.getOrCreateId(metric)
-                       : tsdb.metrics.getId(metric)));
+    copyInRowKey(row, pos, metric_id);
     pos += metric_width;
 
     pos += Const.TIMESTAMP_BYTES;
 
-    for(final byte[] tag : Tags.resolveOrCreateAll(tsdb, tags)) {
+    for(final byte[] tag : tag_ids) {
       copyInRowKey(row, pos, tag);
       pos += tag.length;
     }
@@ -230,28 +291,25 @@ final class IncomingDataPoints implements WritableDataPoints {
     final PutRequest point = new PutRequest(tsdb.table, row, TSDB.FAMILY,
                                             Bytes.fromShort(qualifier),
                                             value);
-    // TODO(tsuna): The following timing is rather useless.  First of all,
-    // the histogram never resets, so it tends to converge to a certain
-    // distribution and never changes.  What we really want is a moving
-    // histogram so we can see how the latency distribution varies over time.
-    // The other problem is that the Histogram class isn't thread-safe and
-    // here we access it from a callback that runs in an unknown thread, so
-    // we might miss some increments.  So let's comment this out until we
-    // have a proper thread-safe moving histogram.
-    //final long start_put = System.nanoTime();
-    //final Callback<Object, Object> cb = new Callback<Object, Object>() {
-    //  public Object call(final Object arg) {
-    //    putlatency.add((int) ((System.nanoTime() - start_put) / 1000000));
-    //    return arg;
-    //  }
-    //  public String toString() {
-    //    return "time put request";
-    //  }
-    //};
-
     // TODO(tsuna): Add an errback to handle some error cases here.
     point.setDurable(!batch_import);
-    return tsdb.client.put(point)/*.addBoth(cb)*/;
+    return tsdb.client.put(point).addBoth(new TimePut());
+  }
+
+  /** Records the latency of a Put RPC in {@link #putlatency}.  */
+  static final class TimePut implements Callback<Object, Object> {
+
+    private final long start_put = System.nanoTime();
+
+    public Object call(final Object arg) {
+      putlatency.add((int) ((System.nanoTime() - start_put) / 1000000));
+      return arg;
+    }
+
+    public String toString() {
+      return "time put request";
+    }
+
   }
 
   private void grow() {
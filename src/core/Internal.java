@@ -15,6 +15,8 @@ package net.opentsdb.core;
 import java.util.ArrayList;
 import java.util.Map;
 
+import com.stumbleupon.async.Deferred;
+
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
@@ -77,6 +79,13 @@ public final class Internal {
     return ((TsdbQuery) query).getScanner();
   }
 
+  /** @see TsdbQuery#getScanner(long, long) */
+  public static Scanner getScanner(final Query query,
+                                   final long start_row_time,
+                                   final long end_row_time) {
+    return ((TsdbQuery) query).getScanner(start_row_time, end_row_time);
+  }
+
   /** @see RowKey#metricName */
   public static String metricName(final TSDB tsdb, final byte[] id) {
     return RowKey.metricName(tsdb, id);
@@ -114,7 +123,33 @@ public final class Internal {
   public static KeyValue complexCompact(final KeyValue kv) {
     final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
     kvs.add(kv);
-    return CompactionQueue.complexCompact(kvs, kv.qualifier().length / 2);
+    return CompactionQueue.complexCompact(kvs);
+  }
+
+  /** @see CompactionQueue#complexCompact  */
+  public static KeyValue complexCompact(final ArrayList<KeyValue> row) {
+    return CompactionQueue.complexCompact(row);
+  }
+
+  /** @see CompressedCell#isCompressed  */
+  public static boolean isCompressedCell(final KeyValue kv) {
+    return CompressedCell.isCompressed(kv);
+  }
+
+  /** @see CompressedCell#decode  */
+  public static KeyValue decodeCompressedCell(final KeyValue kv) {
+    return CompressedCell.decode(kv);
+  }
+
+  /** Returns whether compactions are enabled in this JVM.  */
+  public static boolean compactionsEnabled() {
+    return TSDB.enable_compactions;
+  }
+
+  /** @see TSDB#compactNow */
+  public static Deferred<Object> compactNow(final TSDB tsdb,
+                                            final ArrayList<KeyValue> row) {
+    return tsdb.compactNow(row);
   }
 
 }
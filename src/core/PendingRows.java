@@ -0,0 +1,505 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes;
+
+/**
+ * A compact set of row keys, waiting to be compacted.
+ * <p>
+ * A row key is made of a series (the metric and the tags) and a base time.
+ * Many rows share the same series, one per hour, so each series is only
+ * stored once, in a dictionary that gives it a small integer ID.  The rows
+ * are then kept in one bit set per base time, indexed by series ID.  A row
+ * costs one bit per hour its series has rows in, plus the entry of its
+ * series in the dictionary, instead of a whole row key and the node of a
+ * sorted map.  Series IDs are recycled once a series has no row left, so
+ * the dictionary doesn't grow with series that stopped receiving data.
+ * <p>
+ * Each row can optionally be associated with a value.  Values are kept in
+ * arrays indexed by series ID, allocated for a base time the first time a
+ * value is given to one of its rows.
+ * <p>
+ * This class is not thread-safe.
+ * @param <V> The type of the values associated with rows.
+ */
+final class PendingRows<V> {
+
+  /** Estimated size of an object header, or of an array header.  */
+  private static final int HEADER_BYTES = 16;
+
+  /** Estimated size of a reference.  */
+  private static final int REF_BYTES = 4;
+
+  /** On how many bytes do we encode metrics IDs.  */
+  private final short metric_width;
+
+  /**
+   * Hash table of the series: each slot has the ID of a series + 1, or 0.
+   * Collisions are resolved with linear probing.
+   */
+  private int[] table = new int[16];
+
+  /** The series (row key without the base time), indexed by series ID. */
+  private byte[][] series = new byte[8][];
+
+  /** Hash of each series, so we don't have to compute it again.  */
+  private int[] hashes = new int[8];
+
+  /** Number of rows each series has, indexed by series ID.  */
+  private int[] nrows = new int[8];
+
+  /** Number of series IDs given so far, including those freed.  */
+  private int nids;
+
+  /** Series IDs freed, to be given again before new ones.  */
+  private int[] free_ids = new int[8];
+  private int nfree;
+
+  /** Number of bytes used by the series themselves.  */
+  private long series_bytes;
+
+  /** The rows of each base time, oldest first.  */
+  private final TreeMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+
+  /** Number of rows.  */
+  private int size;
+
+  /**
+   * Constructor.
+   * @param metric_width On how many bytes metrics IDs are encoded.
+   */
+  PendingRows(final short metric_width) {
+    this.metric_width = metric_width;
+  }
+
+  /** Returns the number of rows.  */
+  int size() {
+    return size;
+  }
+
+  /** Returns the number of different series the rows belong to.  */
+  int seriesCount() {
+    return nids - nfree;
+  }
+
+  /**
+   * Returns the base time of the oldest row, or -1 if there are no rows.
+   */
+  long oldestBaseTime() {
+    return buckets.isEmpty() ? -1 : buckets.firstKey();
+  }
+
+  /**
+   * Adds a row.
+   * @param row The row key.
+   * @return {@code true} if the row wasn't already there.
+   */
+  boolean add(final byte[] row) {
+    final Bucket bucket = bucket(baseTime(row), true);
+    int id = find(row);
+    if (id < 0) {
+      id = intern(row);
+    } else if (bucket.contains(id)) {
+      return false;
+    }
+    bucket.add(id);
+    nrows[id]++;
+    size++;
+    return true;
+  }
+
+  /**
+   * Returns the value associated with a row.
+   * @param row The row key.
+   * @return The value, or {@code null} if there's none or if there's no such
+   * row.
+   */
+  V get(final byte[] row) {
+    final Bucket bucket = bucket(baseTime(row), false);
+    if (bucket == null) {
+      return null;
+    }
+    final int id = find(row);
+    return id < 0 ? null : bucket.get(id);
+  }
+
+  /**
+   * Associates a value with a row.
+   * @param row The row key, which must have been added.
+   * @param value The value, or {@code null} to remove the current one.
+   * @throws IllegalArgumentException if the row wasn't added.
+   */
+  void set(final byte[] row, final V value) {
+    final Bucket bucket = bucket(baseTime(row), false);
+    final int id = find(row);
+    if (bucket == null || id < 0 || !bucket.contains(id)) {
+      throw new IllegalArgumentException("No such row: "
+                                         + Arrays.toString(row));
+    }
+    bucket.set(id, value);
+  }
+
+  /**
+   * Removes the oldest rows.
+   * @param cut_off Rows with a base time after this one aren't removed.
+   * @param max Maximum number of rows to remove.
+   * @param keys If not {@code null}, where to add the keys of the rows.
+   * @param values If not {@code null}, where to add the values of the rows
+   * (in the same order as their keys).
+   * @return The number of rows removed.
+   */
+  int take(final long cut_off, final int max, final ArrayList<byte[]> keys,
+           final ArrayList<V> values) {
+    int taken = 0;
+    final Iterator<Map.Entry<Long, Bucket>> it =
+      buckets.entrySet().iterator();
+    while (taken < max && it.hasNext()) {
+      final Map.Entry<Long, Bucket> entry = it.next();
+      final long base_time = entry.getKey();
+      if (base_time > cut_off) {
+        break;
+      }
+      final Bucket bucket = entry.getValue();
+      int id;
+      while (taken < max && (id = bucket.next()) >= 0) {
+        if (keys != null) {
+          keys.add(rowKey(id, base_time));
+        }
+        if (values != null) {
+          values.add(bucket.get(id));
+        }
+        bucket.remove(id);
+        if (--nrows[id] == 0) {
+          free(id);
+        }
+        size--;
+        taken++;
+      }
+      if (bucket.count == 0) {
+        it.remove();
+      }
+    }
+    return taken;
+  }
+
+  /**
+   * Adds the keys of some of the rows to a list, oldest first, so that they
+   * can be listed a few at a time.
+   * @param from Where to start: 0 for the first row, or what the previous
+   * call returned.
+   * @param max Maximum number of keys to add.
+   * @param keys Where to add the keys.
+   * @return Where to continue from, or -1 if there are no rows left.
+   */
+  long keys(final long from, final int max, final ArrayList<byte[]> keys) {
+    final long from_time = from >>> 32;
+    int added = 0;
+    for (final Map.Entry<Long, Bucket> entry
+         : buckets.tailMap(from_time, true).entrySet()) {
+      final long base_time = entry.getKey();
+      final long[] bits = entry.getValue().bits;
+      final int first_id = base_time == from_time ? (int) from : 0;
+      for (int word = first_id >>> 6; word < bits.length; word++) {
+        long w = bits[word];
+        if (word == first_id >>> 6) {
+          w &= -1L << first_id;  // Skip the series listed last time.
+        }
+        for (; w != 0; w &= w - 1) {
+          final int id = word * 64 + Long.numberOfTrailingZeros(w);
+          if (added == max) {
+            return base_time << 32 | id;
+          }
+          keys.add(rowKey(id, base_time));
+          added++;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns an estimate of the number of bytes used, excluding the values.
+   */
+  long bytes() {
+    long bytes = HEADER_BYTES + 4L * table.length
+      + HEADER_BYTES + (long) REF_BYTES * series.length
+      + HEADER_BYTES + 4L * hashes.length
+      + HEADER_BYTES + 4L * nrows.length
+      + HEADER_BYTES + 4L * free_ids.length
+      + series_bytes;
+    for (final Bucket bucket : buckets.values()) {
+      bytes += bucket.bytes();
+    }
+    return bytes;
+  }
+
+  /** Returns the base time of a row.  */
+  private long baseTime(final byte[] row) {
+    return Bytes.getUnsignedInt(row, metric_width);
+  }
+
+  /**
+   * Returns the bucket of a base time.
+   * @param create Whether to create it if it doesn't exist.
+   */
+  private Bucket bucket(final long base_time, final boolean create) {
+    Bucket bucket = buckets.get(base_time);
+    if (bucket == null && create) {
+      bucket = new Bucket();
+      buckets.put(base_time, bucket);
+    }
+    return bucket;
+  }
+
+  /**
+   * Hashes the series of a row, ignoring its base time.
+   * @param row The row key.
+   * @param metric_width On how many bytes metrics IDs are encoded.
+   */
+  static int hash(final byte[] row, final short metric_width) {
+    int h = 1;
+    for (int i = 0; i < metric_width; i++) {
+      h = 31 * h + row[i];
+    }
+    for (int i = metric_width + Const.TIMESTAMP_BYTES; i < row.length; i++) {
+      h = 31 * h + row[i];
+    }
+    return h;
+  }
+
+  /** Returns the slot of the table where a hash should be.  */
+  private int home(final int hash) {
+    // Rows are sharded by hash, so the low bits of the hashes of the series
+    // in a shard are alike: use the high bits of a Fibonacci hash instead.
+    return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(
+                                                     table.length));
+  }
+
+  /** Returns the ID of the series of a row, or -1 if it has none.  */
+  private int find(final byte[] row) {
+    final int hash = hash(row, metric_width);
+    final int mask = table.length - 1;
+    for (int i = home(hash); table[i] != 0; i = (i + 1) & mask) {
+      final int id = table[i] - 1;
+      if (hashes[id] == hash && sameSeries(row, series[id])) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns whether a row belongs to a series.  */
+  private boolean sameSeries(final byte[] row, final byte[] series) {
+    if (row.length != series.length + Const.TIMESTAMP_BYTES) {
+      return false;
+    }
+    for (int i = 0; i < metric_width; i++) {
+      if (row[i] != series[i]) {
+        return false;
+      }
+    }
+    for (int i = metric_width; i < series.length; i++) {
+      if (row[i + Const.TIMESTAMP_BYTES] != series[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Gives an ID to the series of a row, which must not have one.  */
+  private int intern(final byte[] row) {
+    final int id;
+    if (nfree > 0) {
+      id = free_ids[--nfree];
+    } else {
+      id = nids++;
+      if (id == series.length) {
+        final int capacity = id * 2;
+        series = Arrays.copyOf(series, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        nrows = Arrays.copyOf(nrows, capacity);
+      }
+    }
+    final byte[] s = new byte[row.length - Const.TIMESTAMP_BYTES];
+    System.arraycopy(row, 0, s, 0, metric_width);
+    System.arraycopy(row, metric_width + Const.TIMESTAMP_BYTES,
+                     s, metric_width, s.length - metric_width);
+    series[id] = s;
+    hashes[id] = hash(row, metric_width);
+    nrows[id] = 0;
+    series_bytes += arrayBytes(s.length);
+    if (seriesCount() * 2 > table.length) {  // Keep the load factor <= 0.5.
+      rehash(table.length * 2);
+    }
+    insert(id);
+    return id;
+  }
+
+  /** Puts a series in the table.  */
+  private void insert(final int id) {
+    final int mask = table.length - 1;
+    int i = home(hashes[id]);
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = id + 1;
+  }
+
+  /** Re-builds the table with a new capacity (a power of 2).  */
+  private void rehash(final int capacity) {
+    final int[] old = table;
+    table = new int[capacity];
+    for (final int slot : old) {
+      if (slot != 0) {
+        insert(slot - 1);
+      }
+    }
+  }
+
+  /** Forgets a series that doesn't have any row left.  */
+  private void free(final int id) {
+    final int mask = table.length - 1;
+    int i = home(hashes[id]);
+    while (table[i] != id + 1) {
+      i = (i + 1) & mask;
+    }
+    // Shift back the series that came after it in the same cluster, if
+    // they'd rather be where it was, so lookups don't stop too early.
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (table[j] == 0) {
+        break;
+      }
+      final int k = home(hashes[table[j] - 1]);
+      // Can the series in `j' move to `i'?  Only if its home slot isn't
+      // cyclically in (i, j].
+      if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+        continue;
+      }
+      table[i] = table[j];
+      i = j;
+    }
+    table[i] = 0;
+    series_bytes -= arrayBytes(series[id].length);
+    series[id] = null;
+    if (nfree == free_ids.length) {
+      free_ids = Arrays.copyOf(free_ids, nfree * 2);
+    }
+    free_ids[nfree++] = id;
+  }
+
+  /** Returns the row key of a series at a base time.  */
+  private byte[] rowKey(final int id, final long base_time) {
+    final byte[] s = series[id];
+    final byte[] row = new byte[s.length + Const.TIMESTAMP_BYTES];
+    System.arraycopy(s, 0, row, 0, metric_width);
+    Bytes.setInt(row, (int) base_time, metric_width);
+    System.arraycopy(s, metric_width, row, metric_width
+                     + Const.TIMESTAMP_BYTES, s.length - metric_width);
+    return row;
+  }
+
+  /** Returns the estimated size of a byte array.  */
+  private static int arrayBytes(final int length) {
+    return (HEADER_BYTES + length + 7) & ~7;  // Objects are 8-byte aligned.
+  }
+
+  public String toString() {
+    return "PendingRows(size=" + size + ", series=" + seriesCount()
+      + ", base_times=" + buckets.keySet() + ')';
+  }
+
+  /** The rows of a base time.  */
+  private final class Bucket {
+
+    /** Bit set of the series that have a row.  */
+    private long[] bits = new long[1];
+
+    /** Values of the rows, or {@code null} if none was given yet.  */
+    private Object[] values;
+
+    /** Number of rows.  */
+    int count;
+
+    /** Index of the first word of {@code bits} that may have a bit set. */
+    private int first_word;
+
+    boolean contains(final int id) {
+      final int word = id >>> 6;
+      return word < bits.length && (bits[word] & (1L << id)) != 0;
+    }
+
+    void add(final int id) {
+      final int word = id >>> 6;
+      if (word >= bits.length) {
+        bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+      }
+      bits[word] |= 1L << id;
+      first_word = Math.min(first_word, word);
+      count++;
+    }
+
+    void remove(final int id) {
+      bits[id >>> 6] &= ~(1L << id);
+      if (values != null && id < values.length) {
+        values[id] = null;
+      }
+      count--;
+    }
+
+    /** Returns the lowest series ID with a row, or -1 if there are none. */
+    int next() {
+      for (; first_word < bits.length; first_word++) {
+        final long word = bits[first_word];
+        if (word != 0) {
+          return first_word * 64 + Long.numberOfTrailingZeros(word);
+        }
+      }
+      return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final int id) {
+      return values == null || id >= values.length ? null : (V) values[id];
+    }
+
+    void set(final int id, final V value) {
+      if (values == null || id >= values.length) {
+        if (value == null) {
+          return;
+        }
+        final int capacity = Math.max(id + 1, bits.length * 64);
+        values = values == null
+          ? new Object[capacity] : Arrays.copyOf(values, capacity);
+      }
+      values[id] = value;
+    }
+
+    long bytes() {
+      // Node of the TreeMap, boxed base time and this object.
+      return 3 * HEADER_BYTES + 4 * REF_BYTES + 8
+        + HEADER_BYTES + 8L * bits.length
+        + (values == null ? 0 : HEADER_BYTES + (long) REF_BYTES * values.length);
+    }
+
+  }
+
+}
@@ -13,6 +13,9 @@
 package net.opentsdb.core;
 
 import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.stumbleupon.async.Deferred;
 
 import org.hbase.async.HBaseException;
 
@@ -104,4 +107,31 @@ public interface Query {
    */
   DataPoints[] run() throws HBaseException;
 
+  /**
+   * Runs this query asynchronously.
+   * <p>
+   * Unlike {@link #run}, this doesn't block the calling thread while HBase
+   * is scanned, so several queries can run in parallel.
+   * @return A deferred array of the data points matched by this query, as
+   * {@link #run} would return it.  The deferred fails with an
+   * {@link HBaseException} if there was a problem communicating with HBase
+   * to perform the search.
+   */
+  Deferred<DataPoints[]> runAsync() throws HBaseException;
+
+  /**
+   * Runs this query asynchronously, processing the results on an executor.
+   * <p>
+   * Like {@link #runAsync()}, but the rows returned by HBase are loaded and
+   * grouped on the given executor, rather than on the HBase client's I/O
+   * threads, which mustn't be kept busy.  The callbacks of the deferred
+   * returned then run on the executor too, unless the query fails.
+   * @param executor Where to process the results of the scans.
+   * @return A deferred array of the data points matched by this query, as
+   * {@link #run} would return it.  The deferred fails with an
+   * {@link HBaseException} if there was a problem communicating with HBase
+   * to perform the search.
+   */
+  Deferred<DataPoints[]> runAsync(Executor executor) throws HBaseException;
+
 }
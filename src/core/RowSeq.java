@@ -64,13 +64,15 @@ final class RowSeq implements DataPoints {
 
   /**
    * Sets the row this instance holds in RAM using a row from a scanner.
-   * @param row The compacted HBase row to set.
+   * @param cell The compacted HBase row to set, possibly compressed.
    * @throws IllegalStateException if this method was already called.
+   * @throws IllegalDataException if the row is a corrupted compressed cell.
    */
-  void setRow(final KeyValue row) {
+  void setRow(final KeyValue cell) {
     if (this.key != null) {
       throw new IllegalStateException("setRow was already called on " + this);
     }
+    final KeyValue row = uncompressed(cell);
 
     this.key = row.key();
     this.qualifiers = row.qualifier();
@@ -83,16 +85,18 @@ final class RowSeq implements DataPoints {
    * together that they could be stored into the same row, it makes sense to
    * merge them into the same {@link RowSeq} instance in memory in order to save
    * RAM.
-   * @param row The compacted HBase row to merge into this instance.
+   * @param cell The compacted HBase row to merge into this instance,
+   * possibly compressed.
    * @throws IllegalStateException if {@link #setRow} wasn't called first.
    * @throws IllegalArgumentException if the data points in the argument
    * aren't close enough to those in this instance time-wise to be all merged
    * together.
    */
-  void addRow(final KeyValue row) {
+  void addRow(final KeyValue cell) {
     if (this.key == null) {
       throw new IllegalStateException("setRow was never called on " + this);
     }
+    final KeyValue row = uncompressed(cell);
 
     final byte[] key = row.key();
     final long base_time = Bytes.getUnsignedInt(key, tsdb.metrics.width());
@@ -171,6 +175,12 @@ final class RowSeq implements DataPoints {
     this.values = newvals;
   }
 
+  /** Returns the uncompressed form of a compacted cell.  */
+  private static KeyValue uncompressed(final KeyValue cell) {
+    return CompressedCell.isCompressed(cell)
+      ? CompressedCell.decode(cell) : cell;
+  }
+
   /**
    * Checks whether a time delta is short enough for a {@link RowSeq}.
    * @param time_delta A time delta in seconds.
@@ -78,7 +78,8 @@ final class Span implements DataPoints {
 
   /**
    * Adds an HBase row to this span, using a row from a scanner.
-   * @param row The compacted HBase row to add to this span.
+   * @param row The compacted HBase row to add to this span, possibly a
+   * {@link CompressedCell}.
    * @throws IllegalArgumentException if the argument and this span are for
    * two different time series.
    * @throws IllegalArgumentException if the argument represents a row for
@@ -134,7 +135,8 @@ final class Span implements DataPoints {
   /**
    * Package private helper to access the last timestamp in an HBase row.
    * @param metric_width The number of bytes on which metric IDs are stored.
-   * @param row A compacted HBase row.
+   * @param row A compacted HBase row.  Compressed cells don't need to be
+   * decoded, their qualifier ends with that of their last data point.
    * @return A strictly positive 32-bit timestamp.
    * @throws IllegalArgumentException if {@code row} doesn't contain any cell.
    */
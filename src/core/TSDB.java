@@ -12,11 +12,17 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
@@ -33,8 +39,10 @@ import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
 
+import net.opentsdb.uid.UidCachePreloader;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.RollingHistogram;
 import net.opentsdb.stats.StatsCollector;
 
 /**
@@ -61,6 +69,14 @@ public final class TSDB {
     enable_compactions = !"false".equals(compactions);
   }
 
+  /**
+   * Maximum number of row key templates to keep in memory.
+   * Set the {@code tsd.core.row_key_cache_size} system property to 0 to
+   * disable the cache entirely.
+   */
+  private static final int ROW_KEY_CACHE_SIZE =
+    Integer.getInteger("tsd.core.row_key_cache_size", 100000);
+
   /** Client for the HBase cluster to use.  */
   final HBaseClient client;
 
@@ -82,6 +98,35 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /**
+   * Row key templates for the series we've recently written to.
+   * Each template is a fully resolved row key with a zero base time.
+   * This is {@code null} if the cache is disabled.
+   * <p>
+   * Like the UID caches, this cache isn't told when a UID is renamed by
+   * another process (with {@code tsdb uid rename}): points written under
+   * the old name keep going to the renamed ID until the template is
+   * evicted or {@link #dropCaches} is called.
+   */
+  private final Cache<Series, byte[]> row_key_templates;
+
+  /**
+   * Where data points go when HBase can't take them.
+   * This is {@code null} unless the {@code tsd.core.spool_dir} system
+   * property is set.
+   */
+  private final WriteSpool spool;
+
+  /**
+   * Checkpoint of the compaction queue.
+   * This is {@code null} unless compactions are enabled and the
+   * {@code tsd.core.compaction_checkpoint_dir} system property is set.
+   */
+  private final CompactionCheckpoint checkpoint;
+
+  /** Set once {@link #shutdown} was called, so we stop taking writes.  */
+  private volatile boolean shutting_down;
+
   /**
    * Constructor.
    * @param client The HBase client to use.
@@ -102,6 +147,19 @@ public final class TSDB {
     tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL,
                               TAG_VALUE_WIDTH);
     compactionq = new CompactionQueue(this);
+    row_key_templates = ROW_KEY_CACHE_SIZE <= 0 ? null
+      : CacheBuilder.newBuilder()
+          .maximumSize(ROW_KEY_CACHE_SIZE)
+          .recordStats()
+          .<Series, byte[]>build();
+    final String spool_dir = System.getProperty("tsd.core.spool_dir");
+    spool = spool_dir == null ? null : new WriteSpool(this, new File(spool_dir));
+    final String checkpoint_dir =
+      System.getProperty("tsd.core.compaction_checkpoint_dir");
+    // Reloads the rows left to compact by the previous process.
+    checkpoint = checkpoint_dir == null || !enable_compactions ? null
+      : new CompactionCheckpoint(compactionq, metrics.width(),
+                                 new File(checkpoint_dir));
   }
 
   /** Number of cache hits during lookups involving UIDs. */
@@ -137,6 +195,14 @@ public final class TSDB {
       collector.record("jvm.ramused", runtime.totalMemory());
     }
 
+    if (row_key_templates != null) {
+      final CacheStats stats = row_key_templates.stats();
+      collector.record("rowkey.cache-hit", stats.hitCount());
+      collector.record("rowkey.cache-miss", stats.missCount());
+      collector.record("rowkey.cache-evictions", stats.evictionCount());
+      collector.record("rowkey.cache-size", row_key_templates.size());
+    }
+
     collector.addExtraTag("class", "IncomingDataPoints");
     try {
       collector.record("hbase.latency", IncomingDataPoints.putlatency, "method=put");
@@ -172,16 +238,29 @@ public final class TSDB {
                      stats.numRpcDelayedDueToNSRE());
 
     compactionq.collectStats(collector);
+    if (checkpoint != null) {
+      checkpoint.collectStats(collector);
+    }
+    if (spool != null) {
+      spool.collectStats(collector);
+    }
   }
 
-  /** Returns a latency histogram for Put RPCs used to store data points. */
+  /**
+   * Returns a latency histogram for Put RPCs used to store data points.
+   * It's a snapshot of the last {@link RollingHistogram#MAX_WINDOW} seconds.
+   */
   public Histogram getPutLatencyHistogram() {
-    return IncomingDataPoints.putlatency;
+    return IncomingDataPoints.putlatency.toHistogram(
+      RollingHistogram.MAX_WINDOW);
   }
 
-  /** Returns a latency histogram for Scan RPCs used to fetch data points.  */
+  /**
+   * Returns a latency histogram for Scan RPCs used to fetch data points.
+   * It's a snapshot of the last {@link RollingHistogram#MAX_WINDOW} seconds.
+   */
   public Histogram getScanLatencyHistogram() {
-    return TsdbQuery.scanlatency;
+    return TsdbQuery.scanlatency.toHistogram(RollingHistogram.MAX_WINDOW);
   }
 
   /**
@@ -194,6 +273,50 @@ public final class TSDB {
     collector.record("uid.cache-hit", uid.cacheHits(), "kind=" + uid.kind());
     collector.record("uid.cache-miss", uid.cacheMisses(), "kind=" + uid.kind());
     collector.record("uid.cache-size", uid.cacheSize(), "kind=" + uid.kind());
+    collector.record("uid.cache-evictions", uid.cacheEvictions(),
+                     "kind=" + uid.kind());
+    collector.record("uid.negative-cache-hit", uid.negativeCacheHits(),
+                     "kind=" + uid.kind());
+    collector.record("uid.assign.pending", uid.pendingAssignments(),
+                     "kind=" + uid.kind());
+    collector.record("uid.assign.deduplicated", uid.deduplicatedAssignments(),
+                     "kind=" + uid.kind());
+    collector.record("uid.id_block.refills", uid.idBlockRefills(),
+                     "kind=" + uid.kind());
+    collector.record("uid.id_block.latency", uid.idBlockLatency(),
+                     "kind=" + uid.kind());
+    collector.record("uid.suggest-index-hit", uid.suggestIndexHits(),
+                     "kind=" + uid.kind());
+    collector.record("uid.suggest-scan", uid.suggestScans(),
+                     "kind=" + uid.kind());
+    collector.record("uid.suggest-index-size", uid.suggestIndexSize(),
+                     "kind=" + uid.kind());
+  }
+
+  /**
+   * Fills the UID caches by scanning the UID table.
+   * <p>
+   * This blocks until done or until the timeout expires, in which case the
+   * caches are left partially filled.
+   * @param scanners The number of scanners to run concurrently.
+   * @param timeout How long to wait (in ms).
+   * @return The number of mappings loaded.
+   * @see UidCachePreloader
+   */
+  public long preloadUidCaches(final int scanners, final long timeout) {
+    return new UidCachePreloader(client, metrics, tag_names, tag_values)
+      .preload(scanners, timeout);
+  }
+
+  /**
+   * Builds the indexes used to answer suggestions, in the background.
+   * Until they're built, suggestions are looked up in HBase.
+   * @see UniqueId#buildSuggestIndex
+   */
+  public void buildSuggestIndexes() {
+    metrics.buildSuggestIndex();
+    tag_names.buildSuggestIndex();
+    tag_values.buildSuggestIndex();
   }
 
   /**
@@ -232,6 +355,7 @@ public final class TSDB {
    * elements contains illegal characters.
    * @throws HBaseException (deferred) if there was a problem while persisting
    * data.
+   * @throws IllegalStateException (deferred) if {@link #shutdown} was called.
    */
   public Deferred<Object> addPoint(final String metric,
                                    final long timestamp,
@@ -262,6 +386,7 @@ public final class TSDB {
    * elements contains illegal characters.
    * @throws HBaseException (deferred) if there was a problem while persisting
    * data.
+   * @throws IllegalStateException (deferred) if {@link #shutdown} was called.
    */
   public Deferred<Object> addPoint(final String metric,
                                    final long timestamp,
@@ -291,18 +416,102 @@ public final class TSDB {
           + " to metric=" + metric + ", tags=" + tags);
     }
 
+    if (row_key_templates != null) {
+      final byte[] row = row_key_templates.getIfPresent(new Series(metric,
+                                                                   tags));
+      if (row != null) {
+        // Always use a copy, as the HBase client may hold a reference to
+        // the row key in its internal datastructures.
+        return writePoint(Arrays.copyOf(row, row.length), timestamp, value,
+                          flags);
+      }
+    }
+    // The metric and tags are only validated and resolved the first time we
+    // see a series, after that the row key is copied out of the cache.
     IncomingDataPoints.checkMetricAndTags(metric, tags);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    // Copy the tags, we can't hold on to a map the caller may modify.
+    final Series series = row_key_templates == null ? null
+      : new Series(metric, new HashMap<String, String>(tags));
+    final class WritePointCB implements Callback<Deferred<Object>, byte[]> {
+      public Deferred<Object> call(final byte[] row) {
+        if (series != null) {
+          row_key_templates.put(series, row);
+        }
+        return writePoint(Arrays.copyOf(row, row.length), timestamp, value,
+                          flags);
+      }
+      public String toString() {
+        return "write data point for metric=" + metric;
+      }
+    }
+    // Resolving the IDs may require HBase lookups or assigning new IDs,
+    // which we mustn't wait for here as we may be on an I/O thread.
+    return IncomingDataPoints.rowKeyTemplateAsync(this, metric, tags)
+      .addCallbackDeferring(new WritePointCB());
+  }
+
+  /**
+   * Writes a data point.
+   * @param row A row key with a zero base time, which will be modified.
+   */
+  private Deferred<Object> writePoint(final byte[] row,
+                                      final long timestamp,
+                                      final byte[] value,
+                                      final short flags) {
+    if (shutting_down) {
+      return Deferred.fromError(new IllegalStateException("The TSD is"
+                                                          + " shutting down"));
+    }
     final long base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
     Bytes.setInt(row, (int) base_time, metrics.width());
-    scheduleForCompaction(row, (int) base_time);
     final short qualifier = (short) ((timestamp - base_time) << Const.FLAG_BITS
                                      | flags);
+    scheduleForCompaction(row, qualifier, value);
     final PutRequest point = new PutRequest(table, row, FAMILY,
                                             Bytes.fromShort(qualifier), value);
-    // TODO(tsuna): Add a callback to time the latency of HBase and store the
-    // timing in a moving Histogram (once we have a class for this).
-    return client.put(point);
+    if (spool == null) {
+      return client.put(point).addBoth(new IncomingDataPoints.TimePut());
+    } else if (spool.isActive() && spool.append(point)) {
+      return Deferred.fromResult(null);  // Older points are being replayed.
+    }
+    return client.put(point).addBoth(new IncomingDataPoints.TimePut())
+      .addErrback(spool.spoolOnFailure(point));
+  }
+
+  /**
+   * Key used to cache row key templates: a metric name and its tags.
+   * <p>
+   * The tags are compared with {@link Map#equals} so the order in which
+   * they were given doesn't matter.
+   */
+  private static final class Series {
+
+    private final String metric;
+    private final Map<String, String> tags;
+    private final int hash;
+
+    Series(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+      hash = (metric == null ? 0 : metric.hashCode()) * 31 + tags.hashCode();
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(final Object other) {
+      if (other == this) {
+        return true;
+      } else if (!(other instanceof Series)) {
+        return false;
+      }
+      final Series s = (Series) other;
+      return hash == s.hash
+        && (metric == null ? s.metric == null : metric.equals(s.metric))
+        && tags.equals(s.tags);
+    }
+
   }
 
   /**
@@ -363,6 +572,16 @@ public final class TSDB {
         return "shutdown HBase client after error";
       }
     }
+    shutting_down = true;  // So no more rows are added to compact.
+    if (spool != null) {
+      spool.close();  // Whatever's left will be replayed on the next start.
+    }
+    if (checkpoint != null) {
+      // Whatever's left to compact will be compacted after the next start,
+      // so we don't need to wait for the compaction queue to be flushed.
+      checkpoint.close();
+      return client.shutdown();
+    }
     // First flush the compaction queue, then shutdown the HBase client.
     return enable_compactions
       ? compactionq.flush().addCallbacks(new HClientShutdown(),
@@ -399,6 +618,9 @@ public final class TSDB {
    * @since 1.1
    */
   public void dropCaches() {
+    if (row_key_templates != null) {
+      row_key_templates.invalidateAll();
+    }
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
@@ -412,6 +634,14 @@ public final class TSDB {
     return compactionq.compact(row);
   }
 
+  /**
+   * Compacts the given row and writes it back right away.
+   * @see CompactionQueue#compactNow
+   */
+  final Deferred<Object> compactNow(final ArrayList<KeyValue> row) {
+    return compactionq.compactNow(row);
+  }
+
   /**
    * Schedules the given row key for later re-compaction.
    * Once this row key has become "old enough", we'll read back all the data
@@ -426,6 +656,22 @@ public final class TSDB {
     }
   }
 
+  /**
+   * Schedules the given row key for later re-compaction, along with a data
+   * point written to it.
+   * If the compaction queue sees all the data points of a row, it doesn't
+   * need to read the row back to compact it.
+   * @param row The row key to re-compact later.  Will not be modified.
+   * @param qualifier The qualifier of the data point.
+   * @param value The value of the data point.  Will not be modified.
+   */
+  final void scheduleForCompaction(final byte[] row, final short qualifier,
+                                   final byte[] value) {
+    if (enable_compactions) {
+      compactionq.add(row, qualifier, value);
+    }
+  }
+
   // ------------------------ //
   // HBase operations helpers //
   // ------------------------ //
@@ -18,6 +18,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -299,6 +303,9 @@ public final class Tags {
   /**
    * Resolves all the tags (name=value) into the a sorted byte arrays.
    * This function is the opposite of {@link #resolveIds}.
+   * <p>
+   * All the IDs missing from the caches are looked up concurrently, so this
+   * waits for a single round trip to HBase instead of one per name.
    * @param tsdb The TSDB to use for UniqueId lookups.
    * @param tags The tags to resolve.
    * @return an array of sorted tags (tag id, tag name).
@@ -308,43 +315,131 @@ public final class Tags {
   static ArrayList<byte[]> resolveAll(final TSDB tsdb,
                                       final Map<String, String> tags)
     throws NoSuchUniqueName {
-    return resolveAllInternal(tsdb, tags, false);
+    return join(resolveAllAsync(tsdb, tags, false));
   }
 
   /**
    * Resolves (and creates, if necessary) all the tags (name=value) into the a
    * sorted byte arrays.
+   * <p>
+   * All the IDs missing from the caches are looked up concurrently, so this
+   * waits for a single round trip to HBase instead of one per name, plus
+   * the time to assign the new IDs, if any.
    * @param tsdb The TSDB to use for UniqueId lookups.
    * @param tags The tags to resolve.  If a new tag name or tag value is
    * seen, it will be assigned an ID.
    * @return an array of sorted tags (tag id, tag name).
+   * @see #resolveOrCreateAllAsync
    */
   static ArrayList<byte[]> resolveOrCreateAll(final TSDB tsdb,
                                               final Map<String, String> tags) {
-    return resolveAllInternal(tsdb, tags, true);
+    return join(resolveAllAsync(tsdb, tags, true));
   }
 
-  private
-    static ArrayList<byte[]> resolveAllInternal(final TSDB tsdb,
-                                                final Map<String, String> tags,
-                                                final boolean create)
-    throws NoSuchUniqueName {
-    final ArrayList<byte[]> tag_ids = new ArrayList<byte[]>(tags.size());
+  /**
+   * Asynchronously resolves (and creates, if necessary) all the tags
+   * (name=value) into the a sorted byte arrays.
+   * <p>
+   * All the IDs are looked up concurrently, and this never blocks waiting
+   * on HBase or on the assignment of new IDs.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param tags The tags to resolve.  If a new tag name or tag value is
+   * seen, it will be assigned an ID.
+   * @return A deferred array of sorted tags (tag id, tag name).
+   * @see net.opentsdb.uid.UniqueId#getOrCreateIdAsync
+   */
+  static Deferred<ArrayList<byte[]>>
+    resolveOrCreateAllAsync(final TSDB tsdb, final Map<String, String> tags) {
+    return resolveAllAsync(tsdb, tags, true);
+  }
+
+  /**
+   * Asynchronously resolves all the tags into sorted byte arrays.
+   * The lookups of all the tag names and tag values are started at once,
+   * and the result is available when the last one completes.
+   * @param create Whether or not to assign IDs to new names.
+   */
+  private static Deferred<ArrayList<byte[]>>
+    resolveAllAsync(final TSDB tsdb, final Map<String, String> tags,
+                    final boolean create) {
+    final ArrayList<Deferred<byte[]>> tag_ids =
+      new ArrayList<Deferred<byte[]>>(tags.size());
     for (final Map.Entry<String, String> entry : tags.entrySet()) {
-      final byte[] tag_id = (create
-                             ? tsdb.tag_names.getOrCreateId(entry.getKey())
-                             : tsdb.tag_names.getId(entry.getKey()));
-      final byte[] value_id = (create
-                               ? tsdb.tag_values.getOrCreateId(entry.getValue())
-                               : tsdb.tag_values.getId(entry.getValue()));
-      final byte[] thistag = new byte[tag_id.length + value_id.length];
-      System.arraycopy(tag_id, 0, thistag, 0, tag_id.length);
-      System.arraycopy(value_id, 0, thistag, tag_id.length, value_id.length);
-      tag_ids.add(thistag);
+      final Deferred<byte[]> value_id = (create
+        ? tsdb.tag_values.getOrCreateIdAsync(entry.getValue())
+        : tsdb.tag_values.getIdAsync(entry.getValue()));
+      final class ConcatCB implements Callback<Deferred<byte[]>, byte[]> {
+        public Deferred<byte[]> call(final byte[] tag_id) {
+          final class Concat implements Callback<byte[], byte[]> {
+            public byte[] call(final byte[] value_id) {
+              final byte[] thistag = new byte[tag_id.length + value_id.length];
+              System.arraycopy(tag_id, 0, thistag, 0, tag_id.length);
+              System.arraycopy(value_id, 0, thistag, tag_id.length,
+                               value_id.length);
+              return thistag;
+            }
+            public String toString() {
+              return "concat tag IDs";
+            }
+          }
+          return value_id.addCallback(new Concat());
+        }
+        public String toString() {
+          return "resolve tag value";
+        }
+      }
+      tag_ids.add((create
+                   ? tsdb.tag_names.getOrCreateIdAsync(entry.getKey())
+                   : tsdb.tag_names.getIdAsync(entry.getKey()))
+                  .addCallbackDeferring(new ConcatCB()));
+    }
+    // Deferred.group() gives us the tags in no particular order.
+    final class SortTags implements Callback<ArrayList<byte[]>, ArrayList<Object>> {
+      public ArrayList<byte[]> call(final ArrayList<Object> tags) {
+        final ArrayList<byte[]> sorted = new ArrayList<byte[]>(tags.size());
+        for (final Object tag : tags) {
+          sorted.add((byte[]) tag);
+        }
+        Collections.sort(sorted, Bytes.MEMCMP);
+        return sorted;
+      }
+      public String toString() {
+        return "sort tags";
+      }
+    }
+    return Deferred.group(tag_ids).addErrback(new UnwrapErrback())
+      .addCallback(new SortTags());
+  }
+
+  /**
+   * Unwraps the {@link DeferredGroupException} of a group of lookups, so
+   * callers get the error of the first one that failed.
+   */
+  private static final class UnwrapErrback implements Callback<Exception, Exception> {
+    public Exception call(final Exception e) {
+      if (e instanceof DeferredGroupException && e.getCause() != null) {
+        return (Exception) e.getCause();  // The first lookup that failed.
+      }
+      return e;
+    }
+    public String toString() {
+      return "unwrap tag resolution error";
+    }
+  }
+
+  /**
+   * Waits for the result of an asynchronous resolution.
+   * @throws RuntimeException the exception the resolution failed with, such
+   * as {@link NoSuchUniqueName} or an {@code HBaseException}.
+   */
+  static <T> T join(final Deferred<T> resolution) {
+    try {
+      return resolution.joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
     }
-    // Now sort the tags.
-    Collections.sort(tag_ids, Bytes.MEMCMP);
-    return tag_ids;
   }
 
   /**
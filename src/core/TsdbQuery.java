@@ -20,6 +20,10 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,7 +34,7 @@ import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
 import static org.hbase.async.Bytes.ByteMap;
 
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.RollingHistogram;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
 
@@ -49,7 +53,8 @@ final class TsdbQuery implements Query {
    * We want buckets up to 16s, with 2 ms interval between each bucket up to
    * 100 ms after we which we switch to exponential buckets.
    */
-  static final Histogram scanlatency = new Histogram(16000, (short) 2, 100);
+  static final RollingHistogram scanlatency =
+    new RollingHistogram(16000, (short) 2, 100);
 
   /**
    * Charset to use with our server-side row-filter.
@@ -223,32 +228,92 @@ final class TsdbQuery implements Query {
   }
 
   public DataPoints[] run() throws HBaseException {
-    return groupByAndAggregate(findSpans());
+    try {
+      return runAsync().joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
+  public Deferred<DataPoints[]> runAsync() throws HBaseException {
+    return runAsync(null);
+  }
+
+  public Deferred<DataPoints[]> runAsync(final Executor executor)
+    throws HBaseException {
+    return findSpans(executor).addCallback(new GroupByAndAggregateCB());
   }
 
   /**
    * Finds all the {@link Span}s that match this query.
    * This is what actually scans the HBase table and loads the data into
    * {@link Span}s.
-   * @return A map from HBase row key to the {@link Span} for that row key.
-   * Since a {@link Span} actually contains multiple HBase rows, the row key
-   * stored in the map has its timestamp zero'ed out.
-   * @throws HBaseException if there was a problem communicating with HBase to
-   * perform the search.
-   * @throws IllegalArgumentException if bad data was retreived from HBase.
+   * @param executor Where to load the rows, or {@code null} to load them in
+   * the thread that got them from HBase.
+   * @return A deferred map from HBase row key to the {@link Span} for that
+   * row key.  Since a {@link Span} actually contains multiple HBase rows, the
+   * row key stored in the map has its timestamp zero'ed out.  The map is
+   * {@code null} if no row matched.  The deferred fails with an
+   * {@link HBaseException} if there was a problem communicating with HBase
+   * to perform the search, or with an {@link IllegalDataException} if bad
+   * data was retrieved from HBase.
    */
-  private TreeMap<byte[], Span> findSpans() throws HBaseException {
+  private Deferred<TreeMap<byte[], Span>> findSpans(final Executor executor)
+    throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans =  // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-    int nrows = 0;
-    int hbase_time = 0;  // milliseconds.
-    long starttime = System.nanoTime();
     final Scanner scanner = getScanner();
-    try {
-      ArrayList<ArrayList<KeyValue>> rows;
-      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+    final Deferred<TreeMap<byte[], Span>> results =
+      new Deferred<TreeMap<byte[], Span>>();
+
+    /**
+     * Loads each batch of rows in the spans and asks for the next one.
+     * Every batch is requested from the callback of the previous one, so
+     * no thread ever waits on HBase.  If we have an executor, batches are
+     * loaded there, to keep the I/O threads of the HBase client free.
+     */
+    final class ScannerCB
+      implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+
+      private int nrows = 0;
+      private int hbase_time = 0;  // milliseconds.
+      private long starttime;
+
+      void scan() {
+        starttime = System.nanoTime();
+        scanner.nextRows().addCallback(this).addErrback(new ErrorCB());
+      }
+
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
         hbase_time += (System.nanoTime() - starttime) / 1000000;
+        if (executor == null) {
+          load(rows);
+          return null;
+        }
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              load(rows);
+            } catch (Exception e) {
+              new ErrorCB().call(e);
+            }
+          }
+          public String toString() {
+            return "load rows of " + TsdbQuery.this;
+          }
+        });
+        return null;
+      }
+
+      /** Loads a batch of rows, or completes the scan if there's none.  */
+      private void load(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          done();
+          return;
+        }
         for (final ArrayList<KeyValue> row : rows) {
           final byte[] key = row.get(0).key();
           if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
@@ -266,22 +331,49 @@ final class TsdbQuery implements Query {
             datapoints.addRow(compacted);
             nrows++;
           }
-          starttime = System.nanoTime();
         }
+        scan();
       }
-    } catch (RuntimeException e) {
-      throw e;
-    } catch (Exception e) {
-      throw new RuntimeException("Should never be here", e);
-    } finally {
-      hbase_time += (System.nanoTime() - starttime) / 1000000;
-      scanlatency.add(hbase_time);
+
+      private void done() {
+        scanlatency.add(hbase_time);
+        LOG.info(TsdbQuery.this + " matched " + nrows + " rows in "
+                 + spans.size() + " spans");
+        results.callback(nrows == 0 ? null : spans);
+      }
+
+      public String toString() {
+        return "scanner callback for " + TsdbQuery.this;
+      }
+
+      /** Fails the query if a batch couldn't be fetched or loaded.  */
+      final class ErrorCB implements Callback<Object, Exception> {
+        public Object call(final Exception e) {
+          scanlatency.add(hbase_time);
+          scanner.close();
+          results.callback(e);
+          return null;
+        }
+        public String toString() {
+          return "scanner errback for " + TsdbQuery.this;
+        }
+      }
+
+    }
+
+    new ScannerCB().scan();
+    return results;
+  }
+
+  /** Groups and aggregates the spans once they're all loaded.  */
+  private final class GroupByAndAggregateCB
+    implements Callback<DataPoints[], TreeMap<byte[], Span>> {
+    public DataPoints[] call(final TreeMap<byte[], Span> spans) {
+      return groupByAndAggregate(spans);
     }
-    LOG.info(this + " matched " + nrows + " rows in " + spans.size() + " spans");
-    if (nrows == 0) {
-      return null;
+    public String toString() {
+      return "group by and aggregate " + TsdbQuery.this;
     }
-    return spans;
   }
 
   /**
@@ -366,20 +458,34 @@ final class TsdbQuery implements Query {
    * Creates the {@link Scanner} to use for this query.
    */
   Scanner getScanner() throws HBaseException {
-    final short metric_width = tsdb.metrics.width();
-    final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
-    final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
     // We search at least one row before and one row after the start & end
     // time we've been given as it's quite likely that the exact timestamp
     // we're looking for is in the middle of a row.  Plus, a number of things
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
-    Bytes.setInt(start_row, (int) getScanStartTime(), metric_width);
-    Bytes.setInt(end_row, (end_time == UNSET
-                           ? -1  // Will scan until the end (0xFFF...).
-                           : (int) getScanEndTime()),
-                 metric_width);
+    return getScanner(getScanStartTime(),
+                      (end_time == UNSET
+                       ? -1  // Will scan until the end (0xFFF...).
+                       : getScanEndTime()));
+  }
+
+  /**
+   * Creates a {@link Scanner} for the rows of this query whose base time is
+   * in {@code [start_row_time, end_row_time)}.
+   * <p>
+   * Unlike {@link #getScanner()}, the start and end time of the query are
+   * ignored, and no extra rows are scanned around the given times.
+   * @param start_row_time The base time of the first row to scan.
+   * @param end_row_time The base time at which to stop scanning.
+   */
+  Scanner getScanner(final long start_row_time,
+                     final long end_row_time) throws HBaseException {
+    final short metric_width = tsdb.metrics.width();
+    final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+    final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+    Bytes.setInt(start_row, (int) start_row_time, metric_width);
+    Bytes.setInt(end_row, (int) end_row_time, metric_width);
     System.arraycopy(metric, 0, start_row, 0, metric_width);
     System.arraycopy(metric, 0, end_row, 0, metric_width);
 
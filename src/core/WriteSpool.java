@@ -0,0 +1,617 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.stumbleupon.async.Callback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseException;
+import org.hbase.async.NoSuchColumnFamilyException;
+import org.hbase.async.PutRequest;
+import org.hbase.async.TableNotFoundException;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Local, append-only spool for the data points HBase didn't take.
+ * <p>
+ * When a data point can't be written to HBase (e.g. because the client
+ * asks us to throttle or the region servers are unreachable), it's
+ * appended to a segment file in the spool directory instead.  From then on
+ * and until the spool has been drained, new data points go to the spool
+ * directly, so they don't pile up in memory.  A background thread replays
+ * the segments in order, one batch at a time, and deletes each segment once
+ * it's been fully replayed.  A batch that fails is retried with exponential
+ * backoff, which is safe because writing the same cell twice is harmless.
+ * <p>
+ * Segments left behind by a previous process are replayed on startup.  Each
+ * record is checksummed, so a segment truncated by a crash is replayed up
+ * to its last complete record.
+ * <p>
+ * Every record is flushed to the OS before {@link #append} returns, so it
+ * survives the TSD crashing.  Records are only forced to disk every
+ * {@code tsd.core.spool_sync_interval} ms (1000 by default, 0 to sync
+ * every record), when a segment is sealed and when the spool is closed, so
+ * a machine crash or power failure can lose the records appended since the
+ * last sync.  The number of such records is reported as the
+ * {@code spool.unsynced_points} metric.
+ * <p>
+ * This class is thread-safe.
+ */
+final class WriteSpool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+  /** Size after which a new segment is started.  */
+  private static final long SEGMENT_SIZE =
+    Long.getLong("tsd.core.spool_segment_size", 64 * 1024 * 1024);
+  /** Maximum number of bytes in the spool, after which we drop writes.  */
+  private static final long MAX_SIZE =
+    Long.getLong("tsd.core.spool_max_size", 10L * 1024 * 1024 * 1024);
+  /** Number of data points replayed at once.  */
+  private static final int REPLAY_BATCH = 4096;
+  /** How long to wait, in ms, before checking for new data to replay.  */
+  private static final int IDLE_INTERVAL = 1000;
+  /** Maximum delay, in ms, between two replay attempts.  */
+  private static final int MAX_BACKOFF = 30000;
+  /** Maximum time, in ms, before an appended record is forced to disk.  */
+  private static final long SYNC_INTERVAL =
+    Long.getLong("tsd.core.spool_sync_interval", 1000);
+  /** How long, in ms, {@link #close} waits for the replayer to stop.  */
+  private static final int CLOSE_TIMEOUT = 5000;
+
+  private static final String PREFIX = "spool-";
+  private static final String SUFFIX = ".log";
+
+  private final TSDB tsdb;
+  private final File dir;
+
+  /** Segments ready to be replayed, oldest first.  */
+  private final ArrayDeque<File> sealed = new ArrayDeque<File>();
+  /** Segment being written to, or {@code null}.  */
+  private File current_file;
+  private DataOutputStream current;
+  /** The file underlying {@link #current}, to sync it to disk.  */
+  private FileOutputStream current_fd;
+  private long current_size;
+  /** Number of records appended but not forced to disk yet.  */
+  private long unsynced;
+  /** When we last forced the segment being written to to disk.  */
+  private long last_sync;
+  /** Sequence number of the next segment.  */
+  private long next_seq;
+  /** Number of bytes in the spool, not yet replayed.  */
+  private long size;
+  /** Whether we have data to replay (new writes go to the spool).  */
+  private volatile boolean active;
+  private volatile boolean closed;
+
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong corrupted = new AtomicLong();
+  private final AtomicLong syncs = new AtomicLong();
+
+  private final Replayer replayer = new Replayer();
+
+  /**
+   * Constructor.
+   * Any segment found in the directory will be replayed.
+   * @param tsdb The TSDB to write to.
+   * @param dir The directory where to keep the segments.
+   * @throws IllegalArgumentException if the directory can't be used.
+   */
+  WriteSpool(final TSDB tsdb, final File dir) {
+    this.tsdb = tsdb;
+    this.dir = dir;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalArgumentException("Not a directory: " + dir);
+    }
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IllegalArgumentException("Can't list the spool directory "
+                                         + dir);
+    }
+    Arrays.sort(files);  // The sequence numbers are zero-padded.
+    for (final File f : files) {
+      final String name = f.getName();
+      if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+        try {
+          next_seq = Long.parseLong(name.substring(PREFIX.length(),
+                                                   name.length()
+                                                   - SUFFIX.length()),
+                                    16) + 1;
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring unexpected file in the spool: " + f);
+          continue;
+        }
+        sealed.add(f);
+        size += f.length();
+      }
+    }
+    if (!sealed.isEmpty()) {
+      LOG.info("Found " + sealed.size() + " segments (" + size
+               + " bytes) to replay in " + dir);
+      active = true;
+    }
+    replayer.start();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    synchronized (this) {
+      collector.record("spool.bytes", size);
+      collector.record("spool.segments",
+                       sealed.size() + (current == null ? 0 : 1));
+      collector.record("spool.unsynced_points", unsynced);
+    }
+    collector.record("spool.points", appended, "type=appended");
+    collector.record("spool.points", replayed, "type=replayed");
+    collector.record("spool.points", dropped, "type=dropped");
+    collector.record("spool.retries", retries);
+    collector.record("spool.syncs", syncs);
+    collector.record("spool.corrupted_segments", corrupted);
+  }
+
+  /**
+   * Returns {@code true} if new data points should go to the spool rather
+   * than to HBase, because we have older data points to replay.
+   */
+  boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Returns an errback that spools the given data point if it couldn't be
+   * written to HBase.
+   * @param point The data point being written.
+   */
+  Callback<Object, Exception> spoolOnFailure(final PutRequest point) {
+    return new SpoolOnFailure(point);
+  }
+
+  /**
+   * Appends a data point to the spool.
+   * When this returns {@code true}, the data point has been handed to the
+   * OS, but it may not have been forced to disk yet.
+   * @param point The data point to spool.
+   * @return {@code false} if the data point couldn't be spooled, because the
+   * spool is full, closed, or because of an I/O error.
+   */
+  synchronized boolean append(final PutRequest point) {
+    final byte[] key = point.key();
+    final byte[] qualifier = point.qualifier();
+    final byte[] value = point.value();
+    if (closed || size >= MAX_SIZE || key.length > 0xFFFF
+        || qualifier.length > 0xFFFF || value.length > 0xFFFF) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    final int length = 2 + key.length + 2 + qualifier.length
+      + 2 + value.length;
+    final byte[] record = new byte[4 + 4 + length];
+    Bytes.setInt(record, length, 0);
+    int pos = 8;
+    pos = putBytes(record, pos, key);
+    pos = putBytes(record, pos, qualifier);
+    putBytes(record, pos, value);
+    final CRC32 crc = new CRC32();
+    crc.update(record, 8, length);
+    Bytes.setInt(record, (int) crc.getValue(), 4);
+    try {
+      if (current == null) {
+        current_file = new File(dir, String.format("%s%016x%s", PREFIX,
+                                                   next_seq++, SUFFIX));
+        current_fd = new FileOutputStream(current_file);
+        current = new DataOutputStream(new BufferedOutputStream(current_fd,
+                                                                65536));
+        current_size = 0;
+      }
+      current.write(record);
+      current.flush();
+    } catch (IOException e) {
+      LOG.error("Failed to write to the spool " + current_file, e);
+      dropped.incrementAndGet();
+      return false;
+    }
+    current_size += record.length;
+    size += record.length;
+    appended.incrementAndGet();
+    unsynced++;
+    if (current_size >= SEGMENT_SIZE) {
+      seal();
+    } else {
+      syncIfDue();
+    }
+    if (!active) {
+      active = true;
+      LOG.warn("Spooling writes to " + dir);
+      notify();  // Wake up the replayer.
+    }
+    return true;
+  }
+
+  private static int putBytes(final byte[] record, final int pos,
+                              final byte[] b) {
+    record[pos] = (byte) (b.length >>> 8);
+    record[pos + 1] = (byte) b.length;
+    System.arraycopy(b, 0, record, pos + 2, b.length);
+    return pos + 2 + b.length;
+  }
+
+  /**
+   * Forces the segment being written to to disk.
+   * Must be called while holding the monitor of this object.
+   */
+  private void sync() {
+    if (current == null || unsynced == 0) {
+      return;
+    }
+    try {
+      current_fd.getFD().sync();
+    } catch (IOException e) {
+      LOG.error("Failed to sync the spool segment " + current_file, e);
+      return;
+    }
+    unsynced = 0;
+    last_sync = System.currentTimeMillis();
+    syncs.incrementAndGet();
+  }
+
+  /**
+   * Forces the segment being written to to disk if the oldest record that
+   * isn't on disk yet is older than {@link #SYNC_INTERVAL}.
+   * Must be called while holding the monitor of this object.
+   */
+  private void syncIfDue() {
+    if (unsynced > 0
+        && System.currentTimeMillis() - last_sync >= SYNC_INTERVAL) {
+      sync();
+    }
+  }
+
+  /**
+   * Waits until notified or for the given number of milliseconds at most,
+   * syncing the segment being written to if it's due.
+   * Must be called while holding the monitor of this object.
+   * @throws InterruptedException if the spool is being closed.
+   */
+  private void await(final long ms) throws InterruptedException {
+    if (!closed) {
+      wait(ms);
+      syncIfDue();
+    }
+    if (closed) {
+      throw new InterruptedException("Spool closed");
+    }
+  }
+
+  /**
+   * Closes the segment being written to and makes it ready to be replayed.
+   * Must be called while holding the monitor of this object.
+   */
+  private void seal() {
+    if (current == null) {
+      return;
+    }
+    sync();
+    try {
+      current.close();
+    } catch (IOException e) {
+      LOG.error("Failed to close the spool segment " + current_file, e);
+    }
+    sealed.add(current_file);
+    current = null;
+    current_fd = null;
+    current_file = null;
+    unsynced = 0;
+  }
+
+  /**
+   * Returns the next segment to replay, or {@code null} if there's none.
+   * Once there's nothing left to replay, new data points go to HBase again.
+   */
+  private synchronized File nextSegment() {
+    if (sealed.isEmpty()) {
+      seal();  // Replay whatever has been written so far.
+    }
+    if (sealed.isEmpty()) {
+      if (active) {
+        active = false;
+        LOG.info("Done replaying the spool in " + dir);
+      }
+      return null;
+    }
+    return sealed.peek();
+  }
+
+  /** Called once a segment has been fully replayed.  */
+  private synchronized void replayed(final File segment, final long bytes) {
+    sealed.remove(segment);
+    size -= bytes;
+    if (!segment.delete()) {
+      LOG.error("Failed to delete the replayed spool segment " + segment);
+    }
+  }
+
+  /**
+   * Stops replaying and closes the segment being written to.
+   * Anything left in the spool will be replayed on the next startup.
+   * This doesn't wait for HBase, so it returns promptly even if HBase is
+   * unreachable.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      seal();
+      notifyAll();
+    }
+    replayer.interrupt();
+    try {
+      replayer.join(CLOSE_TIMEOUT);
+      if (replayer.isAlive()) {
+        LOG.warn("The spool replayer didn't stop within " + CLOSE_TIMEOUT
+                 + "ms, giving up on it");
+      }
+    } catch (InterruptedException e) {
+      LOG.error("Interrupted while waiting for the spool replayer", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Reads the next record from a segment.
+   * @return The data point, or {@code null} if we reached the end of the
+   * segment.
+   * @throws IOException if the record is truncated or corrupted.
+   */
+  private PutRequest readRecord(final DataInputStream in) throws IOException {
+    final int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    final int checksum = in.readInt();
+    if (length < 6 || length > 3 * (2 + 0xFFFF)) {
+      throw new IOException("Invalid record length: " + length);
+    }
+    final byte[] record = new byte[length];
+    in.readFully(record);
+    final CRC32 crc = new CRC32();
+    crc.update(record);
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Checksum mismatch");
+    }
+    int pos = 0;
+    final byte[] key = getBytes(record, pos);
+    pos += 2 + key.length;
+    final byte[] qualifier = getBytes(record, pos);
+    pos += 2 + qualifier.length;
+    final byte[] value = getBytes(record, pos);
+    return new PutRequest(tsdb.table, key, TSDB.FAMILY, qualifier, value);
+  }
+
+  private static byte[] getBytes(final byte[] record, final int pos)
+    throws IOException {
+    if (pos + 2 > record.length) {
+      throw new IOException("Truncated record");
+    }
+    final int length = ((record[pos] & 0xFF) << 8) | (record[pos + 1] & 0xFF);
+    if (pos + 2 + length > record.length) {
+      throw new IOException("Truncated record");
+    }
+    final byte[] b = new byte[length];
+    System.arraycopy(record, pos + 2, b, 0, length);
+    return b;
+  }
+
+  /** Replays the segments in the background.  */
+  private final class Replayer extends Thread {
+
+    Replayer() {
+      super("SpoolReplayer");
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (!closed) {
+        try {
+          final File segment = nextSegment();
+          if (segment == null) {
+            synchronized (WriteSpool.this) {
+              if (!active && !closed) {
+                WriteSpool.this.wait(IDLE_INTERVAL);
+              }
+            }
+          } else {
+            replay(segment);
+          }
+        } catch (InterruptedException e) {
+          if (!closed) {
+            LOG.error("Spool replayer interrupted", e);
+          }
+          return;
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in the spool replayer", e);
+          try {
+            Thread.sleep(IDLE_INTERVAL);  // Avoid busy looping.
+          } catch (InterruptedException i) {
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Replays a segment, batch by batch, then deletes it.
+     * @throws InterruptedException if the spool is being closed.
+     */
+    private void replay(final File segment) throws InterruptedException,
+                                                   IOException {
+      final long length = segment.length();
+      final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(segment), 65536));
+      try {
+        final ArrayList<PutRequest> batch =
+          new ArrayList<PutRequest>(REPLAY_BATCH);
+        boolean eof = false;
+        while (!eof) {
+          if (closed) {
+            throw new InterruptedException("Spool closed");
+          }
+          batch.clear();
+          try {
+            while (batch.size() < REPLAY_BATCH) {
+              final PutRequest point = readRecord(in);
+              if (point == null) {
+                eof = true;
+                break;
+              }
+              batch.add(point);
+            }
+          } catch (IOException e) {
+            LOG.error("Skipping the rest of the corrupted spool segment "
+                      + segment, e);
+            corrupted.incrementAndGet();
+            eof = true;
+          }
+          if (!batch.isEmpty()) {
+            replay(batch);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      replayed(segment, length);
+    }
+
+    /**
+     * Writes a batch of data points to HBase, retrying until it succeeds.
+     * @throws InterruptedException if the spool is being closed.
+     */
+    private void replay(final ArrayList<PutRequest> batch)
+      throws InterruptedException {
+      int backoff = 100;
+      while (true) {
+        final BatchCB cb = new BatchCB(batch.size());
+        for (final PutRequest point : batch) {
+          tsdb.client.put(point).addBoth(cb);
+        }
+        tsdb.client.flush();
+        // Don't join the puts: HBase may never answer, and we must notice
+        // when the spool is closed, so poll instead.
+        synchronized (WriteSpool.this) {
+          while (cb.pending > 0) {
+            await(IDLE_INTERVAL);
+          }
+          if (cb.error == null) {
+            break;
+          }
+          retries.incrementAndGet();
+          LOG.warn("Failed to replay " + batch.size() + " data points,"
+                   + " retrying in " + backoff + "ms", cb.error);
+          final long deadline = System.currentTimeMillis() + backoff;
+          long left;
+          while ((left = deadline - System.currentTimeMillis()) > 0) {
+            await(Math.min(left, IDLE_INTERVAL));
+          }
+        }
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+      }
+      for (final PutRequest point : batch) {
+        final byte[] key = point.key();
+        tsdb.scheduleForCompaction(key, Bytes.getInt(key, tsdb.metrics.width()));
+      }
+      replayed.addAndGet(batch.size());
+    }
+
+  }
+
+  /** Keeps track of the data points of a batch being replayed.  */
+  private final class BatchCB implements Callback<Object, Object> {
+
+    /** Number of data points HBase hasn't answered yet.  */
+    private int pending;
+    /** First error returned by HBase, if any.  */
+    private Exception error;
+
+    BatchCB(final int pending) {
+      this.pending = pending;
+    }
+
+    public Object call(final Object arg) {
+      synchronized (WriteSpool.this) {
+        if (arg instanceof Exception && error == null) {
+          error = (Exception) arg;
+        }
+        if (--pending == 0) {
+          WriteSpool.this.notifyAll();  // Wake up the replayer.
+        }
+      }
+      return null;  // The batch will be retried.
+    }
+
+    public String toString() {
+      return "spool replay batch";
+    }
+
+  }
+
+  /** Spools a data point that couldn't be written to HBase.  */
+  private final class SpoolOnFailure implements Callback<Object, Exception> {
+
+    private final PutRequest point;
+
+    SpoolOnFailure(final PutRequest point) {
+      this.point = point;
+    }
+
+    public Object call(final Exception e) {
+      if (!(e instanceof HBaseException)
+          || e instanceof TableNotFoundException
+          || e instanceof NoSuchColumnFamilyException) {
+        return e;  // Retrying won't help.
+      }
+      return append(point) ? null : e;
+    }
+
+    public String toString() {
+      return "spool on failure";
+    }
+
+  }
+
+}
@@ -164,6 +164,15 @@ public final class Histogram {
     buckets[bucketIndexFor(value)]++;
   }
 
+  /**
+   * Adds the given number of values to a bucket.
+   * @param index The index of the bucket.
+   * @param count How many values to add to the bucket.
+   */
+  void addToBucket(final int index, final int count) {
+    buckets[index] += count;
+  }
+
   /**
    * Returns the value of the <i>p</i>th  percentile in this histogram.
    * <p>
@@ -229,7 +238,7 @@ public final class Histogram {
   }
 
   /** Finds the index of the bucket in which the given value should be. */
-  private int bucketIndexFor(final int value) {
+  final int bucketIndexFor(final int value) {
     if (value < cutoff) {
       return value / interval;
     }
@@ -253,7 +262,7 @@ public final class Histogram {
   }
 
   /** Returns the high interval (exclusive) of the given bucket. */
-  private int bucketHighInterval(final int index) {
+  final int bucketHighInterval(final int index) {
     if (index == buckets.length - 1) {
       return Integer.MAX_VALUE;
     } else {
@@ -0,0 +1,247 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of the values seen over the last few minutes.
+ * <p>
+ * Time is divided in intervals of {@link #INTERVAL_MS} milliseconds, and
+ * we keep a ring with the counts of each of the last {@link #MAX_WINDOW}
+ * seconds worth of intervals.  When a value is added in a new interval,
+ * the oldest slot of the ring is recycled, so a percentile computed over
+ * a window only reflects the recent distribution of values, instead of
+ * converging to the lifetime distribution like a {@link Histogram} does.
+ * <p>
+ * The buckets are the same as those of a {@link Histogram} built with the
+ * same arguments.  Adding a value never takes a lock: the counters of each
+ * slot are striped across a few cells, indexed by thread, so that threads
+ * adding values concurrently don't all contend on the same cache line.
+ * A few increments racing with the recycling of a slot at an interval
+ * boundary may be lost, which is fine for the purpose of this class.
+ */
+public final class RollingHistogram {
+
+  /** Duration of each slot of the ring, in milliseconds.  */
+  static final int INTERVAL_MS = 10000;
+
+  /** Largest window (in seconds) over which percentiles can be computed.  */
+  public static final int MAX_WINDOW = 300;
+
+  /**
+   * Number of slots in the ring.  There's one more than what's needed to
+   * cover {@link #MAX_WINDOW}, for the interval currently being filled.
+   */
+  private static final int SLOTS = MAX_WINDOW * 1000 / INTERVAL_MS + 1;
+
+  /** Number of stripes for the counters of each slot (power of 2).  */
+  private static final int STRIPES = 8;
+
+  /** Epoch of a slot being recycled.  Such a slot is never read.  */
+  private static final long RECYCLING = -1;
+
+  /** Used to find which bucket a value belongs to.  Never modified.  */
+  private final Histogram layout;
+
+  /** Arguments given to the constructor, for {@link #toHistogram}.  */
+  private final int max;
+  private final short interval;
+  private final int cutoff;
+
+  /** Number of buckets of each stripe.  */
+  private final int num_buckets;
+
+  /** Ring of slots, indexed by interval number modulo {@link #SLOTS}.  */
+  private final Slot[] slots = new Slot[SLOTS];
+
+  /**
+   * Constructor.
+   * The arguments are the same as those of {@link Histogram#Histogram}.
+   * @throws IllegalArgumentException if the arguments are invalid.
+   */
+  public RollingHistogram(final int max,
+                          final short interval, final int cutoff) {
+    layout = new Histogram(max, interval, cutoff);
+    this.max = max;
+    this.interval = interval;
+    this.cutoff = cutoff;
+    num_buckets = layout.buckets();
+    for (int i = 0; i < SLOTS; i++) {
+      slots[i] = new Slot(num_buckets * STRIPES);
+    }
+  }
+
+  /** Returns the number of buckets in this histogram. */
+  public int buckets() {
+    return num_buckets;
+  }
+
+  /**
+   * Adds a value to the histogram.
+   * @param value The value to add.
+   * @throws IllegalArgumentException if the value given is negative.
+   */
+  public void add(final int value) {
+    add(value, System.currentTimeMillis());
+  }
+
+  /** Adds a value seen at the given time (in milliseconds).  */
+  void add(final int value, final long now) {
+    if (value < 0) {
+      throw new IllegalArgumentException("negative value: " + value);
+    }
+    final long epoch = now / INTERVAL_MS;
+    final Slot slot = slots[(int) (epoch % SLOTS)];
+    final long current = slot.epoch.get();
+    if (current != epoch) {
+      if (current > epoch || !slot.recycle(current, epoch)) {
+        return;  // Slot already moved on, or being recycled by another thread.
+      }
+    }
+    final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    slot.counts.incrementAndGet(stripe * num_buckets
+                                + layout.bucketIndexFor(value));
+  }
+
+  /**
+   * Returns the number of values added over the given window.
+   * @param window The window, in seconds, up to {@link #MAX_WINDOW}.
+   * @throws IllegalArgumentException if the window is not valid.
+   */
+  public long count(final int window) {
+    final long[] counts = snapshot(window, System.currentTimeMillis());
+    long count = 0;
+    for (final long c : counts) {
+      count += c;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the value of the <i>p</i>th percentile of the values added over
+   * the given window.
+   * <p>
+   * This method works in {@code O(N)} where {@code N} is the number of
+   * {@link #buckets buckets} times the number of slots in the window.
+   * @param p A strictly positive integer in the range {@code [1; 100]}
+   * @param window The window, in seconds, up to {@link #MAX_WINDOW}.
+   * The current interval, which isn't complete yet, is included in it.
+   * @throws IllegalArgumentException if {@code p} or the window is not valid.
+   */
+  public int percentile(final int p, final int window) {
+    return percentile(p, window, System.currentTimeMillis());
+  }
+
+  /** Computes a percentile as of the given time (in milliseconds).  */
+  int percentile(int p, final int window, final long now) {
+    if (p < 1 || p > 100) {
+      throw new IllegalArgumentException("invalid percentile: " + p);
+    }
+    final long[] counts = snapshot(window, now);
+    long count = 0;
+    for (final long c : counts) {
+      count += c;
+    }
+    if (count == 0) {
+      return 0;
+    }
+    // Same as Histogram#percentile.
+    final long rank = count * p / 100;
+    for (int i = counts.length - 1; i >= 0; i--) {
+      count -= counts[i];
+      if (count <= rank) {
+        return layout.bucketHighInterval(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns a {@link Histogram} of the values added over the given window.
+   * The histogram returned is a copy, it's not updated as values are added.
+   * @param window The window, in seconds, up to {@link #MAX_WINDOW}.
+   * @throws IllegalArgumentException if the window is not valid.
+   */
+  public Histogram toHistogram(final int window) {
+    final long[] counts = snapshot(window, System.currentTimeMillis());
+    final Histogram histo = new Histogram(max, interval, cutoff);
+    for (int i = 0; i < counts.length; i++) {
+      histo.addToBucket(i, (int) Math.min(counts[i], Integer.MAX_VALUE));
+    }
+    return histo;
+  }
+
+  /** Sums the counts of each bucket over the given window.  */
+  private long[] snapshot(final int window, final long now) {
+    if (window <= 0 || window > MAX_WINDOW) {
+      throw new IllegalArgumentException("invalid window: " + window
+                                         + " (max=" + MAX_WINDOW + ')');
+    }
+    final long newest = now / INTERVAL_MS;
+    // Round up, so a window always covers at least one full interval.
+    final long oldest = newest - (window * 1000L + INTERVAL_MS - 1)
+      / INTERVAL_MS + 1;
+    final long[] counts = new long[num_buckets];
+    for (final Slot slot : slots) {
+      final long epoch = slot.epoch.get();
+      if (epoch < oldest || epoch > newest) {
+        continue;  // Also skips RECYCLING slots.
+      }
+      final AtomicLongArray cells = slot.counts;
+      for (int i = 0; i < cells.length(); i++) {
+        counts[i % num_buckets] += cells.get(i);
+      }
+    }
+    return counts;
+  }
+
+  public String toString() {
+    return "RollingHistogram(buckets=" + num_buckets
+      + ", p50_1m=" + percentile(50, 60)
+      + ", p99_1m=" + percentile(99, 60) + ')';
+  }
+
+  /** The counts of one interval.  */
+  private static final class Slot {
+
+    /** Interval number (time / {@link #INTERVAL_MS}) counted in this slot. */
+    final AtomicLong epoch = new AtomicLong(Long.MIN_VALUE);
+
+    /** Counters, one stripe of buckets after the other.  */
+    final AtomicLongArray counts;
+
+    Slot(final int cells) {
+      counts = new AtomicLongArray(cells);
+    }
+
+    /**
+     * Resets this slot to start counting a new interval.
+     * @return {@code false} if another thread is recycling this slot.
+     */
+    boolean recycle(final long old_epoch, final long new_epoch) {
+      if (old_epoch == RECYCLING
+          || !epoch.compareAndSet(old_epoch, RECYCLING)) {
+        return epoch.get() == new_epoch;
+      }
+      for (int i = 0; i < counts.length(); i++) {
+        counts.set(i, 0);
+      }
+      epoch.set(new_epoch);
+      return true;
+    }
+
+  }
+
+}
@@ -110,6 +110,40 @@ public abstract class StatsCollector {
     record(name + "_95pct", histo.percentile(95), xtratag);
   }
 
+  /**
+   * Records the recent percentiles of a {@link RollingHistogram}.
+   * <p>
+   * The 50th, 95th and 99th percentiles are recorded over the last minute
+   * and over the last 5 minutes, with a {@code window} tag.
+   * @param name The name of the metric.
+   * @param histo The histogram to collect data points from.
+   * @param xtratag An extra tag ({@code name=value}) to add to those
+   * data points (ignored if {@code null}).
+   * @throws IllegalArgumentException if {@code xtratag != null} and it
+   * doesn't follow the {@code name=value} format.
+   */
+  public final void record(final String name,
+                           final RollingHistogram histo,
+                           final String xtratag) {
+    recordWindow(name, histo, xtratag, 60, "1m");
+    recordWindow(name, histo, xtratag, 300, "5m");
+  }
+
+  private void recordWindow(final String name,
+                            final RollingHistogram histo,
+                            final String xtratag,
+                            final int window,
+                            final String window_tag) {
+    addExtraTag("window", window_tag);
+    try {
+      record(name + "_50pct", histo.percentile(50, window), xtratag);
+      record(name + "_95pct", histo.percentile(95, window), xtratag);
+      record(name + "_99pct", histo.percentile(99, window), xtratag);
+    } finally {
+      clearExtraTag("window");
+    }
+  }
+
   /**
    * Records a data point.
    * @param name The name of the metric.
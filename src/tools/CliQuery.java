@@ -18,6 +18,8 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import com.stumbleupon.async.Deferred;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -149,10 +151,15 @@ final class CliQuery {
       plot.setParams(parsePlotParams(plotparams));
     }
     final int nqueries = queries.size();
+    // Start all the queries in parallel, then print their results in order.
+    final ArrayList<Deferred<DataPoints[]>> results =
+      new ArrayList<Deferred<DataPoints[]>>(nqueries);
+    for (final Query query : queries) {
+      results.add(query.runAsync());
+    }
     for (int i = 0; i < nqueries; i++) {
-      // TODO(tsuna): Optimization: run each query in parallel.
       final StringBuilder buf = want_plot ? null : new StringBuilder();
-      for (final DataPoints datapoints : queries.get(i).run()) {
+      for (final DataPoints datapoints : join(results.get(i))) {
         if (want_plot) {
           plot.add(datapoints, plotoptions.get(i));
         } else {
@@ -178,6 +185,17 @@ final class CliQuery {
     return plot;
   }
 
+  /** Waits for the results of a query.  */
+  private static DataPoints[] join(final Deferred<DataPoints[]> results) {
+    try {
+      return results.joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
   /**
    * Parses the query from the command lines.
    * @param args The command line arguments.
@@ -0,0 +1,358 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.IllegalDataException;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.Query;
+import net.opentsdb.core.TSDB;
+
+/**
+ * Tool to compact rows that were written while compactions were disabled.
+ * <p>
+ * The time range of each query is split in chunks, and several workers
+ * scan and compact chunks in parallel.  Each row goes through the same
+ * compaction logic as the TSD's compaction queue.  The chunks done can be
+ * recorded in a checkpoint file, so an interrupted run can be resumed.
+ */
+final class CompactRange {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompactRange.class);
+
+  /** Prints usage and exits with the given retval. */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: compact"
+        + " [options] START-DATE [END-DATE] query [queries...]\n"
+        + "To see the format in which queries should be written, see the help"
+        + " of the 'query' command.\n"
+        + "Rows that TSDs may still be writing to are never compacted, so the"
+        + " END-DATE is capped to " + (Const.MAX_TIMESPAN * 2) + " seconds"
+        + " ago.  Make sure no TSD is running with compactions disabled on"
+        + " the range compacted.");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    CliOptions.addCommon(argp);
+    argp.addOption("--workers", "NUM",
+                   "Number of chunks compacted in parallel (default: 4).");
+    argp.addOption("--rate", "ROWS/S",
+                   "Maximum number of rows compacted per second, 0 for no"
+                   + " limit (default: 0).");
+    argp.addOption("--chunk-hours", "NUM",
+                   "Number of hours of data scanned by each chunk"
+                   + " (default: 24).");
+    argp.addOption("--compressed-cells",
+                   "Write compacted cells in the compressed format.");
+    argp.addOption("--checkpoint", "PATH",
+                   "File where the chunks done are recorded.  If it exists,"
+                   + " the chunks it lists are skipped.");
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, "Invalid usage.", 1);
+    } else if (args.length < 3) {
+      usage(argp, "Not enough arguments.", 2);
+    } else if (!Internal.compactionsEnabled()) {
+      usage(argp, "Compactions are disabled (tsd.feature.compactions).", 2);
+    }
+    final int workers;
+    final double rate;
+    final int chunk_hours;
+    try {
+      workers = Integer.parseInt(argp.get("--workers", "4"));
+      rate = Double.parseDouble(argp.get("--rate", "0"));
+      chunk_hours = Integer.parseInt(argp.get("--chunk-hours", "24"));
+    } catch (NumberFormatException e) {
+      usage(argp, "Invalid number: " + e.getMessage(), 3);
+      return;  // Unreachable.
+    }
+    if (workers < 1 || rate < 0 || chunk_hours < 1) {
+      usage(argp, "--workers and --chunk-hours must be strictly positive,"
+            + " --rate must not be negative.", 3);
+    }
+    final String checkpoint = argp.get("--checkpoint");
+    if (argp.has("--compressed-cells")) {
+      System.setProperty("tsd.feature.compressed_cells", "true");
+    }
+
+    final HBaseClient client = CliOptions.clientFromOptions(argp);
+    final TSDB tsdb = new TSDB(client, argp.get("--table", "tsdb"),
+                               argp.get("--uidtable", "tsdb-uid"));
+    argp = null;
+    long errors = 42;
+    try {
+      final CompactRange compact = new CompactRange(tsdb, rate, checkpoint);
+      compact.run(args, workers, chunk_hours * 3600L);
+      errors = compact.errors.get();
+    } finally {
+      // This also flushes the rows we had to re-schedule for compaction
+      // because HBase asked us to throttle.
+      tsdb.shutdown().joinUninterruptibly();
+    }
+    System.exit(errors == 0 ? 0 : 1);
+  }
+
+  /** A range of rows to compact.  */
+  private static final class Chunk {
+    final int query_idx;
+    final Query query;
+    final long start_time;
+    final long end_time;
+
+    Chunk(final int query_idx, final Query query,
+          final long start_time, final long end_time) {
+      this.query_idx = query_idx;
+      this.query = query;
+      this.start_time = start_time;
+      this.end_time = end_time;
+    }
+
+    /** Returns how this chunk is identified in the checkpoint file.  */
+    String id() {
+      return query_idx + " " + start_time;
+    }
+
+    public String toString() {
+      return "chunk [" + start_time + ", " + end_time + ") of " + query;
+    }
+  }
+
+  private final TSDB tsdb;
+  /** Limits the number of rows compacted per second, or null.  */
+  private final RateLimiter rate_limiter;
+  /** Path to the checkpoint file, or null.  */
+  private final String checkpoint_path;
+  /** Where we record the chunks done, or null.  */
+  private PrintWriter checkpoint;
+
+  private final ConcurrentLinkedQueue<Chunk> chunks =
+    new ConcurrentLinkedQueue<Chunk>();
+  private final AtomicLong rows_compacted = new AtomicLong();
+  private final AtomicLong chunks_done = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  private CompactRange(final TSDB tsdb, final double rate,
+                       final String checkpoint_path) {
+    this.tsdb = tsdb;
+    this.rate_limiter = rate > 0 ? RateLimiter.create(rate) : null;
+    this.checkpoint_path = checkpoint_path;
+  }
+
+  private void run(final String[] args, final int nworkers,
+                   final long chunk_span) throws Exception {
+    final ArrayList<Query> queries = new ArrayList<Query>();
+    CliQuery.parseCommandLineQuery(args, tsdb, queries, null, null);
+    final HashSet<String> done = loadCheckpoint(args);
+
+    // Never touch rows that a TSD could still be writing to.
+    final long cut_off = System.currentTimeMillis() / 1000
+      - Const.MAX_TIMESPAN * 2;
+    int nchunks = 0;
+    for (int i = 0; i < queries.size(); i++) {
+      final Query query = queries.get(i);
+      final long start = query.getStartTime()
+        - (query.getStartTime() % Const.MAX_TIMESPAN);
+      final long end = Math.min(query.getEndTime() + 1, cut_off);
+      for (long t = start; t < end; t += chunk_span) {
+        final Chunk chunk = new Chunk(i, query, t, Math.min(t + chunk_span,
+                                                            end));
+        if (!done.contains(chunk.id())) {
+          chunks.add(chunk);
+          nchunks++;
+        }
+      }
+    }
+    LOG.info("Compacting " + nchunks + " chunks with " + nworkers
+             + " workers (" + done.size() + " chunks already done)");
+
+    final long start_time = System.nanoTime();
+    final Worker[] workers = new Worker[nworkers];
+    for (int i = 0; i < nworkers; i++) {
+      workers[i] = new Worker(i);
+      workers[i].start();
+    }
+    for (final Worker worker : workers) {
+      worker.join();
+    }
+    if (checkpoint != null) {
+      checkpoint.close();
+    }
+    final long elapsed = (System.nanoTime() - start_time) / 1000000;
+    LOG.info("Compacted " + rows_compacted + " rows in " + chunks_done
+             + " chunks in " + elapsed + "ms ("
+             + (rows_compacted.get() * 1000 / Math.max(elapsed, 1))
+             + " rows/s), " + errors + " errors");
+  }
+
+  /**
+   * Reads the chunks already done from the checkpoint file, if any, and
+   * opens it to record the new chunks done.
+   * @param args The command line arguments of this run.
+   * @return The IDs of the chunks already done.
+   */
+  private HashSet<String> loadCheckpoint(final String[] args)
+    throws IOException {
+    final HashSet<String> done = new HashSet<String>();
+    if (checkpoint_path == null) {
+      return done;
+    }
+    final StringBuilder buf = new StringBuilder("# compact");
+    for (final String arg : args) {
+      buf.append(' ').append(arg);
+    }
+    final String header = buf.toString();
+    final File file = new File(checkpoint_path);
+    final boolean exists = file.exists();
+    if (exists) {
+      final BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+        if (!header.equals(in.readLine())) {
+          throw new IllegalArgumentException("Checkpoint " + file
+            + " was written for different arguments than " + header);
+        }
+        String line;
+        while ((line = in.readLine()) != null) {
+          done.add(line);  // A torn last line is just never matched.
+        }
+      } finally {
+        in.close();
+      }
+    }
+    checkpoint = new PrintWriter(new FileWriter(file, true));
+    if (!exists) {
+      checkpoint.println(header);
+      checkpoint.flush();
+    }
+    return done;
+  }
+
+  /** Records that a chunk was compacted without errors.  */
+  private synchronized void chunkDone(final Chunk chunk) {
+    if (checkpoint != null) {
+      checkpoint.println(chunk.id());
+      checkpoint.flush();
+    }
+  }
+
+  /** Counts the rows of a chunk that failed to compact.  */
+  private final class ErrorCB implements Callback<Object, Exception> {
+    final AtomicLong chunk_errors = new AtomicLong();
+    public Object call(final Exception e) {
+      chunk_errors.incrementAndGet();
+      if (errors.incrementAndGet() % 100 == 1) {
+        LOG.error("Failed to compact a row", e);
+      }
+      return e;
+    }
+    public String toString() {
+      return "count compaction errors";
+    }
+  }
+
+  /**
+   * Thread compacting chunks until none is left.
+   * <p>
+   * Each worker waits for the compactions of a batch of rows to complete
+   * before scanning the next one, which bounds the number of outstanding
+   * RPCs.
+   */
+  private final class Worker extends Thread {
+
+    Worker(final int id) {
+      super("CompactRange #" + id);
+    }
+
+    public void run() {
+      Chunk chunk;
+      while ((chunk = chunks.poll()) != null) {
+        final ErrorCB errback = new ErrorCB();
+        try {
+          compact(chunk, errback);
+        } catch (Exception e) {
+          errback.call(e);
+        }
+        final long n = chunks_done.incrementAndGet();
+        if (errback.chunk_errors.get() == 0) {
+          chunkDone(chunk);
+        }
+        if (n % 10 == 0) {
+          LOG.info("... " + n + " chunks done, " + rows_compacted
+                   + " rows compacted, " + errors + " errors");
+        }
+      }
+    }
+
+    private void compact(final Chunk chunk,
+                         final ErrorCB errback) throws Exception {
+      final Scanner scanner = Internal.getScanner(chunk.query,
+                                                  chunk.start_time,
+                                                  chunk.end_time);
+      final ArrayList<Deferred<Object>> ds = new ArrayList<Deferred<Object>>();
+      ArrayList<ArrayList<KeyValue>> rows;
+      try {
+        while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+          if (rate_limiter != null) {
+            rate_limiter.acquire(rows.size());
+          }
+          for (final ArrayList<KeyValue> row : rows) {
+            try {
+              ds.add(Internal.compactNow(tsdb, row).addErrback(errback));
+            } catch (IllegalDataException e) {  // Needs an fsck.
+              errback.call(e);
+            }
+          }
+          try {
+            Deferred.group(ds).joinUninterruptibly();
+          } catch (Exception e) {
+            // Already counted and logged by the errback.
+          }
+          rows_compacted.addAndGet(rows.size());
+          ds.clear();
+        }
+      } finally {
+        // Release the scanner on the region server if we didn't finish it.
+        scanner.close();
+      }
+    }
+
+  }
+
+}
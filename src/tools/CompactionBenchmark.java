@@ -0,0 +1,214 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.core.Internal;
+
+/**
+ * Measures the CPU time and the memory allocated to compact rows that were
+ * already partially compacted.
+ * <p>
+ * Each row has a data point every second, alternating between integers on
+ * 8 bytes and floating point values on 4 bytes.  Half of them are in a
+ * compacted cell, a quarter of them are in a second compacted cell that
+ * overlaps with the first one, and the rest are individual cells, along
+ * with a few individual cells duplicating points of the first compacted
+ * cell.  That's what a row looks like after a TSD died during compactions,
+ * or when points came late.
+ * <p>
+ * This doesn't need HBase.  Allocations are only measured on JVMs able to
+ * count the bytes allocated by a thread.
+ */
+final class CompactionBenchmark {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CompactionBenchmark.class);
+
+  private static final byte[] KEY = { 0, 0, 1, 0x51, 0x27, 0x2A, 0x30,
+                                      0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+
+  /** Prints usage and exits with the given retval.  */
+  static void usage(final ArgP argp, final int retval) {
+    System.err.println("Usage: compactbench [options]");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) {
+    final ArgP argp = new ArgP();
+    argp.addOption("--rows", "NUM",
+                   "Number of different rows to compact (default: 1000).");
+    argp.addOption("--points", "NUM",
+                   "Number of data points per row (default: 3600).");
+    argp.addOption("--iterations", "NUM",
+                   "Number of times to compact all the rows, after one"
+                   + " warm-up pass (default: 10).");
+    CliOptions.addVerbose(argp);
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, 1);
+    } else if (args.length != 0) {
+      usage(argp, 2);
+    }
+    final int rows;
+    final int points;
+    final int iterations;
+    try {
+      rows = Integer.parseInt(argp.get("--rows", "1000"));
+      points = Integer.parseInt(argp.get("--points", "3600"));
+      iterations = Integer.parseInt(argp.get("--iterations", "10"));
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid usage.  " + e.getMessage());
+      usage(argp, 1);
+      return;
+    }
+    if (rows < 1 || points < 4 || points > 3600 || iterations < 1) {
+      System.err.println("Invalid usage.  Numbers must be positive, with"
+                         + " 4 to 3600 points per row.");
+      usage(argp, 1);
+    }
+
+    final Random random = new Random(42);
+    final ArrayList<ArrayList<KeyValue>> data =
+      new ArrayList<ArrayList<KeyValue>>(rows);
+    for (int i = 0; i < rows; i++) {
+      data.add(makeRow(random, points));
+    }
+    LOG.info("Compacting " + rows + " rows of " + points + " data points, "
+             + iterations + " times");
+    run(data, 1, "warm-up");
+    run(data, iterations, "measured");
+  }
+
+  /**
+   * Compacts all the rows a number of times and logs how long that took
+   * and how much memory was allocated.
+   */
+  private static void run(final ArrayList<ArrayList<KeyValue>> data,
+                          final int iterations, final String what) {
+    final long start_bytes = allocatedBytes();
+    final long start_cpu = cpuTime();
+    final long start_time = System.nanoTime();
+    long checksum = 0;
+    for (int i = 0; i < iterations; i++) {
+      for (final ArrayList<KeyValue> row : data) {
+        checksum += Internal.complexCompact(row).value().length;
+      }
+    }
+    final long time = System.nanoTime() - start_time;
+    final long cpu = cpuTime() - start_cpu;
+    final long allocated = allocatedBytes() - start_bytes;
+    final long compactions = (long) iterations * data.size();
+    LOG.info(String.format("%s: %d compactions in %.3fs (%.1f us/row,"
+                           + " %.1f us/row of CPU), %s bytes allocated/row"
+                           + " (checksum=%d)",
+                           what, compactions, time / 1e9,
+                           time / 1e3 / compactions, cpu / 1e3 / compactions,
+                           start_bytes < 0 ? "unknown"
+                           : Long.toString(allocated / compactions),
+                           checksum));
+  }
+
+  /** Makes a row that needs a complex compaction.  */
+  private static ArrayList<KeyValue> makeRow(final Random random,
+                                             final int points) {
+    final byte[][] qualifiers = new byte[points][];
+    final byte[][] values = new byte[points][];
+    for (int i = 0; i < points; i++) {
+      if (i % 2 == 0) {
+        qualifiers[i] = Bytes.fromShort((short) (i << Internal.FLAG_BITS
+                                                 | 0x7));
+        values[i] = Bytes.fromLong(random.nextInt(100000));
+      } else {
+        qualifiers[i] = Bytes.fromShort((short) (i << Internal.FLAG_BITS
+                                                 | 0x8 | 0x3));
+        values[i] = Bytes.fromInt(Float.floatToRawIntBits(random.nextFloat()));
+      }
+    }
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(compacted(qualifiers, values, 0, points / 2));
+    row.add(compacted(qualifiers, values, points / 4, points * 3 / 4));
+    for (int i = points / 2; i < points; i++) {
+      row.add(new KeyValue(KEY, FAMILY, qualifiers[i], values[i]));
+    }
+    for (int i = 0; i < points / 2; i += 10) {
+      row.add(new KeyValue(KEY, FAMILY, qualifiers[i], values[i]));
+    }
+    // Sort the cells like HBase would return them.
+    Collections.sort(row, new Comparator<KeyValue>() {
+      public int compare(final KeyValue a, final KeyValue b) {
+        return Bytes.memcmp(a.qualifier(), b.qualifier());
+      }
+    });
+    return row;
+  }
+
+  /** Makes a compacted cell with the data points in [start; end).  */
+  private static KeyValue compacted(final byte[][] qualifiers,
+                                    final byte[][] values,
+                                    final int start, final int end) {
+    int value_length = 1;  // Meta-data byte.
+    for (int i = start; i < end; i++) {
+      value_length += values[i].length;
+    }
+    final byte[] qualifier = new byte[(end - start) * 2];
+    final byte[] value = new byte[value_length];
+    int value_index = 0;
+    for (int i = start; i < end; i++) {
+      System.arraycopy(qualifiers[i], 0, qualifier, (i - start) * 2, 2);
+      System.arraycopy(values[i], 0, value, value_index, values[i].length);
+      value_index += values[i].length;
+    }
+    return new KeyValue(KEY, FAMILY, qualifier, value);
+  }
+
+  /**
+   * Returns the number of bytes allocated by the current thread so far, or
+   * -1 if the JVM can't tell.
+   */
+  private static long allocatedBytes() {
+    final java.lang.management.ThreadMXBean bean =
+      ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean sun =
+        (com.sun.management.ThreadMXBean) bean;
+      if (sun.isThreadAllocatedMemorySupported()
+          && sun.isThreadAllocatedMemoryEnabled()) {
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the CPU time used by the current thread so far (in ns).  */
+  private static long cpuTime() {
+    final java.lang.management.ThreadMXBean bean =
+      ManagementFactory.getThreadMXBean();
+    return bean.isCurrentThreadCpuTimeSupported()
+      ? bean.getCurrentThreadCpuTime() : 0;
+  }
+
+}
@@ -154,8 +154,10 @@ final class DumpSeries {
     if (importformat) {
       buf.append(metric).append(' ');
     }
-    final byte[] qualifier = kv.qualifier();
-    final byte[] cell = kv.value();
+    final KeyValue uncompressed = Internal.isCompressedCell(kv)
+      ? Internal.decodeCompressedCell(kv) : kv;
+    final byte[] qualifier = uncompressed.qualifier();
+    final byte[] cell = uncompressed.value();
     if (qualifier.length != 2 && cell[cell.length - 1] != 0) {
       throw new IllegalDataException("Don't know how to read this value:"
         + Arrays.toString(cell) + " found in " + kv
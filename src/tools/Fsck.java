@@ -147,7 +147,7 @@ final class Fsck {
               ping_start_time = now;
             }
             byte[] value = kv.value();
-            final byte[] qual = kv.qualifier();
+            byte[] qual = kv.qualifier();
             if (qual.length < 2) {
               errors++;
               LOG.error("Invalid qualifier, must be on 2 bytes or more.\n\t"
@@ -159,6 +159,20 @@ final class Fsck {
                 LOG.error("Invalid qualifier for a compacted row, length ("
                           + qual.length + ") must be even.\n\t" + kv);
               }
+              if (Internal.isCompressedCell(kv)) {
+                // Check the data points of the compressed cell like those
+                // of any other compacted cell.
+                final KeyValue decoded;
+                try {
+                  decoded = Internal.decodeCompressedCell(kv);
+                } catch (IllegalDataException e) {
+                  errors++;
+                  LOG.error(e.getMessage());
+                  continue;
+                }
+                qual = decoded.qualifier();
+                value = decoded.value();
+              }
               if (value[value.length - 1] != 0) {
                 errors++;
                 LOG.error("The last byte of the value should be 0.  Either"
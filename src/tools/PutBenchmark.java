@@ -0,0 +1,272 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.tsd.BinaryPutEncoder;
+
+/**
+ * Measures the write throughput of a TSD with the text and binary "put"
+ * protocols.
+ * <p>
+ * Both protocols are used the same way: data points are sent in batches
+ * ("putbatch" for the text protocol), with a bounded number of batches
+ * waiting to be acknowledged.  Each protocol writes to its own series so
+ * they don't overwrite each other.
+ */
+final class PutBenchmark {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PutBenchmark.class);
+
+  /** Prints usage and exits with the given retval.  */
+  static void usage(final ArgP argp, final int retval) {
+    System.err.println("Usage: putbench [options] text|binary [text|binary]");
+    System.err.print(argp.usage());
+    System.err.println("The metric must exist, unless the TSD auto-creates"
+                       + " metrics.");
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final ArgP argp = new ArgP();
+    argp.addOption("--host", "HOST", "Host of the TSD (default: localhost).");
+    argp.addOption("--port", "NUM", "Port of the TSD (default: 4242).");
+    argp.addOption("--metric", "NAME",
+                   "Metric to write to (default: tsd.bench.put).");
+    argp.addOption("--points", "NUM",
+                   "Number of data points to write (default: 1000000).");
+    argp.addOption("--series", "NUM",
+                   "Number of series to spread them over (default: 1000).");
+    argp.addOption("--batch", "NUM",
+                   "Number of data points per batch (default: 1000).");
+    argp.addOption("--window", "NUM", "Maximum number of batches waiting to"
+                   + " be acknowledged (default: 16).");
+    CliOptions.addVerbose(argp);
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, 1);
+    } else if (args.length < 1) {
+      usage(argp, 2);
+    }
+    final PutBenchmark bench;
+    try {
+      bench = new PutBenchmark(argp.get("--host", "localhost"),
+                               Integer.parseInt(argp.get("--port", "4242")),
+                               argp.get("--metric", "tsd.bench.put"),
+                               Integer.parseInt(argp.get("--points",
+                                                         "1000000")),
+                               Integer.parseInt(argp.get("--series", "1000")),
+                               Integer.parseInt(argp.get("--batch", "1000")),
+                               Integer.parseInt(argp.get("--window", "16")));
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid usage.  " + e.getMessage());
+      usage(argp, 1);
+      return;
+    }
+    for (final String protocol : args) {
+      if (!"text".equals(protocol) && !"binary".equals(protocol)) {
+        usage(argp, 2);
+      }
+    }
+    for (final String protocol : args) {
+      bench.run("binary".equals(protocol));
+    }
+  }
+
+  private final String host;
+  private final int port;
+  private final String metric;
+  private final int points;
+  private final int series;
+  private final int batch_size;
+  private final int window;
+
+  private PutBenchmark(final String host, final int port, final String metric,
+                       final int points, final int series,
+                       final int batch_size, final int window) {
+    if (points < 1 || series < 1 || batch_size < 1 || window < 1) {
+      throw new NumberFormatException("all numbers must be positive");
+    }
+    this.host = host;
+    this.port = port;
+    this.metric = metric;
+    this.points = points;
+    this.series = series;
+    this.batch_size = batch_size;
+    this.window = window;
+  }
+
+  /**
+   * Writes all the data points with one of the protocols and logs the
+   * throughput achieved.
+   * @param binary Whether to use the binary protocol or the text one.
+   */
+  private void run(final boolean binary) throws Exception {
+    final String protocol = binary ? "binary" : "text";
+    final Socket socket = new Socket(host, port);
+    try {
+      socket.setTcpNoDelay(true);
+      final int batches = (points + batch_size - 1) / batch_size;
+      final Semaphore in_flight = new Semaphore(window);
+      final AckReader acks = new AckReader(socket, binary, batches, in_flight);
+      acks.start();
+      final OutputStream out =
+        new BufferedOutputStream(socket.getOutputStream(), 65536);
+      final long start_time = System.nanoTime();
+      if (binary) {
+        writeBinary(out, in_flight);
+      } else {
+        writeText(out, in_flight);
+      }
+      acks.join();
+      final double time_delta = (System.nanoTime() - start_time) / 1e9;
+      if (acks.error != null) {
+        throw acks.error;
+      }
+      LOG.info(String.format("%s: wrote %d data points in %.3fs (%.1f points/s),"
+                             + " %d rejected", protocol, acks.accepted,
+                             time_delta, acks.accepted / time_delta,
+                             acks.rejected));
+    } finally {
+      socket.close();
+    }
+  }
+
+  /** Returns the timestamp of the first data point of each series.  */
+  private long baseTimestamp() {
+    return System.currentTimeMillis() / 1000 - (points / series) - 1;
+  }
+
+  private void writeText(final OutputStream out,
+                         final Semaphore in_flight) throws Exception {
+    final long base = baseTimestamp();
+    final StringBuilder buf = new StringBuilder(batch_size * 64);
+    for (int i = 0; i < points; i += batch_size) {
+      final int n = Math.min(batch_size, points - i);
+      buf.append("putbatch ").append(n).append('\n');
+      for (int j = i; j < i + n; j++) {
+        buf.append("put ").append(metric).append(' ')
+          .append(base + j / series).append(' ').append(j)
+          .append(" proto=text series=").append(j % series).append('\n');
+      }
+      in_flight.acquire();
+      out.write(buf.toString().getBytes("ISO-8859-1"));
+      out.flush();
+      buf.setLength(0);
+    }
+  }
+
+  private void writeBinary(final OutputStream out,
+                           final Semaphore in_flight) throws Exception {
+    final long base = baseTimestamp();
+    final BinaryPutEncoder encoder = new BinaryPutEncoder();
+    final int[] ids = new int[series];
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("proto", "binary");
+    BinaryPutEncoder.writeMagic(out);
+    for (int i = 0; i < points; i++) {
+      final int s = i % series;
+      if (i < series) {
+        tags.put("series", Integer.toString(s));
+        ids[s] = encoder.series(metric, tags);
+      }
+      encoder.addPoint(ids[s], base + i / series, (long) i);
+      if (encoder.points() == batch_size || i == points - 1) {
+        in_flight.acquire();
+        encoder.writeBatch(out);
+        out.flush();
+      }
+    }
+  }
+
+  /** Reads the acknowledgements sent back by the TSD.  */
+  private static final class AckReader extends Thread {
+
+    private final Socket socket;
+    private final boolean binary;
+    private final int batches;
+    private final Semaphore in_flight;
+    volatile long accepted;
+    volatile long rejected;
+    volatile Exception error;
+
+    AckReader(final Socket socket, final boolean binary, final int batches,
+              final Semaphore in_flight) {
+      super("AckReader");
+      this.socket = socket;
+      this.binary = binary;
+      this.batches = batches;
+      this.in_flight = in_flight;
+    }
+
+    public void run() {
+      try {
+        if (binary) {
+          final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+          for (int i = 0; i < batches; i++) {
+            in.readInt();  // Batch ID.
+            accepted += in.readInt();
+            rejected += in.readInt();
+            in_flight.release();
+          }
+        } else {
+          final BufferedReader in = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+          int i = 0;
+          String line;
+          while (i < batches && (line = in.readLine()) != null) {
+            if (line.startsWith("putbatch: ok ")) {
+              accepted += Integer.parseInt(line.substring(13));
+            } else if (line.startsWith("putbatch: error ")) {
+              // "putbatch: error F/N failed, ..."
+              final int slash = line.indexOf('/');
+              final int failed = Integer.parseInt(line.substring(16, slash));
+              final int total = Integer.parseInt(
+                line.substring(slash + 1, line.indexOf(' ', slash)));
+              accepted += total - failed;
+              rejected += failed;
+            } else {
+              LOG.warn("Unexpected reply: " + line);
+              continue;
+            }
+            i++;
+            in_flight.release();
+          }
+          if (i < batches) {
+            throw new IOException("Connection closed after " + i + '/'
+                                  + batches + " batches were acknowledged");
+          }
+        }
+      } catch (Exception e) {
+        error = e;
+        in_flight.release(batches);  // Unblock the writer.
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,164 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.HBaseClient;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Measures how fast new series can be created with a cold UID cache.
+ * <p>
+ * Every series gets tag values never seen before, so each of them has to be
+ * looked up in HBase and assigned an ID.  The "sequential" mode resolves
+ * the names one at a time, the way series used to be created, while the
+ * "batched" mode goes through {@link net.opentsdb.core.WritableDataPoints}
+ * which resolves all the names of a series at once.  Each mode uses its
+ * own names, so they don't benefit from each other's work.
+ * <p>
+ * This writes to the UID table: use it against a test cluster.
+ */
+final class SeriesBenchmark {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(SeriesBenchmark.class);
+
+  /** Prints usage and exits with the given retval.  */
+  static void usage(final ArgP argp, final int retval) {
+    System.err.println("Usage: seriesbench [options]"
+                       + " sequential|batched [sequential|batched]");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final ArgP argp = new ArgP();
+    CliOptions.addCommon(argp);
+    argp.addOption("--series", "NUM",
+                   "Number of series to create (default: 1000).");
+    argp.addOption("--tags", "NUM",
+                   "Number of tags of each series (default: 4).");
+    argp.addOption("--metric", "NAME",
+                   "Metric of the series (default: tsd.bench.series).");
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, 1);
+    } else if (args.length < 1) {
+      usage(argp, 2);
+    }
+    for (final String mode : args) {
+      if (!"sequential".equals(mode) && !"batched".equals(mode)) {
+        usage(argp, 2);
+      }
+    }
+    final int series;
+    final int tags;
+    try {
+      series = Integer.parseInt(argp.get("--series", "1000"));
+      tags = Integer.parseInt(argp.get("--tags", "4"));
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid usage.  " + e.getMessage());
+      usage(argp, 1);
+      return;
+    }
+    if (series < 1 || tags < 1) {
+      System.err.println("Invalid usage.  All numbers must be positive.");
+      usage(argp, 1);
+    }
+
+    final HBaseClient client = CliOptions.clientFromOptions(argp);
+    final byte[] uidtable = argp.get("--uidtable", "tsdb-uid").getBytes();
+    final TSDB tsdb = new TSDB(client, argp.get("--table", "tsdb"),
+                               argp.get("--uidtable", "tsdb-uid"));
+    try {
+      final SeriesBenchmark bench = new SeriesBenchmark(
+        tsdb, new UniqueId(client, uidtable, "metrics", 3),
+        new UniqueId(client, uidtable, "tagk", 3),
+        new UniqueId(client, uidtable, "tagv", 3),
+        argp.get("--metric", "tsd.bench.series"), series, tags);
+      for (final String mode : args) {
+        bench.run("batched".equals(mode));
+      }
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+  }
+
+  private final TSDB tsdb;
+  private final UniqueId metrics;
+  private final UniqueId tag_names;
+  private final UniqueId tag_values;
+  private final String metric;
+  private final int series;
+  private final int tags;
+
+  private SeriesBenchmark(final TSDB tsdb, final UniqueId metrics,
+                          final UniqueId tag_names, final UniqueId tag_values,
+                          final String metric, final int series,
+                          final int tags) {
+    this.tsdb = tsdb;
+    this.metrics = metrics;
+    this.tag_names = tag_names;
+    this.tag_values = tag_values;
+    this.metric = metric;
+    this.series = series;
+    this.tags = tags;
+  }
+
+  /**
+   * Creates all the series with one of the modes and logs how long that
+   * took.
+   * @param batched Whether to resolve all the names of a series at once.
+   */
+  private void run(final boolean batched) {
+    final String mode = batched ? "batched" : "sequential";
+    // Names no previous run has seen.
+    final String prefix = "bench" + System.currentTimeMillis() + mode;
+    metrics.getOrCreateId(metric);
+    final Histogram latency = new Histogram(16000, (short) 2, 100);
+    final HashMap<String, String> tagmap = new HashMap<String, String>(tags);
+    final long start_time = System.nanoTime();
+    for (int i = 0; i < series; i++) {
+      for (int j = 0; j < tags; j++) {
+        tagmap.put(prefix + ".k" + j, prefix + ".s" + i + ".v" + j);
+      }
+      final long series_start = System.nanoTime();
+      if (batched) {
+        tsdb.newDataPoints().setSeries(metric, tagmap);
+      } else {
+        metrics.getOrCreateId(metric);
+        for (final Map.Entry<String, String> tag : tagmap.entrySet()) {
+          tag_names.getOrCreateId(tag.getKey());
+          tag_values.getOrCreateId(tag.getValue());
+        }
+      }
+      latency.add((int) ((System.nanoTime() - series_start) / 1000000));
+      tagmap.clear();
+    }
+    final double time_delta = (System.nanoTime() - start_time) / 1e9;
+    LOG.info(String.format("%s: created %d series with %d tags in %.3fs"
+                           + " (%.1f series/s), latency p50=%dms p95=%dms",
+                           mode, series, tags, time_delta,
+                           series / time_delta, latency.percentile(50),
+                           latency.percentile(95)));
+  }
+
+}
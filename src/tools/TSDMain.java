@@ -49,6 +49,7 @@ final class TSDMain {
   }
 
   private static final short DEFAULT_FLUSH_INTERVAL = 1000;
+  private static final int DEFAULT_PRELOAD_UIDS_TIMEOUT = 120;
   private static final boolean DONT_CREATE = false;
   private static final boolean CREATE_IF_NEEDED = true;
   private static final boolean MUST_BE_WRITEABLE = true;
@@ -78,6 +79,69 @@ final class TSDMain {
     System.setProperty(prop, path + '/');
   }
 
+  /**
+   * Sets a system property from a non-negative integer option, if given.
+   * In case of problem, this function calls {@code System.exit}.
+   * @param prop The name of the system property to set.
+   * @param argp The parsed command line options.
+   * @param option The name of the option.
+   */
+  private static void setIntegerInSystemProps(final String prop,
+                                              final ArgP argp,
+                                              final String option) {
+    setIntegerInSystemProps(prop, argp, option, 0);
+  }
+
+  /**
+   * Sets a system property from an integer option, if given.
+   * In case of problem, this function calls {@code System.exit}.
+   * @param prop The name of the system property to set.
+   * @param argp The parsed command line options.
+   * @param option The name of the option.
+   * @param min The smallest valid value.
+   */
+  private static void setIntegerInSystemProps(final String prop,
+                                              final ArgP argp,
+                                              final String option,
+                                              final int min) {
+    final String value = argp.get(option);
+    if (value == null) {
+      return;
+    }
+    getIntegerOption(argp, option, min, min);
+    System.setProperty(prop, value);
+  }
+
+  /**
+   * Returns the value of an integer option.
+   * In case of problem, this function calls {@code System.exit}.
+   * @param argp The parsed command line options.
+   * @param option The name of the option.
+   * @param default_value The value to use if the option isn't given.
+   * @param min The smallest valid value.
+   */
+  private static int getIntegerOption(final ArgP argp,
+                                      final String option,
+                                      final int default_value,
+                                      final int min) {
+    final String value = argp.get(option);
+    if (value == null) {
+      return default_value;
+    }
+    int n = default_value;
+    try {
+      n = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      usage(argp, "Invalid " + option + ": " + value, 3);
+    }
+    if (n < min) {
+      usage(argp, (min == 0 ? "Negative " + option
+                   : option + " must be at least " + min + ", got")
+            + ": " + value, 3);
+    }
+    return n;
+  }
+
   public static void main(String[] args) {
     Logger log = LoggerFactory.getLogger(TSDMain.class);
     log.info("Starting.");
@@ -101,9 +165,46 @@ final class TSDMain {
                    "Number for async io workers (default: cpu * 2).");
     argp.addOption("--async-io", "true|false",
                    "Use async NIO (default true) or traditional blocking io");
+    argp.addOption("--put-threads", "NUM",
+                   "Number of threads handling writes and telnet-style"
+                   + " commands, 0 to handle them on the I/O threads"
+                   + " (default: cpu).");
+    argp.addOption("--query-threads", "NUM",
+                   "Number of threads running HTTP queries, 0 to run them"
+                   + " on the I/O threads (default: 16).");
+    argp.addOption("--query-queue", "NUM",
+                   "Maximum number of HTTP queries waiting for a thread,"
+                   + " past which they're rejected (default: 1000).");
+    argp.addOption("--compaction-threads", "NUM",
+                   "Number of threads compacting rows, each with its own"
+                   + " share of the compaction queue (default: 4).");
+    argp.addOption("--compaction-buffer", "MB",
+                   "Memory used to keep recent data points, so rows can be"
+                   + " compacted without reading them back.  Don't use if"
+                   + " several TSDs write the same series (default: 0).");
+    argp.addOption("--compaction-checkpoint-dir", "PATH",
+                   "Directory where to checkpoint the rows left to compact,"
+                   + " so they're compacted after a restart instead of"
+                   + " flushed on shutdown (default: no checkpoint).");
+    argp.addOption("--compressed-cells",
+                   "Write compacted cells in the compressed format.  Only"
+                   + " use once all the TSDs and tools reading the table can"
+                   + " read it.");
     argp.addOption("--flush-interval", "MSEC",
                    "Maximum time for which a new data point can be buffered"
                    + " (default: " + DEFAULT_FLUSH_INTERVAL + ").");
+    argp.addOption("--spooldir", "PATH",
+                   "Directory where to spool data points when HBase can't"
+                   + " take them (default: no spooling).");
+    argp.addOption("--preload-uids", "NUM",
+                   "Fill the UID caches with NUM parallel scanners before"
+                   + " serving (default: 0, don't preload).");
+    argp.addOption("--preload-uids-timeout", "SEC",
+                   "Maximum time to spend preloading the UID caches"
+                   + " (default: " + DEFAULT_PRELOAD_UIDS_TIMEOUT + ").");
+    argp.addOption("--suggest-index",
+                   "Index the UIDs in memory for suggestions, instead of"
+                   + " scanning HBase for each suggestion.");
     CliOptions.addAutoMetricFlag(argp);
     args = CliOptions.parse(argp, args);
     if (args == null || !argp.has("--port")
@@ -115,11 +216,37 @@ final class TSDMain {
     args = null;  // free().
 
     final short flush_interval = getFlushInterval(argp);
+    final int preload_scanners = getIntegerOption(argp, "--preload-uids",
+                                                  0, 0);
+    final int preload_timeout = getIntegerOption(argp,
+                                                 "--preload-uids-timeout",
+                                                 DEFAULT_PRELOAD_UIDS_TIMEOUT,
+                                                 1);
 
     setDirectoryInSystemProps("tsd.http.staticroot", argp.get("--staticroot"),
                               DONT_CREATE, !MUST_BE_WRITEABLE);
     setDirectoryInSystemProps("tsd.http.cachedir", argp.get("--cachedir"),
                               CREATE_IF_NEEDED, MUST_BE_WRITEABLE);
+    setIntegerInSystemProps("tsd.rpc.put_threads", argp, "--put-threads");
+    setIntegerInSystemProps("tsd.rpc.query_threads", argp, "--query-threads");
+    setIntegerInSystemProps("tsd.rpc.query_queue_size", argp, "--query-queue",
+                            1);
+    setIntegerInSystemProps("tsd.core.compaction_threads", argp,
+                            "--compaction-threads");
+    setIntegerInSystemProps("tsd.core.compaction_buffer_mb", argp,
+                            "--compaction-buffer");
+    if (argp.has("--compaction-checkpoint-dir")) {
+      setDirectoryInSystemProps("tsd.core.compaction_checkpoint_dir",
+                                argp.get("--compaction-checkpoint-dir"),
+                                CREATE_IF_NEEDED, MUST_BE_WRITEABLE);
+    }
+    if (argp.has("--compressed-cells")) {
+      System.setProperty("tsd.feature.compressed_cells", "true");
+    }
+    if (argp.has("--spooldir")) {
+      setDirectoryInSystemProps("tsd.core.spool_dir", argp.get("--spooldir"),
+                                CREATE_IF_NEEDED, MUST_BE_WRITEABLE);
+    }
 
     final ServerSocketChannelFactory factory;
     if (argp.get("--async-io", "true").equalsIgnoreCase("true")) {
@@ -149,6 +276,12 @@ final class TSDMain {
       client.setFlushInterval(flush_interval);
       final TSDB tsdb = new TSDB(client, table, uidtable);
       registerShutdownHook(tsdb);
+      if (preload_scanners > 0) {
+        tsdb.preloadUidCaches(preload_scanners, preload_timeout * 1000L);
+      }
+      if (argp.has("--suggest-index")) {
+        tsdb.buildSuggestIndexes();
+      }
       final ServerBootstrap server = new ServerBootstrap(factory);
 
       server.setPipelineFactory(new PipelineFactory(tsdb));
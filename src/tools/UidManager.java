@@ -97,7 +97,9 @@ final class UidManager {
         + "  grep [kind] <RE>: Finds matching IDs.\n"
         + "  assign <kind> <name> [names]:"
         + " Assign an ID for the given name(s).\n"
-        + "  rename <kind> <name> <newname>: Renames this UID.\n"
+        + "  rename <kind> <name> <newname>: Renames this UID.  Running"
+        + " TSDs keep\n    using the old name until their caches are dropped"
+        + " (dropcaches).\n"
         + "  fsck: Checks the consistency of UIDs.\n"
         + "  [kind] <name>: Lookup the ID of this name.\n"
         + "  [kind] <ID>: Lookup the name of this ID.\n\n"
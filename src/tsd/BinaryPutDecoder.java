@@ -0,0 +1,190 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+/**
+ * Decodes batches of the binary "put" protocol.
+ * <p>
+ * See {@link BinaryPutEncoder} for a description of the protocol.  Each
+ * frame is decoded into a {@link Batch}.  Series definitions are remembered
+ * until the end of the connection, so data points don't carry any string.
+ * <p>
+ * This decoder is stateful and is thus <strong>NOT</strong> shareable.
+ */
+final class BinaryPutDecoder extends FrameDecoder {
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Series defined on this connection, indexed by ID.  */
+  private Series[] series = new Series[64];
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final ChannelBuffer buffer) throws Exception {
+    if (buffer.readableBytes() < 4) {
+      return null;
+    }
+    final int start = buffer.readerIndex();
+    final int length = buffer.getInt(start);
+    if (length < 4) {
+      throw new CorruptedFrameException("Invalid frame length: " + length);
+    } else if (length > BinaryPutEncoder.MAX_FRAME_LENGTH) {
+      throw new TooLongFrameException("Frame length exceeds "
+        + BinaryPutEncoder.MAX_FRAME_LENGTH + " (" + length + " bytes)");
+    } else if (buffer.readableBytes() < 4 + length) {
+      return null;  // Wait for the rest of the frame.
+    }
+    buffer.skipBytes(4);
+    final int end = start + 4 + length;
+    try {
+      return decodeBatch(buffer, end);
+    } catch (IndexOutOfBoundsException e) {
+      throw new CorruptedFrameException("Truncated record in frame", e);
+    } finally {
+      buffer.readerIndex(end);
+    }
+  }
+
+  /**
+   * Decodes the records of a frame.
+   * @param buffer The buffer, positioned after the length of the frame.
+   * @param end The index at which the frame ends.
+   * @throws IndexOutOfBoundsException if a record is truncated.
+   */
+  private Batch decodeBatch(final ChannelBuffer buffer, final int end)
+    throws CorruptedFrameException {
+    final Batch batch = new Batch(buffer.readInt());
+    while (buffer.readerIndex() < end) {
+      final byte type = buffer.readByte();
+      final int id = buffer.readInt();
+      switch (type) {
+        case BinaryPutEncoder.DEFINE_SERIES:
+          define(id, buffer, end, batch);
+          break;
+        case BinaryPutEncoder.LONG_POINT:
+        case BinaryPutEncoder.FLOAT_POINT:
+          final long timestamp = buffer.readUnsignedInt();
+          final boolean is_integer = type == BinaryPutEncoder.LONG_POINT;
+          final long value = is_integer ? buffer.readLong() : buffer.readInt();
+          final Series s = id >= 0 && id < series.length ? series[id] : null;
+          if (s == null) {
+            batch.rejected++;
+          } else {
+            batch.points.add(new PutDataPointDecoder.Point(s.metric, timestamp,
+                                                           is_integer, value,
+                                                           s.tags));
+          }
+          break;
+        default:
+          throw new CorruptedFrameException("Unknown record type: " + type);
+      }
+    }
+    if (buffer.readerIndex() > end) {
+      throw new CorruptedFrameException("Record spans across frames");
+    }
+    return batch;
+  }
+
+  /**
+   * Decodes the definition of a series and remembers it.
+   * <p>
+   * Like with the "put" command, a tag name can't be given two different
+   * values.  Such a definition is counted as invalid in the batch, and the
+   * series is forgotten so its data points get rejected.
+   */
+  private void define(final int id, final ChannelBuffer buffer,
+                      final int end, final Batch batch)
+    throws CorruptedFrameException {
+    if (id < 0 || id >= BinaryPutEncoder.MAX_SERIES) {
+      throw new CorruptedFrameException("Invalid series ID: " + id);
+    }
+    final String metric = readString(buffer, end);
+    final int ntags = buffer.readUnsignedByte();
+    final HashMap<String, String> tags = new HashMap<String, String>(ntags);
+    boolean duplicate = false;
+    for (int i = 0; i < ntags; i++) {
+      final String name = readString(buffer, end);
+      final String value = readString(buffer, end);
+      final String previous = tags.put(name, value);
+      if (previous != null && !previous.equals(value)) {
+        duplicate = true;
+      }
+    }
+    if (id >= series.length) {
+      series = Arrays.copyOf(series, Math.min(Math.max(series.length * 2,
+                                                       id + 1),
+                                              BinaryPutEncoder.MAX_SERIES));
+    }
+    if (duplicate) {
+      series[id] = null;
+      batch.invalid_series++;
+    } else {
+      series[id] = new Series(metric, tags);
+    }
+  }
+
+  private static String readString(final ChannelBuffer buffer,
+                                   final int end) {
+    final int length = buffer.readUnsignedShort();
+    if (buffer.readerIndex() + length > end) {
+      throw new IndexOutOfBoundsException();
+    }
+    final String s = buffer.toString(buffer.readerIndex(), length, CHARSET);
+    buffer.skipBytes(length);
+    return s;
+  }
+
+  /** The data points decoded from a frame.  */
+  static final class Batch {
+
+    final int id;
+    final ArrayList<PutDataPointDecoder.Point> points =
+      new ArrayList<PutDataPointDecoder.Point>();
+    /** Number of data points that referred to an unknown series.  */
+    int rejected;
+    /** Number of series definitions rejected as invalid.  */
+    int invalid_series;
+
+    Batch(final int id) {
+      this.id = id;
+    }
+
+  }
+
+  /** The metric name and the tags of a series.  */
+  private static final class Series {
+
+    final String metric;
+    final HashMap<String, String> tags;
+
+    Series(final String metric, final HashMap<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+  }
+
+}
@@ -0,0 +1,279 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client-side encoder for the binary "put" protocol.
+ * <p>
+ * A connection using this protocol starts with the single {@link #MAGIC}
+ * byte, which no telnet-style command and no HTTP request starts with.
+ * Then the client sends batches, each in its own frame:
+ * <pre>
+ *   int32   length of what follows
+ *   int32   batch ID, echoed back in the acknowledgement
+ *   records, until the end of the frame
+ * </pre>
+ * Each record starts with a one byte type:
+ * <pre>
+ *   DEFINE_SERIES: int32 series ID, string metric, uint8 number of tags,
+ *                  and for each tag: string name, string value
+ *   LONG_POINT:    int32 series ID, uint32 timestamp, int64 value
+ *   FLOAT_POINT:   int32 series ID, uint32 timestamp, float32 value
+ * </pre>
+ * where strings are encoded as a uint16 length followed by UTF-8 bytes, and
+ * all integers are big endian.  Series IDs are chosen by the client, must
+ * be less than {@link #MAX_SERIES} and should be allocated densely.  A
+ * series definition is valid until the end of the connection.  A
+ * definition that gives different values to the same tag name is
+ * rejected, and the data points of that series are rejected until it's
+ * defined again.  As with the "put" command, data points must have a
+ * strictly positive timestamp.
+ * <p>
+ * Once all the data points of a batch have been stored (or failed), the
+ * server replies with {@link #ACK_LENGTH} bytes:
+ * <pre>
+ *   int32   batch ID
+ *   int32   number of data points stored
+ *   int32   number of data points rejected
+ * </pre>
+ * A frame that can't be decoded causes the server to close the connection.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class BinaryPutEncoder {
+
+  /** First byte sent on a connection using this protocol.  */
+  public static final byte MAGIC = (byte) 0xB5;
+
+  /** Length of the acknowledgement sent back for each batch.  */
+  public static final int ACK_LENGTH = 12;
+
+  /** Maximum length of a frame, excluding its length prefix.  */
+  public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+  /** Series IDs must be strictly less than this.  */
+  public static final int MAX_SERIES = 1024 * 1024;
+
+  static final byte DEFINE_SERIES = 1;
+  static final byte LONG_POINT = 2;
+  static final byte FLOAT_POINT = 3;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** Length of a record for a data point.  */
+  private static final int POINT_LENGTH = 1 + 4 + 4 + 8;
+
+  /** Maps a metric name and its tags to the ID of the series.  */
+  private final HashMap<List<Object>, Integer> series =
+    new HashMap<List<Object>, Integer>();
+
+  /** The batch being built, including room for its length prefix.  */
+  private final Buffer batch = new Buffer();
+  private final DataOutputStream out = new DataOutputStream(batch);
+
+  /** Number of data points in the batch being built.  */
+  private int points;
+  /** ID of the next batch.  */
+  private int batch_id;
+
+  /** Constructor.  */
+  public BinaryPutEncoder() {
+    startBatch();
+  }
+
+  /**
+   * Writes the byte a connection must start with.
+   * @param out The stream connected to the TSD.
+   */
+  public static void writeMagic(final OutputStream out) throws IOException {
+    out.write(MAGIC);
+  }
+
+  /**
+   * Returns the ID of a series, defining it in the current batch if needed.
+   * @param metric The name of the metric.
+   * @param tags The tags of the series.
+   * @return The ID to use with {@link #addPoint(int, long, long)}.
+   * @throws IllegalStateException if there are too many series or if the
+   * batch is full.
+   */
+  public int series(final String metric, final Map<String, String> tags) {
+    final List<Object> key =
+      Arrays.<Object>asList(metric, new HashMap<String, String>(tags));
+    Integer id = series.get(key);
+    if (id != null) {
+      return id;
+    }
+    if (series.size() >= MAX_SERIES) {
+      throw new IllegalStateException("Too many series: " + series.size());
+    } else if (tags.size() > 255) {
+      throw new IllegalArgumentException("Too many tags: " + tags);
+    }
+    final int mark = batch.size();
+    try {
+      id = series.size();
+      out.writeByte(DEFINE_SERIES);
+      out.writeInt(id);
+      writeString(metric);
+      out.writeByte(tags.size());
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        writeString(tag.getKey());
+        writeString(tag.getValue());
+      }
+    } catch (IOException e) {
+      throw new AssertionError("Can't happen: " + e);
+    }
+    if (batch.size() - 4 > MAX_FRAME_LENGTH) {
+      batch.truncate(mark);
+      throw new IllegalStateException("Batch full");
+    }
+    series.put(key, id);
+    return id;
+  }
+
+  /**
+   * Adds a data point with an integer value to the current batch.
+   * @param series The ID returned by {@link #series}.
+   * @param timestamp The timestamp, in seconds.
+   * @param value The value.
+   * @throws IllegalStateException if the batch is full.
+   */
+  public void addPoint(final int series, final long timestamp,
+                       final long value) {
+    addPoint(LONG_POINT, series, timestamp);
+    try {
+      out.writeLong(value);
+    } catch (IOException e) {
+      throw new AssertionError("Can't happen: " + e);
+    }
+  }
+
+  /**
+   * Adds a data point with a floating point value to the current batch.
+   * @param series The ID returned by {@link #series}.
+   * @param timestamp The timestamp, in seconds.
+   * @param value The value.
+   * @throws IllegalStateException if the batch is full.
+   */
+  public void addPoint(final int series, final long timestamp,
+                       final float value) {
+    addPoint(FLOAT_POINT, series, timestamp);
+    try {
+      out.writeFloat(value);
+    } catch (IOException e) {
+      throw new AssertionError("Can't happen: " + e);
+    }
+  }
+
+  private void addPoint(final byte type, final int series,
+                        final long timestamp) {
+    if (timestamp <= 0 || (timestamp & 0xFFFFFFFF00000000L) != 0) {
+      throw new IllegalArgumentException("Invalid timestamp: " + timestamp);
+    } else if (series < 0 || series >= this.series.size()) {
+      throw new IllegalArgumentException("Unknown series ID: " + series);
+    } else if (batch.size() - 4 + POINT_LENGTH > MAX_FRAME_LENGTH) {
+      throw new IllegalStateException("Batch full");
+    }
+    try {
+      out.writeByte(type);
+      out.writeInt(series);
+      out.writeInt((int) timestamp);
+    } catch (IOException e) {
+      throw new AssertionError("Can't happen: " + e);
+    }
+    points++;
+  }
+
+  /** Returns the number of data points in the current batch.  */
+  public int points() {
+    return points;
+  }
+
+  /** Returns the number of bytes in the current batch.  */
+  public int size() {
+    return batch.size();
+  }
+
+  /**
+   * Writes the current batch out and starts a new one.
+   * @param out The stream connected to the TSD.
+   * @return The ID of the batch written.
+   */
+  public int writeBatch(final OutputStream out) throws IOException {
+    final int id = batch_id++;
+    batch.setInt(0, batch.size() - 4);
+    batch.writeTo(out);
+    startBatch();
+    return id;
+  }
+
+  /**
+   * Forgets all the series defined so far.
+   * Must be called when starting over on a new connection.
+   */
+  public void reset() {
+    series.clear();
+    startBatch();
+  }
+
+  private void startBatch() {
+    batch.reset();
+    points = 0;
+    try {
+      out.writeInt(0);  // Length, set in writeBatch.
+      out.writeInt(batch_id);
+    } catch (IOException e) {
+      throw new AssertionError("Can't happen: " + e);
+    }
+  }
+
+  private void writeString(final String s) throws IOException {
+    final byte[] b = s.getBytes(CHARSET);
+    if (b.length > 0xFFFF) {
+      throw new IllegalArgumentException("String too long: " + s);
+    }
+    out.writeShort(b.length);
+    out.write(b);
+  }
+
+  /** A {@link ByteArrayOutputStream} that can be patched in place.  */
+  private static final class Buffer extends ByteArrayOutputStream {
+
+    Buffer() {
+      super(4096);
+    }
+
+    void setInt(final int offset, final int v) {
+      buf[offset] = (byte) (v >>> 24);
+      buf[offset + 1] = (byte) (v >>> 16);
+      buf[offset + 2] = (byte) (v >>> 8);
+      buf[offset + 3] = (byte) v;
+    }
+
+    void truncate(final int size) {
+      count = size;
+    }
+
+  }
+
+}
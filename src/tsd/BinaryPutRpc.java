@@ -0,0 +1,119 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Imports the batches of the binary "put" protocol.
+ * @see BinaryPutEncoder
+ */
+final class BinaryPutRpc {
+
+  private static final AtomicLong batches = new AtomicLong();
+  private static final AtomicLong points = new AtomicLong();
+  private static final AtomicLong unknown_series = new AtomicLong();
+
+  /** Used to import each data point of a batch. */
+  private final PutDataPointRpc put;
+
+  /**
+   * Constructor.
+   * @param put The "put" command used to import each data point.
+   */
+  BinaryPutRpc(final PutDataPointRpc put) {
+    this.put = put;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.received", batches, "type=binaryput");
+    collector.record("rpc.binaryput.points", points);
+    collector.record("rpc.errors", unknown_series, "type=unknown_series");
+  }
+
+  /**
+   * Imports a batch and acknowledges it once all its data points have been
+   * stored (or failed).
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the batch was received.
+   * @param batch The decoded batch.
+   * @return A deferred result.
+   */
+  Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                           final BinaryPutDecoder.Batch batch) {
+    batches.incrementAndGet();
+    points.addAndGet(batch.points.size() + batch.rejected);
+    unknown_series.addAndGet(batch.rejected);
+    if (batch.invalid_series > 0) {
+      PutDataPointRpc.countInvalidSeries(batch.invalid_series);
+    }
+    final ArrayList<Deferred<Object>> results =
+      new ArrayList<Deferred<Object>>(batch.points.size());
+    for (final PutDataPointDecoder.Point point : batch.points) {
+      results.add(put.tryImport(tsdb, chan, point));
+    }
+    return Deferred.group(results).addCallback(new Ack(chan, batch));
+  }
+
+  /** Writes the acknowledgement of a batch back to the client.  */
+  private static final class Ack
+    implements Callback<Object, ArrayList<Object>> {
+
+    private final Channel chan;
+    private final BinaryPutDecoder.Batch batch;
+
+    Ack(final Channel chan, final BinaryPutDecoder.Batch batch) {
+      this.chan = chan;
+      this.batch = batch;
+    }
+
+    public Object call(final ArrayList<Object> results) {
+      int failed = batch.rejected;
+      for (final Object result : results) {
+        if (result != null) {
+          failed++;
+        }
+      }
+      if (chan.isConnected()) {
+        final ChannelBuffer ack =
+          ChannelBuffers.buffer(BinaryPutEncoder.ACK_LENGTH);
+        ack.writeInt(batch.id);
+        ack.writeInt(batch.points.size() + batch.rejected - failed);
+        ack.writeInt(failed);
+        chan.write(ack);
+      }
+      return null;
+    }
+
+    public String toString() {
+      return "ack binary put batch #" + batch.id;
+    }
+
+  }
+
+}
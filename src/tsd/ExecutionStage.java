@@ -0,0 +1,261 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A pool of threads on which RPCs run, instead of on Netty's I/O threads.
+ * <p>
+ * An I/O thread serves many connections, so anything that blocks it, like
+ * a synchronous HBase lookup, stalls all of them.  Handing the work over to
+ * a stage keeps the I/O threads free to read and write.
+ * <p>
+ * An ordered stage runs the tasks of each channel one at a time, in the
+ * order they were submitted, which is what protocols keeping state on the
+ * channel need (e.g. "putbatch").  Tasks of different channels still run
+ * concurrently.  An unordered stage runs tasks as threads become available.
+ * <p>
+ * A stage has a maximum number of tasks waiting to run, past which new ones
+ * are rejected.  A stage without threads runs tasks in the calling thread.
+ * <p>
+ * A task that doesn't wait for its HBase calls can run their callbacks on
+ * the stage too, with {@link #continuations}, instead of on the HBase
+ * client's I/O threads.
+ */
+final class ExecutionStage {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(ExecutionStage.class);
+
+  /**
+   * Maximum number of tasks of a channel run in a row by an ordered stage,
+   * before giving the other channels a chance.
+   */
+  private static final int MAX_TASKS_IN_A_ROW = 64;
+
+  /** Name of this stage, used in its stats and its threads' names.  */
+  private final String name;
+
+  /** The threads, or {@code null} if tasks run in the calling thread.  */
+  private final ThreadPoolExecutor executor;
+
+  /** Maximum number of tasks waiting to run.  */
+  private final int max_queued;
+
+  /** The tasks of each channel, if this stage is ordered.  */
+  private final ChannelLocal<SerialTasks> channels;
+
+  /** Runs the continuations of the tasks of this stage.  */
+  private final Executor continuations = new Executor() {
+    public void execute(final Runnable task) {
+      if (executor == null) {
+        run(task);
+      } else {
+        executor.execute(new Runnable() {
+          public void run() {
+            ExecutionStage.this.run(task);
+          }
+          public String toString() {
+            return task.toString();
+          }
+        });
+      }
+    }
+  };
+
+  /** Number of tasks waiting to run.  */
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong executed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param name The name of this stage.
+   * @param threads The number of threads.  If 0, tasks run in the calling
+   * thread.
+   * @param max_queued The maximum number of tasks waiting to run.
+   * @param ordered Whether to run the tasks of each channel in order.
+   * @throws IllegalArgumentException if a number is negative, or if there
+   * are threads but no task can be queued, since every task waits in the
+   * queue before it runs.
+   */
+  ExecutionStage(final String name, final int threads, final int max_queued,
+                 final boolean ordered) {
+    if (threads < 0 || max_queued < 0) {
+      throw new IllegalArgumentException("Negative number of threads ("
+        + threads + ") or of queued tasks (" + max_queued + ") for the "
+        + name + " stage");
+    } else if (threads > 0 && max_queued == 0) {
+      throw new IllegalArgumentException("The " + name + " stage would"
+        + " reject every task: it has " + threads + " threads but can't"
+        + " queue any task");
+    }
+    this.name = name;
+    this.max_queued = max_queued;
+    if (threads == 0) {
+      executor = null;
+      channels = null;
+      return;
+    }
+    executor = new ThreadPoolExecutor(threads, threads,
+                                      60, TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      new ThreadFactory() {
+      private final AtomicInteger n = new AtomicInteger();
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "RPC " + name + " #"
+                                    + n.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    channels = !ordered ? null : new ChannelLocal<SerialTasks>(true) {
+      @Override
+      protected SerialTasks initialValue(final Channel chan) {
+        return new SerialTasks();
+      }
+    };
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this stage.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rpc.stage.queued", queued.get(), "stage=" + name);
+    collector.record("rpc.stage.active",
+                     executor == null ? 0 : executor.getActiveCount(),
+                     "stage=" + name);
+    collector.record("rpc.stage.executed", executed, "stage=" + name);
+    collector.record("rpc.stage.rejected", rejected, "stage=" + name);
+  }
+
+  /**
+   * Runs a task on this stage.
+   * @param chan The channel the task works for.
+   * @param task The task to run.
+   * @return {@code false} if the task was rejected because too many are
+   * already waiting to run, in which case the caller must tell the client.
+   */
+  boolean execute(final Channel chan, final Runnable task) {
+    if (executor == null) {
+      run(task);
+      return true;
+    }
+    if (queued.incrementAndGet() > max_queued) {
+      queued.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    if (channels != null) {
+      channels.get(chan).add(task);
+    } else {
+      executor.execute(new Runnable() {
+        public void run() {
+          queued.decrementAndGet();
+          ExecutionStage.this.run(task);
+        }
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Returns an executor for the continuations of tasks of this stage, e.g.
+   * the callbacks of the HBase calls they made.
+   * Continuations don't wait in the queue of this stage and are never
+   * rejected, as they carry on work already accepted: the caller must
+   * bound how many tasks have continuations in flight.  They don't keep
+   * the order of the tasks of a channel either.
+   */
+  Executor continuations() {
+    return continuations;
+  }
+
+  /** Stops the threads once the tasks already submitted have run.  */
+  void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  private void run(final Runnable task) {
+    executed.incrementAndGet();
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      LOG.error("Unexpected exception in the " + name + " stage while"
+                + " running " + task, e);
+    }
+  }
+
+  public String toString() {
+    return "ExecutionStage(" + name + ", queued=" + queued.get()
+      + ", max_queued=" + max_queued + ')';
+  }
+
+  /** The tasks of a channel, run one at a time.  */
+  private final class SerialTasks implements Runnable {
+
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+      new ConcurrentLinkedQueue<Runnable>();
+
+    /** Whether we're waiting for, or running on, a thread of the pool. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    void add(final Runnable task) {
+      tasks.add(task);
+      schedule();
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        executor.execute(this);
+      }
+    }
+
+    public void run() {
+      Runnable task;
+      for (int i = 0; i < MAX_TASKS_IN_A_ROW
+           && (task = tasks.poll()) != null; i++) {
+        queued.decrementAndGet();
+        ExecutionStage.this.run(task);
+      }
+      scheduled.set(false);
+      // A task may have been added after our last poll but before we
+      // cleared the flag, in which case nobody scheduled us again.
+      if (!tasks.isEmpty()) {
+        schedule();
+      }
+    }
+
+  }
+
+}
@@ -30,14 +30,21 @@ import java.util.NoSuchElementException;
 import java.util.TimeZone;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
 import net.opentsdb.core.Aggregator;
 import net.opentsdb.core.Aggregators;
 import net.opentsdb.core.Const;
@@ -47,7 +54,7 @@ import net.opentsdb.core.Query;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 import net.opentsdb.graph.Plot;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.RollingHistogram;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
 
@@ -67,12 +74,12 @@ final class GraphHandler implements HttpRpc {
     = new AtomicInteger();
 
   /** Keep track of the latency of graphing requests. */
-  private static final Histogram graphlatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final RollingHistogram graphlatency =
+    new RollingHistogram(16000, (short) 2, 100);
 
   /** Keep track of the latency (in ms) introduced by running Gnuplot. */
-  private static final Histogram gnuplotlatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final RollingHistogram gnuplotlatency =
+    new RollingHistogram(16000, (short) 2, 100);
 
   /** Executor to run Gnuplot in separate bounded thread pool. */
   private final ThreadPoolExecutor gnuplot;
@@ -80,10 +87,24 @@ final class GraphHandler implements HttpRpc {
   /** Directory where to cache query results. */
   private final String cachedir;
 
+  /** The stage on which we run, and process the results of our scans.  */
+  private final ExecutionStage stage;
+
+  /**
+   * Permits to scan HBase.  Queries don't hold a thread of the stage while
+   * HBase is scanned, so this is what bounds how many run at a time.
+   */
+  private final Semaphore in_flight;
+
   /**
    * Constructor.
+   * @param stage The stage on which queries are served.
+   * @param max_in_flight Maximum number of queries scanning HBase at the
+   * same time, past which new ones are rejected.
    */
-  public GraphHandler() {
+  public GraphHandler(final ExecutionStage stage, final int max_in_flight) {
+    this.stage = stage;
+    in_flight = new Semaphore(max_in_flight);
     // Gnuplot is mostly CPU bound and does only a little bit of IO at the
     // beginning to read the input data and at the end to write its output.
     // We want to avoid running too many Gnuplot instances concurrently as
@@ -172,41 +193,156 @@ final class GraphHandler implements HttpRpc {
     setPlotDimensions(query, plot);
     setPlotParams(query, plot);
     final int nqueries = tsdbqueries.length;
-    @SuppressWarnings("unchecked")
-    final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
-    int npoints = 0;
+    final DataPoints[][] results = new DataPoints[nqueries][];
+    final List<String> plot_options = options;
+
+    /** Keeps the results of a query, or logs why it failed.  */
+    final class QueryCB implements Callback<Object, DataPoints[]> {
+      private final int index;
+      private final Query tsdbquery;
+
+      QueryCB(final int index, final Query tsdbquery) {
+        this.index = index;
+        this.tsdbquery = tsdbquery;
+      }
+
+      public Object call(final DataPoints[] series) {
+        results[index] = series;
+        return null;
+      }
+
+      public String toString() {
+        return "store results of " + tsdbquery;
+      }
+
+      final class ErrorCB implements Callback<Exception, Exception> {
+        public Exception call(final Exception e) {
+          logInfo(query, "Query failed (stack trace coming): " + tsdbquery);
+          return e;
+        }
+        public String toString() {
+          return "log failure of " + tsdbquery;
+        }
+      }
+    }
+
+    /** Plots the results once all the queries are done.  */
+    final class PlotCB implements Callback<Object, ArrayList<Object>> {
+      public Object call(final ArrayList<Object> unused) {
+        @SuppressWarnings("unchecked")
+        final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
+        int npoints = 0;
+        for (int i = 0; i < nqueries; i++) {
+          for (final DataPoints datapoints : results[i]) {
+            plot.add(datapoints, plot_options.get(i));
+            aggregated_tags[i] = new HashSet<String>();
+            aggregated_tags[i].addAll(datapoints.getAggregatedTags());
+            npoints += datapoints.aggregatedSize();
+          }
+          results[i] = null;  // free()
+        }
+
+        if (query.hasQueryStringParam("ascii")) {
+          respondAsciiQuery(query, max_age, basepath, plot);
+          return null;
+        }
+
+        try {
+          gnuplot.execute(new RunGnuplot(query, max_age, plot, basepath,
+                                         aggregated_tags, npoints));
+        } catch (RejectedExecutionException e) {
+          query.internalError(new Exception("Too many requests pending,"
+                                            + " please try again later", e));
+        }
+        return null;
+      }
+
+      public String toString() {
+        return "plot results of " + query;
+      }
+    }
+
+    /** Reports a query or plotting failure to the client.  */
+    final class ErrorCB implements Callback<Object, Exception> {
+      public Object call(Exception e) {
+        if (e instanceof DeferredGroupException) {
+          e = (Exception) ((DeferredGroupException) e).getCause();
+        }
+        if (e instanceof BadRequestException
+            || e instanceof IllegalArgumentException) {
+          query.badRequest(e.getMessage());
+        } else {
+          query.internalError(e);
+        }
+        return null;
+      }
+
+      public String toString() {
+        return "report failure of " + query;
+      }
+    }
+
+    /** Lets another request scan HBase once our queries are done.  */
+    final class ReleaseCB
+      implements Callback<ArrayList<Object>, ArrayList<Object>> {
+      public ArrayList<Object> call(final ArrayList<Object> arg) {
+        in_flight.release();
+        return arg;
+      }
+      public String toString() {
+        return "release the scan permit of " + query;
+      }
+
+      /** Same, when a query failed.  */
+      final class ErrorCB implements Callback<Exception, Exception> {
+        public Exception call(final Exception e) {
+          in_flight.release();
+          return e;
+        }
+        public String toString() {
+          return "release the scan permit of failed " + query;
+        }
+      }
+    }
+
+    // We don't wait for a permit, as the threads of the stage that would
+    // wait are also those that process the results of the queries holding
+    // the permits.
+    if (!in_flight.tryAcquire()) {
+      logWarn(query, "Too many queries in flight, rejecting "
+              + query.request().getUri());
+      query.sendReply(HttpResponseStatus.SERVICE_UNAVAILABLE,
+                      new StringBuilder("Too many queries in progress,"
+                                        + " try again later.\n"));
+      return;
+    }
+    // Start all the queries in parallel.  None of them blocks this thread
+    // while HBase is scanned.  The rows they get are loaded and grouped back
+    // on our stage, rather than on the I/O threads of the HBase client, and
+    // so are the results plotted from the callback of the last one to
+    // complete.  RpcHandler still runs us on the stage rather than on one
+    // of Netty's I/O threads, because parsing the query above can block on
+    // UID lookups.
+    final ArrayList<Deferred<Object>> queries =
+      new ArrayList<Deferred<Object>>(nqueries);
     for (int i = 0; i < nqueries; i++) {
+      final QueryCB cb = new QueryCB(i, tsdbqueries[i]);
       try {  // execute the TSDB query!
-        // XXX This is slow and will block Netty.  TODO(tsuna): Don't block.
-        // TODO(tsuna): Optimization: run each query in parallel.
-        final DataPoints[] series = tsdbqueries[i].run();
-        for (final DataPoints datapoints : series) {
-          plot.add(datapoints, options.get(i));
-          aggregated_tags[i] = new HashSet<String>();
-          aggregated_tags[i].addAll(datapoints.getAggregatedTags());
-          npoints += datapoints.aggregatedSize();
-        }
+        queries.add(tsdbqueries[i].runAsync(stage.continuations())
+                    .addCallbacks(cb, cb.new ErrorCB()));
       } catch (RuntimeException e) {
-        logInfo(query, "Query failed (stack trace coming): "
-                + tsdbqueries[i]);
+        cb.new ErrorCB().call(e);
+        // Keep the permit until the queries already started are done.
+        final ReleaseCB release = new ReleaseCB();
+        Deferred.group(queries).addCallbacks(release, release.new ErrorCB());
         throw e;
       }
       tsdbqueries[i] = null;  // free()
     }
     tsdbqueries = null;  // free()
-
-    if (query.hasQueryStringParam("ascii")) {
-      respondAsciiQuery(query, max_age, basepath, plot);
-      return;
-    }
-
-    try {
-      gnuplot.execute(new RunGnuplot(query, max_age, plot, basepath,
-                                     aggregated_tags, npoints));
-    } catch (RejectedExecutionException e) {
-      query.internalError(new Exception("Too many requests pending,"
-                                        + " please try again later", e));
-    }
+    final ReleaseCB release = new ReleaseCB();
+    Deferred.group(queries).addCallbacks(release, release.new ErrorCB())
+      .addCallback(new PlotCB()).addErrback(new ErrorCB());
   }
 
   /**
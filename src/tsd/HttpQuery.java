@@ -44,7 +44,7 @@ import org.jboss.netty.util.CharsetUtil;
 
 import net.opentsdb.core.Const;
 import net.opentsdb.graph.Plot;
-import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.RollingHistogram;
 import net.opentsdb.stats.StatsCollector;
 
 /**
@@ -62,8 +62,8 @@ final class HttpQuery {
   /**
    * Keep track of the latency of HTTP requests.
    */
-  private static final Histogram httplatency =
-    new Histogram(16000, (short) 2, 100);
+  private static final RollingHistogram httplatency =
+    new RollingHistogram(16000, (short) 2, 100);
 
   /** When the query was started (useful for timing). */
   private final long start_time = System.nanoTime();
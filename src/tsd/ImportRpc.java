@@ -0,0 +1,324 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Implements the "/put" endpoint, for bulk imports over HTTP.
+ * <p>
+ * The body of the POST request contains one data point per line, in the
+ * same format as the "put" telnet-style command (the leading "put" is
+ * optional):
+ * <pre>
+ *   [put] metric timestamp value tagk1=tagv1 [tagk2=tagv2 ...]
+ * </pre>
+ * The body can be compressed with gzip or deflate, as long as the request
+ * has the corresponding {@code Content-Encoding}.
+ * <p>
+ * Large requests are received in chunks, which are parsed as they arrive
+ * without ever buffering the whole body.  While the request is in progress,
+ * the import is attached to its {@link Channel}.  Once the last chunk has
+ * been received and all the data points have been stored (or failed), the
+ * client gets a JSON object with the number of data points accepted and
+ * rejected, along with the first few errors:
+ * <pre>
+ *   {"accepted":1234,"rejected":1,"errors":["line 42: invalid value: ..."]}
+ * </pre>
+ */
+final class ImportRpc implements HttpRpc {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Same limit as for the telnet-style protocol.  */
+  private static final int MAX_LINE_LENGTH = 1024;
+
+  /** Maximum number of errors described in a response.  */
+  private static final int MAX_ERRORS_REPORTED = 10;
+
+  private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong accepted_points = new AtomicLong();
+  private static final AtomicLong rejected_points = new AtomicLong();
+
+  /** Used to import each data point.  */
+  private final PutDataPointRpc put;
+  /** Used to parse lines without creating a {@link String} for each.  */
+  private final PutDataPointDecoder decoder = new PutDataPointDecoder();
+
+  /**
+   * Constructor.
+   * @param put The "put" command used to import each data point.
+   */
+  ImportRpc(final PutDataPointRpc put) {
+    this.put = put;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.received", requests, "type=import");
+    collector.record("rpc.import.points", accepted_points, "result=accepted");
+    collector.record("rpc.import.points", rejected_points, "result=rejected");
+  }
+
+  public void execute(final TSDB tsdb, final HttpQuery query) {
+    final HttpRequest request = query.request();
+    if (request.getMethod() != HttpMethod.POST) {
+      throw new BadRequestException("The data points must be POSTed.");
+    }
+    requests.incrementAndGet();
+    final Import imp = new Import(tsdb, query);
+    if (request.isChunked()) {
+      query.channel().setAttachment(imp);
+    } else {
+      imp.feed(request.getContent());
+      imp.finish();
+    }
+  }
+
+  /**
+   * Returns the import currently in progress on this channel, if any.
+   * @param chan The channel on which a chunk was received.
+   * @return The import in progress, or {@code null}.
+   */
+  static Import inProgress(final Channel chan) {
+    final Object attachment = chan.getAttachment();
+    return attachment instanceof Import ? (Import) attachment : null;
+  }
+
+  /** A bulk import being received on a channel.  */
+  final class Import {
+
+    private final TSDB tsdb;
+    private final HttpQuery query;
+
+    /**
+     * Part of a line that spans across chunks.  Its length is 0 when the
+     * last chunk ended on a line boundary, and -1 while we're skipping
+     * the rest of a line that was too long.
+     */
+    private final byte[] partial = new byte[MAX_LINE_LENGTH];
+    private int partial_length;
+
+    /** Number of lines seen so far, to help locate errors.  */
+    private int lines;
+
+    /**
+     * Number of data points not yet stored, plus one until the last chunk
+     * has been received.  The response is sent when this drops to 0.
+     */
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    /** The first few errors.  Must be synchronized on.  */
+    private final ArrayList<String> errors = new ArrayList<String>();
+
+    Import(final TSDB tsdb, final HttpQuery query) {
+      this.tsdb = tsdb;
+      this.query = query;
+    }
+
+    /**
+     * Handles a chunk of the body of the request.
+     * @param chunk The chunk received.
+     */
+    void add(final HttpChunk chunk) {
+      feed(chunk.getContent());
+      if (chunk.isLast()) {
+        query.channel().setAttachment(null);
+        finish();
+      }
+    }
+
+    /**
+     * Imports all the complete lines in the buffer.
+     * The last line, if incomplete, is kept until the next chunk arrives.
+     * @param content Part of the body of the request.
+     */
+    void feed(final ChannelBuffer content) {
+      final byte[] buf;
+      int pos;
+      final int end;
+      if (content.hasArray()) {
+        buf = content.array();
+        pos = content.arrayOffset() + content.readerIndex();
+        end = pos + content.readableBytes();
+      } else {
+        buf = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), buf);
+        pos = 0;
+        end = buf.length;
+      }
+      while (pos < end) {
+        int eol = pos;
+        while (eol < end && buf[eol] != '\n') {
+          eol++;
+        }
+        if (eol == end) {  // Incomplete line, wait for the next chunk.
+          append(buf, pos, end);
+          break;
+        }
+        if (partial_length == 0) {
+          importLine(buf, pos, eol);
+        } else if (partial_length > 0 && append(buf, pos, eol)) {
+          importLine(partial, 0, partial_length);
+        }
+        partial_length = 0;
+        pos = eol + 1;
+      }
+    }
+
+    /**
+     * Appends part of a line to what we got from the previous chunks.
+     * @return {@code false} if the line is too long.
+     */
+    private boolean append(final byte[] buf, final int start, final int end) {
+      if (partial_length < 0) {
+        return false;  // Still skipping a line that's too long.
+      }
+      final int length = end - start;
+      if (partial_length + length > MAX_LINE_LENGTH) {
+        partial_length = -1;
+        lines++;
+        reject("line " + lines + ": line too long (more than "
+               + MAX_LINE_LENGTH + " bytes)");
+        return false;
+      }
+      System.arraycopy(buf, start, partial, partial_length, length);
+      partial_length += length;
+      return true;
+    }
+
+    /** Imports the data point on the given line.  */
+    private void importLine(final byte[] buf, int start, int end) {
+      lines++;
+      if (end > start && buf[end - 1] == '\r') {
+        end--;
+      }
+      if (end == start) {
+        return;  // Ignore empty lines.
+      } else if (end - start > MAX_LINE_LENGTH) {
+        reject("line " + lines + ": line too long (more than "
+               + MAX_LINE_LENGTH + " bytes)");
+        return;
+      }
+      if (end - start > 4 && buf[start] == 'p' && buf[start + 1] == 'u'
+          && buf[start + 2] == 't' && buf[start + 3] == ' ') {
+        start += 4;
+      }
+      Object point = decoder.parse(buf, start, end);
+      if (point == null) {  // Let the regular path handle / report errors.
+        point = Tags.splitString("put " + new String(buf, start, end - start,
+                                                     CHARSET), ' ');
+      }
+      final Deferred<Object> outcome;
+      try {
+        outcome = put.tryImport(tsdb, query.channel(), point);
+      } catch (RuntimeException e) {
+        reject("line " + lines + ": " + e);
+        return;
+      }
+      pending.incrementAndGet();
+      outcome.addCallback(new Outcome(lines));
+    }
+
+    /** Accounts for a data point that couldn't be imported.  */
+    private void reject(final String error) {
+      rejected.incrementAndGet();
+      rejected_points.incrementAndGet();
+      synchronized (errors) {
+        if (errors.size() < MAX_ERRORS_REPORTED) {
+          errors.add(error);
+        }
+      }
+    }
+
+    /** Called once the whole body has been received.  */
+    void finish() {
+      if (partial_length > 0) {  // The body didn't end with a newline.
+        importLine(partial, 0, partial_length);
+        partial_length = 0;
+      }
+      done();
+    }
+
+    /** Sends the response if all the data points have been handled.  */
+    private void done() {
+      if (pending.decrementAndGet() != 0) {
+        return;
+      }
+      final StringBuilder buf = new StringBuilder(64);
+      buf.append("{\"accepted\":").append(accepted.get())
+        .append(",\"rejected\":").append(rejected.get())
+        .append(",\"errors\":[");
+      synchronized (errors) {
+        for (final String error : errors) {
+          buf.append('"');
+          HttpQuery.escapeJson(error, buf);
+          buf.append("\",");
+        }
+        if (!errors.isEmpty()) {
+          buf.setLength(buf.length() - 1);  // Remove the last ','.
+        }
+      }
+      buf.append("]}");
+      query.sendReply(buf);
+    }
+
+    /** Accounts for the outcome of one data point.  */
+    private final class Outcome implements Callback<Object, Object> {
+
+      private final int line;
+
+      Outcome(final int line) {
+        this.line = line;
+      }
+
+      public Object call(final Object error) {
+        if (error == null) {
+          accepted.incrementAndGet();
+          accepted_points.incrementAndGet();
+        } else {
+          reject("line " + line + ": " + error);
+        }
+        done();
+        return null;
+      }
+
+      public String toString() {
+        return "outcome of line " + line + " of " + query;
+      }
+
+    }
+
+  }
+
+}
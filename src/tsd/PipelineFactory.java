@@ -20,6 +20,7 @@ import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 
@@ -39,6 +40,7 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   // PipelineFactory is needed.
   private final ConnectionManager connmgr = new ConnectionManager();
   private final DetectHttpOrRpc HTTP_OR_RPC = new DetectHttpOrRpc();
+  private final PutDataPointDecoder PUT_DECODER = new PutDataPointDecoder();
 
   /** Stateless handler for RPCs. */
   private final RpcHandler rpchandler;
@@ -63,7 +65,8 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   /**
    * Dynamically changes the {@link ChannelPipeline} based on the request.
    * If a request uses HTTP, then this changes the pipeline to process HTTP.
-   * Otherwise, the pipeline is changed to processes an RPC.
+   * If it uses the binary "put" protocol, the pipeline is changed to decode
+   * its batches.  Otherwise, the pipeline is changed to processes an RPC.
    */
   final class DetectHttpOrRpc extends FrameDecoder {
 
@@ -79,13 +82,19 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       final ChannelPipeline pipeline = ctx.getPipeline();
       // None of the commands in the RPC protocol start with a capital ASCII
       // letter for the time being, and all HTTP commands do (GET, POST, etc.)
-      // so use this as a cheap way to differentiate the two.
-      if ('A' <= firstbyte && firstbyte <= 'Z') {
+      // so use this as a cheap way to differentiate the two.  The binary
+      // protocol starts with a magic byte that isn't printable ASCII.
+      if (firstbyte == (BinaryPutEncoder.MAGIC & 0xFF)) {
+        buffer.skipBytes(1);
+        pipeline.addLast("decoder", new BinaryPutDecoder());
+      } else if ('A' <= firstbyte && firstbyte <= 'Z') {
         pipeline.addLast("decoder", new HttpRequestDecoder());
+        pipeline.addLast("inflater", new HttpContentDecompressor());
         pipeline.addLast("encoder", new HttpResponseEncoder());
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
+        pipeline.addLast("putdecoder", PUT_DECODER);
         pipeline.addLast("decoder", DECODER);
       }
       pipeline.remove(this);
@@ -0,0 +1,213 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.jboss.netty.channel.Channel;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Implements the "putbatch" telnet-style command.
+ * <p>
+ * {@code putbatch N} must be followed by exactly {@code N} "put" lines.
+ * These data points are submitted as one unit, and once they've all been
+ * stored (or failed), a single line is written back to the client:
+ * <pre>
+ *   putbatch: ok N
+ *   putbatch: error F/N failed, first error: ...
+ * </pre>
+ * Unlike with "put", no individual error is reported.  While a batch is in
+ * progress, it's attached to its {@link Channel}.
+ */
+final class PutBatchRpc implements TelnetRpc {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PutBatchRpc.class);
+
+  /** Maximum number of data points we accept in a single batch. */
+  private static final int MAX_BATCH_SIZE = 100000;
+
+  private static final AtomicLong batches = new AtomicLong();
+  private static final AtomicLong batched_points = new AtomicLong();
+  private static final AtomicLong failed_batches = new AtomicLong();
+
+  /** Used to import each data point of a batch. */
+  private final PutDataPointRpc put;
+
+  /**
+   * Constructor.
+   * @param put The "put" command used to import each data point.
+   */
+  PutBatchRpc(final PutDataPointRpc put) {
+    this.put = put;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.received", batches, "type=putbatch");
+    collector.record("rpc.putbatch.points", batched_points);
+    collector.record("rpc.errors", failed_batches, "type=failed_batches");
+  }
+
+  public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                  final String[] cmd) {
+    String errmsg = null;
+    int size = 0;
+    if (cmd.length != 2) {
+      errmsg = "putbatch: usage: putbatch <number of points>\n";
+    } else {
+      try {
+        size = Integer.parseInt(cmd[1]);
+        if (size < 1 || size > MAX_BATCH_SIZE) {
+          errmsg = "putbatch: invalid batch size: " + size
+            + " (must be between 1 and " + MAX_BATCH_SIZE + ")\n";
+        }
+      } catch (NumberFormatException e) {
+        errmsg = "putbatch: invalid batch size: " + cmd[1] + '\n';
+      }
+    }
+    if (errmsg != null) {
+      if (chan.isConnected()) {
+        chan.write(errmsg);
+      }
+    } else {
+      batches.incrementAndGet();
+      chan.setAttachment(new Batch(tsdb, size));
+    }
+    return Deferred.fromResult(null);
+  }
+
+  /**
+   * Returns the batch currently in progress on this channel, if any.
+   * @param chan The channel on which a message was received.
+   * @return The batch in progress, or {@code null}.
+   */
+  static Batch inProgress(final Channel chan) {
+    final Object attachment = chan.getAttachment();
+    return attachment instanceof Batch ? (Batch) attachment : null;
+  }
+
+  /** A batch of data points being received on a channel.  */
+  final class Batch {
+
+    private final TSDB tsdb;
+    /** Total number of data points in this batch.  */
+    private final int size;
+    /** One per data point received so far, see PutDataPointRpc#tryImport. */
+    private final ArrayList<Deferred<Object>> points;
+
+    Batch(final TSDB tsdb, final int size) {
+      this.tsdb = tsdb;
+      this.size = size;
+      points = new ArrayList<Deferred<Object>>(size);
+    }
+
+    /**
+     * Adds a data point to this batch.
+     * <p>
+     * Once the last data point has been added, the batch is detached from
+     * the channel and the client will get a reply once all the data points
+     * have been stored.
+     * @param chan The channel on which the data point was received.
+     * @param msg A {@link PutDataPointDecoder.Point} or a split telnet-style
+     * command, which must be a "put".
+     * @return A deferred result.
+     */
+    Deferred<Object> add(final Channel chan, final Object msg) {
+      if (msg instanceof String[]
+          && !"put".equals(((String[]) msg)[0])) {
+        points.add(Deferred.fromResult((Object) ("not a put: "
+          + Arrays.toString((String[]) msg))));
+      } else {
+        Deferred<Object> point;
+        try {
+          point = put.tryImport(tsdb, chan, msg);
+        } catch (RuntimeException e) {  // Not an error we know about.
+          LOG.error("Unexpected exception while importing a data point"
+                    + " in a batch from " + chan, e);
+          point = Deferred.fromError(e);
+        }
+        // Every data point must be accounted for, or we'd never reply.
+        points.add(point.addErrback(DESCRIBE_ERROR));
+      }
+      batched_points.incrementAndGet();
+      if (points.size() < size) {
+        return Deferred.fromResult(null);
+      }
+      chan.setAttachment(null);
+      return Deferred.group(points).addCallback(new Reply(chan));
+    }
+
+  }
+
+  /** Describes an unexpected failure to import a data point.  */
+  private static final Callback<Object, Exception> DESCRIBE_ERROR =
+    new Callback<Object, Exception>() {
+      public Object call(final Exception e) {
+        return "unexpected error: " + e;
+      }
+      public String toString() {
+        return "describe unexpected error";
+      }
+    };
+
+  /** Writes the outcome of a batch back to the client.  */
+  private static final class Reply
+    implements Callback<Object, ArrayList<Object>> {
+
+    private final Channel chan;
+
+    Reply(final Channel chan) {
+      this.chan = chan;
+    }
+
+    public Object call(final ArrayList<Object> results) {
+      int failed = 0;
+      Object first_error = null;
+      for (final Object result : results) {
+        if (result != null && failed++ == 0) {
+          first_error = result;
+        }
+      }
+      if (failed > 0) {
+        failed_batches.incrementAndGet();
+      }
+      if (chan.isConnected()) {
+        chan.write(failed == 0
+                   ? "putbatch: ok " + results.size() + '\n'
+                   : "putbatch: error " + failed + '/' + results.size()
+                     + " failed, first error: " + first_error + '\n');
+      }
+      return null;
+    }
+
+    public String toString() {
+      return "reply to putbatch";
+    }
+
+  }
+
+}
@@ -0,0 +1,390 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import net.opentsdb.core.Tags;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Decodes "put" lines straight out of the {@link ChannelBuffer}.
+ * <p>
+ * The timestamp and the value are parsed as primitives from the bytes of
+ * the frame.  The metric name and the tags are looked up in a cache keyed
+ * by their raw bytes, so a series we've already seen doesn't cause any
+ * {@link String} to be created.  Only a floating point value requires a
+ * small temporary {@link String} to be parsed.
+ * <p>
+ * Any frame that isn't a well formed "put" line is passed through
+ * unchanged, to be split into words by the {@link WordSplitter} and handled
+ * by the regular telnet-style RPC path (which also takes care of reporting
+ * errors back to the client).
+ * <p>
+ * This decoder is stateless apart from its cache and is thus shareable.
+ */
+final class PutDataPointDecoder extends OneToOneDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Maximum number of series to keep in the cache. */
+  private static final int SERIES_CACHE_SIZE =
+    Integer.getInteger("tsd.rpc.put_series_cache_size", 100000);
+
+  private static final AtomicLong fast_puts = new AtomicLong();
+  private static final AtomicLong slow_puts = new AtomicLong();
+
+  /** Metric name and tags of the series we've seen recently. */
+  private final Cache<SeriesBytes, Series> series_cache;
+
+  /** Constructor. */
+  public PutDataPointDecoder() {
+    series_cache = SERIES_CACHE_SIZE <= 0 ? null
+      : CacheBuilder.newBuilder()
+          .maximumSize(SERIES_CACHE_SIZE)
+          .<SeriesBytes, Series>build();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.put.decoded", fast_puts, "path=fast");
+    collector.record("rpc.put.decoded", slow_puts, "path=slow");
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final Object msg) {
+    if (!(msg instanceof ChannelBuffer)) {
+      return msg;
+    }
+    final ChannelBuffer frame = (ChannelBuffer) msg;
+    if (!frame.hasArray()) {
+      return frame;
+    }
+    final byte[] buf = frame.array();
+    final int start = frame.arrayOffset() + frame.readerIndex();
+    final int end = start + frame.readableBytes();
+    if (end - start < 4 || buf[start] != 'p' || buf[start + 1] != 'u'
+        || buf[start + 2] != 't' || buf[start + 3] != ' ') {
+      return frame;  // Not a "put", let the WordSplitter handle it.
+    }
+    final Point point = parse(buf, start + 4, end);
+    if (point == null) {
+      slow_puts.incrementAndGet();
+      return frame;
+    }
+    fast_puts.incrementAndGet();
+    return point;
+  }
+
+  /**
+   * Parses the part of a "put" line that follows the "put " prefix.
+   * @param buf The buffer containing the line.
+   * @param pos The offset in {@code buf} at which the metric name starts.
+   * @param end The offset in {@code buf} at which the line ends.
+   * @return The data point, or {@code null} if the line isn't well formed
+   * and needs to go through the regular path.
+   */
+  Point parse(final byte[] buf, int pos, final int end) {
+    // Metric name.
+    final int metric_start = pos;
+    pos = indexOf(buf, pos, end, ' ');
+    final int metric_end = pos;
+    if (metric_end <= metric_start || metric_end == end) {
+      return null;
+    }
+    // Timestamp.
+    final int ts_start = ++pos;
+    pos = indexOf(buf, pos, end, ' ');
+    if (pos == end) {
+      return null;
+    }
+    final long timestamp = parseLong(buf, ts_start, pos);
+    if (timestamp <= 0) {
+      return null;
+    }
+    // Value.
+    final int value_start = ++pos;
+    pos = indexOf(buf, pos, end, ' ');
+    final int value_end = pos;
+    if (value_end == value_start || value_end == end) {
+      return null;  // Empty value or no tags.
+    }
+    final boolean is_integer;
+    final long value;
+    if (looksLikeInteger(buf, value_start, value_end)) {
+      value = parseLong(buf, value_start, value_end);
+      if (value == Long.MIN_VALUE) {  // Malformed, or really MIN_VALUE.
+        return null;
+      }
+      is_integer = true;
+    } else {
+      final float f;
+      try {
+        f = Float.parseFloat(new String(buf, value_start,
+                                        value_end - value_start, CHARSET));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      value = Float.floatToRawIntBits(f);
+      is_integer = false;
+    }
+    // Metric name and tags.
+    final Series series = series(buf, metric_start, metric_end,
+                                 value_end + 1, end);
+    if (series == null) {
+      return null;
+    }
+    return new Point(series.metric, timestamp, is_integer, value, series.tags);
+  }
+
+  /**
+   * Returns the metric name and the tags of a series.
+   * @return The series, or {@code null} if the tags are missing or
+   * malformed.
+   */
+  private Series series(final byte[] buf,
+                        final int metric_start, final int metric_end,
+                        final int tags_start, final int tags_end) {
+    final SeriesBytes lookup = new SeriesBytes(buf, metric_start, metric_end,
+                                               tags_start, tags_end);
+    Series series = series_cache == null ? null
+      : series_cache.getIfPresent(lookup);
+    if (series != null) {
+      return series;
+    }
+    final String metric = new String(buf, metric_start,
+                                     metric_end - metric_start, CHARSET);
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    try {
+      for (final String tag : Tags.splitString(new String(buf, tags_start,
+                                                          tags_end - tags_start,
+                                                          CHARSET), ' ')) {
+        if (!tag.isEmpty()) {
+          Tags.parse(tags, tag);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (tags.isEmpty()) {
+      return null;
+    }
+    series = new Series(metric, tags);
+    if (series_cache != null) {
+      series_cache.put(lookup.copy(), series);
+    }
+    return series;
+  }
+
+  /** Returns the index of {@code c} in {@code buf} or {@code end}.  */
+  private static int indexOf(final byte[] buf, int pos, final int end,
+                             final char c) {
+    while (pos < end && buf[pos] != c) {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * Same as {@link Tags#looksLikeInteger} but on a range of bytes.
+   */
+  private static boolean looksLikeInteger(final byte[] buf,
+                                          final int start, final int end) {
+    for (int i = start; i < end; i++) {
+      final byte b = buf[i];
+      if (b == '.' || b == 'e' || b == 'E') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses an integer value from a range of bytes.
+   * <p>
+   * This follows the same rules as {@link Tags#parseLong} except that it
+   * doesn't throw.
+   * @return The value parsed or {@link Long#MIN_VALUE} if the value is
+   * malformed or overflows.
+   */
+  static long parseLong(final byte[] buf, final int start, final int end) {
+    final int n = end - start;
+    if (n <= 0) {
+      return Long.MIN_VALUE;
+    }
+    int i = start;
+    final boolean negative = buf[i] == '-';
+    if (negative || buf[i] == '+') {
+      if (n == 1 || n > 20) {
+        return Long.MIN_VALUE;
+      }
+      i++;
+    } else if (n > 19) {
+      return Long.MIN_VALUE;
+    }
+    long v = 0;  // Negated to easily handle MIN_VALUE, like Tags.parseLong.
+    for (; i < end; i++) {
+      final byte b = buf[i];
+      if (b < '0' || b > '9') {
+        return Long.MIN_VALUE;
+      }
+      if (v < Long.MIN_VALUE / 10) {  // Overflow.
+        return Long.MIN_VALUE;
+      }
+      v = v * 10 - (b - '0');
+      if (v > 0) {  // Overflow.
+        return Long.MIN_VALUE;
+      }
+    }
+    return negative ? v : -v;
+  }
+
+  /** A data point decoded from a "put" line. */
+  static final class Point {
+
+    final String metric;
+    final long timestamp;
+    final boolean is_integer;
+    /** The value, or the raw bits of the float if it's not an integer. */
+    final long value;
+    /** Must not be modified as it's shared with other points. */
+    final Map<String, String> tags;
+
+    Point(final String metric, final long timestamp,
+          final boolean is_integer, final long value,
+          final Map<String, String> tags) {
+      this.metric = metric;
+      this.timestamp = timestamp;
+      this.is_integer = is_integer;
+      this.value = value;
+      this.tags = tags;
+    }
+
+    public String toString() {
+      return "put " + metric + ' ' + timestamp + ' '
+        + (is_integer ? Long.toString(value)
+           : Float.toString(Float.intBitsToFloat((int) value)))
+        + ' ' + tags;
+    }
+
+  }
+
+  /** The metric name and the tags of a series.  */
+  private static final class Series {
+
+    final String metric;
+    final HashMap<String, String> tags;
+
+    Series(final String metric, final HashMap<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+  }
+
+  /**
+   * Cache key made of the raw bytes of the metric name and of the tags.
+   * <p>
+   * Lookups are done with an instance that points into the frame, and only
+   * {@link #copy copies} are stored in the cache.
+   */
+  private static final class SeriesBytes {
+
+    private final byte[] buf;
+    private final int metric_start;
+    private final int metric_end;
+    private final int tags_start;
+    private final int tags_end;
+    private final int hash;
+
+    SeriesBytes(final byte[] buf,
+                final int metric_start, final int metric_end,
+                final int tags_start, final int tags_end) {
+      this.buf = buf;
+      this.metric_start = metric_start;
+      this.metric_end = metric_end;
+      this.tags_start = tags_start;
+      this.tags_end = tags_end;
+      int h = 1;
+      for (int i = metric_start; i < metric_end; i++) {
+        h = 31 * h + buf[i];
+      }
+      h = 31 * h + ' ';
+      for (int i = tags_start; i < tags_end; i++) {
+        h = 31 * h + buf[i];
+      }
+      hash = h;
+    }
+
+    /** Returns a copy of this key that doesn't point into the frame.  */
+    SeriesBytes copy() {
+      final int metric_len = metric_end - metric_start;
+      final int tags_len = tags_end - tags_start;
+      final byte[] b = new byte[metric_len + tags_len];
+      System.arraycopy(buf, metric_start, b, 0, metric_len);
+      System.arraycopy(buf, tags_start, b, metric_len, tags_len);
+      return new SeriesBytes(b, 0, metric_len, metric_len, b.length);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(final Object other) {
+      if (other == this) {
+        return true;
+      } else if (!(other instanceof SeriesBytes)) {
+        return false;
+      }
+      final SeriesBytes s = (SeriesBytes) other;
+      return hash == s.hash
+        && rangeEquals(buf, metric_start, metric_end,
+                       s.buf, s.metric_start, s.metric_end)
+        && rangeEquals(buf, tags_start, tags_end,
+                       s.buf, s.tags_start, s.tags_end);
+    }
+
+    private static boolean rangeEquals(final byte[] a, int a_start,
+                                       final int a_end,
+                                       final byte[] b, int b_start,
+                                       final int b_end) {
+      if (a_end - a_start != b_end - b_start) {
+        return false;
+      }
+      while (a_start < a_end) {
+        if (a[a_start++] != b[b_start++]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+  }
+
+}
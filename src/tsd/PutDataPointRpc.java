@@ -36,36 +36,174 @@ final class PutDataPointRpc implements TelnetRpc {
 
   public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
                                   final String[] cmd) {
+    return execute(tsdb, chan, (Object) cmd);
+  }
+
+  /**
+   * Imports a data point already decoded by the {@link PutDataPointDecoder}.
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the data point was received.
+   * @param point The decoded data point.
+   * @return A deferred result.
+   */
+  public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                  final PutDataPointDecoder.Point point) {
+    return execute(tsdb, chan, (Object) point);
+  }
+
+  /**
+   * Imports a data point and reports any error back on the channel.
+   * @param point Either a {@link PutDataPointDecoder.Point} or the words of
+   * a "put" command.
+   */
+  private Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                   final Object point) {
     requests.incrementAndGet();
-    String errmsg = null;
+    final String errmsg;
     try {
-      final class PutErrback implements Callback<Exception, Exception> {
-        public Exception call(final Exception arg) {
-          if (chan.isConnected()) {
-            chan.write("put: HBase error: " + arg.getMessage() + '\n');
-          }
-          hbase_errors.incrementAndGet();
-          return arg;
-        }
-        public String toString() {
-          return "report error to channel";
-        }
+      return importPoint(tsdb, chan, point).addErrback(new PutErrback(chan));
+    } catch (RuntimeException x) {
+      errmsg = "put: " + countError(x) + '\n';
+    }
+    if (chan.isConnected()) {
+      chan.write(errmsg);
+    }
+    return Deferred.fromResult(null);
+  }
+
+  /**
+   * Imports a data point without reporting errors on the channel.
+   * <p>
+   * Failures are still accounted for in the stats.
+   * @param chan The channel on which the data point was received.
+   * @param point Either a {@link PutDataPointDecoder.Point} or the words of
+   * a "put" command.
+   * @return A deferred that never fails.  Its result is {@code null} once
+   * the data point has been stored, or a {@link String} describing why it
+   * couldn't be stored, whether it failed right away (e.g. invalid value)
+   * or later on (e.g. HBase error).
+   */
+  Deferred<Object> tryImport(final TSDB tsdb, final Channel chan,
+                             final Object point) {
+    requests.incrementAndGet();
+    try {
+      return importPoint(tsdb, chan, point)
+        .addCallbacks(STORED, DESCRIBE_HBASE_ERROR);
+    } catch (RuntimeException x) {
+      return Deferred.fromResult((Object) countError(x));
+    }
+  }
+
+  /**
+   * Imports a data point.
+   * <p>
+   * The write is accounted for by the {@link PutThrottle} until it completes.
+   * @param chan The channel on which the data point was received.
+   * @param point Either a {@link PutDataPointDecoder.Point} or the words of
+   * a "put" command.
+   */
+  private Deferred<Object> importPoint(final TSDB tsdb, final Channel chan,
+                                       final Object point) {
+    final Deferred<Object> write;
+    if (point instanceof PutDataPointDecoder.Point) {
+      final PutDataPointDecoder.Point p = (PutDataPointDecoder.Point) point;
+      if (p.timestamp <= 0) {  // Same check as in importDataPoint.
+        throw new IllegalArgumentException("invalid timestamp: "
+                                           + p.timestamp);
       }
-      return importDataPoint(tsdb, cmd).addErrback(new PutErrback());
-    } catch (NumberFormatException x) {
-      errmsg = "put: invalid value: " + x.getMessage() + '\n';
+      write = p.is_integer
+        ? tsdb.addPoint(p.metric, p.timestamp, p.value, p.tags)
+        : tsdb.addPoint(p.metric, p.timestamp,
+                        Float.intBitsToFloat((int) p.value), p.tags);
+    } else {
+      write = importDataPoint(tsdb, (String[]) point);
+    }
+    return PutThrottle.track(chan, write);
+  }
+
+  /**
+   * Accounts for an error that prevented a data point from being imported.
+   * @param x The exception thrown while trying to import a data point.
+   * @return A human readable description of the error.
+   * @throws RuntimeException {@code x} itself if it's not a kind of error
+   * we know how to handle.
+   */
+  private static String countError(final RuntimeException x) {
+    if (x instanceof NumberFormatException) {
       invalid_values.incrementAndGet();
-    } catch (IllegalArgumentException x) {
-      errmsg = "put: illegal argument: " + x.getMessage() + '\n';
+      return "invalid value: " + x.getMessage();
+    } else if (x instanceof IllegalArgumentException) {
       illegal_arguments.incrementAndGet();
-    } catch (NoSuchUniqueName x) {
-      errmsg = "put: unknown metric: " + x.getMessage() + '\n';
+      return "illegal argument: " + x.getMessage();
+    } else if (x instanceof NoSuchUniqueName) {
       unknown_metrics.incrementAndGet();
+      return "unknown metric: " + x.getMessage();
     }
-    if (errmsg != null && chan.isConnected()) {
-      chan.write(errmsg);
+    throw x;
+  }
+
+  /**
+   * Accounts for invalid series definitions of the binary protocol, like
+   * the tags rejected by the "put" command.
+   * @param n The number of definitions rejected.
+   */
+  static void countInvalidSeries(final int n) {
+    illegal_arguments.addAndGet(n);
+  }
+
+  /** Used by {@link #tryImport} when a data point was stored.  */
+  private static final Callback<Object, Object> STORED =
+    new Callback<Object, Object>() {
+      public Object call(final Object arg) {
+        return null;
+      }
+      public String toString() {
+        return "data point stored";
+      }
+    };
+
+  /** Used by {@link #tryImport} when a data point couldn't be stored.  */
+  private static final Callback<Object, Exception> DESCRIBE_HBASE_ERROR =
+    new Callback<Object, Exception>() {
+      public Object call(final Exception arg) {
+        if (arg instanceof NoSuchUniqueName) {  // Metrics are resolved async.
+          return countError((NoSuchUniqueName) arg);
+        }
+        hbase_errors.incrementAndGet();
+        return "HBase error: " + arg.getMessage();
+      }
+      public String toString() {
+        return "describe HBase error";
+      }
+    };
+
+  /** Reports HBase errors back to the client.  */
+  private static final class PutErrback implements Callback<Exception, Exception> {
+
+    private final Channel chan;
+
+    PutErrback(final Channel chan) {
+      this.chan = chan;
     }
-    return Deferred.fromResult(null);
+
+    public Exception call(final Exception arg) {
+      final String errmsg;
+      if (arg instanceof NoSuchUniqueName) {  // Metrics are resolved async.
+        errmsg = countError((NoSuchUniqueName) arg);
+      } else {
+        hbase_errors.incrementAndGet();
+        errmsg = "HBase error: " + arg.getMessage();
+      }
+      if (chan.isConnected()) {
+        chan.write("put: " + errmsg + '\n');
+      }
+      return arg;
+    }
+
+    public String toString() {
+      return "report error to channel";
+    }
+
   }
 
   /**
@@ -0,0 +1,232 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Applies backpressure on the clients when writes pile up.
+ * <p>
+ * Every data point being written is accounted for on the channel it came
+ * from and globally, until its {@link Deferred} completes.  When a channel
+ * has more than {@code tsd.rpc.put.channel_high_water} writes pending, we
+ * stop reading from it until it's back down to
+ * {@code tsd.rpc.put.channel_low_water}.  When there are more than
+ * {@code tsd.rpc.put.global_high_water} writes pending overall, we stop
+ * reading from every channel that attempts to write, until the total is
+ * back down to {@code tsd.rpc.put.global_low_water}.
+ * <p>
+ * This way, when HBase can't keep up, TCP pushes back on the clients
+ * instead of having pending RPCs fill up the heap.
+ */
+final class PutThrottle {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PutThrottle.class);
+
+  private static final int CHANNEL_HIGH_WATER =
+    Integer.getInteger("tsd.rpc.put.channel_high_water", 10000);
+  private static final int CHANNEL_LOW_WATER =
+    Integer.getInteger("tsd.rpc.put.channel_low_water",
+                       CHANNEL_HIGH_WATER / 2);
+  private static final int GLOBAL_HIGH_WATER =
+    Integer.getInteger("tsd.rpc.put.global_high_water", 200000);
+  private static final int GLOBAL_LOW_WATER =
+    Integer.getInteger("tsd.rpc.put.global_low_water",
+                       GLOBAL_HIGH_WATER / 2);
+
+  /** Number of writes pending across all channels.  */
+  private static final AtomicLong pending = new AtomicLong();
+  private static final AtomicLong channel_throttles = new AtomicLong();
+  private static final AtomicLong global_throttles = new AtomicLong();
+
+  /** Whether we're above the global high-water mark.  */
+  private static volatile boolean globally_throttled;
+
+  /**
+   * Channels paused because of the global high-water mark.
+   * Must be synchronized on, before synchronizing on any {@link Pending}.
+   */
+  private static final HashSet<Pending> globally_paused =
+    new HashSet<Pending>();
+
+  /** The writes pending on each channel.  */
+  private static final ChannelLocal<Pending> channels =
+    new ChannelLocal<Pending>(true) {
+      @Override
+      protected Pending initialValue(final Channel chan) {
+        return new Pending(chan);
+      }
+    };
+
+  private PutThrottle() {
+    // Can't instantiate.
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.put.pending", pending);
+    int paused = 0;
+    long max_pending = 0;
+    for (final Map.Entry<Channel, Pending> e : channels) {
+      final Pending p = e.getValue();
+      synchronized (p) {
+        if (!p.readable) {
+          paused++;
+        }
+        max_pending = Math.max(max_pending, p.count);
+      }
+    }
+    collector.record("rpc.put.pending_max_per_channel", max_pending);
+    collector.record("rpc.put.paused_channels", paused);
+    collector.record("rpc.put.throttles", channel_throttles, "type=channel");
+    collector.record("rpc.put.throttles", global_throttles, "type=global");
+  }
+
+  /**
+   * Accounts for a write until it completes.
+   * @param chan The channel the data point came from.
+   * @param write The deferred result of the write.
+   * @return The same deferred, with its result unchanged.
+   */
+  static Deferred<Object> track(final Channel chan,
+                                final Deferred<Object> write) {
+    final Pending p = channels.get(chan);
+    p.increment();
+    if (pending.incrementAndGet() > GLOBAL_HIGH_WATER) {
+      p.pauseGlobally();
+    }
+    return write.addBoth(new Done(p));
+  }
+
+  /** Called once a write has completed (successfully or not).  */
+  private static void done(final Pending p) {
+    p.decrement();
+    if (pending.decrementAndGet() <= GLOBAL_LOW_WATER && globally_throttled) {
+      final ArrayList<Pending> resume;
+      synchronized (globally_paused) {
+        if (!globally_throttled) {
+          return;
+        }
+        globally_throttled = false;
+        resume = new ArrayList<Pending>(globally_paused);
+        globally_paused.clear();
+      }
+      LOG.info("Writes pending back down to " + GLOBAL_LOW_WATER
+               + ", resuming " + resume.size() + " channels");
+      for (final Pending paused : resume) {
+        paused.resumeGlobally();
+      }
+    }
+  }
+
+  /** The writes pending on a channel.  */
+  private static final class Pending {
+
+    private final Channel chan;
+    private int count;
+    /** Whether the channel is above its own high-water mark.  */
+    private boolean over_channel;
+    /** Whether the channel was paused because of the global mark.  */
+    private boolean over_global;
+    /** Whether we're currently reading from the channel.  */
+    private boolean readable = true;
+
+    Pending(final Channel chan) {
+      this.chan = chan;
+    }
+
+    synchronized void increment() {
+      if (++count > CHANNEL_HIGH_WATER && !over_channel) {
+        over_channel = true;
+        channel_throttles.incrementAndGet();
+        updateReadable();
+      }
+    }
+
+    synchronized void decrement() {
+      if (--count <= CHANNEL_LOW_WATER && over_channel) {
+        over_channel = false;
+        updateReadable();
+      }
+    }
+
+    void pauseGlobally() {
+      synchronized (globally_paused) {
+        if (!globally_throttled) {
+          globally_throttled = true;
+          global_throttles.incrementAndGet();
+          LOG.warn("More than " + GLOBAL_HIGH_WATER + " writes pending,"
+                   + " throttling the clients");
+        }
+        globally_paused.add(this);
+        synchronized (this) {
+          over_global = true;
+          updateReadable();
+        }
+      }
+    }
+
+    synchronized void resumeGlobally() {
+      over_global = false;
+      updateReadable();
+    }
+
+    /** Must be called while holding the monitor of this object.  */
+    private void updateReadable() {
+      final boolean readable = !over_channel && !over_global;
+      if (readable != this.readable) {
+        this.readable = readable;
+        chan.setReadable(readable);
+      }
+    }
+
+  }
+
+  /** Accounts for the completion of a write.  */
+  private static final class Done implements Callback<Object, Object> {
+
+    private final Pending pending;
+
+    Done(final Pending pending) {
+      this.pending = pending;
+    }
+
+    public Object call(final Object arg) {
+      done(pending);
+      return arg;
+    }
+
+    public String toString() {
+      return "account for completed write";
+    }
+
+  }
+
+}
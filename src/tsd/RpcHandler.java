@@ -28,7 +28,9 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import net.opentsdb.BuildData;
 import net.opentsdb.core.Aggregators;
@@ -46,10 +48,47 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   private static final AtomicLong http_rpcs_received = new AtomicLong();
   private static final AtomicLong exceptions_caught = new AtomicLong();
 
+  /**
+   * Runs everything received on telnet-style and binary connections, as
+   * well as HTTP imports.  This is mostly writes, and the messages of each
+   * connection must be handled in order.  The number of messages waiting
+   * to run is bounded by {@link PutThrottle}, which counts them as pending
+   * writes, so this stage never rejects anything.
+   */
+  private static final ExecutionStage put_stage = new ExecutionStage("put",
+    Integer.getInteger("tsd.rpc.put_threads",
+                       Runtime.getRuntime().availableProcessors()),
+    Integer.MAX_VALUE, true);
+
+  /**
+   * Runs the HTTP queries that read from HBase ("/q" and "/suggest"),
+   * which block until they're done.
+   */
+  private static final ExecutionStage query_stage =
+    new ExecutionStage("query",
+                       Integer.getInteger("tsd.rpc.query_threads", 16),
+                       Integer.getInteger("tsd.rpc.query_queue_size", 1000),
+                       false);
+
+  /**
+   * Maximum number of graph queries scanning HBase at the same time.
+   * They don't hold a thread of the query stage while waiting for HBase,
+   * so they're bounded separately, by default to as many as there are
+   * threads in the stage, as when each of them held one.
+   */
+  private static final int MAX_QUERIES_IN_FLIGHT =
+    Integer.getInteger("tsd.rpc.queries_in_flight",
+                       Math.max(1, Integer.getInteger("tsd.rpc.query_threads",
+                                                      16)));
+
   /** Commands we can serve on the simple, telnet-style RPC interface. */
   private final HashMap<String, TelnetRpc> telnet_commands;
   /** RPC executed when there's an unknown telnet-style command. */
   private final TelnetRpc unknown_cmd = new Unknown();
+  /** The "put" command, also used for points decoded in place. */
+  private final PutDataPointRpc put = new PutDataPointRpc();
+  /** Imports the batches of the binary "put" protocol. */
+  private final BinaryPutRpc binary_put = new BinaryPutRpc(put);
   /** Commands we serve on the HTTP interface. */
   private final HashMap<String, HttpRpc> http_commands;
 
@@ -93,38 +132,103 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     telnet_commands.put("exit", new Exit());
     telnet_commands.put("help", new Help());
-    telnet_commands.put("put", new PutDataPointRpc());
+    telnet_commands.put("put", put);
+    telnet_commands.put("putbatch", new PutBatchRpc(put));
 
     http_commands.put("", new HomePage());
     http_commands.put("aggregators", new ListAggregators());
     http_commands.put("logs", new LogsRpc());
-    http_commands.put("q", new GraphHandler());
+    http_commands.put("put", new ImportRpc(put));
+    http_commands.put("q", new GraphHandler(query_stage,
+                                            MAX_QUERIES_IN_FLIGHT));
     http_commands.put("suggest", new Suggest());
   }
 
+  /**
+   * Hands the message over to the right {@link ExecutionStage}.
+   * Nothing that may block must run here, as this is called on an I/O
+   * thread shared by many connections.
+   */
   @Override
   public void messageReceived(final ChannelHandlerContext ctx,
                               final MessageEvent msgevent) {
-    try {
-      final Object message = msgevent.getMessage();
-      if (message instanceof String[]) {
-        handleTelnetRpc(msgevent.getChannel(), (String[]) message);
-      } else if (message instanceof HttpRequest) {
-        handleHttpQuery(msgevent.getChannel(), (HttpRequest) message);
-      } else {
-        logError(msgevent.getChannel(), "Unexpected message type "
-                 + message.getClass() + ": " + message);
-        exceptions_caught.incrementAndGet();
+    final Channel chan = msgevent.getChannel();
+    final Object message = msgevent.getMessage();
+    if (message instanceof HttpRequest) {
+      handleHttpQuery(chan, (HttpRequest) message);
+    } else {
+      executeInOrder(chan, new Serve(chan, message));
+    }
+  }
+
+  /**
+   * Runs a task on the put stage, after the tasks previously submitted for
+   * the same channel.
+   */
+  private static void executeInOrder(final Channel chan, final Runnable task) {
+    final Deferred<Object> done = new Deferred<Object>();
+    PutThrottle.track(chan, done);
+    final class Done implements Runnable {
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          done.callback(null);
+        }
       }
-    } catch (Exception e) {
-      Object pretty_message = msgevent.getMessage();
-      if (pretty_message instanceof String[]) {
-        pretty_message = Arrays.toString((String[]) pretty_message);
+      public String toString() {
+        return task.toString();
+      }
+    }
+    put_stage.execute(chan, new Done());
+  }
+
+  /** Serves a message received on the put stage.  */
+  private final class Serve implements Runnable {
+
+    private final Channel chan;
+    private final Object message;
+
+    Serve(final Channel chan, final Object message) {
+      this.chan = chan;
+      this.message = message;
+    }
+
+    public void run() {
+      try {
+        final PutBatchRpc.Batch batch = PutBatchRpc.inProgress(chan);
+        if (batch != null) {
+          telnet_rpcs_received.incrementAndGet();
+          batch.add(chan, message);
+        } else if (message instanceof PutDataPointDecoder.Point) {
+          telnet_rpcs_received.incrementAndGet();
+          put.execute(tsdb, chan, (PutDataPointDecoder.Point) message);
+        } else if (message instanceof BinaryPutDecoder.Batch) {
+          final BinaryPutDecoder.Batch binary = (BinaryPutDecoder.Batch) message;
+          // Each data point counts as one RPC, as if sent with "put".
+          telnet_rpcs_received.addAndGet(binary.points.size()
+                                         + binary.rejected);
+          binary_put.execute(tsdb, chan, binary);
+        } else if (message instanceof String[]) {
+          handleTelnetRpc(chan, (String[]) message);
+        } else if (message instanceof HttpChunk) {
+          handleHttpChunk(chan, (HttpChunk) message);
+        } else {
+          logError(chan, "Unexpected message type "
+                   + message.getClass() + ": " + message);
+          exceptions_caught.incrementAndGet();
+        }
+      } catch (Exception e) {
+        logError(chan, "Unexpected exception caught while serving " + this, e);
+        exceptions_caught.incrementAndGet();
       }
-      logError(msgevent.getChannel(), "Unexpected exception caught"
-               + " while serving " + pretty_message, e);
-      exceptions_caught.incrementAndGet();
     }
+
+    public String toString() {
+      return message instanceof String[]
+        ? Arrays.toString((String[]) message) : String.valueOf(message);
+    }
+
   }
 
   /**
@@ -142,32 +246,87 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   }
 
   /**
-   * Finds the right handler for an HTTP query and executes it.
+   * Finds the right handler for an HTTP query and executes it on the
+   * right stage.  Imports run on the put stage, before their chunks, and
+   * queries reading from HBase on the query stage.  Everything else is
+   * quick and runs right away.
    * @param chan The channel on which the query was received.
    * @param req The parsed HTTP request.
    */
   private void handleHttpQuery(final Channel chan, final HttpRequest req) {
     http_rpcs_received.incrementAndGet();
     final HttpQuery query = new HttpQuery(req, chan);
-    if (req.isChunked()) {
-      logError(query, "Received an unsupported chunked request: "
-               + query.request());
-      query.badRequest("Chunked request not supported.");
-      return;
-    }
+    final HttpRpc rpc;
     try {
-      final HttpRpc rpc = http_commands.get(getEndPoint(query));
-      if (rpc != null) {
-        rpc.execute(tsdb, query);
-      } else {
-        query.notFound();
-      }
+      rpc = http_commands.get(getEndPoint(query));
     } catch (BadRequestException ex) {
       query.badRequest(ex.getMessage());
-    } catch (Exception ex) {
-      query.internalError(ex);
-      exceptions_caught.incrementAndGet();
+      return;
+    }
+    final ServeHttp task = new ServeHttp(query, rpc);
+    if (rpc instanceof ImportRpc) {
+      executeInOrder(chan, task);
+    } else if (rpc instanceof GraphHandler || rpc instanceof Suggest) {
+      if (!query_stage.execute(chan, task)) {
+        logWarn(query, "Too many queries waiting, rejecting "
+                + req.getUri());
+        query.sendReply(HttpResponseStatus.SERVICE_UNAVAILABLE,
+                        new StringBuilder("Too many queries in progress,"
+                                          + " try again later.\n"));
+      }
+    } else {
+      task.run();
+    }
+  }
+
+  /** Serves an HTTP query.  */
+  private final class ServeHttp implements Runnable {
+
+    private final HttpQuery query;
+    /** The handler of the query, {@code null} if there's none.  */
+    private final HttpRpc rpc;
+
+    ServeHttp(final HttpQuery query, final HttpRpc rpc) {
+      this.query = query;
+      this.rpc = rpc;
+    }
+
+    public void run() {
+      try {
+        if (query.request().isChunked() && !(rpc instanceof ImportRpc)) {
+          logError(query, "Received an unsupported chunked request: "
+                   + query.request());
+          query.badRequest("Chunked request not supported.");
+        } else if (rpc != null) {
+          rpc.execute(tsdb, query);
+        } else {
+          query.notFound();
+        }
+      } catch (BadRequestException ex) {
+        query.badRequest(ex.getMessage());
+      } catch (Exception ex) {
+        query.internalError(ex);
+        exceptions_caught.incrementAndGet();
+      }
+    }
+
+    public String toString() {
+      return query.request().getMethod() + " " + query.request().getUri();
+    }
+
+  }
+
+  /**
+   * Hands a chunk of an HTTP request over to the import in progress.
+   * @param chan The channel on which the chunk was received.
+   * @param chunk The chunk received.
+   */
+  private void handleHttpChunk(final Channel chan, final HttpChunk chunk) {
+    final ImportRpc.Import imp = ImportRpc.inProgress(chan);
+    if (imp != null) {
+      imp.add(chunk);
     }
+    // Otherwise the request was rejected and we already replied.
   }
 
   /**
@@ -221,9 +380,16 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     collector.record("rpc.received", telnet_rpcs_received, "type=telnet");
     collector.record("rpc.received", http_rpcs_received, "type=http");
     collector.record("rpc.exceptions", exceptions_caught);
+    put_stage.collectStats(collector);
+    query_stage.collectStats(collector);
     HttpQuery.collectStats(collector);
     GraphHandler.collectStats(collector);
     PutDataPointRpc.collectStats(collector);
+    PutThrottle.collectStats(collector);
+    PutDataPointDecoder.collectStats(collector);
+    PutBatchRpc.collectStats(collector);
+    ImportRpc.collectStats(collector);
+    BinaryPutRpc.collectStats(collector);
   }
 
   // ---------------------------- //
@@ -248,6 +414,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     private Deferred<Object> doShutdown(final TSDB tsdb, final Channel chan) {
       ((GraphHandler) http_commands.get("q")).shutdown();
+      put_stage.shutdown();
+      query_stage.shutdown();
       ConnectionManager.closeAllConnections();
       // Netty gets stuck in an infinite loop if we shut it down from within a
       // NIO thread.  So do this from a newly created thread.
@@ -36,6 +36,9 @@ final class WordSplitter extends OneToOneDecoder {
   protected Object decode(final ChannelHandlerContext ctx,
                           final Channel channel,
                           final Object msg) throws Exception {
+    if (!(msg instanceof ChannelBuffer)) {
+      return msg;  // Already decoded (e.g. by the PutDataPointDecoder).
+    }
     return Tags.splitString(((ChannelBuffer) msg).toString(CHARSET), ' ');
   }
 
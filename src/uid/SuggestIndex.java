@@ -0,0 +1,387 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * An in-memory sorted index of all the names of one kind of UID, used to
+ * answer prefix searches without scanning HBase.
+ * <p>
+ * The names are packed one after the other in a few byte arrays ("runs"),
+ * sorted like the rows of the UID table, with an array of offsets to find
+ * each of them, so millions of names only take a few objects and a prefix
+ * search is a binary search in each run.  The runs are never modified:
+ * names added or removed since they were packed are kept aside in small
+ * sorted sets.  Once there are enough added names, they're packed in a new
+ * run, which is merged with the smaller runs before it, so that each run is
+ * more than twice as big as the next one.  This way there are only a few
+ * runs, and each name is only copied a few times as the index grows.
+ * <p>
+ * Lookups don't take any lock.  Changes are serialized but are rare, since
+ * they only happen when an ID is assigned or renamed.
+ */
+final class SuggestIndex {
+
+  /** Names are stored as ISO-8859-1, like in the UID table. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Number of pending changes past which they're merged in the runs. */
+  private static final int MAX_PENDING = 4096;
+
+  /**
+   * The packed names, largest run first.  A name is in one run at most.
+   * Replaced as a whole, never modified.
+   */
+  private volatile Packed[] runs = new Packed[0];
+
+  /** Names added since the runs were built, that aren't in any run. */
+  private final ConcurrentSkipListSet<String> added =
+    new ConcurrentSkipListSet<String>();
+
+  /** Packed names removed since they were packed. */
+  private final ConcurrentSkipListSet<String> removed =
+    new ConcurrentSkipListSet<String>();
+
+  /**
+   * Sizes of {@link #added} and {@link #removed}, whose {@code size()} isn't
+   * a constant-time operation.  Only modified with the lock held.
+   */
+  private volatile int num_added;
+  private volatile int num_removed;
+
+  /** Returns the number of names in this index. */
+  int size() {
+    int size = num_added - num_removed;
+    for (final Packed run : runs) {
+      size += run.size();
+    }
+    return size;
+  }
+
+  /** Helper for unit tests that returns the number of runs. */
+  int runs() {
+    return runs.length;
+  }
+
+  /** Adds a name to this index.  */
+  synchronized void add(final String name) {
+    if (removed.remove(name)) {
+      num_removed--;
+    }
+    if (!isPacked(toBytes(name)) && added.add(name)) {
+      num_added++;
+      maybeMerge();
+    }
+  }
+
+  /** Removes a name from this index.  */
+  synchronized void remove(final String name) {
+    if (added.remove(name)) {
+      num_added--;
+    }
+    if (isPacked(toBytes(name)) && removed.add(name)) {
+      num_removed++;
+      maybeMerge();
+    }
+  }
+
+  /**
+   * Replaces all the names of this index.
+   * Changes made while the new names were being collected are kept.
+   * @param names All the names, in the order of the UID table.
+   */
+  synchronized void reset(final Packer names) {
+    merge(new Packed[] { names.pack() }, 0);
+  }
+
+  /**
+   * Returns the first names within the given range.
+   * @param start The first name of the range (inclusive).
+   * @param stop The end of the range (exclusive).
+   * @param max The maximum number of names to return.
+   */
+  List<String> suggest(final String start, final String stop, final int max) {
+    if (start.compareTo(stop) >= 0) {
+      return new LinkedList<String>();
+    }
+    while (true) {
+      final Packed[] runs = this.runs;
+      final List<String> suggestions = suggest(runs, start, stop, max);
+      // If the names were merged in the mean time, the pending changes we
+      // looked at may no longer go with the runs we looked at.
+      if (runs == this.runs) {
+        return suggestions;
+      }
+    }
+  }
+
+  private List<String> suggest(final Packed[] runs, final String start,
+                               final String stop, final int max) {
+    final LinkedList<String> suggestions = new LinkedList<String>();
+    final byte[] start_key = toBytes(start);
+    final byte[] stop_key = toBytes(stop);
+    final int[] pos = new int[runs.length];
+    for (int r = 0; r < runs.length; r++) {
+      pos[r] = runs[r].lowerBound(start_key);
+    }
+    final Iterator<String> more = added.subSet(start, stop).iterator();
+    String next_added = more.hasNext() ? more.next() : null;
+    String last = null;
+    while (suggestions.size() < max) {
+      final int r = smallest(runs, pos, 0, stop_key);
+      final String name;
+      if (r < 0 && next_added == null) {
+        break;
+      } else if (next_added == null
+                 || (r >= 0 && runs[r].compare(pos[r],
+                                               toBytes(next_added)) <= 0)) {
+        name = runs[r].name(pos[r]++);
+        if (removed.contains(name)) {
+          continue;
+        }
+      } else {
+        name = next_added;
+        next_added = more.hasNext() ? more.next() : null;
+      }
+      if (!name.equals(last)) {  // Duplicates are possible while merging.
+        suggestions.add(name);
+        last = name;
+      }
+    }
+    return suggestions;
+  }
+
+  /**
+   * Returns the index of the run with the smallest next name, or -1 if
+   * there's none left.
+   * @param runs The runs to look at.
+   * @param pos The position of the next name of each run.
+   * @param from The index of the first run to look at.
+   * @param stop_key If not {@code null}, names not less than this key are
+   * ignored.
+   */
+  private static int smallest(final Packed[] runs, final int[] pos,
+                              final int from, final byte[] stop_key) {
+    int smallest = -1;
+    for (int r = from; r < runs.length; r++) {
+      if (pos[r] < runs[r].size()
+          && (stop_key == null || runs[r].compare(pos[r], stop_key) < 0)
+          && (smallest < 0
+              || runs[r].compare(pos[r], runs[smallest], pos[smallest]) < 0)) {
+        smallest = r;
+      }
+    }
+    return smallest;
+  }
+
+  /** Returns whether the given name is in one of the runs.  */
+  private boolean isPacked(final byte[] name) {
+    for (final Packed run : runs) {
+      if (run.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void maybeMerge() {
+    final Packed[] runs = this.runs;
+    if (num_removed > MAX_PENDING) {
+      merge(runs, 0);
+    } else if (num_added > MAX_PENDING) {
+      // Merge the smaller runs with the added names as long as they're not
+      // more than twice as big as what we're merging.
+      int from = runs.length;
+      long size = num_added;
+      while (from > 0 && runs[from - 1].size() <= 2 * size) {
+        size += runs[--from].size();
+      }
+      merge(runs, from);
+    }
+  }
+
+  /**
+   * Merges the given runs with the pending changes, and makes that the new
+   * runs.  Must be called with the lock held.
+   * @param runs The runs to start from.
+   * @param from The index of the first run to merge, the runs before it are
+   * kept as-is.  The removed names are only dropped if this is 0, because
+   * they may be in any run.
+   */
+  private void merge(final Packed[] runs, final int from) {
+    final Packer merged = new Packer();
+    final byte[][] adds = new byte[num_added][];
+    int n = 0;
+    for (final String name : added) {
+      adds[n++] = toBytes(name);
+    }
+    final String[] removes = from == 0
+      ? removed.toArray(new String[num_removed]) : new String[0];
+    final int[] pos = new int[runs.length];
+    int a = 0;
+    int r;
+    while ((r = smallest(runs, pos, from, null)) >= 0) {
+      final Packed run = runs[r];
+      final int i = pos[r]++;
+      while (a < adds.length && run.compare(i, adds[a]) > 0) {
+        merged.add(adds[a++]);
+      }
+      if (a < adds.length && run.compare(i, adds[a]) == 0) {
+        a++;  // Added again.
+      }
+      if (removes.length == 0
+          || Arrays.binarySearch(removes, run.name(i)) < 0) {
+        merged.add(run.bytes, run.offsets[i], run.length(i));
+      }
+    }
+    while (a < adds.length) {
+      merged.add(adds[a++]);
+    }
+    final Packed[] new_runs = Arrays.copyOf(runs, from + 1);
+    new_runs[from] = merged.pack();
+    // Publish the new runs before forgetting the changes merged in them,
+    // see suggest().
+    this.runs = new_runs;
+    added.clear();
+    num_added = 0;
+    if (from == 0) {
+      removed.clear();
+      num_removed = 0;
+    }
+  }
+
+  private static byte[] toBytes(final String s) {
+    return s.getBytes(CHARSET);
+  }
+
+  /** Compares two byte strings, like HBase compares row keys.  */
+  private static int compare(final byte[] a, final int a_start,
+                             final int a_length,
+                             final byte[] b, final int b_start,
+                             final int b_length) {
+    final int common = Math.min(a_length, b_length);
+    for (int j = 0; j < common; j++) {
+      final int cmp = (a[a_start + j] & 0xFF) - (b[b_start + j] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return a_length - b_length;
+  }
+
+  /** Sorted names packed in a byte array.  */
+  private static final class Packed {
+
+    /** All the names, one after the other. */
+    final byte[] bytes;
+
+    /** Where each name starts, plus where the last one ends.  */
+    final int[] offsets;
+
+    Packed(final byte[] bytes, final int[] offsets) {
+      this.bytes = bytes;
+      this.offsets = offsets;
+    }
+
+    int size() {
+      return offsets.length - 1;
+    }
+
+    int length(final int i) {
+      return offsets[i + 1] - offsets[i];
+    }
+
+    String name(final int i) {
+      return new String(bytes, offsets[i], length(i), CHARSET);
+    }
+
+    /** Compares the i-th name to a key, like HBase compares row keys.  */
+    int compare(final int i, final byte[] key) {
+      return SuggestIndex.compare(bytes, offsets[i], length(i),
+                                  key, 0, key.length);
+    }
+
+    /** Compares the i-th name to the j-th name of another run.  */
+    int compare(final int i, final Packed other, final int j) {
+      return SuggestIndex.compare(bytes, offsets[i], length(i),
+                                  other.bytes, other.offsets[j],
+                                  other.length(j));
+    }
+
+    /** Returns the index of the first name that's not less than the key.  */
+    int lowerBound(final byte[] key) {
+      int low = 0;
+      int high = size();
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (compare(mid, key) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    boolean contains(final byte[] key) {
+      final int i = lowerBound(key);
+      return i < size() && compare(i, key) == 0;
+    }
+
+  }
+
+  /** Packs names given in sorted order.  */
+  static final class Packer {
+
+    private byte[] bytes = new byte[4096];
+    private int[] offsets = new int[256];
+    private int size;
+    private int length;
+
+    /** Appends a name, which must sort after the previous one.  */
+    void add(final byte[] name) {
+      add(name, 0, name.length);
+    }
+
+    private void add(final byte[] name, final int offset, final int len) {
+      if (length + len > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + len));
+      }
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, size * 2);
+      }
+      System.arraycopy(name, offset, bytes, length, len);
+      offsets[size++] = length;
+      length += len;
+    }
+
+    /** Returns the number of names packed so far.  */
+    int size() {
+      return size;
+    }
+
+    Packed pack() {
+      final int[] offsets = Arrays.copyOf(this.offsets, size + 1);
+      offsets[size] = length;
+      return new Packed(Arrays.copyOf(bytes, length), offsets);
+    }
+
+  }
+
+}
@@ -0,0 +1,234 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+/**
+ * Fills the caches of {@link UniqueId} instances by scanning the UID table.
+ * <p>
+ * Only the forward mappings (name to ID) are scanned, as each of them also
+ * gives us the reverse mapping.  The table is split in key ranges on the
+ * first character of the names, and several scanners work through these
+ * ranges concurrently.  There are more ranges than scanners, since names
+ * are rarely evenly distributed, so a scanner that's done with its range
+ * moves on to the next one left.
+ * <p>
+ * Preloading is best effort: if it fails or runs out of time, whatever was
+ * loaded so far stays in the caches and the rest will be looked up on
+ * demand.
+ */
+public final class UidCachePreloader {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(UidCachePreloader.class);
+
+  /** Number of key ranges for each scanner.  */
+  private static final int RANGES_PER_SCANNER = 4;
+
+  /** How often to log progress (in ms).  */
+  private static final long PROGRESS_INTERVAL = 10000;
+
+  /** Names are expected to start with a printable ASCII character.  */
+  private static final int FIRST_CHAR = '!';
+  private static final int LAST_CHAR = '~';
+
+  private final HBaseClient client;
+
+  /** The UID table, shared by all the instances to preload.  */
+  private final byte[] table;
+
+  /** The instances to preload, by kind.  */
+  private final HashMap<String, UniqueId> uids;
+
+  /** Key ranges left to scan: start key (inclusive), stop key (exclusive). */
+  private final ConcurrentLinkedQueue<byte[][]> ranges =
+    new ConcurrentLinkedQueue<byte[][]>();
+
+  /** Number of mappings loaded so far.  */
+  private final AtomicLong loaded = new AtomicLong();
+
+  /** Set to stop the scanners, when we run out of time.  */
+  private volatile boolean stopped;
+
+  /**
+   * Constructor.
+   * @param client The HBase client to use.
+   * @param uids The instances to preload.  They must all use the same table.
+   * @throws IllegalArgumentException if the instances don't all use the
+   * same table, or if there are none.
+   */
+  public UidCachePreloader(final HBaseClient client, final UniqueId... uids) {
+    if (uids.length == 0) {
+      throw new IllegalArgumentException("No UniqueId to preload");
+    }
+    this.client = client;
+    table = uids[0].table();
+    this.uids = new HashMap<String, UniqueId>(uids.length);
+    for (final UniqueId uid : uids) {
+      if (!Arrays.equals(table, uid.table())) {
+        throw new IllegalArgumentException(uid + " doesn't use the same table"
+                                           + " as " + uids[0]);
+      }
+      this.uids.put(uid.kind(), uid);
+    }
+  }
+
+  /**
+   * Preloads the caches, waiting until done or out of time.
+   * @param scanners The number of scanners to run concurrently.
+   * @param timeout How long to wait (in ms).  Once that time has elapsed,
+   * the scanners are stopped and the caches are left partially filled.
+   * @return The number of mappings loaded.
+   * @throws IllegalArgumentException if {@code scanners} isn't positive.
+   */
+  public long preload(final int scanners, final long timeout) {
+    if (scanners <= 0) {
+      throw new IllegalArgumentException("Invalid number of scanners: "
+                                         + scanners);
+    }
+    final long start_time = System.currentTimeMillis();
+    final long deadline = start_time + timeout;
+    splitKeySpace(scanners * RANGES_PER_SCANNER);
+    LOG.info("Preloading " + uids.keySet() + " UIDs with " + scanners
+             + " scanners");
+    final ArrayList<Deferred<Object>> scans =
+      new ArrayList<Deferred<Object>>(scanners);
+    for (int i = 0; i < scanners; i++) {
+      scans.add(scanNextRange());
+    }
+    final Deferred<ArrayList<Object>> done = Deferred.group(scans);
+    try {
+      while (true) {
+        final long now = System.currentTimeMillis();
+        if (now >= deadline) {
+          stopped = true;
+          LOG.warn("Ran out of time preloading UIDs after " + timeout
+                   + "ms, " + loaded.get() + " mappings loaded, "
+                   + ranges.size() + " key ranges not even started");
+          break;
+        }
+        try {
+          done.joinUninterruptibly(Math.min(PROGRESS_INTERVAL, deadline - now));
+          LOG.info("Preloaded " + loaded.get() + " UID mappings in "
+                   + (System.currentTimeMillis() - start_time) + "ms");
+          break;
+        } catch (TimeoutException e) {
+          LOG.info("Preloading UIDs: " + loaded.get() + " mappings loaded, "
+                   + ranges.size() + " key ranges left");
+        }
+      }
+    } catch (Exception e) {
+      stopped = true;
+      LOG.error("Failed to preload UIDs, " + loaded.get()
+                + " mappings loaded", e);
+    }
+    return loaded.get();
+  }
+
+  /** Returns the number of mappings loaded so far.  */
+  public long loaded() {
+    return loaded.get();
+  }
+
+  /**
+   * Splits the key space of the names in about as many ranges as requested.
+   * The first range starts right after the max ID row, the last one goes
+   * to the end of the table.
+   */
+  private void splitKeySpace(int nranges) {
+    nranges = Math.min(nranges, LAST_CHAR - FIRST_CHAR + 1);
+    byte[] start = { 1 };  // Skip the MAXID_ROW.
+    for (int i = 1; i < nranges; i++) {
+      final byte[] stop = {
+        (byte) (FIRST_CHAR + (LAST_CHAR - FIRST_CHAR + 1) * i / nranges)
+      };
+      ranges.add(new byte[][] { start, stop });
+      start = stop;
+    }
+    ranges.add(new byte[][] { start, HBaseClient.EMPTY_ARRAY });
+  }
+
+  /**
+   * Scans the next key range left, and then the next one, until none are
+   * left.
+   * @return A deferred that's called back once there are no ranges left.
+   */
+  private Deferred<Object> scanNextRange() {
+    final byte[][] range = ranges.poll();
+    if (range == null || stopped) {
+      return Deferred.fromResult(null);
+    }
+    final Scanner scanner = client.newScanner(table);
+    scanner.setStartKey(range[0]);
+    if (range[1].length != 0) {
+      scanner.setStopKey(range[1]);
+    }
+    scanner.setFamily(UniqueId.ID_FAMILY);
+    scanner.setMaxNumRows(1024);
+    return new ScanCB(scanner).scan();
+  }
+
+  /** Loads the mappings of a key range, one batch of rows at a time.  */
+  private final class ScanCB
+    implements Callback<Deferred<Object>, ArrayList<ArrayList<KeyValue>>> {
+
+    private final Scanner scanner;
+
+    ScanCB(final Scanner scanner) {
+      this.scanner = scanner;
+    }
+
+    Deferred<Object> scan() {
+      return scanner.nextRows().addCallbackDeferring(this);
+    }
+
+    public Deferred<Object> call(final ArrayList<ArrayList<KeyValue>> rows) {
+      if (rows == null || stopped) {
+        scanner.close();
+        return scanNextRange();
+      }
+      for (final ArrayList<KeyValue> row : rows) {
+        for (final KeyValue kv : row) {
+          final UniqueId uid = uids.get(UniqueId.fromBytes(kv.qualifier()));
+          if (uid != null
+              && uid.cacheMapping(UniqueId.fromBytes(kv.key()), kv.value())) {
+            loaded.incrementAndGet();
+          }
+        }
+      }
+      return scan();
+    }
+
+    public String toString() {
+      return "preload UIDs with " + scanner;
+    }
+
+  }
+
+}
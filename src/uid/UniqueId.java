@@ -18,10 +18,24 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.hbase.async.AtomicIncrementRequest;
 import org.hbase.async.Bytes;
 import org.hbase.async.DeleteRequest;
 import org.hbase.async.GetRequest;
@@ -29,10 +43,10 @@ import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
-import org.hbase.async.RowLock;
-import org.hbase.async.RowLockRequest;
 import org.hbase.async.Scanner;
 
+import net.opentsdb.stats.RollingHistogram;
+
 /**
  * Thread-safe implementation of the {@link UniqueIdInterface}.
  * <p>
@@ -47,7 +61,7 @@ public final class UniqueId implements UniqueIdInterface {
   /** Charset used to convert Strings to byte arrays and back. */
   private static final Charset CHARSET = Charset.forName("ISO-8859-1");
   /** The single column family used by this class. */
-  private static final byte[] ID_FAMILY = toBytes("id");
+  static final byte[] ID_FAMILY = toBytes("id");
   /** The single column family used by this class. */
   private static final byte[] NAME_FAMILY = toBytes("name");
   /** Row key of the special row used to track the max ID already assigned. */
@@ -60,6 +74,58 @@ public final class UniqueId implements UniqueIdInterface {
   private static final short INITIAL_EXP_BACKOFF_DELAY = 800;
   /** Maximum number of results to return in suggest(). */
   private static final short MAX_SUGGESTIONS = 25;
+  /**
+   * Default maximum number of entries in each cache of each kind.  Can be
+   * overridden for each kind with {@code tsd.uid.cache_size.KIND}.
+   * The least recently used entries are evicted first.
+   */
+  private static final int DEFAULT_CACHE_SIZE =
+    Integer.getInteger("tsd.uid.cache_size", 1000000);
+  /**
+   * For how long (in seconds) to remember that a name has no ID, so that
+   * looking it up again doesn't hit HBase.  0 disables this.  Since IDs may
+   * be assigned by another process, this must be kept short.
+   */
+  private static final int NEGATIVE_CACHE_TTL =
+    Integer.getInteger("tsd.uid.negative_cache_ttl", 30);
+  /** Maximum number of names remembered as having no ID, for each kind. */
+  private static final int NEGATIVE_CACHE_SIZE =
+    Integer.getInteger("tsd.uid.negative_cache_size", 100000);
+  /** Number of IDs reserved at once by each instance. */
+  private static final int ID_BLOCK_SIZE =
+    Math.max(1, Integer.getInteger("tsd.uid.id_block_size", 64));
+  /**
+   * How often (in seconds) to rebuild the suggest index from the table, to
+   * pick up the names assigned by other processes.  0 disables this.
+   */
+  private static final int SUGGEST_INDEX_TTL =
+    Integer.getInteger("tsd.uid.suggest_index_ttl", 3600);
+  /**
+   * Maximum number of names in the suggest index.  Past that, the index is
+   * dropped and suggestions are found by scanning HBase again.
+   */
+  private static final int SUGGEST_INDEX_MAX_NAMES =
+    Integer.getInteger("tsd.uid.suggest_index_max_names", 1000000);
+  /** Number of threads used to assign new IDs in the background. */
+  private static final int ASSIGN_THREADS =
+    Integer.getInteger("tsd.uid.assign_threads", 2);
+
+  /**
+   * Threads on which {@link #getOrCreateIdAsync} assigns new IDs.
+   * Assigning an ID takes a row lock and does blocking RPCs with retries
+   * and sleeps, which must never happen on an I/O thread.  Shared by all
+   * instances, as assignments are serialized by the row lock anyway.
+   */
+  private static final ExecutorService assigner =
+    Executors.newFixedThreadPool(ASSIGN_THREADS, new ThreadFactory() {
+      private final AtomicInteger n = new AtomicInteger();
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "UniqueId assigner #"
+                                    + n.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
 
   /** HBase client to use.  */
   private final HBaseClient client;
@@ -71,18 +137,59 @@ public final class UniqueId implements UniqueIdInterface {
   private final short idWidth;
 
   /** Cache for forward mappings (name to ID). */
-  private final ConcurrentHashMap<String, byte[]> nameCache =
-    new ConcurrentHashMap<String, byte[]>();
+  private final ConcurrentMap<String, byte[]> nameCache;
   /** Cache for backward mappings (ID to name).
-   * The ID in the key is a byte[] converted to a String to be Comparable. */
-  private final ConcurrentHashMap<String, String> idCache =
-    new ConcurrentHashMap<String, String>();
+   * The ID in the key is packed in a long, see {@link #idKey}. */
+  private final ConcurrentMap<Long, String> idCache;
+  /** The caches backing the maps above, to get their stats. */
+  private final Cache<String, byte[]> nameCacheStats;
+  private final Cache<Long, String> idCacheStats;
+  /**
+   * Names recently found not to have an ID.
+   * This is {@code null} if the negative cache is disabled.
+   */
+  private final Cache<String, Boolean> unknownNames;
+  /** Number of lookups rejected thanks to {@link #unknownNames}. */
+  private final AtomicLong negativeCacheHits = new AtomicLong();
 
   /** Number of times we avoided reading from HBase thanks to the cache. */
   private volatile int cacheHits;
   /** Number of times we had to read from HBase and populate the cache. */
   private volatile int cacheMisses;
 
+  /**
+   * Asynchronous lookups or assignments in flight, by name.
+   * Concurrent requests for the same name all wait on the same one.
+   */
+  private final ConcurrentHashMap<String, Deferred<byte[]>> pendingAssignments =
+    new ConcurrentHashMap<String, Deferred<byte[]>>();
+  /** Number of asynchronous requests that joined one already in flight. */
+  private final AtomicLong deduplicatedAssignments = new AtomicLong();
+
+  /** Next ID to hand out from the block reserved by {@link #nextId}. */
+  private long nextBlockId = 1;
+  /** Last ID of the block reserved by {@link #nextId} (inclusive). */
+  private long lastBlockId = 0;
+  /** Number of times we had to reserve a new block of IDs. */
+  private final AtomicLong idBlockRefills = new AtomicLong();
+  /** Latency (in ms) of the atomic increments reserving blocks of IDs. */
+  private final RollingHistogram idBlockLatency =
+    new RollingHistogram(16000, (short) 2, 100);
+
+  /**
+   * Index of all the names, used to answer suggestions.
+   * This is {@code null} until {@link #buildSuggestIndex} is called.
+   */
+  private volatile SuggestIndex suggestIndex;
+  /** When the suggest index was last built (in ms), 0 if it's not yet. */
+  private volatile long suggestIndexBuilt;
+  /** Whether the suggest index is being built in the background. */
+  private final AtomicBoolean suggestIndexBuilding = new AtomicBoolean();
+  /** Number of suggestions answered from the index. */
+  private final AtomicLong suggestIndexHits = new AtomicLong();
+  /** Number of suggestions answered by scanning HBase. */
+  private final AtomicLong suggestScans = new AtomicLong();
+
   /**
    * Constructor.
    * @param client The HBase client to use.
@@ -104,6 +211,30 @@ public final class UniqueId implements UniqueIdInterface {
       throw new IllegalArgumentException("Invalid width: " + width);
     }
     this.idWidth = (short) width;
+    final int cache_size = Integer.getInteger("tsd.uid.cache_size." + kind,
+                                              DEFAULT_CACHE_SIZE);
+    nameCacheStats = newCache(cache_size);
+    idCacheStats = newCache(cache_size);
+    nameCache = nameCacheStats.asMap();
+    idCache = idCacheStats.asMap();
+    unknownNames = NEGATIVE_CACHE_TTL <= 0 ? null
+      : CacheBuilder.newBuilder()
+          .expireAfterWrite(NEGATIVE_CACHE_TTL, TimeUnit.SECONDS)
+          .maximumSize(NEGATIVE_CACHE_SIZE)
+          .<String, Boolean>build();
+  }
+
+  /**
+   * Creates a cache.
+   * @param size The maximum number of entries, or 0 for an unbounded cache.
+   */
+  private static <K, V> Cache<K, V> newCache(final int size) {
+    final CacheBuilder<Object, Object> builder =
+      CacheBuilder.newBuilder().recordStats();
+    if (size > 0) {
+      builder.maximumSize(size);
+    }
+    return builder.build();
   }
 
   /** The number of times we avoided reading from HBase thanks to the cache. */
@@ -121,6 +252,62 @@ public final class UniqueId implements UniqueIdInterface {
     return nameCache.size() + idCache.size();
   }
 
+  /**
+   * Returns the number of lookups of names without an ID that were rejected
+   * without asking HBase.
+   */
+  public long negativeCacheHits() {
+    return negativeCacheHits.get();
+  }
+
+  /** Returns the number of elements evicted from the internal cache. */
+  public long cacheEvictions() {
+    return nameCacheStats.stats().evictionCount()
+      + idCacheStats.stats().evictionCount();
+  }
+
+  /** Returns the number of asynchronous lookups or assignments in flight. */
+  public int pendingAssignments() {
+    return pendingAssignments.size();
+  }
+
+  /** Returns the number of times we had to reserve a new block of IDs. */
+  public long idBlockRefills() {
+    return idBlockRefills.get();
+  }
+
+  /** Returns the latency histogram of the reservations of blocks of IDs. */
+  public RollingHistogram idBlockLatency() {
+    return idBlockLatency;
+  }
+
+  /**
+   * Returns the number of asynchronous lookups or assignments that were
+   * merged with one already in flight for the same name.
+   */
+  public long deduplicatedAssignments() {
+    return deduplicatedAssignments.get();
+  }
+
+  /** Returns the number of suggestions answered from the suggest index. */
+  public long suggestIndexHits() {
+    return suggestIndexHits.get();
+  }
+
+  /** Returns the number of suggestions answered by scanning HBase. */
+  public long suggestScans() {
+    return suggestScans.get();
+  }
+
+  /**
+   * Returns the number of names in the suggest index, or -1 if it's not
+   * built yet.
+   */
+  public int suggestIndexSize() {
+    final SuggestIndex index = suggestIndex;
+    return index == null || suggestIndexBuilt == 0 ? -1 : index.size();
+  }
+
   public String kind() {
     return fromBytes(kind);
   }
@@ -129,6 +316,11 @@ public final class UniqueId implements UniqueIdInterface {
     return idWidth;
   }
 
+  /** Returns the name of the table where IDs are stored.  */
+  byte[] table() {
+    return table;
+  }
+
   /**
    * Causes this instance to discard all its in-memory caches.
    * @since 1.1
@@ -136,6 +328,9 @@ public final class UniqueId implements UniqueIdInterface {
   public void dropCaches() {
     nameCache.clear();
     idCache.clear();
+    if (unknownNames != null) {
+      unknownNames.invalidateAll();
+    }
   }
 
   public String getName(final byte[] id) throws NoSuchUniqueId, HBaseException {
@@ -160,7 +355,7 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private String getNameFromCache(final byte[] id) {
-    return idCache.get(fromBytes(id));
+    return idCache.get(idKey(id));
   }
 
   private String getNameFromHBase(final byte[] id) throws HBaseException {
@@ -169,7 +364,7 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   private void addNameToCache(final byte[] id, final String name) {
-    final String key = fromBytes(id);
+    final Long key = idKey(id);
     String found = idCache.get(key);
     if (found == null) {
       found = idCache.putIfAbsent(key, name);
@@ -185,10 +380,11 @@ public final class UniqueId implements UniqueIdInterface {
     if (id != null) {
       cacheHits++;
     } else {
+      checkNotKnownToBeUnknown(name);
       cacheMisses++;
       id = getIdFromHBase(name);
       if (id == null) {
-        throw new NoSuchUniqueName(kind(), name);
+        throw unknownName(name);
       }
       if (id.length != idWidth) {
         throw new IllegalStateException("Found id.length = " + id.length
@@ -201,6 +397,35 @@ public final class UniqueId implements UniqueIdInterface {
     return id;
   }
 
+  /**
+   * Throws if we recently found out this name had no ID.
+   * @throws NoSuchUniqueName if that's the case.
+   */
+  private void checkNotKnownToBeUnknown(final String name) {
+    if (unknownNames != null && unknownNames.getIfPresent(name) != null) {
+      negativeCacheHits.incrementAndGet();
+      throw new NoSuchUniqueName(kind(), name);
+    }
+  }
+
+  /**
+   * Remembers that a name has no ID, for a little while.
+   * @return The exception to throw.
+   */
+  private NoSuchUniqueName unknownName(final String name) {
+    if (unknownNames != null) {
+      unknownNames.put(name, Boolean.TRUE);
+    }
+    return new NoSuchUniqueName(kind(), name);
+  }
+
+  /** Forgets that a name had no ID, as it's being assigned one.  */
+  private void forgetUnknownName(final String name) {
+    if (unknownNames != null) {
+      unknownNames.invalidate(name);
+    }
+  }
+
   private byte[] getIdFromCache(final String name) {
     return nameCache.get(name);
   }
@@ -225,11 +450,193 @@ public final class UniqueId implements UniqueIdInterface {
     }
   }
 
+  /**
+   * Asynchronously finds the ID associated with a given name.
+   * @param name The name to lookup in the table.
+   * @return A deferred {@code byte[]} array, fixed in length by the
+   * implementation.
+   * @throws NoSuchUniqueName (deferred) if the name requested doesn't have
+   * an ID assigned.
+   * @throws HBaseException (deferred) if there is a problem communicating
+   * with HBase.
+   * @see #getId
+   */
+  public Deferred<byte[]> getIdAsync(final String name) {
+    final byte[] id = getIdFromCache(name);
+    if (id != null) {
+      cacheHits++;
+      return Deferred.fromResult(id);
+    }
+    try {
+      checkNotKnownToBeUnknown(name);
+    } catch (NoSuchUniqueName e) {
+      return Deferred.fromError(e);
+    }
+    cacheMisses++;
+    final class GetIdCB implements Callback<byte[], byte[]> {
+      public byte[] call(final byte[] id) {
+        if (id == null) {
+          throw unknownName(name);
+        }
+        cacheId(name, id);
+        return id;
+      }
+      public String toString() {
+        return "cache ID of kind='" + kind() + "' name='" + name + '\'';
+      }
+    }
+    return hbaseGetAsync(toBytes(name), ID_FAMILY).addCallback(new GetIdCB());
+  }
+
+  /**
+   * Asynchronously finds the ID associated with a given name or creates it.
+   * <p>
+   * This never blocks the calling thread: the ID is looked up with a
+   * non-blocking RPC and, if it needs to be assigned, that's done on a
+   * thread dedicated to this purpose.  Concurrent requests for the same
+   * name share a single lookup or assignment.
+   * @param name The name to lookup in the table or to assign an ID to.
+   * @return A deferred {@code byte[]} array, fixed in length by the
+   * implementation.
+   * @throws HBaseException (deferred) if there is a problem communicating
+   * with HBase.
+   * @throws IllegalStateException (deferred) if all possible IDs are already
+   * assigned, or if the ID found in HBase is encoded on the wrong number of
+   * bytes.
+   * @see #getOrCreateId
+   */
+  public Deferred<byte[]> getOrCreateIdAsync(final String name) {
+    final byte[] id = getIdFromCache(name);
+    if (id != null) {
+      cacheHits++;
+      return Deferred.fromResult(id);
+    }
+    Deferred<byte[]> assignment = pendingAssignments.get(name);
+    if (assignment == null) {
+      final Deferred<byte[]> d = new Deferred<byte[]>();
+      assignment = pendingAssignments.putIfAbsent(name, d);
+      if (assignment == null) {
+        cacheMisses++;
+        assignment = d;
+        startAssignment(name, d);
+      } else {
+        deduplicatedAssignments.incrementAndGet();
+      }
+    } else {
+      deduplicatedAssignments.incrementAndGet();
+    }
+    // Hand out a different Deferred to each caller, as the callbacks added
+    // by one of them must not change the result seen by the others.
+    final Deferred<byte[]> result = new Deferred<byte[]>();
+    assignment.chain(result);
+    return result;
+  }
+
+  /**
+   * Looks up a name in HBase and, if it doesn't have an ID, assigns it one
+   * on the {@link #assigner} threads.
+   * @param name The name to lookup or to assign an ID to.
+   * @param assignment The deferred to call back once done.
+   */
+  private void startAssignment(final String name,
+                               final Deferred<byte[]> assignment) {
+    final class Assign implements Runnable {
+      public void run() {
+        Object result;
+        try {
+          result = getOrCreateId(name);
+        } catch (Exception e) {
+          result = e;
+        }
+        completeAssignment(name, assignment, result);
+      }
+    }
+    final class LookupCB implements Callback<Object, byte[]> {
+      public Object call(final byte[] id) {
+        if (id == null) {
+          LOG.info("Assigning an ID for kind='" + kind()
+                   + "' name='" + name + "' in the background");
+          assigner.execute(new Assign());
+        } else {
+          try {
+            cacheId(name, id);
+          } catch (IllegalStateException e) {
+            completeAssignment(name, assignment, e);
+            return null;
+          }
+          completeAssignment(name, assignment, id);
+        }
+        return null;
+      }
+      public String toString() {
+        return "lookup ID of kind='" + kind() + "' name='" + name + '\'';
+      }
+    }
+    final class LookupErrback implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        completeAssignment(name, assignment, e);
+        return null;
+      }
+      public String toString() {
+        return "failed lookup of kind='" + kind() + "' name='" + name + '\'';
+      }
+    }
+    try {
+      hbaseGetAsync(toBytes(name), ID_FAMILY)
+        .addCallbacks(new LookupCB(), new LookupErrback());
+    } catch (RuntimeException e) {
+      completeAssignment(name, assignment, e);
+    }
+  }
+
+  /**
+   * Gives the result of an asynchronous lookup or assignment to everyone
+   * waiting on it.
+   * @param result Either the ID or an {@link Exception}.
+   */
+  private void completeAssignment(final String name,
+                                  final Deferred<byte[]> assignment,
+                                  final Object result) {
+    // Remove it first, so that a request coming in after a failure retries.
+    pendingAssignments.remove(name, assignment);
+    assignment.callback(result);
+  }
+
+  /**
+   * Caches a forward mapping found by scanning the table.
+   * @return {@code false} if the mapping was invalid and wasn't cached.
+   */
+  boolean cacheMapping(final String name, final byte[] id) {
+    try {
+      cacheId(name, id);
+      return true;
+    } catch (IllegalStateException e) {
+      LOG.warn("Not caching invalid mapping for kind='" + kind()
+               + "' name='" + name + "': " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Validates and caches an ID found in HBase.
+   * @throws IllegalStateException if the ID has the wrong width.
+   */
+  private void cacheId(final String name, final byte[] id) {
+    if (id.length != idWidth) {
+      throw new IllegalStateException("Found id.length = " + id.length
+                                      + " which is != " + idWidth
+                                      + " required for '" + kind() + '\'');
+    }
+    addIdToCache(name, id);
+    addNameToCache(id, name);
+  }
+
   public byte[] getOrCreateId(String name) throws HBaseException {
     short attempt = MAX_ATTEMPTS_ASSIGN_ID;
     HBaseException hbe = null;
 
     while (attempt-- > 0) {
+      forgetUnknownName(name);  // Don't trust the negative cache here.
       try {
         return getId(name);
       } catch (NoSuchUniqueName e) {
@@ -237,135 +644,72 @@ public final class UniqueId implements UniqueIdInterface {
                  + "' name='" + name + '\'');
       }
 
-      // The dance to assign an ID.
-      RowLock lock;
+      // Assign an ID.
+      final long id;  // The ID.
+      byte row[];     // The same ID, as a byte array.
       try {
-        lock = getLock();
+        id = nextId();
       } catch (HBaseException e) {
-        try {
-          Thread.sleep(61000 / MAX_ATTEMPTS_ASSIGN_ID);
-        } catch (InterruptedException ie) {
-          break;  // We've been asked to stop here, let's bail out.
-        }
+        LOG.error("Failed to assign an ID, ICV on row="
+                  + Arrays.toString(MAXID_ROW) + " column='" +
+                  fromBytes(ID_FAMILY) + ':' + kind() + '\'', e);
         hbe = e;
         continue;
       }
-      if (lock == null) {  // Should not happen.
-        LOG.error("WTF, got a null pointer as a RowLock!");
+      LOG.info("Got ID=" + id
+               + " for kind='" + kind() + "' name='" + name + "'");
+      row = Bytes.fromLong(id);
+      // Verify that we're going to drop bytes that are 0.
+      for (int i = 0; i < row.length - idWidth; i++) {
+        if (row[i] != 0) {
+          final String message = "All Unique IDs for " + kind()
+            + " on " + idWidth + " bytes are already assigned!";
+          LOG.error("OMG " + message);
+          throw new IllegalStateException(message);
+        }
+      }
+      // Shrink the ID on the requested number of bytes.
+      row = Arrays.copyOfRange(row, row.length - idWidth, row.length);
+      // If we die before the next PutRequest succeeds, we just waste an ID.
+
+      // Create the reverse mapping first, so that if we die before creating
+      // the forward mapping we don't run the risk of "publishing" a
+      // partially assigned ID.  The reverse mapping on its own is harmless
+      // but the forward mapping without reverse mapping is bad.
+      try {
+        final PutRequest reverse_mapping = new PutRequest(
+          table, row, NAME_FAMILY, kind, toBytes(name));
+        hbasePutWithRetry(reverse_mapping, MAX_ATTEMPTS_PUT,
+                          INITIAL_EXP_BACKOFF_DELAY);
+      } catch (HBaseException e) {
+        LOG.error("Failed to Put reverse mapping!  ID leaked: " + id, e);
+        hbe = e;
         continue;
       }
-      // We now have hbase.regionserver.lease.period ms to complete the loop.
 
+      // Now create the forward mapping, unless another TSD beat us to it.
       try {
-        // Verify that the row still doesn't exist (to avoid re-creating it if
-        // it got created before we acquired the lock due to a race condition).
-        try {
-          final byte[] id = getId(name);
+        final PutRequest forward_mapping = new PutRequest(
+          table, toBytes(name), ID_FAMILY, kind, row);
+        if (!hbaseCompareAndSet(forward_mapping)) {
           LOG.info("Race condition, found ID for kind='" + kind()
-                   + "' name='" + name + '\'');
-          return id;
-        } catch (NoSuchUniqueName e) {
-          // OK, the row still doesn't exist, let's create it now.
+                   + "' name='" + name + "', ID leaked: " + id);
+          deleteReverseMapping(row);
+          forgetUnknownName(name);
+          indexName(name);
+          return getId(name);
         }
-
-        // Assign an ID.
-        long id;     // The ID.
-        byte row[];  // The same ID, as a byte array.
-        try {
-          // We want to send an ICV with our explicit RowLock, but HBase's RPC
-          // interface doesn't expose this interface.  Since an ICV would
-          // attempt to lock the row again, and we already locked it, we can't
-          // use ICV here, we have to do it manually while we hold the RowLock.
-          // To be fixed by HBASE-2292.
-          { // HACK HACK HACK
-            {
-              final byte[] current_maxid = hbaseGet(MAXID_ROW, ID_FAMILY, lock);
-              if (current_maxid != null) {
-                if (current_maxid.length == 8) {
-                  id = Bytes.getLong(current_maxid) + 1;
-                } else {
-                  throw new IllegalStateException("invalid current_maxid="
-                      + Arrays.toString(current_maxid));
-                }
-              } else {
-                id = 1;
-              }
-              row = Bytes.fromLong(id);
-            }
-            final PutRequest update_maxid = new PutRequest(
-              table, MAXID_ROW, ID_FAMILY, kind, row, lock);
-            hbasePutWithRetry(update_maxid, MAX_ATTEMPTS_PUT,
-                              INITIAL_EXP_BACKOFF_DELAY);
-          } // end HACK HACK HACK.
-          LOG.info("Got ID=" + id
-                   + " for kind='" + kind() + "' name='" + name + "'");
-          // row.length should actually be 8.
-          if (row.length < idWidth) {
-            throw new IllegalStateException("OMG, row.length = " + row.length
-                                            + " which is less than " + idWidth
-                                            + " for id=" + id
-                                            + " row=" + Arrays.toString(row));
-          }
-          // Verify that we're going to drop bytes that are 0.
-          for (int i = 0; i < row.length - idWidth; i++) {
-            if (row[i] != 0) {
-              final String message = "All Unique IDs for " + kind()
-                + " on " + idWidth + " bytes are already assigned!";
-              LOG.error("OMG " + message);
-              throw new IllegalStateException(message);
-            }
-          }
-          // Shrink the ID on the requested number of bytes.
-          row = Arrays.copyOfRange(row, row.length - idWidth, row.length);
-        } catch (HBaseException e) {
-          LOG.error("Failed to assign an ID, ICV on row="
-                    + Arrays.toString(MAXID_ROW) + " column='" +
-                    fromBytes(ID_FAMILY) + ':' + kind() + '\'', e);
-          hbe = e;
-          continue;
-        } catch (IllegalStateException e) {
-          throw e;  // To avoid handling this exception in the next `catch'.
-        } catch (Exception e) {
-          LOG.error("WTF?  Unexpected exception type when assigning an ID,"
-                    + " ICV on row=" + Arrays.toString(MAXID_ROW) + " column='"
-                    + fromBytes(ID_FAMILY) + ':' + kind() + '\'', e);
-          continue;
-        }
-        // If we die before the next PutRequest succeeds, we just waste an ID.
-
-        // Create the reverse mapping first, so that if we die before creating
-        // the forward mapping we don't run the risk of "publishing" a
-        // partially assigned ID.  The reverse mapping on its own is harmless
-        // but the forward mapping without reverse mapping is bad.
-        try {
-          final PutRequest reverse_mapping = new PutRequest(
-            table, row, NAME_FAMILY, kind, toBytes(name));
-          hbasePutWithRetry(reverse_mapping, MAX_ATTEMPTS_PUT,
-                            INITIAL_EXP_BACKOFF_DELAY);
-        } catch (HBaseException e) {
-          LOG.error("Failed to Put reverse mapping!  ID leaked: " + id, e);
-          hbe = e;
-          continue;
-        }
-
-        // Now create the forward mapping.
-        try {
-          final PutRequest forward_mapping = new PutRequest(
-            table, toBytes(name), ID_FAMILY, kind, row);
-          hbasePutWithRetry(forward_mapping, MAX_ATTEMPTS_PUT,
-                            INITIAL_EXP_BACKOFF_DELAY);
-        } catch (HBaseException e) {
-          LOG.error("Failed to Put forward mapping!  ID leaked: " + id, e);
-          hbe = e;
-          continue;
-        }
-
-        addIdToCache(name, row);
-        addNameToCache(row, name);
-        return row;
-      } finally {
-        unlock(lock);
+      } catch (HBaseException e) {
+        LOG.error("Failed to Put forward mapping!  ID leaked: " + id, e);
+        hbe = e;
+        continue;
       }
+
+      addIdToCache(name, row);
+      addNameToCache(row, name);
+      forgetUnknownName(name);
+      indexName(name);
+      return row;
     }
     if (hbe == null) {
       throw new IllegalStateException("Should never happen!");
@@ -375,6 +719,55 @@ public final class UniqueId implements UniqueIdInterface {
     throw hbe;
   }
 
+  /**
+   * Deletes the reverse mapping of an ID we failed to assign, so the leaked
+   * ID doesn't map back to a name that has another ID.  A failure is only
+   * logged, since such a reverse mapping is never used to read data.
+   */
+  private void deleteReverseMapping(final byte[] row) {
+    try {
+      final DeleteRequest reverse_mapping = new DeleteRequest(
+        table, row, NAME_FAMILY, kind);
+      client.delete(reverse_mapping).joinUninterruptibly();
+    } catch (Exception e) {
+      LOG.warn("Failed to delete the reverse mapping of the leaked ID="
+               + Arrays.toString(row) + " for kind='" + kind() + '\'', e);
+    }
+  }
+
+  /**
+   * Hands out the next ID of the block reserved by this instance, reserving
+   * a new block first if needed.
+   * <p>
+   * Blocks are reserved with an atomic increment of the max ID cell by
+   * {@link #ID_BLOCK_SIZE}, so other TSDs only contend on that cell once
+   * every so many IDs.  The IDs left in the block are lost if we die.
+   * @throws HBaseException if the block couldn't be reserved.
+   */
+  private synchronized long nextId() throws HBaseException {
+    if (nextBlockId > lastBlockId) {
+      final long start_time = System.nanoTime();
+      final long max_id;
+      try {
+        max_id = client.atomicIncrement(new AtomicIncrementRequest(
+          table, MAXID_ROW, ID_FAMILY, kind, ID_BLOCK_SIZE))
+          .joinUninterruptibly();
+      } catch (HBaseException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException("Should never be here", e);
+      } finally {
+        idBlockLatency.add((int) ((System.nanoTime() - start_time) / 1000000));
+      }
+      idBlockRefills.incrementAndGet();
+      nextBlockId = max_id - ID_BLOCK_SIZE + 1;
+      lastBlockId = max_id;
+      LOG.info("Reserved IDs " + nextBlockId + " to " + lastBlockId
+               + " for kind='" + kind() + '\'');
+    }
+    return nextBlockId++;
+  }
+
   /**
    * Attempts to find suggestions of names given a search term.
    * @param search The search term (possibly empty).
@@ -385,8 +778,19 @@ public final class UniqueId implements UniqueIdInterface {
    * HBase.
    */
   public List<String> suggest(final String search) throws HBaseException {
-    // TODO(tsuna): Add caching to try to avoid re-scanning the same thing.
-    final Scanner scanner = getSuggestScanner(search);
+    final byte[][] range = suggestRange(search);
+    final SuggestIndex index = suggestIndex;
+    if (index != null && suggestIndexBuilt != 0) {
+      if (SUGGEST_INDEX_TTL > 0 && System.currentTimeMillis()
+          - suggestIndexBuilt > SUGGEST_INDEX_TTL * 1000L) {
+        buildSuggestIndex();  // Keep serving the old one in the mean time.
+      }
+      suggestIndexHits.incrementAndGet();
+      return index.suggest(fromBytes(range[0]), fromBytes(range[1]),
+                           MAX_SUGGESTIONS);
+    }
+    suggestScans.incrementAndGet();
+    final Scanner scanner = getSuggestScanner(range);
     final LinkedList<String> suggestions = new LinkedList<String>();
     try {
       ArrayList<ArrayList<KeyValue>> rows;
@@ -425,6 +829,105 @@ public final class UniqueId implements UniqueIdInterface {
     return suggestions;
   }
 
+  /**
+   * Builds the index used to answer suggestions, in the background.
+   * <p>
+   * Until the index is built, suggestions are found by scanning HBase.
+   * Once it is, the names assigned or renamed by this instance are kept up
+   * to date in it, and the whole index is periodically rebuilt to pick up
+   * those assigned by other processes.  This does nothing if the index is
+   * already being built.  The index is given up on if there are more than
+   * {@code tsd.uid.suggest_index_max_names} names (1000000 by default).
+   */
+  public void buildSuggestIndex() {
+    if (!suggestIndexBuilding.compareAndSet(false, true)) {
+      return;
+    }
+    final Thread builder = new Thread("Suggest index builder for "
+                                      + kind()) {
+      public void run() {
+        try {
+          loadSuggestIndex();
+        } catch (Exception e) {
+          LOG.error("Failed to build the suggest index for kind='"
+                    + kind() + '\'', e);
+        } finally {
+          suggestIndexBuilding.set(false);
+        }
+      }
+    };
+    builder.setDaemon(true);
+    builder.start();
+  }
+
+  /**
+   * Scans all the names of the table and (re)builds the suggest index.
+   * @return The number of names in the index, or -1 if there are too many.
+   * @throws HBaseException if there was a problem scanning HBase.
+   */
+  int loadSuggestIndex() throws HBaseException {
+    if (suggestIndex == null) {
+      synchronized (this) {
+        if (suggestIndex == null) {
+          suggestIndex = new SuggestIndex();
+        }
+      }
+    }
+    // Names assigned from now on go in the index while we scan.
+    final long start_time = System.currentTimeMillis();
+    final SuggestIndex.Packer names = new SuggestIndex.Packer();
+    final Scanner scanner = client.newScanner(table);
+    scanner.setStartKey(new byte[] { 1 });  // Skip the MAXID_ROW.
+    scanner.setFamily(ID_FAMILY);
+    scanner.setQualifier(kind);
+    scanner.setMaxNumRows(1024);
+    try {
+      ArrayList<ArrayList<KeyValue>> rows;
+      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        for (final ArrayList<KeyValue> row : rows) {
+          if (!row.isEmpty()) {
+            names.add(row.get(0).key());
+          }
+        }
+        if (names.size() > SUGGEST_INDEX_MAX_NAMES) {
+          dropSuggestIndex();
+          return -1;
+        }
+      }
+    } catch (HBaseException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    } finally {
+      scanner.close();
+    }
+    suggestIndex.reset(names);
+    suggestIndexBuilt = System.currentTimeMillis();
+    LOG.info("Indexed " + names.size() + " names of kind='" + kind()
+             + "' for suggestions in " + (suggestIndexBuilt - start_time)
+             + "ms");
+    return suggestIndex.size();
+  }
+
+  /** Adds a name to the suggest index, if there's one.  */
+  private void indexName(final String name) {
+    final SuggestIndex index = suggestIndex;
+    if (index != null) {
+      index.add(name);
+      if (index.size() > SUGGEST_INDEX_MAX_NAMES) {
+        dropSuggestIndex();
+      }
+    }
+  }
+
+  /** Gives up on the suggest index because it has too many names.  */
+  private void dropSuggestIndex() {
+    suggestIndexBuilt = 0;
+    suggestIndex = null;
+    LOG.warn("More than " + SUGGEST_INDEX_MAX_NAMES + " names of kind='"
+             + kind() + "', not indexing them for suggestions");
+  }
+
   /**
    * Reassigns the UID to a different name (non-atomic).
    * <p>
@@ -444,6 +947,7 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public void rename(final String oldname, final String newname) {
     final byte[] row = getId(oldname);
+    forgetUnknownName(newname);  // Make sure we check with HBase.
     {
       byte[] id = null;
       try {
@@ -491,8 +995,14 @@ public final class UniqueId implements UniqueIdInterface {
 
     // Update cache.
     addIdToCache(newname, row);            // add     new name -> ID
-    idCache.put(fromBytes(row), newname);  // update  ID -> new name
+    idCache.put(idKey(row), newname);      // update  ID -> new name
     nameCache.remove(oldname);             // remove  old name -> ID
+    forgetUnknownName(newname);
+    final SuggestIndex index = suggestIndex;
+    if (index != null) {
+      index.remove(oldname);
+      index.add(newname);
+    }
 
     // Delete the old forward mapping.
     try {
@@ -521,9 +1031,10 @@ public final class UniqueId implements UniqueIdInterface {
   private static final byte[] END_ROW = new byte[] { '~' };
 
   /**
-   * Creates a scanner that scans the right range of rows for suggestions.
+   * Returns the range of rows to look at for suggestions.
+   * @return The start row (inclusive) and the end row (exclusive).
    */
-  private Scanner getSuggestScanner(final String search) {
+  private static byte[][] suggestRange(final String search) {
     final byte[] start_row;
     final byte[] end_row;
     if (search.isEmpty()) {
@@ -534,59 +1045,72 @@ public final class UniqueId implements UniqueIdInterface {
       end_row = Arrays.copyOf(start_row, start_row.length);
       end_row[start_row.length - 1]++;
     }
+    return new byte[][] { start_row, end_row };
+  }
+
+  /**
+   * Creates a scanner that scans the given range of rows for suggestions.
+   */
+  private Scanner getSuggestScanner(final byte[][] range) {
     final Scanner scanner = client.newScanner(table);
-    scanner.setStartKey(start_row);
-    scanner.setStopKey(end_row);
+    scanner.setStartKey(range[0]);
+    scanner.setStopKey(range[1]);
     scanner.setFamily(ID_FAMILY);
     scanner.setQualifier(kind);
     scanner.setMaxNumRows(MAX_SUGGESTIONS);
     return scanner;
   }
 
-  /** Gets an exclusive lock for on the table using the MAXID_ROW.
-   * The lock expires after hbase.regionserver.lease.period ms
-   * (default = 60000)
-   * @throws HBaseException if the row lock couldn't be acquired.
-   */
-  private RowLock getLock() throws HBaseException {
+  /** Returns the cell of the specified row key, using family:kind. */
+  private byte[] hbaseGet(final byte[] key,
+                          final byte[] family) throws HBaseException {
+    final GetRequest get = new GetRequest(table, key);
+    get.family(family).qualifier(kind);
     try {
-      return client.lockRow(new RowLockRequest(table, MAXID_ROW)).joinUninterruptibly();
+      final ArrayList<KeyValue> row = client.get(get).joinUninterruptibly();
+      if (row == null || row.isEmpty()) {
+        return null;
+      }
+      return row.get(0).value();
     } catch (HBaseException e) {
-      LOG.warn("Failed to lock the `MAXID_ROW' row", e);
       throw e;
     } catch (Exception e) {
       throw new RuntimeException("Should never be here", e);
     }
   }
 
-  /** Releases the lock passed in argument. */
-  private void unlock(final RowLock lock) {
-    try {
-      client.unlockRow(lock);
-    } catch (HBaseException e) {
-      LOG.error("Error while releasing the lock on row `MAXID_ROW'", e);
+  /**
+   * Asynchronously returns the cell of the specified row key, using
+   * family:kind, or {@code null} if there's no such cell.
+   */
+  private Deferred<byte[]> hbaseGetAsync(final byte[] key,
+                                         final byte[] family) {
+    final GetRequest get = new GetRequest(table, key);
+    get.family(family).qualifier(kind);
+    final class GetCB implements Callback<byte[], ArrayList<KeyValue>> {
+      public byte[] call(final ArrayList<KeyValue> row) {
+        if (row == null || row.isEmpty()) {
+          return null;
+        }
+        return row.get(0).value();
+      }
+      public String toString() {
+        return "get cell of " + UniqueId.this;
+      }
     }
+    return client.get(get).addCallback(new GetCB());
   }
 
-  /** Returns the cell of the specified row, using family:kind. */
-  private byte[] hbaseGet(final byte[] row, final byte[] family) throws HBaseException {
-    return hbaseGet(row, family, null);
-  }
-
-  /** Returns the cell of the specified row key, using family:kind. */
-  private byte[] hbaseGet(final byte[] key, final byte[] family,
-                          final RowLock lock) throws HBaseException {
-    final GetRequest get = new GetRequest(table, key);
-    if (lock != null) {
-      get.withRowLock(lock);
-    }
-    get.family(family).qualifier(kind);
+  /**
+   * Stores the PutRequest given in argument unless its cell already exists.
+   * @return {@code false} if the cell already existed.
+   * @throws HBaseException if the RPC failed.
+   */
+  private boolean hbaseCompareAndSet(final PutRequest put)
+    throws HBaseException {
     try {
-      final ArrayList<KeyValue> row = client.get(get).joinUninterruptibly();
-      if (row == null || row.isEmpty()) {
-        return null;
-      }
-      return row.get(0).value();
+      return client.compareAndSet(put, HBaseClient.EMPTY_ARRAY)
+        .joinUninterruptibly();
     } catch (HBaseException e) {
       throw e;
     } catch (Exception e) {
@@ -633,11 +1157,20 @@ public final class UniqueId implements UniqueIdInterface {
     throw new IllegalStateException("This code should never be reached!");
   }
 
+  /** Packs an ID in a long, to use as a key in {@link #idCache}. */
+  private static Long idKey(final byte[] id) {
+    long key = 0;
+    for (final byte b : id) {
+      key = (key << 8) | (b & 0xFF);
+    }
+    return key;
+  }
+
   private static byte[] toBytes(final String s) {
     return s.getBytes(CHARSET);
   }
 
-  private static String fromBytes(final byte[] b) {
+  static String fromBytes(final byte[] b) {
     return new String(b, CHARSET);
   }
 
@@ -0,0 +1,114 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import junit.framework.TestCase;
+
+public final class TestAdaptiveCompactionPolicy extends TestCase {
+
+  private static final int INTERVAL = 10;
+  private static final int TARGET_DELAY = 1800;
+  private static final int MIN_FLUSH = 100;
+  private static final int MAX_CONCURRENCY = 1000;
+  private static final int MAX_LATENCY = 1000;
+
+  private final long now = System.currentTimeMillis();
+
+  private AdaptiveCompactionPolicy newPolicy(final int max_rpc_rate) {
+    return new AdaptiveCompactionPolicy(INTERVAL, TARGET_DELAY, MIN_FLUSH,
+                                        MAX_CONCURRENCY, MAX_LATENCY,
+                                        max_rpc_rate, now);
+  }
+
+  public void testNothingToCompact() {
+    final AdaptiveCompactionPolicy policy = newPolicy(0);
+    assertEquals(0, policy.maxFlushes(0, -1, now));
+    assertEquals(0, policy.maxFlushes(100000, -1, now));
+  }
+
+  public void testSpreadsWorkUntilDeadline() {
+    final AdaptiveCompactionPolicy policy = newPolicy(0);
+    // 1000s left out of 1800: flush 1% of the rows every 10s.
+    assertEquals(1000, policy.maxFlushes(100000, 800, now));
+    // But never less than the minimum.
+    assertEquals(MIN_FLUSH, policy.maxFlushes(1000, 800, now));
+  }
+
+  public void testFlushesEverythingWhenLate() {
+    final AdaptiveCompactionPolicy policy = newPolicy(0);
+    assertEquals(100000, policy.maxFlushes(100000, TARGET_DELAY, now));
+    assertEquals(100000, policy.maxFlushes(100000, TARGET_DELAY * 2, now));
+  }
+
+  public void testRateLimit() {
+    final AdaptiveCompactionPolicy policy = newPolicy(300);
+    // The budget starts with one interval's worth of RPCs: 3000 RPCs, which
+    // is enough for 1000 rows.
+    assertEquals(1000, policy.maxFlushes(100000, TARGET_DELAY, now));
+    // Another shard can't get any: the rows were reserved for the first one.
+    assertEquals(0, policy.maxFlushes(100000, TARGET_DELAY, now));
+    // 1s later, we have enough for 100 more rows.
+    assertEquals(100, policy.maxFlushes(100000, TARGET_DELAY, now + 1000));
+  }
+
+  public void testUnusedRowsAreGivenBack() {
+    final AdaptiveCompactionPolicy policy = newPolicy(300);
+    assertEquals(1000, policy.maxFlushes(100000, TARGET_DELAY, now));
+    policy.unused(400);  // The shard only had 600 rows old enough.
+    assertEquals(400, policy.maxFlushes(100000, TARGET_DELAY, now));
+    // The budget never holds more than one interval's worth.
+    policy.unused(400);
+    policy.unused(5000);
+    assertEquals(1000, policy.maxFlushes(100000, TARGET_DELAY, now));
+  }
+
+  public void testSlowCompactionsReduceConcurrency() {
+    final AdaptiveCompactionPolicy policy = newPolicy(0);
+    assertEquals(MAX_CONCURRENCY, policy.maxConcurrentFlushes());
+    for (int i = 0; i < 100; i++) {
+      policy.compacted(MAX_LATENCY * 4, true);
+    }
+    // Adjusted at most once per interval.
+    policy.maxFlushes(0, -1, now);
+    assertEquals(MAX_CONCURRENCY, policy.maxConcurrentFlushes());
+    policy.maxFlushes(0, -1, now + INTERVAL * 1000);
+    assertEquals(MAX_CONCURRENCY / 2, policy.maxConcurrentFlushes());
+  }
+
+  public void testConcurrencyGrowsBack() {
+    final AdaptiveCompactionPolicy policy = newPolicy(0);
+    for (int i = 0; i < 100; i++) {
+      policy.compacted(MAX_LATENCY * 4, true);
+    }
+    policy.maxFlushes(0, -1, now + INTERVAL * 1000);
+    assertEquals(MAX_CONCURRENCY / 2, policy.maxConcurrentFlushes());
+    // Now compactions are fast.
+    for (int i = 0; i < 10000; i++) {
+      policy.compacted(1, true);
+    }
+    policy.maxFlushes(0, -1, now + INTERVAL * 2000);
+    assertEquals(MAX_CONCURRENCY / 2 + MAX_CONCURRENCY / 10,
+                 policy.maxConcurrentFlushes());
+  }
+
+  public void testInvalidArguments() {
+    try {
+      new AdaptiveCompactionPolicy(0, TARGET_DELAY, MIN_FLUSH,
+                                   MAX_CONCURRENCY, MAX_LATENCY, 0, now);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+}
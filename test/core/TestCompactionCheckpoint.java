@@ -0,0 +1,163 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.when;
+
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ CompactionQueue.class, CompactionQueue.Thrd.class,
+                  TSDB.class, UniqueId.class })
+public final class TestCompactionCheckpoint {
+
+  private static final byte[] KEY = { 0, 0, 1, 78, 36, -84, 42, 0, 0, 1, 0, 0, 2 };
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private File dir;
+  private CompactionCheckpoint checkpoint;
+
+  @Before
+  public void before() throws Exception {
+    dir = File.createTempFile("checkpoint", "");
+    dir.delete();
+    dir.mkdir();
+    final UniqueId metrics = mock(UniqueId.class);
+    when(metrics.width()).thenReturn((short) 3);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    // Stub out the compaction thread, so it doesn't even start.
+    PowerMockito.whenNew(CompactionQueue.Thrd.class)
+      .withArguments(any(CompactionQueue.Shard.class))
+      .thenReturn(mock(CompactionQueue.Thrd.class));
+  }
+
+  @After
+  public void after() {
+    if (checkpoint != null) {
+      checkpoint.close();
+    }
+    for (final File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void reloadAfterShutdown() throws Exception {
+    final CompactionQueue compactionq = new CompactionQueue(tsdb);
+    checkpoint = newCheckpoint(compactionq);
+    addRows(compactionq, 10);
+    checkpoint.close();
+
+    assertEquals(10, reload());
+  }
+
+  @Test
+  public void reloadAfterCrash() throws Exception {
+    final CompactionQueue compactionq = new CompactionQueue(tsdb);
+    final CompactionCheckpoint crashed = newCheckpoint(compactionq);
+    addRows(compactionq, 10);
+    Whitebox.invokeMethod(crashed, "flush");
+    // Stop the background thread without writing a last snapshot.
+    Whitebox.setInternalState(crashed, "closed", true);
+
+    assertEquals(10, reload());
+  }
+
+  @Test
+  public void truncatedLog() throws Exception {
+    final CompactionQueue compactionq = new CompactionQueue(tsdb);
+    final CompactionCheckpoint crashed = newCheckpoint(compactionq);
+    addRows(compactionq, 10);
+    Whitebox.invokeMethod(crashed, "flush");
+    Whitebox.setInternalState(crashed, "closed", true);
+    for (final File f : dir.listFiles()) {
+      if (f.getName().endsWith(".log")) {
+        final FileOutputStream out = new FileOutputStream(f, true);
+        out.write(new byte[] { 0, 13, 1, 2 });  // Torn write.
+        out.close();
+      }
+    }
+
+    assertEquals(10, reload());
+  }
+
+  @Test
+  public void compactedRowsAreForgotten() throws Exception {
+    when(tsdb.get(any(byte[].class))).thenAnswer(new Answer<Deferred<ArrayList<KeyValue>>>() {
+      public Deferred<ArrayList<KeyValue>> answer(final InvocationOnMock unused) {
+        return Deferred.fromResult(new ArrayList<KeyValue>(0));
+      }
+    });
+    final CompactionQueue compactionq = new CompactionQueue(tsdb);
+    checkpoint = newCheckpoint(compactionq);
+    addRows(compactionq, 10);
+    compactionq.flush().joinUninterruptibly();
+    checkpoint.close();
+
+    assertEquals(0, reload());
+  }
+
+  private CompactionCheckpoint newCheckpoint(final CompactionQueue compactionq) {
+    return new CompactionCheckpoint(compactionq, (short) 3, dir);
+  }
+
+  /** Adds rows of different series to a queue, each twice.  */
+  private static void addRows(final CompactionQueue compactionq,
+                              final int n) {
+    for (int i = 0; i < n; i++) {
+      final byte[] row = KEY.clone();
+      row[row.length - 1] = (byte) i;
+      compactionq.add(row);
+      compactionq.add(row);
+    }
+  }
+
+  /** Returns the number of rows a new TSD would find in the checkpoint. */
+  private int reload() {
+    final CompactionQueue compactionq = new CompactionQueue(tsdb);
+    checkpoint = newCheckpoint(compactionq);
+    return compactionq.size();
+  }
+
+}
@@ -13,21 +13,31 @@
 package net.opentsdb.core;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
 
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 
 import net.opentsdb.uid.UniqueId;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -60,11 +70,14 @@ final class TestCompactionQueue {
   @Before
   public void before() throws Exception {
     // Inject the attributes we need into the "tsdb" object.
-    Whitebox.setInternalState(tsdb, "metrics", mock(UniqueId.class));
+    final UniqueId metrics = mock(UniqueId.class);
+    when(metrics.width()).thenReturn((short) 3);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
     Whitebox.setInternalState(tsdb, "table", TABLE);
     Whitebox.setInternalState(TSDB.class, "enable_compactions", true);
     // Stub out the compaction thread, so it doesn't even start.
-    PowerMockito.whenNew(CompactionQueue.Thrd.class).withNoArguments()
+    PowerMockito.whenNew(CompactionQueue.Thrd.class)
+      .withArguments(any(CompactionQueue.Shard.class))
       .thenReturn(mock(CompactionQueue.Thrd.class));
     compactionq = new CompactionQueue(tsdb);
 
@@ -179,6 +192,64 @@ final class TestCompactionQueue {
     compactionq.compact(kvs);
   }
 
+  @Test(expected=IllegalDataException.class)
+  public void overlappingCompactedCells() throws Exception {
+    // Two compacted cells with a data point at the same time delta, but
+    // with different values.
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] qual2 = { 0x00, 0x17 };
+    kvs.add(makekv(concat(qual1, qual2),
+                   concat(Bytes.fromLong(4L), Bytes.fromLong(5L), ZERO)));
+    kvs.add(makekv(concat(qual1, qual2),
+                   concat(Bytes.fromLong(4L), Bytes.fromLong(6L), ZERO)));
+
+    compactionq.compact(kvs);
+  }
+
+  @Test(expected=IllegalDataException.class)
+  public void truncatedCompactedCell() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] qual2 = { 0x00, 0x17 };
+    kvs.add(makekv(qual1, Bytes.fromLong(4L)));
+    // The second value is missing.
+    kvs.add(makekv(concat(qual1, qual2), concat(Bytes.fromLong(4L), ZERO)));
+
+    compactionq.compact(kvs);
+  }
+
+  @Test
+  public void complexCompactSameAsSortingAllValues() throws Exception {
+    // Compares the merge with the obvious implementation, on random rows
+    // with individual cells, overlapping compacted cells, unsorted compacted
+    // cells, duplicates, and floating point values to fix.
+    final Random random = new Random(42);
+    for (int n = 0; n < 1000; n++) {
+      final ArrayList<KeyValue> row = randomRow(random);
+      KeyValue expected = null;
+      try {
+        expected = sortAndMerge(row);
+      } catch (IllegalDataException e) {
+        // The merge must fail too.
+      }
+      KeyValue actual = null;
+      try {
+        actual = CompactionQueue.complexCompact(row);
+      } catch (IllegalDataException e) {
+        // Checked below.
+      }
+      if (expected == null) {
+        assertEquals("row #" + n + ": " + row, null, actual);
+      } else {
+        assertArrayEquals("row #" + n + ": " + row,
+                          expected.qualifier(), actual.qualifier());
+        assertArrayEquals("row #" + n + ": " + row,
+                          expected.value(), actual.value());
+      }
+    }
+  }
+
   @Test
   public void failedCompactNoop() throws Exception {
     // In this case, the row contains both the compacted form as well as the
@@ -298,6 +369,228 @@ final class TestCompactionQueue {
     verify(tsdb, times(1)).delete(KEY, new byte[][] { qual1, qual12, qual13, qual3, qual2 });
   }
 
+  @Test
+  public void flushAllShards() throws Exception {
+    stubEmptyGet();
+    // Rows of many different series, so they're spread over the shards.
+    for (int i = 0; i < 100; i++) {
+      final byte[] row = KEY.clone();
+      row[row.length - 1] = (byte) i;
+      compactionq.add(row);
+      compactionq.add(row);  // Adding a row twice doesn't count.
+    }
+    assertEquals(100, compactionq.size());
+
+    compactionq.flush().joinUninterruptibly();
+
+    // Every row was old enough to be compacted, whatever its shard.
+    verify(tsdb, times(100)).get(anyBytes());
+    assertEquals(0, compactionq.size());
+  }
+
+  @Test
+  public void unusedFlushesAreGivenBack() throws Exception {
+    stubEmptyGet();
+    final CompactionPolicy policy = mock(CompactionPolicy.class);
+    when(policy.maxConcurrentFlushes()).thenReturn(1000000);
+    Whitebox.setInternalState(compactionq, "policy", policy);
+    compactionq.add(KEY);
+    CompactionQueue.Shard shard = null;
+    for (final CompactionQueue.Shard s : (CompactionQueue.Shard[])
+           Whitebox.getInternalState(compactionq, "shards")) {
+      if (s.size() != 0) {
+        shard = s;
+      }
+    }
+
+    // The policy let us flush 10 rows, but the shard only had one.
+    shard.flush(Long.MAX_VALUE, 10, true).joinUninterruptibly();
+
+    verify(tsdb, times(1)).get(anyBytes());
+    verify(policy).unused(9);
+    verify(policy).compacted(anyInt(), eq(true));
+  }
+
+  @Test
+  public void failedRowsAreNoLongerInFlight() throws Exception {
+    // The first row needs an fsck, the other one compacts fine.
+    final ArrayList<KeyValue> bad = new ArrayList<KeyValue>(2);
+    bad.add(makekv(new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L)));
+    bad.add(makekv(new byte[] { 0x00, 0x03 }, Bytes.fromInt(4)));
+    final byte[] other = KEY.clone();
+    other[other.length - 1] = 3;
+    when(tsdb.get(KEY)).thenReturn(Deferred.fromResult(bad));
+    when(tsdb.get(other))
+      .thenReturn(Deferred.fromResult(new ArrayList<KeyValue>(0)));
+    compactionq.add(KEY);
+    compactionq.add(other);
+
+    try {
+      compactionq.flush().joinUninterruptibly();
+      fail("Should have thrown a DeferredGroupException");
+    } catch (DeferredGroupException e) {
+      // Expected.
+    }
+
+    // Neither row would be checkpointed again.
+    for (int i = 0; i < compactionq.numShards(); i++) {
+      assertEquals(0, compactionq.rows(i).size());
+    }
+  }
+
+  @Test
+  public void compactFromBuffer() throws Exception {
+    final CompactionQueue buffered = new CompactionQueue(tsdb, 1 << 20);
+    // Pretend we started before the row.
+    Whitebox.setInternalState(buffered, "start_time", 0L);
+    final byte[] key = recentKey();
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual3 = { 0x00, 0x2B };  // +2s, float, 4 bytes.
+    final byte[] val3 = Bytes.fromInt(Float.floatToRawIntBits(4.2F));
+    // Out of order, and with a data point written twice.
+    buffered.add(key, Bytes.getShort(qual2), val2);
+    buffered.add(key, Bytes.getShort(qual1), val1);
+    buffered.add(key, Bytes.getShort(qual3), val3);
+    buffered.add(key, Bytes.getShort(qual2), val2);
+
+    buffered.flush(Long.MAX_VALUE).joinUninterruptibly();
+
+    // We didn't need to read the row back.
+    verify(tsdb, never()).get(anyBytes());
+    verify(tsdb, times(1)).put(key, concat(qual1, qual2, qual3),
+                               concat(val1, val2, val3, ZERO));
+    final ArgumentCaptor<byte[][]> deleted =
+      ArgumentCaptor.forClass(byte[][].class);
+    verify(tsdb, times(1)).delete(eq(key), deleted.capture());
+    assertArrayEquals(new byte[][] { qual1, qual2, qual3 }, deleted.getValue());
+  }
+
+  @Test
+  public void compactFromBufferOverwrittenDataPoint() throws Exception {
+    final CompactionQueue buffered = new CompactionQueue(tsdb, 1 << 20);
+    // Pretend we started before the row.
+    Whitebox.setInternalState(buffered, "start_time", 0L);
+    final byte[] key = recentKey();
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] val2b = Bytes.fromLong(6L);
+    final byte[] val2c = Bytes.fromLong(7L);
+    // The same timestamp written with different values, out of order.
+    buffered.add(key, Bytes.getShort(qual2), val2);
+    buffered.add(key, Bytes.getShort(qual1), val1);
+    buffered.add(key, Bytes.getShort(qual2), val2b);
+    buffered.add(key, Bytes.getShort(qual2), val2c);
+
+    buffered.flush(Long.MAX_VALUE).joinUninterruptibly();
+
+    // Like HBase, we only keep the last value written.
+    verify(tsdb, never()).get(anyBytes());
+    verify(tsdb, times(1)).put(key, concat(qual1, qual2),
+                               concat(val1, val2c, ZERO));
+    final ArgumentCaptor<byte[][]> deleted =
+      ArgumentCaptor.forClass(byte[][].class);
+    verify(tsdb, times(1)).delete(eq(key), deleted.capture());
+    assertArrayEquals(new byte[][] { qual1, qual2 }, deleted.getValue());
+  }
+
+  @Test
+  public void readBackRowWithUnknownDataPoints() throws Exception {
+    stubEmptyGet();
+    final CompactionQueue buffered = new CompactionQueue(tsdb, 1 << 20);
+    Whitebox.setInternalState(buffered, "start_time", 0L);
+    final byte[] key = recentKey();
+    buffered.add(key, (short) 0x07, Bytes.fromLong(4L));
+    buffered.add(key);  // A data point we don't know about.
+
+    buffered.flush(Long.MAX_VALUE).joinUninterruptibly();
+
+    verify(tsdb, times(1)).get(key);
+  }
+
+  @Test
+  public void readBackRowOlderThanUs() throws Exception {
+    stubEmptyGet();
+    final CompactionQueue buffered = new CompactionQueue(tsdb, 1 << 20);
+    // We may have missed data points written to KEY before we started.
+    buffered.add(KEY, (short) 0x07, Bytes.fromLong(4L));
+
+    buffered.flush(Long.MAX_VALUE).joinUninterruptibly();
+
+    verify(tsdb, times(1)).get(KEY);
+  }
+
+  @Test
+  public void compactNowWritesRecentRows() throws Exception {
+    final byte[] key = recentKey();
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(new KeyValue(key, FAMILY, qual1, val1));
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(new KeyValue(key, FAMILY, qual2, val2));
+
+    compactionq.compactNow(kvs).joinUninterruptibly();
+
+    // Unlike a compaction on read, the row is written back even though
+    // it's recent.
+    verify(tsdb, times(1)).put(key, concat(qual1, qual2),
+                               concat(val1, val2, ZERO));
+    verify(tsdb, times(1)).delete(key, new byte[][] { qual1, qual2 });
+  }
+
+  @Test
+  public void compressedCell() throws Exception {
+    Whitebox.setInternalState(compactionq, "compress_cells", true);
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(3);
+    byte[] quals = new byte[0];
+    byte[] vals = new byte[0];
+    for (int i = 0; i < 3; i++) {
+      final byte[] qual = { 0x00, (byte) (0x07 | i << 4) };
+      final byte[] val = Bytes.fromLong(40L + i);
+      kvs.add(makekv(qual, val));
+      quals = concat(quals, qual);
+      vals = concat(vals, val);
+    }
+    final KeyValue compressed =
+      CompressedCell.encode(makekv(quals, concat(vals, ZERO)));
+
+    final KeyValue kv = compactionq.compact(kvs);
+
+    // The compressed form is written, the caller gets the regular one.
+    assertArrayEquals(quals, kv.qualifier());
+    verify(tsdb, times(1)).put(KEY, compressed.qualifier(),
+                               compressed.value());
+    verify(tsdb, times(1)).delete(eq(KEY), any(byte[][].class));
+  }
+
+  @Test
+  public void mergeCompressedCell() throws Exception {
+    // A compressed cell with 3 data points, and a 4th that came late.
+    final byte[] quals = { 0x00, 0x07, 0x00, 0x17, 0x00, 0x27 };
+    final byte[] vals = concat(Bytes.fromLong(4L), Bytes.fromLong(5L),
+                               Bytes.fromLong(6L));
+    final KeyValue compressed =
+      CompressedCell.encode(makekv(quals, concat(vals, ZERO)), true);
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(compressed);
+    final byte[] qual4 = { 0x00, 0x37 };
+    kvs.add(makekv(qual4, Bytes.fromLong(7L)));
+
+    compactionq.compact(kvs);
+
+    // Compressed cells aren't written by default, but can be merged.
+    verify(tsdb, times(1)).put(KEY, concat(quals, qual4),
+                               concat(vals, Bytes.fromLong(7L), ZERO));
+    verify(tsdb, times(1)).delete(KEY, new byte[][] {
+      compressed.qualifier(), qual4 });
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
@@ -322,6 +615,143 @@ final class TestCompactionQueue {
     return result;
   }
 
+  /**
+   * Makes a random row to compact, with at least one compacted cell.
+   * About 1 row in 10 has conflicting data points.
+   */
+  private static ArrayList<KeyValue> randomRow(final Random random) {
+    final int npoints = 2 + random.nextInt(50);
+    final byte[][] qualifiers = new byte[npoints][];
+    final byte[][] values = new byte[npoints][];
+    short delta = 0;
+    for (int i = 0; i < npoints; i++) {
+      delta += 1 + random.nextInt(60);
+      if (random.nextBoolean()) {
+        qualifiers[i] = Bytes.fromShort((short) (delta << Const.FLAG_BITS
+                                                 | 0x7));
+        values[i] = Bytes.fromLong(random.nextInt(3));
+      } else {
+        qualifiers[i] = Bytes.fromShort((short) (delta << Const.FLAG_BITS
+                                                 | Const.FLAG_FLOAT | 0x3));
+        values[i] = Bytes.fromInt(random.nextInt(3));
+      }
+    }
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    final int ncompacted = 1 + random.nextInt(3);
+    for (int c = 0; c < ncompacted; c++) {
+      final ArrayList<Integer> points = new ArrayList<Integer>();
+      for (int i = 0; i < npoints; i++) {
+        if (random.nextInt(3) != 0) {
+          points.add(i);
+        }
+      }
+      if (points.isEmpty()) {
+        points.add(random.nextInt(npoints));
+      }
+      if (random.nextInt(5) == 0) {  // Written by a buggy TSD.
+        Collections.shuffle(points, random);
+      }
+      byte[] qualifier = new byte[0];
+      byte[] value = new byte[0];
+      for (final int i : points) {
+        qualifier = concat(qualifier, qualifiers[i]);
+        value = concat(value, values[i]);
+      }
+      row.add(makekv(qualifier, concat(value, ZERO)));
+    }
+    for (int i = 0; i < npoints; i++) {
+      if (random.nextInt(3) != 0) {
+        continue;
+      }
+      byte[] value = values[i];
+      if (value.length == 4 && random.nextBoolean()) {
+        // Floating point value from an old TSD, on 8 bytes.
+        value = concat(new byte[4], value);
+      }
+      row.add(makekv(qualifiers[i], value));
+    }
+    if (random.nextInt(10) == 0) {  // Same time delta, but a different value.
+      final int i = random.nextInt(npoints);
+      row.add(makekv(qualifiers[i], values[i].length == 8
+                     ? Bytes.fromLong(7) : Bytes.fromInt(7)));
+    }
+    Collections.sort(row, new Comparator<KeyValue>() {
+      public int compare(final KeyValue a, final KeyValue b) {
+        return Bytes.memcmp(a.qualifier(), b.qualifier());
+      }
+    });
+    return row;
+  }
+
+  /**
+   * Compacts a row by sorting all its values, which is what the merge is
+   * expected to do.
+   */
+  private static KeyValue sortAndMerge(final ArrayList<KeyValue> row) {
+    final ArrayList<byte[][]> cells = new ArrayList<byte[][]>();
+    for (final KeyValue kv : row) {
+      final byte[] qual = kv.qualifier();
+      final byte[] val = kv.value();
+      if (qual.length == 2) {
+        final byte[] q = qual.clone();
+        byte[] v = val;
+        if ((q[1] & Const.FLAG_FLOAT) != 0 && (q[1] & Const.LENGTH_MASK) == 3
+            && v.length == 8) {
+          v = new byte[] { v[4], v[5], v[6], v[7] };
+        }
+        q[1] = (byte) ((q[1] & ~Const.LENGTH_MASK) | (v.length - 1));
+        cells.add(new byte[][] { q, v });
+        continue;
+      }
+      int val_idx = 0;
+      for (int i = 0; i < qual.length; i += 2) {
+        final int vlen = (qual[i + 1] & Const.LENGTH_MASK) + 1;
+        final byte[] v = new byte[vlen];
+        System.arraycopy(val, val_idx, v, 0, vlen);
+        val_idx += vlen;
+        cells.add(new byte[][] { { qual[i], qual[i + 1] }, v });
+      }
+    }
+    Collections.sort(cells, new Comparator<byte[][]>() {
+      public int compare(final byte[][] a, final byte[][] b) {
+        return Bytes.memcmp(a[0], b[0]);
+      }
+    });
+    byte[] qualifier = new byte[0];
+    byte[] value = new byte[0];
+    byte[][] prev = null;
+    for (final byte[][] cell : cells) {
+      if (prev != null && Bytes.getShort(prev[0]) >>> Const.FLAG_BITS
+          == Bytes.getShort(cell[0]) >>> Const.FLAG_BITS) {
+        if (!Bytes.equals(prev[0], cell[0]) || !Bytes.equals(prev[1], cell[1])) {
+          throw new IllegalDataException("Conflicting data points");
+        }
+        continue;
+      }
+      qualifier = concat(qualifier, cell[0]);
+      value = concat(value, cell[1]);
+      prev = cell;
+    }
+    return makekv(qualifier, concat(value, ZERO));
+  }
+
+  /** Returns a row key for the current hour.  */
+  private static byte[] recentKey() {
+    final byte[] key = KEY.clone();
+    final long now = System.currentTimeMillis() / 1000;
+    Bytes.setInt(key, (int) (now - now % Const.MAX_TIMESPAN), 3);
+    return key;
+  }
+
+  /** Makes reading any row back return an empty row.  */
+  private void stubEmptyGet() {
+    when(tsdb.get(anyBytes())).thenAnswer(new Answer<Deferred<ArrayList<KeyValue>>>() {
+      public Deferred<ArrayList<KeyValue>> answer(final InvocationOnMock unused) {
+        return Deferred.fromResult(new ArrayList<KeyValue>(0));
+      }
+    });
+  }
+
   private static byte[] anyBytes() {
     return any(byte[].class);
   }
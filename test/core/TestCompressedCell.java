@@ -0,0 +1,189 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+public final class TestCompressedCell extends TestCase {
+
+  private static final byte[] KEY = { 0, 0, 1, 78, 36, -84, 42, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+
+  /** Builds a compacted cell out of data points.  */
+  private static final class CellBuilder {
+    private byte[] qualifier = new byte[0];
+    private byte[] value = new byte[0];
+
+    CellBuilder add(final int delta, final int flags, final byte[] v) {
+      final int qual_len = qualifier.length;
+      qualifier = Arrays.copyOf(qualifier, qual_len + 2);
+      Bytes.setShort(qualifier, (short) (delta << Const.FLAG_BITS | flags),
+                     qual_len);
+      final int val_len = value.length;
+      value = Arrays.copyOf(value, val_len + v.length);
+      System.arraycopy(v, 0, value, val_len, v.length);
+      return this;
+    }
+
+    CellBuilder addLong(final int delta, final long v) {
+      return add(delta, 0x7, Bytes.fromLong(v));
+    }
+
+    CellBuilder addDouble(final int delta, final double v) {
+      return add(delta, 0xF, Bytes.fromLong(Double.doubleToRawLongBits(v)));
+    }
+
+    KeyValue build() {
+      return new KeyValue(KEY, FAMILY, qualifier,
+                          Arrays.copyOf(value, value.length + 1));
+    }
+  }
+
+  private static void assertSameCell(final KeyValue expected,
+                                     final KeyValue actual) {
+    assertEquals(Bytes.pretty(expected.qualifier()),
+                 Bytes.pretty(actual.qualifier()));
+    assertEquals(Bytes.pretty(expected.value()), Bytes.pretty(actual.value()));
+  }
+
+  /** Checks that a cell can be compressed and decompressed.  */
+  private static KeyValue assertRoundTrip(final KeyValue kv) {
+    final KeyValue compressed = CompressedCell.encode(kv, true);
+    assertNotNull(compressed);
+    assertTrue(CompressedCell.isCompressed(compressed));
+    assertFalse(CompressedCell.isCompressed(kv));
+    assertSameCell(kv, CompressedCell.decode(compressed));
+    return compressed;
+  }
+
+  public void testRegularCounter() {
+    final CellBuilder cell = new CellBuilder();
+    long value = 1000000;
+    for (int delta = 0; delta < 3600; delta += 10) {
+      cell.addLong(delta, value);
+      value += 42 + delta % 7;
+    }
+    final KeyValue kv = cell.build();
+    final KeyValue compressed = CompressedCell.encode(kv);
+    assertSameCell(kv, CompressedCell.decode(compressed));
+    // 360 data points on 10 bytes each, in a few hundred bytes.
+    assertTrue("compressed to " + compressed.value().length + " bytes",
+               compressed.value().length < 360 * 2);
+  }
+
+  public void testRegularGauge() {
+    final CellBuilder cell = new CellBuilder();
+    for (int delta = 0; delta < 3600; delta += 15) {
+      cell.addDouble(delta, 0.5 + (delta / 60) * 0.25);
+    }
+    final KeyValue kv = cell.build();
+    final KeyValue compressed = CompressedCell.encode(kv);
+    assertSameCell(kv, CompressedCell.decode(compressed));
+    assertTrue("compressed to " + compressed.value().length + " bytes",
+               compressed.value().length < 240 * 4);
+  }
+
+  public void testAllTypes() {
+    final KeyValue kv = new CellBuilder()
+      .add(0, 0x0, new byte[] { -1 })  // 255 on 1 byte.
+      .add(1, 0x1, Bytes.fromShort((short) -2))
+      .add(2, 0x3, Bytes.fromInt(Integer.MIN_VALUE))
+      .addLong(4, Long.MAX_VALUE)
+      .addLong(8, Long.MIN_VALUE)
+      .add(16, 0xB, Bytes.fromInt(Float.floatToRawIntBits(4.2F)))
+      .addDouble(32, Double.NaN)
+      .addDouble(64, -0.0)
+      .add(4095, 0x0, new byte[] { 0 })
+      .build();
+    assertRoundTrip(kv);
+  }
+
+  public void testRandomCells() {
+    final Random random = new Random(42);
+    for (int n = 0; n < 1000; n++) {
+      final CellBuilder cell = new CellBuilder();
+      final int npoints = 2 + random.nextInt(200);
+      int delta = random.nextInt(100);
+      for (int i = 0; i < npoints && delta < 4096; i++) {
+        switch (random.nextInt(6)) {
+          case 0: cell.add(delta, 0x0, new byte[] { (byte) random.nextInt() });
+                  break;
+          case 1: cell.add(delta, 0x1, Bytes.fromShort((short) random.nextInt()));
+                  break;
+          case 2: cell.add(delta, 0x3, Bytes.fromInt(random.nextInt()));
+                  break;
+          case 3: cell.addLong(delta, random.nextLong());
+                  break;
+          case 4: cell.add(delta, 0xB,
+                           Bytes.fromInt(Float.floatToRawIntBits(random.nextFloat())));
+                  break;
+          default: cell.addDouble(delta, random.nextDouble());
+        }
+        delta += 1 + (random.nextBoolean() ? 9 : random.nextInt(300));
+      }
+      final KeyValue kv = cell.build();
+      assertRoundTrip(kv);
+    }
+  }
+
+  public void testQualifierHasFirstAndLastPoints() {
+    final KeyValue kv = new CellBuilder()
+      .addLong(5, 1).addLong(10, 1).addLong(15, 1).addLong(20, 1).build();
+    final KeyValue compressed = assertRoundTrip(kv);
+    final byte[] qual = kv.qualifier();
+    assertEquals(Bytes.pretty(new byte[] { qual[0], qual[1], qual[6], qual[7] }),
+                 Bytes.pretty(compressed.qualifier()));
+    assertEquals(Span.lastTimestampInRow((short) 3, kv),
+                 Span.lastTimestampInRow((short) 3, compressed));
+  }
+
+  public void testOutOfOrderNotCompressed() {
+    final KeyValue kv = new CellBuilder()
+      .addLong(10, 1).addLong(10, 2).addLong(20, 3).build();
+    assertNull(CompressedCell.encode(kv));
+  }
+
+  public void testCorrupted() {
+    final CellBuilder cell = new CellBuilder();
+    for (int delta = 0; delta < 600; delta += 10) {
+      cell.addLong(delta, delta * 1000);
+    }
+    final KeyValue compressed = CompressedCell.encode(cell.build(), true);
+    final byte[] value = compressed.value();
+    // Truncated.
+    final byte[] truncated = Arrays.copyOf(value, value.length / 2);
+    truncated[truncated.length - 1] = CompressedCell.VERSION;
+    assertCorrupted(new KeyValue(KEY, FAMILY, compressed.qualifier(),
+                                 truncated));
+    // Wrong last data point in the qualifier.
+    final byte[] qual = compressed.qualifier().clone();
+    qual[2]++;
+    assertCorrupted(new KeyValue(KEY, FAMILY, qual, value));
+  }
+
+  private static void assertCorrupted(final KeyValue kv) {
+    try {
+      CompressedCell.decode(kv);
+      fail("Should have thrown an IllegalDataException for " + kv);
+    } catch (IllegalDataException e) {
+      // Expected.
+    }
+  }
+
+}
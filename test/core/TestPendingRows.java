@@ -0,0 +1,180 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.hbase.async.Bytes;
+
+public final class TestPendingRows extends TestCase {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final long HOUR = 1356998400;  // 2013-01-01 00:00:00 UTC
+
+  private final PendingRows<String> rows = new PendingRows<String>(METRIC_WIDTH);
+
+  /** Makes the key of a row of a series at a base time.  */
+  private static byte[] row(final int series, final long base_time) {
+    final byte[] row = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0 };
+    Bytes.setInt(row, (int) base_time, METRIC_WIDTH);
+    row[row.length - 2] = (byte) (series >>> 8);
+    row[row.length - 1] = (byte) series;
+    return row;
+  }
+
+  public void testAddTwice() {
+    assertTrue(rows.add(row(1, HOUR)));
+    assertFalse(rows.add(row(1, HOUR)));
+    assertTrue(rows.add(row(1, HOUR + 3600)));
+    assertTrue(rows.add(row(2, HOUR)));
+    assertEquals(3, rows.size());
+    assertEquals(2, rows.seriesCount());
+    assertEquals(HOUR, rows.oldestBaseTime());
+  }
+
+  public void testTakeOldestFirst() {
+    rows.add(row(1, HOUR + 3600));
+    rows.add(row(2, HOUR));
+    rows.add(row(1, HOUR));
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    // Only the first hour is old enough.
+    assertEquals(2, rows.take(HOUR, 10, keys, null));
+    assertEquals(2, keys.size());
+    final HashSet<String> taken = new HashSet<String>();
+    for (final byte[] key : keys) {
+      taken.add(Bytes.pretty(key));
+    }
+    assertTrue(taken.contains(Bytes.pretty(row(1, HOUR))));
+    assertTrue(taken.contains(Bytes.pretty(row(2, HOUR))));
+    assertEquals(1, rows.size());
+    assertEquals(HOUR + 3600, rows.oldestBaseTime());
+    // Series 2 has no row left.
+    assertEquals(1, rows.seriesCount());
+  }
+
+  public void testTakeAtMost() {
+    for (int i = 0; i < 10; i++) {
+      rows.add(row(i, HOUR));
+    }
+    assertEquals(4, rows.take(HOUR, 4, null, null));
+    assertEquals(6, rows.size());
+    assertEquals(6, rows.take(Long.MAX_VALUE, 100, null, null));
+    assertEquals(0, rows.size());
+    assertEquals(-1, rows.oldestBaseTime());
+  }
+
+  public void testValues() {
+    rows.add(row(1, HOUR));
+    rows.add(row(2, HOUR));
+    rows.set(row(1, HOUR), "one");
+    assertEquals("one", rows.get(row(1, HOUR)));
+    assertNull(rows.get(row(2, HOUR)));
+    assertNull(rows.get(row(1, HOUR + 3600)));
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    final ArrayList<String> values = new ArrayList<String>();
+    rows.take(HOUR, 10, keys, values);
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(Bytes.equals(keys.get(i), row(1, HOUR)) ? "one" : null,
+                   values.get(i));
+    }
+    // The value goes away with its row.
+    rows.add(row(1, HOUR));
+    assertNull(rows.get(row(1, HOUR)));
+  }
+
+  public void testSetOnMissingRow() {
+    rows.add(row(1, HOUR));
+    try {
+      rows.set(row(1, HOUR + 3600), "nope");
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testSeriesAreRecycled() {
+    long bytes = 0;
+    // Different series every hour: the memory used doesn't grow after the
+    // first hour's series were freed.
+    for (int hour = 0; hour < 3; hour++) {
+      for (int i = 0; i < 1000; i++) {
+        rows.add(row(hour * 1000 + i, HOUR + hour * 3600));
+      }
+      assertEquals(1000, rows.seriesCount());
+      if (hour == 2) {
+        assertEquals(bytes, rows.bytes());
+      }
+      bytes = rows.bytes();
+      rows.take(Long.MAX_VALUE, 1000, null, null);
+      assertEquals(0, rows.seriesCount());
+    }
+  }
+
+  public void testKeysInBatches() {
+    final HashSet<String> expected = new HashSet<String>();
+    for (int i = 0; i < 200; i += 3) {  // Series IDs span several words.
+      for (int hour = 0; hour < 2; hour++) {
+        final byte[] row = row(i, HOUR + 3600 * hour);
+        rows.add(row);
+        expected.add(Bytes.pretty(row));
+      }
+    }
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    long from = 0;
+    int batches = 0;
+    do {
+      final int before = keys.size();
+      from = rows.keys(from, 7, keys);
+      assertTrue(keys.size() - before <= 7);
+      batches++;
+    } while (from != -1);
+    assertEquals((expected.size() + 6) / 7, batches);
+    assertEquals(expected.size(), keys.size());
+    for (final byte[] key : keys) {
+      assertTrue(expected.remove(Bytes.pretty(key)));
+    }
+  }
+
+  public void testSameAsHashSet() {
+    // Random adds and takes, compared with a plain set of row keys.
+    final Random random = new Random(42);
+    final HashSet<String> expected = new HashSet<String>();
+    for (int n = 0; n < 20000; n++) {
+      if (random.nextInt(4) != 0) {
+        final byte[] row = row(random.nextInt(2000),
+                               HOUR + 3600 * random.nextInt(3));
+        assertEquals(expected.add(Bytes.pretty(row)), rows.add(row));
+      } else {
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        rows.take(HOUR + 3600 * random.nextInt(3), random.nextInt(100),
+                  keys, null);
+        for (final byte[] key : keys) {
+          assertTrue(expected.remove(Bytes.pretty(key)));
+        }
+      }
+      assertEquals(expected.size(), rows.size());
+    }
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    rows.take(Long.MAX_VALUE, Integer.MAX_VALUE, keys, null);
+    assertEquals(expected.size(), keys.size());
+    for (final byte[] key : keys) {
+      assertTrue(expected.remove(Bytes.pretty(key)));
+    }
+    assertEquals(0, rows.seriesCount());
+  }
+
+}
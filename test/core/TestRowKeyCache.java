@@ -0,0 +1,194 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ CompactionQueue.class, CompactionQueue.Thrd.class,
+                  HBaseClient.class, UniqueId.class })
+public final class TestRowKeyCache {
+
+  private static final long TIMESTAMP = 1356998400;
+
+  private final HBaseClient client = mock(HBaseClient.class);
+  private final UniqueId metrics = mock(UniqueId.class);
+  private final UniqueId tag_names = mock(UniqueId.class);
+  private final UniqueId tag_values = mock(UniqueId.class);
+  private TSDB tsdb;
+
+  @Before
+  public void before() throws Exception {
+    // Stub out the compaction thread, so it doesn't even start.
+    PowerMockito.whenNew(CompactionQueue.Thrd.class)
+      .withArguments(any(CompactionQueue.Shard.class))
+      .thenReturn(mock(CompactionQueue.Thrd.class));
+    tsdb = new TSDB(client, "tsdb", "tsdb-uid");
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "tag_names", tag_names);
+    Whitebox.setInternalState(tsdb, "tag_values", tag_values);
+    for (final UniqueId uid : new UniqueId[] { metrics, tag_names,
+                                               tag_values }) {
+      when(uid.width()).thenReturn((short) 3);
+    }
+    when(metrics.getIdAsync("sys.cpu")).thenAnswer(id(1));
+    when(metrics.getIdAsync("sys.nope"))
+      .thenReturn(Deferred.<byte[]>fromError(
+        new NoSuchUniqueName("metrics", "sys.nope")));
+    when(tag_names.getOrCreateIdAsync("host")).thenAnswer(id(1));
+    when(tag_names.getOrCreateIdAsync("type")).thenAnswer(id(2));
+    when(tag_values.getOrCreateIdAsync("web01")).thenAnswer(id(1));
+    when(tag_values.getOrCreateIdAsync("web02")).thenAnswer(id(2));
+    when(tag_values.getOrCreateIdAsync("user")).thenAnswer(id(3));
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.<Object>fromResult(null));
+  }
+
+  @Test
+  public void sameSeriesHitsTheCache() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    tags.put("type", "user");
+    tsdb.addPoint("sys.cpu", TIMESTAMP, 1, tags).joinUninterruptibly();
+    // Same series, with its tags given in a different order.
+    final TreeMap<String, String> sorted = new TreeMap<String, String>(tags);
+    tsdb.addPoint("sys.cpu", TIMESTAMP + 3600, 2, sorted)
+      .joinUninterruptibly();
+
+    verify(metrics, times(1)).getIdAsync("sys.cpu");
+    verify(tag_values, times(1)).getOrCreateIdAsync("web01");
+    final List<PutRequest> puts = puts(2);
+    assertEquals(Bytes.pretty(new byte[] { 0, 0, 1, 80, -30, 39, 0,
+                                           0, 0, 1, 0, 0, 1,
+                                           0, 0, 2, 0, 0, 3 }),
+                 Bytes.pretty(puts.get(0).key()));
+    assertEquals(Bytes.pretty(new byte[] { 0, 0, 1, 80, -30, 53, 16,
+                                           0, 0, 1, 0, 0, 1,
+                                           0, 0, 2, 0, 0, 3 }),
+                 Bytes.pretty(puts.get(1).key()));
+  }
+
+  @Test
+  public void otherSeriesMissesTheCache() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu", TIMESTAMP, 1, tags).joinUninterruptibly();
+    tags.put("host", "web02");  // The cache mustn't hold on to our map.
+    tsdb.addPoint("sys.cpu", TIMESTAMP, 2, tags).joinUninterruptibly();
+
+    verify(metrics, times(2)).getIdAsync("sys.cpu");
+    verify(tag_values, times(1)).getOrCreateIdAsync("web01");
+    verify(tag_values, times(1)).getOrCreateIdAsync("web02");
+    final List<PutRequest> puts = puts(2);
+    assertEquals(1, puts.get(0).key()[puts.get(0).key().length - 1]);
+    assertEquals(2, puts.get(1).key()[puts.get(1).key().length - 1]);
+  }
+
+  @Test
+  public void dropCachesForgetsTemplates() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu", TIMESTAMP, 1, tags).joinUninterruptibly();
+    tsdb.dropCaches();
+    tsdb.addPoint("sys.cpu", TIMESTAMP, 2, tags).joinUninterruptibly();
+
+    verify(metrics, times(2)).getIdAsync("sys.cpu");
+    verify(tag_values, times(2)).getOrCreateIdAsync("web01");
+  }
+
+  @Test
+  public void unknownMetricCreatesNoTag() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    try {
+      tsdb.addPoint("sys.nope", TIMESTAMP, 1, tags).joinUninterruptibly();
+      fail("Should have thrown a NoSuchUniqueName");
+    } catch (NoSuchUniqueName e) {
+      // Expected.
+    }
+    verify(tag_names, never()).getOrCreateIdAsync(anyString());
+    verify(tag_values, never()).getOrCreateIdAsync(anyString());
+  }
+
+  @Test
+  public void unknownMetricCreatesNoTagWhenImporting() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    try {
+      tsdb.newDataPoints().setSeries("sys.nope", tags);
+      fail("Should have thrown a NoSuchUniqueName");
+    } catch (NoSuchUniqueName e) {
+      // Expected.
+    }
+    verify(tag_names, never()).getOrCreateIdAsync(anyString());
+    verify(tag_values, never()).getOrCreateIdAsync(anyString());
+  }
+
+  /** Answers a lookup with a new deferred ID every time.  */
+  private static Answer<Deferred<byte[]>> id(final int id) {
+    return new Answer<Deferred<byte[]>>() {
+      public Deferred<byte[]> answer(final InvocationOnMock unused) {
+        return Deferred.fromResult(new byte[] { 0, 0, (byte) id });
+      }
+    };
+  }
+
+  /** Returns the puts sent to HBase, checking how many there are.  */
+  private List<PutRequest> puts(final int n) {
+    final ArgumentCaptor<PutRequest> put =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(n)).put(put.capture());
+    return put.getAllValues();
+  }
+
+}
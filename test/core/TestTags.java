@@ -12,13 +12,47 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
 
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HBaseClient.class })
 public final class TestTags {
 
+  private static final byte[] UID_TABLE = { 'u', 'i', 'd' };
+
   @Test
   public void parseSuccessful() {
     final HashMap<String, String> tags = new HashMap<String, String>(2);
@@ -146,4 +180,68 @@ public final class TestTags {
     Tags.parseLong("-9223372036854775809"); // MIN_VALUE - 1
   }
 
+  @Test
+  public void resolveOrCreateAllLooksUpConcurrently() throws Exception {
+    final HBaseClient client = mock(HBaseClient.class);
+    final TSDB tsdb = newTsdb(client);
+    final List<GetRequest> gets = new ArrayList<GetRequest>();
+    final List<Deferred<ArrayList<KeyValue>>> rows =
+      new ArrayList<Deferred<ArrayList<KeyValue>>>();
+    when(client.get(any(GetRequest.class))).thenAnswer(
+      new Answer<Deferred<ArrayList<KeyValue>>>() {
+        public Deferred<ArrayList<KeyValue>> answer(final InvocationOnMock inv) {
+          gets.add((GetRequest) inv.getArguments()[0]);
+          final Deferred<ArrayList<KeyValue>> d =
+            new Deferred<ArrayList<KeyValue>>();
+          rows.add(d);
+          return d;
+        }
+      });
+
+    final HashMap<String, String> tags = new HashMap<String, String>(3);
+    tags.put("b", "2");
+    tags.put("a", "1");
+    tags.put("c", "3");
+    final Deferred<ArrayList<byte[]>> result =
+      Tags.resolveOrCreateAllAsync(tsdb, tags);
+    // All the names are looked up before any lookup completes.
+    assertEquals(6, gets.size());
+    for (int i = 0; i < gets.size(); i++) {
+      final GetRequest get = gets.get(i);
+      final byte[] name = get.key();
+      final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+      row.add(new KeyValue(name, get.family(), get.qualifiers()[0],
+                           new byte[] { 0, 0, name[0] }));
+      rows.get(i).callback(row);
+    }
+    final ArrayList<byte[]> tag_ids = result.joinUninterruptibly();
+    assertEquals(3, tag_ids.size());
+    assertArrayEquals(new byte[] { 0, 0, 'a', 0, 0, '1' }, tag_ids.get(0));
+    assertArrayEquals(new byte[] { 0, 0, 'b', 0, 0, '2' }, tag_ids.get(1));
+    assertArrayEquals(new byte[] { 0, 0, 'c', 0, 0, '3' }, tag_ids.get(2));
+  }
+
+  @Test(expected=NoSuchUniqueName.class)
+  public void resolveAllUnknownTag() throws Exception {
+    final HBaseClient client = mock(HBaseClient.class);
+    final TSDB tsdb = newTsdb(client);
+    when(client.get(any(GetRequest.class))).thenAnswer(
+      new Answer<Deferred<ArrayList<KeyValue>>>() {
+        public Deferred<ArrayList<KeyValue>> answer(final InvocationOnMock inv) {
+          return Deferred.fromResult(null);  // No such name.
+        }
+      });
+    Tags.resolveAll(tsdb, Collections.singletonMap("foo", "bar"));
+  }
+
+  /** Returns a TSDB with real UniqueIds using the given client.  */
+  private static TSDB newTsdb(final HBaseClient client) {
+    final TSDB tsdb = mock(TSDB.class);
+    Whitebox.setInternalState(tsdb, "tag_names",
+                              new UniqueId(client, UID_TABLE, "tagk", 3));
+    Whitebox.setInternalState(tsdb, "tag_values",
+                              new UniqueId(client, UID_TABLE, "tagv", 3));
+    return tsdb;
+  }
+
 }
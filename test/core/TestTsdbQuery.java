@@ -0,0 +1,193 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HBaseClient.class, Scanner.class,
+                  UniqueId.class })
+public final class TestTsdbQuery {
+
+  private static final byte[] TABLE = { 't', 's', 'd', 'b' };
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final int BASE_TIME = 1356998400;
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final HBaseClient client = mock(HBaseClient.class);
+  private final Scanner scanner = mock(Scanner.class);
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void before() {
+    final UniqueId metrics = mock(UniqueId.class);
+    when(metrics.width()).thenReturn((short) 3);
+    when(metrics.getId("sys.cpu")).thenReturn(METRIC);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "tag_names", mock(UniqueId.class));
+    Whitebox.setInternalState(tsdb, "tag_values", mock(UniqueId.class));
+    Whitebox.setInternalState(tsdb, "client", client);
+    Whitebox.setInternalState(tsdb, "table", TABLE);
+    when(client.newScanner(TABLE)).thenReturn(scanner);
+    // Rows are already compacted.
+    when(tsdb.compact(any(ArrayList.class))).thenAnswer(new Answer<KeyValue>() {
+      public KeyValue answer(final InvocationOnMock invocation) {
+        return ((ArrayList<KeyValue>) invocation.getArguments()[0]).get(0);
+      }
+    });
+  }
+
+  @Test
+  public void runAsyncDoesNotWaitForScanner() throws Exception {
+    final Deferred<ArrayList<ArrayList<KeyValue>>> first_batch =
+      new Deferred<ArrayList<ArrayList<KeyValue>>>();
+    final ArrayList<ArrayList<KeyValue>> no_more_rows = null;
+    when(scanner.nextRows())
+      .thenReturn(first_batch)
+      .thenReturn(Deferred.fromResult(rows(METRIC, BASE_TIME + 3600)))
+      .thenReturn(Deferred.fromResult(no_more_rows));
+
+    final DataPoints[][] results = new DataPoints[1][];
+    newQuery().runAsync().addCallback(new Callback<Object, DataPoints[]>() {
+      public Object call(final DataPoints[] series) {
+        results[0] = series;
+        return null;
+      }
+    });
+    assertNull(results[0]);  // Still waiting for the first batch.
+
+    first_batch.callback(rows(METRIC, BASE_TIME));
+    assertEquals(1, results[0].length);
+    assertEquals(2, results[0][0].aggregatedSize());
+  }
+
+  @Test
+  public void runAsyncLoadsRowsOnExecutor() throws Exception {
+    final ArrayList<ArrayList<KeyValue>> no_more_rows = null;
+    when(scanner.nextRows())
+      .thenReturn(Deferred.fromResult(rows(METRIC, BASE_TIME)))
+      .thenReturn(Deferred.fromResult(no_more_rows));
+    final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+    final Executor executor = new Executor() {
+      public void execute(final Runnable task) {
+        tasks.add(task);
+      }
+    };
+
+    final DataPoints[][] results = new DataPoints[1][];
+    newQuery().runAsync(executor)
+      .addCallback(new Callback<Object, DataPoints[]>() {
+        public Object call(final DataPoints[] series) {
+          results[0] = series;
+          return null;
+        }
+      });
+    // Nothing is loaded in the thread that got the rows from HBase.
+    assertEquals(1, tasks.size());
+    tasks.remove(0).run();  // Loads the first batch, asks for the next.
+    assertNull(results[0]);
+    assertEquals(1, tasks.size());
+    tasks.remove(0).run();  // No more rows.
+    assertEquals(1, results[0].length);
+    assertEquals(1, results[0][0].aggregatedSize());
+  }
+
+  @Test
+  public void runAsyncFailsOnBadRow() throws Exception {
+    when(scanner.nextRows())
+      .thenReturn(Deferred.fromResult(rows(new byte[] { 0, 0, 2 },
+                                           BASE_TIME)));
+    try {
+      newQuery().run();
+      fail("Should have thrown an IllegalDataException");
+    } catch (IllegalDataException e) {
+      verify(scanner).close();
+    }
+  }
+
+  @Test
+  public void runAsyncPropagatesScannerError() throws Exception {
+    final RuntimeException error = new RuntimeException("fake exception");
+    when(scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromError(error));
+    try {
+      newQuery().run();
+      fail("Should have thrown the scanner's exception");
+    } catch (RuntimeException e) {
+      assertSame(error, e);
+    }
+  }
+
+  private Query newQuery() {
+    final Query query = new TsdbQuery(tsdb);
+    query.setStartTime(BASE_TIME);
+    query.setEndTime(BASE_TIME + 7200);
+    query.setTimeSeries("sys.cpu", new HashMap<String, String>(),
+                        Aggregators.SUM, false);
+    return query;
+  }
+
+  /** Returns a batch with one row holding one data point.  */
+  private static ArrayList<ArrayList<KeyValue>> rows(final byte[] metric,
+                                                     final int base_time) {
+    final byte[] key = new byte[metric.length + Const.TIMESTAMP_BYTES];
+    System.arraycopy(metric, 0, key, 0, metric.length);
+    Bytes.setInt(key, base_time, metric.length);
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue(key, TSDB.FAMILY, new byte[] { 0, 0x7 },
+                         Bytes.fromLong(42)));
+    final ArrayList<ArrayList<KeyValue>> rows =
+      new ArrayList<ArrayList<KeyValue>>(1);
+    rows.add(row);
+    return rows;
+  }
+
+}
@@ -0,0 +1,196 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class, HBaseClient.class })
+public final class TestWriteSpool {
+
+  private static final byte[] TABLE = { 't', 'a', 'b', 'l', 'e' };
+  private static final byte[] KEY = { 0, 0, 1, 78, 36, -84, 42, 0, 0, 1, 0, 0, 2 };
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final HBaseClient client = mock(HBaseClient.class);
+  /** Data points written to HBase.  */
+  private final List<PutRequest> puts =
+    Collections.synchronizedList(new ArrayList<PutRequest>());
+  private File dir;
+  private WriteSpool spool;
+
+  @Before
+  public void before() throws Exception {
+    dir = File.createTempFile("spool", "");
+    dir.delete();
+    dir.mkdir();
+    setUpMocks();
+  }
+
+  private void setUpMocks() {
+    final UniqueId metrics = mock(UniqueId.class);
+    when(metrics.width()).thenReturn((short) 3);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "table", TABLE);
+    Whitebox.setInternalState(tsdb, "client", client);
+    when(client.put(any(PutRequest.class))).thenAnswer(new Answer<Deferred<Object>>() {
+      public Deferred<Object> answer(final InvocationOnMock invocation) {
+        puts.add((PutRequest) invocation.getArguments()[0]);
+        return Deferred.fromResult(null);
+      }
+    });
+  }
+
+  @After
+  public void after() {
+    if (spool != null) {
+      spool.close();
+    }
+    for (final File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void appendAndReplay() throws Exception {
+    spool = new WriteSpool(tsdb, dir);
+    assertFalse(spool.isActive());
+    for (int i = 0; i < 10; i++) {
+      assertTrue(spool.append(point(i)));
+    }
+    waitForReplay();
+    assertEquals(10, puts.size());
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(KEY, puts.get(i).key());
+      assertArrayEquals(new byte[] { 0, (byte) (i << 4) },
+                        puts.get(i).qualifier());
+      assertArrayEquals(new byte[] { (byte) i }, puts.get(i).value());
+    }
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  @Test
+  public void replayOnStartup() throws Exception {
+    writeSegment(5);
+    spool = new WriteSpool(tsdb, dir);
+    waitForReplay();
+    assertEquals(5, puts.size());
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  @Test
+  public void truncatedSegment() throws Exception {
+    final File segment = writeSegment(5);
+    final FileOutputStream out = new FileOutputStream(segment, true);
+    out.write(new byte[] { 0, 0, 0, 42, 1, 2 });  // Torn write.
+    out.close();
+    spool = new WriteSpool(tsdb, dir);
+    waitForReplay();
+    assertEquals(5, puts.size());
+  }
+
+  @Test(timeout = 10000)
+  public void closeWithHBaseUnreachable() throws Exception {
+    // HBase never answers.
+    when(client.put(any(PutRequest.class))).thenAnswer(new Answer<Deferred<Object>>() {
+      public Deferred<Object> answer(final InvocationOnMock invocation) {
+        puts.add((PutRequest) invocation.getArguments()[0]);
+        return new Deferred<Object>();
+      }
+    });
+    spool = new WriteSpool(tsdb, dir);
+    assertTrue(spool.append(point(0)));
+    for (int i = 0; i < 100 && puts.isEmpty(); i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, puts.size());  // The replayer is waiting for HBase.
+
+    final long start = System.currentTimeMillis();
+    spool.close();
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    assertFalse(spool.append(point(1)));
+    // The data point will be replayed on the next startup.
+    assertEquals(1, dir.listFiles().length);
+    assertEquals(4 + 4 + 2 + KEY.length + 2 + 2 + 2 + 1,
+                 dir.listFiles()[0].length());
+  }
+
+  /** Spools some data points without replaying them.  */
+  private File writeSegment(final int n) throws Exception {
+    when(client.put(any(PutRequest.class))).thenAnswer(new Answer<Deferred<Object>>() {
+      public Deferred<Object> answer(final InvocationOnMock invocation) {
+        return Deferred.fromError(new Exception("fake exception"));
+      }
+    });
+    final WriteSpool spool = new WriteSpool(tsdb, dir);
+    for (int i = 0; i < n; i++) {
+      spool.append(point(i));
+    }
+    spool.close();
+    setUpMocks();
+    puts.clear();  // Stubbing the mock again called the previous stub.
+    return dir.listFiles()[0];
+  }
+
+  private void waitForReplay() throws InterruptedException {
+    for (int i = 0; i < 100 && (spool.isActive()
+                                || dir.listFiles().length != 0); i++) {
+      Thread.sleep(50);
+    }
+  }
+
+  private static PutRequest point(final int i) {
+    return new PutRequest(TABLE, KEY, TSDB.FAMILY,
+                          new byte[] { 0, (byte) (i << 4) },
+                          new byte[] { (byte) i });
+  }
+
+}
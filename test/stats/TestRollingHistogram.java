@@ -0,0 +1,100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import junit.framework.TestCase;
+
+public final class TestRollingHistogram extends TestCase {
+
+  /** Some arbitrary point in time, at the start of an interval.  */
+  private static final long NOW = 1356998400000L;
+
+  private final RollingHistogram histo =
+    new RollingHistogram(16000, (short) 2, 100);
+
+  public void test_percentile_empty_histogram() {
+    assertEquals(0, histo.percentile(50, 60, NOW));
+    assertEquals(0, histo.percentile(99, 300, NOW));
+  }
+
+  public void test_percentiles_match_histogram() {
+    final Histogram reference = new Histogram(16000, (short) 2, 100);
+    for (int i = 0; i < 1000; i++) {
+      histo.add(i, NOW);
+      reference.add(i);
+    }
+    assertEquals(reference.percentile(50), histo.percentile(50, 60, NOW));
+    assertEquals(reference.percentile(95), histo.percentile(95, 60, NOW));
+    assertEquals(reference.percentile(99), histo.percentile(99, 60, NOW));
+  }
+
+  public void test_old_values_leave_the_window() {
+    histo.add(1000, NOW);
+    final long later = NOW + 120 * 1000;
+    histo.add(10, later);
+    assertEquals(12, histo.percentile(99, 60, later));
+    assertEquals(1124, histo.percentile(99, 300, later));
+    final long much_later = NOW + 400 * 1000;
+    assertEquals(12, histo.percentile(99, 300, much_later));
+  }
+
+  public void test_slots_are_recycled() {
+    histo.add(1000, NOW);
+    // Same slot in the ring, a full revolution later.
+    final long later = NOW + (RollingHistogram.MAX_WINDOW * 1000L
+                              + RollingHistogram.INTERVAL_MS);
+    histo.add(10, later);
+    assertEquals(12, histo.percentile(99, RollingHistogram.MAX_WINDOW, later));
+  }
+
+  public void test_to_histogram() {
+    final Histogram reference = new Histogram(16000, (short) 2, 100);
+    for (int i = 0; i < 1000; i++) {
+      histo.add(i);
+      reference.add(i);
+    }
+    final Histogram copy = histo.toHistogram(RollingHistogram.MAX_WINDOW);
+    assertEquals(reference.toString(), copy.toString());
+    histo.add(42);
+    assertEquals(reference.toString(), copy.toString());
+  }
+
+  public void test_invalid_window() {
+    try {
+      histo.percentile(50, RollingHistogram.MAX_WINDOW + 1, NOW);
+      fail("should have thrown");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void test_concurrent_adds() throws Exception {
+    final Thread[] threads = new Thread[4];
+    final long now = System.currentTimeMillis();
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histo.add(j % 100, now);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread t : threads) {
+      t.join();
+    }
+    assertEquals(40000, histo.count(60));
+  }
+
+}
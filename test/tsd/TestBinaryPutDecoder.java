@@ -0,0 +1,162 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class TestBinaryPutDecoder {
+
+  private final BinaryPutEncoder encoder = new BinaryPutEncoder();
+  private final BinaryPutDecoder decoder = new BinaryPutDecoder();
+
+  @Test
+  public void roundTrip() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    final int id = encoder.series("sys.cpu", tags);
+    assertEquals(id, encoder.series("sys.cpu", tags));
+    encoder.addPoint(id, 1356998400L, -42L);
+    encoder.addPoint(id, 1356998410L, 4.2f);
+    assertEquals(2, encoder.points());
+
+    final BinaryPutDecoder.Batch batch = decode(writeBatch());
+    assertEquals(0, batch.id);
+    assertEquals(0, batch.rejected);
+    assertEquals(2, batch.points.size());
+    final PutDataPointDecoder.Point p1 = batch.points.get(0);
+    assertEquals("sys.cpu", p1.metric);
+    assertEquals(tags, p1.tags);
+    assertEquals(1356998400L, p1.timestamp);
+    assertTrue(p1.is_integer);
+    assertEquals(-42L, p1.value);
+    final PutDataPointDecoder.Point p2 = batch.points.get(1);
+    assertSame(p1.tags, p2.tags);
+    assertFalse(p2.is_integer);
+    assertEquals(4.2f, Float.intBitsToFloat((int) p2.value), 0.0f);
+  }
+
+  @Test
+  public void seriesDefinitionsSpanBatches() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("a", "b");
+    final int id = encoder.series("foo", tags);
+    encoder.addPoint(id, 1356998400L, 1L);
+    decode(writeBatch());
+    encoder.addPoint(id, 1356998410L, 2L);
+    final BinaryPutDecoder.Batch batch = decode(writeBatch());
+    assertEquals(1, batch.id);
+    assertEquals(1, batch.points.size());
+    assertEquals("foo", batch.points.get(0).metric);
+  }
+
+  @Test
+  public void unknownSeriesIsRejected() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("a", "b");
+    encoder.addPoint(encoder.series("foo", tags), 1356998400L, 1L);
+    writeBatch();  // Definition never reaches the decoder.
+    encoder.addPoint(0, 1356998410L, 2L);
+    final BinaryPutDecoder.Batch batch = decode(writeBatch());
+    assertEquals(0, batch.points.size());
+    assertEquals(1, batch.rejected);
+  }
+
+  @Test
+  public void partialFrame() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("a", "b");
+    encoder.addPoint(encoder.series("foo", tags), 1356998400L, 1L);
+    final byte[] frame = writeBatch();
+    final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+    buf.writeBytes(frame, 0, frame.length - 1);
+    assertNull(decoder.decode(null, null, buf));
+    buf.writeByte(frame[frame.length - 1]);
+    assertEquals(1, ((BinaryPutDecoder.Batch) decoder.decode(null, null, buf))
+                 .points.size());
+    assertFalse(buf.readable());
+  }
+
+  @Test
+  public void duplicateTagNamesAreRejected() throws Exception {
+    final ChannelBuffer frame = ChannelBuffers.dynamicBuffer();
+    frame.writeInt(0);  // Length, filled in below.
+    frame.writeInt(0);  // Batch ID.
+    frame.writeByte(BinaryPutEncoder.DEFINE_SERIES);
+    frame.writeInt(0);
+    writeString(frame, "foo");
+    frame.writeByte(3);
+    writeString(frame, "host");
+    writeString(frame, "web01");
+    writeString(frame, "type");
+    writeString(frame, "user");
+    writeString(frame, "host");
+    writeString(frame, "web02");
+    frame.writeByte(BinaryPutEncoder.LONG_POINT);
+    frame.writeInt(0);
+    frame.writeInt(1356998400);
+    frame.writeLong(42);
+    frame.setInt(0, frame.readableBytes() - 4);
+    final BinaryPutDecoder.Batch batch = (BinaryPutDecoder.Batch)
+      decoder.decode(null, null, frame);
+    assertEquals(1, batch.invalid_series);
+    assertEquals(0, batch.points.size());
+    assertEquals(1, batch.rejected);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void zeroTimestamp() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("a", "b");
+    encoder.addPoint(encoder.series("foo", tags), 0L, 1L);
+  }
+
+  @Test(expected=CorruptedFrameException.class)
+  public void unknownRecordType() throws Exception {
+    decode(new byte[] { 0, 0, 0, 9, 0, 0, 0, 0, 42, 0, 0, 0, 0 });
+  }
+
+  @Test(expected=CorruptedFrameException.class)
+  public void truncatedRecord() throws Exception {
+    decode(new byte[] { 0, 0, 0, 9, 0, 0, 0, 0,
+                        BinaryPutEncoder.LONG_POINT, 0, 0, 0, 0 });
+  }
+
+  private static void writeString(final ChannelBuffer buf, final String s) {
+    buf.writeShort(s.length());
+    buf.writeBytes(s.getBytes());
+  }
+
+  private byte[] writeBatch() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.writeBatch(out);
+    return out.toByteArray();
+  }
+
+  private BinaryPutDecoder.Batch decode(final byte[] frame) throws Exception {
+    return (BinaryPutDecoder.Batch)
+      decoder.decode(null, null, ChannelBuffers.wrappedBuffer(frame));
+  }
+
+}
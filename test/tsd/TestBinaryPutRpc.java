@@ -0,0 +1,89 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+
+import net.opentsdb.core.TSDB;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class })
+public final class TestBinaryPutRpc {
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final BinaryPutRpc rpc = new BinaryPutRpc(new PutDataPointRpc());
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void zeroTimestampIsRejected() throws Exception {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), any(Map.class)))
+      .thenReturn(Deferred.fromResult(null));
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    final BinaryPutDecoder.Batch batch = new BinaryPutDecoder.Batch(42);
+    batch.points.add(new PutDataPointDecoder.Point("sys.cpu", 1356998400L,
+                                                   true, 1, tags));
+    batch.points.add(new PutDataPointDecoder.Point("sys.cpu", 0L,
+                                                   true, 2, tags));
+    final Channel chan = mockChannel();
+    rpc.execute(tsdb, chan, batch).joinUninterruptibly();
+
+    verify(tsdb, never()).addPoint(anyString(), eq(0L), anyLong(),
+                                   any(Map.class));
+    final ArgumentCaptor<Object> ack = ArgumentCaptor.forClass(Object.class);
+    verify(chan).write(ack.capture());
+    final ChannelBuffer buf = (ChannelBuffer) ack.getValue();
+    assertEquals(42, buf.readInt());
+    assertEquals(1, buf.readInt());  // Stored.
+    assertEquals(1, buf.readInt());  // Rejected.
+  }
+
+  private static Channel mockChannel() {
+    final Channel chan = mock(Channel.class);
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    when(chan.isConnected()).thenReturn(true);
+    return chan;
+  }
+
+}
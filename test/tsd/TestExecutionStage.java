@@ -0,0 +1,148 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class TestExecutionStage {
+
+  @Test
+  public void noThreadsRunsInCallingThread() {
+    final ExecutionStage stage = new ExecutionStage("test", 0, 0, true);
+    final Thread[] ran_in = new Thread[1];
+    assertTrue(stage.execute(mockChannel(), new Runnable() {
+      public void run() {
+        ran_in[0] = Thread.currentThread();
+      }
+    }));
+    assertSame(Thread.currentThread(), ran_in[0]);
+  }
+
+  @Test
+  public void orderedPerChannel() throws Exception {
+    final ExecutionStage stage = new ExecutionStage("test", 4, 100000, true);
+    final Channel[] chans = { mockChannel(), mockChannel(), mockChannel() };
+    final ArrayList<List<Integer>> seen = new ArrayList<List<Integer>>();
+    for (int c = 0; c < chans.length; c++) {
+      seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+    final CountDownLatch done = new CountDownLatch(chans.length * 1000);
+    for (int i = 0; i < 1000; i++) {
+      for (int c = 0; c < chans.length; c++) {
+        final List<Integer> list = seen.get(c);
+        final int n = i;
+        assertTrue(stage.execute(chans[c], new Runnable() {
+          public void run() {
+            list.add(n);
+            done.countDown();
+          }
+        }));
+      }
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (final List<Integer> list : seen) {
+      assertEquals(1000, list.size());
+      for (int i = 0; i < 1000; i++) {
+        assertEquals(i, (int) list.get(i));
+      }
+    }
+    stage.shutdown();
+  }
+
+  @Test
+  public void rejectsWhenFull() throws Exception {
+    final ExecutionStage stage = new ExecutionStage("test", 1, 1, false);
+    final Channel chan = mockChannel();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(2);
+    final Runnable block = new Runnable() {
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        done.countDown();
+      }
+    };
+    assertTrue(stage.execute(chan, block));
+    assertTrue(started.await(10, TimeUnit.SECONDS));  // Running, not queued.
+    assertTrue(stage.execute(chan, new Runnable() {   // Queued.
+      public void run() {
+        done.countDown();
+      }
+    }));
+    assertFalse(stage.execute(chan, block));  // One too many.
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    stage.shutdown();
+  }
+
+  @Test
+  public void continuationsAreNeverRejected() throws Exception {
+    final ExecutionStage stage = new ExecutionStage("test", 1, 1, false);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(3);
+    assertTrue(stage.execute(mockChannel(), new Runnable() {
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        done.countDown();
+      }
+    }));
+    final Runnable task = new Runnable() {
+      public void run() {
+        assertTrue(Thread.currentThread().getName().startsWith("RPC test"));
+        done.countDown();
+      }
+    };
+    // The queue has room for a single task, but continuations don't use it.
+    stage.continuations().execute(task);
+    stage.continuations().execute(task);
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    stage.shutdown();
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void threadsWithoutQueue() {
+    new ExecutionStage("test", 1, 0, false);
+  }
+
+  private static Channel mockChannel() {
+    final Channel chan = mock(Channel.class);
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    return chan;
+  }
+
+}
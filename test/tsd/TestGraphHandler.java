@@ -13,13 +13,28 @@
 package net.opentsdb.tsd;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import com.stumbleupon.async.Deferred;
 
 import org.jboss.netty.channel.Channel;
 
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Query;
+import net.opentsdb.core.TSDB;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -37,9 +52,43 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 @PowerMockIgnore({"javax.management.*", "javax.xml.*",
                   "ch.qos.*", "org.slf4j.*",
                   "com.sum.*", "org.xml.*"})
-@PrepareForTest({ GraphHandler.class, HttpQuery.class })
+@PrepareForTest({ GraphHandler.class, HttpQuery.class, TSDB.class })
 public final class TestGraphHandler {
 
+  @Test
+  public void failedQueryGivesBackItsPermit() throws Exception {
+    System.setProperty("tsd.http.cachedir",
+                       System.getProperty("java.io.tmpdir") + "/");
+    final GraphHandler handler =
+      new GraphHandler(new ExecutionStage("test", 0, 0, false), 2);
+    final TSDB tsdb = mock(TSDB.class);
+    final Query tsdbquery = mock(Query.class);
+    when(tsdb.newQuery()).thenReturn(tsdbquery);
+    final RuntimeException error = new RuntimeException("fake exception");
+    when(tsdbquery.runAsync(any(Executor.class)))
+      .thenReturn(Deferred.<DataPoints[]>fromError(error));
+    final HttpQuery query = fakeHttpQuery();
+    when(query.hasQueryStringParam("ascii")).thenReturn(true);
+    when(query.hasQueryStringParam("nocache")).thenReturn(true);
+    when(query.getQueryString())
+      .thenReturn(new HashMap<String, List<String>>());
+    when(query.getQueryStringParam("start")).thenReturn("1356998400");
+    when(query.getQueryStringParam("end")).thenReturn("1356998460");
+    when(query.getQueryStringParams("m"))
+      .thenReturn(Arrays.asList("sum:sys.cpu"));
+    when(query.getQueryStringParams("o")).thenReturn(null);
+
+    handler.execute(tsdb, query);
+
+    // The client gets the query's own error, and the permit is back.
+    final ArgumentCaptor<Exception> reported =
+      ArgumentCaptor.forClass(Exception.class);
+    verify(query).internalError(reported.capture());
+    assertSame(error, reported.getValue());
+    assertEquals(2, ((Semaphore) Whitebox.getInternalState(handler,
+      "in_flight")).availablePermits());
+  }
+
   @Test  // If the file doesn't exist, we don't use it, obviously.
   public void staleCacheFileDoesntExist() throws Exception {
     final File cachedfile = fakeFile("/cache/fake-file");
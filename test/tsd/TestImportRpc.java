@@ -0,0 +1,177 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.NoSuchUniqueName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HttpQuery.class })
+public final class TestImportRpc {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final HttpQuery query = mock(HttpQuery.class);
+  private final Channel chan = mock(Channel.class);
+  private final ImportRpc rpc = new ImportRpc(new PutDataPointRpc());
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void before() {
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    when(query.channel()).thenReturn(chan);
+    when(tsdb.addPoint(eq("sys.cpu"), anyLong(), anyLong(), any(Map.class)))
+      .thenReturn(Deferred.fromResult(null));
+    when(tsdb.addPoint(eq("sys.cpu"), anyLong(), any(Float.class),
+                       any(Map.class)))
+      .thenReturn(Deferred.fromResult(null));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void importSuccessful() throws Exception {
+    post("put sys.cpu 1356998400 42 host=web01\n"
+         + "sys.cpu 1356998401 4.2 host=web01\r\n"
+         + "\n"
+         + "sys.cpu 1356998402 -1 host=web01 type=user");
+    assertEquals("{\"accepted\":3,\"rejected\":0,\"errors\":[]}", reply());
+    verify(tsdb, times(2)).addPoint(eq("sys.cpu"), anyLong(), anyLong(),
+                                    any(Map.class));
+  }
+
+  @Test
+  public void malformedLine() throws Exception {
+    post("sys.cpu 1356998400 42 host=web01\n"
+         + "sys.cpu 1356998401 foo host=web01\n"
+         + "sys.cpu 1356998402 42\n");
+    assertEquals("{\"accepted\":1,\"rejected\":2,\"errors\":["
+                 + "\"line 2: invalid value: Invalid character 'f' in foo\","
+                 + "\"line 3: illegal argument: not enough arguments"
+                 + " (need least 4, got 3)\"]}", reply());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void unknownMetric() throws Exception {
+    when(tsdb.addPoint(eq("sys.nope"), anyLong(), anyLong(), any(Map.class)))
+      .thenReturn(Deferred.fromError(new NoSuchUniqueName("metrics",
+                                                          "sys.nope")));
+    post("sys.nope 1356998400 42 host=web01\n"
+         + "sys.cpu 1356998400 42 host=web01\n");
+    assertEquals("{\"accepted\":1,\"rejected\":1,\"errors\":["
+                 + "\"line 1: unknown metric: No such name for 'metrics':"
+                 + " 'sys.nope'\"]}", reply());
+  }
+
+  @Test
+  public void chunkedImport() throws Exception {
+    final HttpRequest request = request("");
+    request.setChunked(true);
+    when(query.request()).thenReturn(request);
+    rpc.execute(tsdb, query);
+    final ArgumentCaptor<Object> attachment =
+      ArgumentCaptor.forClass(Object.class);
+    verify(chan).setAttachment(attachment.capture());
+    final ImportRpc.Import imp = (ImportRpc.Import) attachment.getValue();
+
+    // Lines split across chunks.
+    imp.add(chunk("sys.cpu 1356998400 42 ho"));
+    imp.add(chunk("st=web01\nsys.cpu 1356998401 4"));
+    verify(query, never()).sendReply(any(StringBuilder.class));
+    imp.add(chunk("3 host=web01\n"));
+    imp.add(HttpChunk.LAST_CHUNK);
+    assertEquals("{\"accepted\":2,\"rejected\":0,\"errors\":[]}", reply());
+    verify(chan).setAttachment(null);
+  }
+
+  @Test
+  public void mustBePosted() throws Exception {
+    when(query.request()).thenReturn(
+      new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/put"));
+    try {
+      rpc.execute(tsdb, query);
+      fail("Should have thrown a BadRequestException");
+    } catch (BadRequestException e) {
+      // Expected.
+    }
+  }
+
+  /** Sends a non-chunked request with the given body.  */
+  private void post(final String body) {
+    when(query.request()).thenReturn(request(body));
+    rpc.execute(tsdb, query);
+  }
+
+  private static HttpRequest request(final String body) {
+    final HttpRequest request =
+      new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/put");
+    request.setContent(ChannelBuffers.copiedBuffer(body, CHARSET));
+    return request;
+  }
+
+  private static HttpChunk chunk(final String content) {
+    return new DefaultHttpChunk(ChannelBuffers.copiedBuffer(content,
+                                                            CHARSET));
+  }
+
+  /** Returns the response sent to the client.  */
+  private String reply() {
+    final ArgumentCaptor<StringBuilder> reply =
+      ArgumentCaptor.forClass(StringBuilder.class);
+    verify(query).sendReply(reply.capture());
+    return reply.getValue().toString();
+  }
+
+}
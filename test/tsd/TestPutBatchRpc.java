@@ -0,0 +1,152 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Map;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+
+import net.opentsdb.core.TSDB;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class })
+public final class TestPutBatchRpc {
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final Channel chan = mockChannel();
+  private final PutBatchRpc rpc = new PutBatchRpc(new PutDataPointRpc());
+
+  @Test
+  public void allPointsStored() throws Exception {
+    storeAll();
+    final PutBatchRpc.Batch batch = startBatch(2);
+    batch.add(chan, put("sys.cpu 1356998400 42 host=web01"));
+    verify(chan, never()).write(any());  // Not done yet.
+    batch.add(chan, put("sys.cpu 1356998401 4.2 host=web01"))
+      .joinUninterruptibly();
+    verify(chan).write("putbatch: ok 2\n");
+    verify(chan).setAttachment(null);
+  }
+
+  @Test
+  public void invalidPoints() throws Exception {
+    storeAll();
+    final PutBatchRpc.Batch batch = startBatch(3);
+    batch.add(chan, put("sys.cpu 1356998400 42 host=web01"));
+    batch.add(chan, put("sys.cpu 1356998400 42"));
+    batch.add(chan, new String[] { "stats" }).joinUninterruptibly();
+    assertTrue(reply(), reply().startsWith("putbatch: error 2/3 failed,"
+                                           + " first error: illegal argument"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void unexpectedException() throws Exception {
+    when(tsdb.addPoint(eq("sys.cpu"), anyLong(), anyLong(), any(Map.class)))
+      .thenThrow(new IllegalStateException("fake exception"));
+    final PutBatchRpc.Batch batch = startBatch(1);
+    batch.add(chan, put("sys.cpu 1356998400 42 host=web01"))
+      .joinUninterruptibly();
+    assertTrue(reply(), reply().startsWith("putbatch: error 1/1 failed,"
+                                           + " first error: unexpected error"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void failedWrite() throws Exception {
+    when(tsdb.addPoint(eq("sys.cpu"), anyLong(), anyLong(), any(Map.class)))
+      .thenReturn(Deferred.fromError(new RuntimeException("fake exception")));
+    final PutBatchRpc.Batch batch = startBatch(1);
+    batch.add(chan, put("sys.cpu 1356998400 42 host=web01"))
+      .joinUninterruptibly();
+    assertEquals("putbatch: error 1/1 failed,"
+                 + " first error: HBase error: fake exception\n", reply());
+  }
+
+  @Test
+  public void invalidBatchSize() throws Exception {
+    rpc.execute(tsdb, chan, new String[] { "putbatch", "0" });
+    rpc.execute(tsdb, chan, new String[] { "putbatch", "foo" });
+    rpc.execute(tsdb, chan, new String[] { "putbatch" });
+    verify(chan, never()).setAttachment(any());
+    verify(chan).write("putbatch: invalid batch size: 0"
+                       + " (must be between 1 and 100000)\n");
+    verify(chan).write("putbatch: invalid batch size: foo\n");
+    verify(chan).write("putbatch: usage: putbatch <number of points>\n");
+  }
+
+  /** Makes every write succeed.  */
+  @SuppressWarnings("unchecked")
+  private void storeAll() {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), any(Map.class)))
+      .thenReturn(Deferred.fromResult(null));
+    when(tsdb.addPoint(anyString(), anyLong(), any(Float.class),
+                       any(Map.class)))
+      .thenReturn(Deferred.fromResult(null));
+  }
+
+  /** Starts a batch of the given size, the way the client would.  */
+  private PutBatchRpc.Batch startBatch(final int size) {
+    rpc.execute(tsdb, chan, new String[] { "putbatch", "" + size });
+    final ArgumentCaptor<Object> batch = ArgumentCaptor.forClass(Object.class);
+    verify(chan).setAttachment(batch.capture());
+    return (PutBatchRpc.Batch) batch.getValue();
+  }
+
+  /** Returns the only thing written back to the client.  */
+  private String reply() {
+    final ArgumentCaptor<Object> reply = ArgumentCaptor.forClass(Object.class);
+    verify(chan).write(reply.capture());
+    return (String) reply.getValue();
+  }
+
+  private static String[] put(final String line) {
+    return ("put " + line).split(" ");
+  }
+
+  private static Channel mockChannel() {
+    final Channel chan = mock(Channel.class);
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    when(chan.isConnected()).thenReturn(true);
+    return chan;
+  }
+
+}
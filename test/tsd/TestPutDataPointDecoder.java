@@ -0,0 +1,101 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class TestPutDataPointDecoder {
+
+  private final PutDataPointDecoder decoder = new PutDataPointDecoder();
+
+  @Test
+  public void parseInteger() {
+    final PutDataPointDecoder.Point point =
+      parse("sys.cpu 1356998400 -42 host=web01 cpu=0");
+    assertEquals("sys.cpu", point.metric);
+    assertEquals(1356998400L, point.timestamp);
+    assertTrue(point.is_integer);
+    assertEquals(-42L, point.value);
+    assertEquals(2, point.tags.size());
+    assertEquals("web01", point.tags.get("host"));
+    assertEquals("0", point.tags.get("cpu"));
+  }
+
+  @Test
+  public void parseFloat() {
+    final PutDataPointDecoder.Point point =
+      parse("sys.load 1356998400 4.2e1 host=web01");
+    assertFalse(point.is_integer);
+    assertEquals(42.0f, Float.intBitsToFloat((int) point.value), 0.0f);
+  }
+
+  @Test
+  public void parseReusesCachedSeries() {
+    final PutDataPointDecoder.Point p1 = parse("foo 1356998400 1 a=b");
+    final PutDataPointDecoder.Point p2 = parse("foo 1356998410 2 a=b");
+    assertSame(p1.metric, p2.metric);
+    assertSame(p1.tags, p2.tags);
+    assertEquals(1356998410L, p2.timestamp);
+    assertEquals(2L, p2.value);
+  }
+
+  @Test
+  public void parseSkipsEmptyTags() {
+    assertEquals(2, parse("foo 1356998400 1 a=b  c=d").tags.size());
+  }
+
+  @Test
+  public void parseMalformedLinesGoThroughTheSlowPath() {
+    assertNull(parse("foo 1356998400 1"));            // No tags.
+    assertNull(parse("foo 1356998400 1 "));           // No tags.
+    assertNull(parse(" foo 1356998400 1 a=b"));       // Empty metric.
+    assertNull(parse("foo 0 1 a=b"));                 // Invalid timestamp.
+    assertNull(parse("foo -1 1 a=b"));                // Invalid timestamp.
+    assertNull(parse("foo 13569x8400 1 a=b"));        // Invalid timestamp.
+    assertNull(parse("foo 1356998400  1 a=b"));       // Empty value.
+    assertNull(parse("foo 1356998400 0x1 a=b"));      // Invalid value.
+    assertNull(parse("foo 1356998400 1.x a=b"));      // Invalid value.
+    assertNull(parse("foo 1356998400 1 a"));          // Invalid tag.
+    assertNull(parse("foo 1356998400 1 a=b a=c"));    // Duplicate tag.
+    assertNull(parse("foo 1356998400 9223372036854775808 a=b"));  // Overflow.
+  }
+
+  @Test
+  public void parseLong() {
+    assertEquals(0L, parseLong("0"));
+    assertEquals(42L, parseLong("+42"));
+    assertEquals(-42L, parseLong("-42"));
+    assertEquals(Long.MAX_VALUE, parseLong("9223372036854775807"));
+    assertEquals(Long.MIN_VALUE, parseLong("9223372036854775808"));
+    assertEquals(Long.MIN_VALUE, parseLong("99999999999999999999"));
+    assertEquals(Long.MIN_VALUE, parseLong(""));
+    assertEquals(Long.MIN_VALUE, parseLong("-"));
+    assertEquals(Long.MIN_VALUE, parseLong("4-2"));
+  }
+
+  private PutDataPointDecoder.Point parse(final String line) {
+    final byte[] buf = ("put " + line).getBytes();
+    return decoder.parse(buf, 4, buf.length);
+  }
+
+  private static long parseLong(final String s) {
+    final byte[] buf = s.getBytes();
+    return PutDataPointDecoder.parseLong(buf, 0, buf.length);
+  }
+
+}
@@ -0,0 +1,83 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class TestPutThrottle {
+
+  @Test
+  public void channelHighAndLowWaterMarks() {
+    final Channel chan = mockChannel();
+    final ArrayList<Deferred<Object>> writes = new ArrayList<Deferred<Object>>();
+    for (int i = 0; i < 10000; i++) {
+      writes.add(track(chan));
+    }
+    verify(chan, never()).setReadable(false);
+    writes.add(track(chan));  // One above the high-water mark.
+    verify(chan).setReadable(false);
+
+    for (int i = 0; i < 5000; i++) {
+      writes.remove(writes.size() - 1).callback(null);
+    }
+    verify(chan, never()).setReadable(true);
+    writes.remove(writes.size() - 1).callback(null);  // Low-water mark.
+    verify(chan).setReadable(true);
+
+    for (final Deferred<Object> write : writes) {
+      write.callback(null);
+    }
+    verify(chan, times(1)).setReadable(false);
+    verify(chan, times(1)).setReadable(true);
+  }
+
+  @Test
+  public void resultIsUnchanged() throws Exception {
+    final Deferred<Object> write = new Deferred<Object>();
+    final Deferred<Object> tracked =
+      PutThrottle.track(mockChannel(), write);
+    final Exception e = new Exception("fake exception");
+    write.callback(e);
+    try {
+      tracked.join();
+    } catch (Exception x) {
+      assertEquals(e, x);
+      return;
+    }
+    throw new AssertionError("should have failed");
+  }
+
+  private static Channel mockChannel() {
+    final Channel chan = mock(Channel.class);
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    return chan;
+  }
+
+  private static Deferred<Object> track(final Channel chan) {
+    return PutThrottle.track(chan, new Deferred<Object>());
+  }
+
+}
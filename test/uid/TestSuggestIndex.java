@@ -0,0 +1,100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public final class TestSuggestIndex extends TestCase {
+
+  private final SuggestIndex index = new SuggestIndex();
+
+  private void reset(final String... names) {
+    final SuggestIndex.Packer packer = new SuggestIndex.Packer();
+    for (final String name : names) {
+      packer.add(name.getBytes());
+    }
+    index.reset(packer);
+  }
+
+  public void test_empty() {
+    assertEquals(0, index.size());
+    assertEquals(0, index.suggest("a", "b", 25).size());
+  }
+
+  public void test_prefix() {
+    reset("a", "foo", "foo.bar", "foo.baz", "fop", "sys.cpu");
+    assertEquals(Arrays.asList("foo", "foo.bar", "foo.baz"),
+                 index.suggest("foo", "fop", 25));
+    assertEquals(Arrays.asList("foo", "foo.bar"),
+                 index.suggest("foo", "fop", 2));
+    assertEquals(Arrays.asList("foo.bar", "foo.baz"),
+                 index.suggest("foo.", "foo/", 25));
+    assertEquals(0, index.suggest("z", "{", 25).size());
+  }
+
+  public void test_add_and_remove() {
+    reset("foo.a", "foo.c");
+    index.add("foo.b");
+    index.add("foo.d");
+    index.add("foo.a");  // Already there.
+    index.remove("foo.c");
+    assertEquals(3, index.size());
+    assertEquals(Arrays.asList("foo.a", "foo.b", "foo.d"),
+                 index.suggest("foo", "fop", 25));
+    index.add("foo.c");
+    index.remove("foo.d");
+    assertEquals(Arrays.asList("foo.a", "foo.b", "foo.c"),
+                 index.suggest("foo", "fop", 25));
+  }
+
+  public void test_reset_keeps_changes() {
+    reset("a", "b");
+    index.add("c");
+    index.remove("a");
+    reset("a", "b", "d");  // Scanned before the changes were made.
+    assertEquals(Arrays.asList("b", "c", "d"), index.suggest("a", "z", 25));
+  }
+
+  public void test_merge() {
+    reset("m");
+    for (int i = 0; i < 10000; i++) {
+      index.add(String.format("n%05d", i));
+    }
+    index.remove("m");
+    assertEquals(10000, index.size());
+    assertEquals(Arrays.asList("n00000", "n00001"),
+                 index.suggest("m", "z", 2));
+    assertEquals(Arrays.asList("n09999"), index.suggest("n09999", "n0999:", 25));
+  }
+
+  public void test_merge_in_tiers() {
+    // Add the names in an order that spreads them across the runs.
+    for (int i = 0; i < 40000; i++) {
+      index.add(String.format("n%05d", i * 7919 % 40000));
+    }
+    assertEquals(40000, index.size());
+    assertTrue(index.runs() + " runs", index.runs() <= 4);
+    for (int i = 0; i < 40000; i += 2) {
+      index.remove(String.format("n%05d", i));
+    }
+    assertEquals(20000, index.size());
+    assertEquals(Arrays.asList("n00001", "n00003", "n00005"),
+                 index.suggest("n", "o", 3));
+    assertEquals(Arrays.asList("n39991", "n39993", "n39995", "n39997",
+                               "n39999"),
+                 index.suggest("n3999", "n399:", 25));
+  }
+
+}
@@ -0,0 +1,116 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, Scanner.class })
+public final class TestUidCachePreloader {
+
+  private static final byte[] TABLE = { 't', 'a', 'b', 'l', 'e' };
+  private static final byte[] ID = { 'i', 'd' };
+
+  private final HBaseClient client = mock(HBaseClient.class);
+  private final UniqueId metrics = new UniqueId(client, TABLE, "metrics", 3);
+  private final UniqueId tagk = new UniqueId(client, TABLE, "tagk", 3);
+
+  @Test
+  public void preload() throws Exception {
+    final byte[] sys_cpu = { 0, 0, 1 };
+    final byte[] host_metric = { 0, 0, 2 };
+    final byte[] host_tagk = { 0, 0, 1 };
+    final ArrayList<ArrayList<KeyValue>> rows =
+      new ArrayList<ArrayList<KeyValue>>();
+    final ArrayList<KeyValue> host = new ArrayList<KeyValue>();
+    host.add(kv("host", "metrics", host_metric));
+    host.add(kv("host", "tagk", host_tagk));
+    rows.add(host);
+    final ArrayList<KeyValue> cpu = new ArrayList<KeyValue>();
+    cpu.add(kv("sys.cpu", "metrics", sys_cpu));
+    rows.add(cpu);
+    final ArrayList<KeyValue> other = new ArrayList<KeyValue>();
+    other.add(kv("web01", "tagv", new byte[] { 0, 0, 1 }));  // Not preloaded.
+    rows.add(other);
+
+    final Scanner scanner = mock(Scanner.class);
+    when(client.newScanner(TABLE)).thenReturn(scanner);
+    // Each call needs its own Deferred.
+    when(scanner.nextRows())
+      .thenReturn(Deferred.fromResult(rows))
+      .thenAnswer(new Answer<Deferred<ArrayList<ArrayList<KeyValue>>>>() {
+        public Deferred<ArrayList<ArrayList<KeyValue>>>
+          answer(final InvocationOnMock invocation) {
+          return Deferred.fromResult(null);
+        }
+      });
+
+    final UidCachePreloader preloader =
+      new UidCachePreloader(client, metrics, tagk);
+    assertEquals(3, preloader.preload(2, 10000));
+
+    // Every range was scanned.
+    verify(client, times(8)).newScanner(TABLE);
+    verify(scanner, times(8)).close();
+    verify(scanner).setStartKey(new byte[] { 1 });
+    verify(scanner, times(8)).setFamily(ID);
+
+    assertArrayEquals(sys_cpu, metrics.getId("sys.cpu"));
+    assertArrayEquals(host_metric, metrics.getId("host"));
+    assertEquals("host", tagk.getName(host_tagk));
+    assertEquals(3, metrics.cacheHits() + tagk.cacheHits());
+    verify(client, never()).get(any(GetRequest.class));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void differentTables() {
+    new UidCachePreloader(client, metrics,
+                          new UniqueId(client, ID, "tagv", 3));
+  }
+
+  private static KeyValue kv(final String name, final String kind,
+                             final byte[] id) {
+    return new KeyValue(name.getBytes(), ID, kind.getBytes(), id);
+  }
+
+}
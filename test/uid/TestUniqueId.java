@@ -20,14 +20,13 @@ import java.util.List;
 import com.stumbleupon.async.Deferred;
 
 import org.hbase.async.AtomicIncrementRequest;
-import org.hbase.async.Bytes;
+import org.hbase.async.DeleteRequest;
 import org.hbase.async.GetRequest;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
 import org.hbase.async.HBaseRpc;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
-import org.hbase.async.RowLock;
 import org.hbase.async.RowLockRequest;
 import org.hbase.async.Scanner;
 
@@ -43,15 +42,14 @@ import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.any;
-import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -63,7 +61,7 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 @PowerMockIgnore({"javax.management.*", "javax.xml.*",
                   "ch.qos.*", "org.slf4j.*",
                   "com.sum.*", "org.xml.*"})
-@PrepareForTest({ HBaseClient.class, RowLock.class })
+@PrepareForTest({ HBaseClient.class })
 public final class TestUniqueId {
 
   private HBaseClient client = mock(HBaseClient.class);
@@ -250,22 +248,89 @@ public final class TestUniqueId {
     verify(client).get(anyGet());
   }
 
+  @Test
+  public void cacheIsBounded() {
+    System.setProperty("tsd.uid.cache_size.kind", "1");
+    try {
+      uid = new UniqueId(client, table, kind, 3);
+    } finally {
+      System.clearProperty("tsd.uid.cache_size.kind");
+    }
+    final byte[] foo_id = { 0, 'a', 0x42 };
+    final byte[] bar_id = { 0, 'a', 0x43 };
+
+    ArrayList<KeyValue> foo = new ArrayList<KeyValue>(1);
+    foo.add(new KeyValue(new byte[] { 'f', 'o', 'o' }, ID, kind_array, foo_id));
+    ArrayList<KeyValue> bar = new ArrayList<KeyValue>(1);
+    bar.add(new KeyValue(new byte[] { 'b', 'a', 'r' }, ID, kind_array, bar_id));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(foo))
+      .thenReturn(Deferred.fromResult(bar))
+      .thenReturn(Deferred.fromResult(foo));
+
+    assertArrayEquals(foo_id, uid.getId("foo"));
+    assertArrayEquals(bar_id, uid.getId("bar"));  // Evicts "foo".
+    assertEquals(2, uid.cacheSize());
+    assertEquals(2, uid.cacheEvictions());
+    assertArrayEquals(foo_id, uid.getId("foo"));  // Not cached anymore.
+    assertEquals(0, uid.cacheHits());
+    verify(client, times(3)).get(anyGet());
+  }
+
+  @Test
+  public void getIdNegativeCache() {
+    uid = new UniqueId(client, table, kind, 3);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    for (int i = 0; i < 3; i++) {
+      try {
+        uid.getId("foo");
+        fail("NoSuchUniqueName should have been thrown");
+      } catch (NoSuchUniqueName e) {
+        // Expected.
+      }
+    }
+    // Only the first lookup went to HBase.
+    verify(client).get(anyGet());
+    assertEquals(2, uid.negativeCacheHits());
+  }
+
+  @Test  // The negative cache is ignored when assigning an ID.
+  public void getOrCreateIdForgetsUnknownName() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 0, 5 };
+
+    // null  =>  ID doesn't exist.  Each Get needs its own Deferred, since
+    // getIdAsync() changes the result of the one it gets.
+    when(client.get(anyGet()))
+      .thenAnswer(new Answer<Deferred<ArrayList<KeyValue>>>() {
+        public Deferred<ArrayList<KeyValue>> answer(final InvocationOnMock unused) {
+          return Deferred.fromResult(null);
+        }
+      });
+    whenFakeIcvThenReturn(4L);
+    try {
+      uid.getIdAsync("foo").joinUninterruptibly();
+      fail("NoSuchUniqueName should have been thrown");
+    } catch (NoSuchUniqueName e) {
+      // Expected.
+    }
+
+    assertArrayEquals(id, uid.getOrCreateId("foo"));
+    assertArrayEquals(id, uid.getId("foo"));
+    assertEquals(0, uid.negativeCacheHits());
+  }
+
   @Test  // Test the creation of an ID with no problem.
   public void getOrCreateIdAssignIdWithSuccess() {
     uid = new UniqueId(client, table, kind, 3);
     final byte[] id = { 0, 0, 5 };
 
-    RowLock fake_lock = mock(RowLock.class);
-    when(client.lockRow(anyRowLockRequest()))
-      .thenReturn(Deferred.fromResult(fake_lock));
-
     when(client.get(anyGet()))      // null  =>  ID doesn't exist.
       .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
     // Watch this! ______,^   I'm writing C++ in Java!
-    when(client.put(anyPut()))
-      .thenReturn(Deferred.fromResult(null));
 
-    // Update once HBASE-2292 is fixed:
     whenFakeIcvThenReturn(4L);
 
     assertArrayEquals(id, uid.getOrCreateId("foo"));
@@ -274,18 +339,31 @@ public final class TestUniqueId {
     // Should be a cache hit too for the same reason.
     assertEquals("foo", uid.getName(id));
 
-    // The +1's below are due to the whenFakeIcvThenReturn() hack.
-    verify(client, times(2+1)).get(anyGet()); // Initial Get + double check.
-    verify(client).lockRow(anyRowLockRequest());  // The .maxid row.
-    verify(client, times(2+1)).put(anyPut()); // reverse + forward mappings.
-    verify(client).unlockRow(fake_lock);     // The .maxid row.
+    verify(client).get(anyGet());  // Initial Get.
+    verify(client).atomicIncrement(anyIcv());  // Reserves a block of IDs.
+    verify(client).put(anyPut());  // Reverse mapping.
+    verify(client).compareAndSet(anyPut(), emptyArray());  // Forward mapping.
+    verify(client, never()).lockRow(anyRowLockRequest());
+    assertEquals(1, uid.idBlockRefills());
   }
 
-  @PrepareForTest({HBaseClient.class, UniqueId.class})
-  @Test  // Test the creation of an ID when unable to acquire the row lock.
-  public void getOrCreateIdUnableToAcquireRowLock() throws Exception {
-    PowerMockito.mockStatic(Thread.class);
+  @Test  // New IDs are handed out from the block we reserved.
+  public void getOrCreateIdUsesReservedBlock() {
+    uid = new UniqueId(client, table, kind, 3);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    whenFakeIcvThenReturn(4L);
+
+    assertArrayEquals(new byte[] { 0, 0, 5 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 6 }, uid.getOrCreateId("bar"));
+    assertArrayEquals(new byte[] { 0, 0, 7 }, uid.getOrCreateId("qux"));
+    verify(client).atomicIncrement(anyIcv());
+    assertEquals(1, uid.idBlockRefills());
+  }
 
+  @Test  // Test the creation of an ID when unable to reserve a block of IDs.
+  public void getOrCreateIdUnableToIncrementMaxId() throws Exception {
     uid = new UniqueId(client, table, kind, 3);
 
     when(client.get(anyGet()))      // null  =>  ID doesn't exist.
@@ -293,9 +371,8 @@ public final class TestUniqueId {
     // Watch this! ______,^   I'm writing C++ in Java!
 
     HBaseException hbe = fakeHBaseException();
-    when(client.lockRow(anyRowLockRequest()))
+    when(client.atomicIncrement(anyIcv()))
       .thenThrow(hbe);
-    PowerMockito.doNothing().when(Thread.class); Thread.sleep(anyInt());
 
     try {
       uid.getOrCreateId("foo");
@@ -303,87 +380,70 @@ public final class TestUniqueId {
     } catch (HBaseException e) {
       assertSame(hbe, e);
     }
+    verify(client, never()).put(anyPut());
   }
 
   @Test  // Test the creation of an ID with a race condition.
-  @PrepareForTest({HBaseClient.class, RowLock.class, Deferred.class})
   public void getOrCreateIdAssignIdWithRaceCondition() {
     // Simulate a race between client A and client B.
     // A does a Get and sees that there's no ID for this name.
-    // B does a Get and sees that there's no ID too, and B actually goes
-    // through the entire process to create the ID.
-    // Then A attempts to go through the process and should discover that the
-    // ID has already been assigned.
+    // B assigns an ID to this name in the mean time.
+    // Then A attempts to create the forward mapping, and should discover
+    // that the ID has already been assigned.
 
     uid = new UniqueId(client, table, kind, 3);  // Used by client A.
-    HBaseClient client_b = mock(HBaseClient.class);
-    final UniqueId uid_b = new UniqueId(client_b, table, kind, 3);  // for client B.
 
     final byte[] id = { 0, 0, 5 };
     final byte[] byte_name = { 'f', 'o', 'o' };
 
-    @SuppressWarnings("unchecked")
-    final Deferred<ArrayList<KeyValue>> d = mock(Deferred.class);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
     when(client.get(anyGet()))
-      .thenReturn(d);
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.fromResult(kvs));  // B created the ID.
 
-    final Answer<byte[]> the_race = new Answer<byte[]>() {
-      public byte[] answer(final InvocationOnMock unused_invocation) {
-        // While answering A's first Get, B doest a full getOrCreateId.
-        assertArrayEquals(id, uid_b.getOrCreateId("foo"));
-        return null;
-      }
-    };
+    whenFakeIcvThenReturn(42L);
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(false));
+    when(client.delete(any(DeleteRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
 
-    try {
-      ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
-      kvs.add(new KeyValue(byte_name, ID, kind_array, id));
-      when(d.joinUninterruptibly())
-        .thenAnswer(the_race)  // Start the race when answering A's first Get.
-        .thenReturn(kvs);      // The 2nd Get succeeds because B created the ID.
-    } catch (Exception e) {
-      fail("Should never happen: " + e);
-    }
+    // Start the execution.
+    assertArrayEquals(id, uid.getOrCreateId("foo"));
 
-    RowLock fake_lock_a = mock(RowLock.class);
-    when(client.lockRow(anyRowLockRequest()))
-      .thenReturn(Deferred.fromResult(fake_lock_a));
+    // Verify the order of execution too.
+    final byte[] leaked_id = { 0, 0, 43 };
+    final InOrder order = inOrder(client);
+    order.verify(client).get(anyGet());            // 1st Get for A.
+    order.verify(client).atomicIncrement(anyIcv());
+    order.verify(client).put(putForRow(leaked_id));  // Reverse mapping.
+    order.verify(client).compareAndSet(anyPut(), emptyArray());  // Fails.
+    order.verify(client).delete(deleteForRow(leaked_id));  // Undo reverse.
+    order.verify(client).get(anyGet());            // Finds the ID added by B.
+  }
 
-    when(client_b.get(anyGet()))      // null  =>  ID doesn't exist.
-      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
-    // Watch this! ______,^   I'm writing C++ in Java!
+  @Test  // Failing to clean up after losing the race isn't fatal.
+  public void getOrCreateIdRaceConditionDeleteFails() {
+    uid = new UniqueId(client, table, kind, 3);
 
-    RowLock fake_lock_b = mock(RowLock.class);
-    when(client_b.lockRow(anyRowLockRequest()))
-      .thenReturn(Deferred.fromResult(fake_lock_b));
+    final byte[] id = { 0, 0, 5 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
 
-    // Update once HBASE-2292 is fixed:
     ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
-    kvs.add(new KeyValue(MAXID, ID, kind_array, Bytes.fromLong(4L)));
-    when(client_b.get(getForRow(MAXID)))
-      .thenReturn(Deferred.fromResult(kvs));
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.fromResult(kvs));  // B created the ID.
 
-    when(client_b.put(anyPut()))
-      .thenReturn(Deferred.fromResult(null));
+    whenFakeIcvThenReturn(42L);
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(false));
+    final HBaseException hbe = fakeHBaseException();
+    when(client.delete(any(DeleteRequest.class)))
+      .thenReturn(Deferred.fromError(hbe));
 
-    // Start the execution.
     assertArrayEquals(id, uid.getOrCreateId("foo"));
-
-    // The +1's below are due to the whenFakeIcvThenReturn() hack.
-    // Verify the order of execution too.
-    final InOrder order = inOrder(client, client_b);
-    order.verify(client).get(anyGet());             // 1st Get for A.
-    order.verify(client_b).get(anyGet());           // 1st Get for B.
-    order.verify(client_b).lockRow(anyRowLockRequest());  // B starts the process...
-    order.verify(client_b, times(1+1)).get(anyGet()); // double check for B.
-    order.verify(client_b, times(2+1)).put(anyPut()); // both mappings.
-    order.verify(client_b).unlockRow(fake_lock_b);  // ... B finishes.
-    order.verify(client).lockRow(anyRowLockRequest());  // A starts the process...
-    order.verify(client).get(anyGet());             // Finds the ID added by B
-    order.verify(client).unlockRow(fake_lock_a);    // ... and stops here.
-    // Things A shouldn't do because B did them already:
-    verify(client, never()).atomicIncrement(any(AtomicIncrementRequest.class));
-    verify(client, never()).put(anyPut());
+    verify(client).delete(deleteForRow(new byte[] { 0, 0, 43 }));
   }
 
   @Test
@@ -391,15 +451,10 @@ public final class TestUniqueId {
   public void getOrCreateIdWithOverflow() {
     uid = new UniqueId(client, table, kind, 1);  // IDs are only on 1 byte.
 
-    RowLock fake_lock = mock(RowLock.class);
-    when(client.lockRow(anyRowLockRequest()))
-      .thenReturn(Deferred.fromResult(fake_lock));
-
     when(client.get(anyGet()))      // null  =>  ID doesn't exist.
       .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
     // Watch this! ______,^   I'm writing C++ in Java!
 
-    // Update once HBASE-2292 is fixed:
     whenFakeIcvThenReturn(Byte.MAX_VALUE - Byte.MIN_VALUE);
 
     try {
@@ -410,61 +465,44 @@ public final class TestUniqueId {
       // OK.
     }
 
-    // The +1 below is due to the whenFakeIcvThenReturn() hack.
-    verify(client, times(2+1)).get(anyGet());// Initial Get + double check.
-    verify(client).lockRow(anyRowLockRequest());      // The .maxid row.
-    verify(client).unlockRow(fake_lock);     // The .maxid row.
+    verify(client).get(anyGet());  // Initial Get.
+    verify(client).atomicIncrement(anyIcv());
+    verify(client, never()).put(anyPut());
   }
 
   @Test  // ICV throws an exception, we can't get an ID.
   public void getOrCreateIdWithICVFailure() {
     uid = new UniqueId(client, table, kind, 3);
 
-    RowLock fake_lock = mock(RowLock.class);
-    when(client.lockRow(anyRowLockRequest()))
-      .thenReturn(Deferred.fromResult(fake_lock));
-
     when(client.get(anyGet()))      // null  =>  ID doesn't exist.
       .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
     // Watch this! ______,^   I'm writing C++ in Java!
 
-    // Update once HBASE-2292 is fixed:
-    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
-    kvs.add(new KeyValue(MAXID, ID, kind_array, Bytes.fromLong(4L)));
-
     HBaseException hbe = fakeHBaseException();
-    when(client.get(getForRow(MAXID)))
+    when(client.atomicIncrement(anyIcv()))
       .thenThrow(hbe)
-      .thenReturn(Deferred.fromResult(kvs));
-
+      .thenAnswer(fakeIcv(4L));
     when(client.put(anyPut()))
       .thenReturn(Deferred.fromResult(null));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true));
 
     final byte[] id = { 0, 0, 5 };
     assertArrayEquals(id, uid.getOrCreateId("foo"));
-    // The +2/+1 below are due to the whenFakeIcvThenReturn() hack.
-    verify(client, times(4+2)).get(anyGet());  // Initial Get + double check x2.
-    verify(client, times(2)).lockRow(anyRowLockRequest());   // The .maxid row x2.
-    verify(client, times(2+1)).put(anyPut());         // Both mappings.
-    verify(client, times(2)).unlockRow(fake_lock);  // The .maxid row x2.
+    verify(client, times(2)).get(anyGet());  // Initial Get x2.
+    verify(client, times(2)).atomicIncrement(anyIcv());
+    verify(client).put(anyPut());  // Reverse mapping.
+    verify(client).compareAndSet(anyPut(), emptyArray());  // Forward mapping.
   }
 
   @Test  // Test that the reverse mapping is created before the forward one.
   public void getOrCreateIdPutsReverseMappingFirst() {
     uid = new UniqueId(client, table, kind, 3);
 
-    RowLock fake_lock = mock(RowLock.class);
-    when(client.lockRow(anyRowLockRequest()))
-      .thenReturn(Deferred.fromResult(fake_lock));
-
     when(client.get(anyGet()))      // null  =>  ID doesn't exist.
       .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
     // Watch this! ______,^   I'm writing C++ in Java!
 
-    when(client.put(anyPut()))
-      .thenReturn(Deferred.fromResult(null));
-
-    // Update once HBASE-2292 is fixed:
     whenFakeIcvThenReturn(5L);
 
     final byte[] id = { 0, 0, 6 };
@@ -473,16 +511,9 @@ public final class TestUniqueId {
 
     final InOrder order = inOrder(client);
     order.verify(client).get(anyGet());            // Initial Get.
-    order.verify(client).lockRow(anyRowLockRequest());  // The .maxid row.
-    // Update once HBASE-2292 is fixed:
-    // HACK HACK HACK
-    order.verify(client).get(getForRow(new byte[] { 'f', 'o', 'o' }));
-    order.verify(client).get(getForRow(MAXID));    // "ICV".
-    order.verify(client).put(putForRow(MAXID));    // "ICV".
-    // end HACK HACK HACK
+    order.verify(client).atomicIncrement(anyIcv());  // The .maxid row.
     order.verify(client).put(putForRow(id));
-    order.verify(client).put(putForRow(row));
-    order.verify(client).unlockRow(fake_lock);     // The .maxid row.
+    order.verify(client).compareAndSet(putForRow(row), emptyArray());
   }
 
   @PrepareForTest({HBaseClient.class, Scanner.class})
@@ -550,6 +581,128 @@ public final class TestUniqueId {
     verify(client, never()).get(anyGet());
   }
 
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void suggestFromIndex() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table))
+      .thenReturn(fake_scanner);
+
+    final ArrayList<ArrayList<KeyValue>> rows = new ArrayList<ArrayList<KeyValue>>(3);
+    for (final String name : new String[] { "bar", "foo.bar", "foo.baz" }) {
+      final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+      row.add(new KeyValue(name.getBytes(), ID, kind_array,
+                           new byte[] { 0, 0, 1 }));
+      rows.add(row);
+    }
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    assertEquals(-1, uid.suggestIndexSize());
+    assertEquals(3, uid.loadSuggestIndex());
+    assertEquals(3, uid.suggestIndexSize());
+    assertEquals(Arrays.asList("foo.bar", "foo.baz"), uid.suggest("foo"));
+    assertEquals(Arrays.asList("bar", "foo.bar", "foo.baz"), uid.suggest(""));
+    assertEquals(0, uid.suggest("nomatch").size());
+    assertEquals(3, uid.suggestIndexHits());
+    assertEquals(0, uid.suggestScans());
+    // Only the scan that built the index.
+    verify(client).newScanner(table);
+    verify(fake_scanner).setStartKey(new byte[] { 1 });
+  }
+
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void suggestIndexHasNewNames() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table))
+      .thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    assertEquals(0, uid.loadSuggestIndex());
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    whenFakeIcvThenReturn(4L);
+    uid.getOrCreateId("foo");
+
+    assertEquals(Arrays.asList("foo"), uid.suggest("f"));
+  }
+
+  @Test
+  public void getOrCreateIdAsyncDeduplicatesLookups() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    final Deferred<ArrayList<KeyValue>> get = new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get);
+
+    final Deferred<byte[]> first = uid.getOrCreateIdAsync("foo");
+    final Deferred<byte[]> second = uid.getOrCreateIdAsync("foo");
+    assertEquals(1, uid.pendingAssignments());
+    assertEquals(1, uid.deduplicatedAssignments());
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
+    get.callback(kvs);
+    assertArrayEquals(id, first.joinUninterruptibly());
+    assertArrayEquals(id, second.joinUninterruptibly());
+    assertEquals(0, uid.pendingAssignments());
+    // Should be a cache hit ...
+    assertArrayEquals(id, uid.getOrCreateIdAsync("foo").joinUninterruptibly());
+    assertEquals(1, uid.cacheHits());
+    // ... so verify there was only one HBase Get.
+    verify(client).get(anyGet());
+  }
+
+  @Test  // The assignment itself happens in the background.
+  public void getOrCreateIdAsyncAssignId() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 0, 5 };
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    whenFakeIcvThenReturn(4L);
+
+    assertArrayEquals(id, uid.getOrCreateIdAsync("foo")
+                      .joinUninterruptibly(10000));
+    assertEquals("foo", uid.getName(id));
+    assertEquals(0, uid.pendingAssignments());
+    verify(client).compareAndSet(anyPut(), emptyArray());
+  }
+
+  @Test
+  public void getOrCreateIdAsyncLookupFails() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+
+    final HBaseException hbe = fakeHBaseException();
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromError(hbe));
+
+    try {
+      uid.getOrCreateIdAsync("foo").joinUninterruptibly();
+      fail("HBaseException should have been thrown.");
+    } catch (HBaseException e) {
+      assertSame(hbe, e);
+    }
+    // The failure isn't cached, the next call tries again.
+    assertEquals(0, uid.pendingAssignments());
+  }
+
+  @Test(expected=NoSuchUniqueName.class)
+  public void getIdAsyncNoSuchName() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    uid.getIdAsync("foo").joinUninterruptibly();
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
@@ -594,6 +747,18 @@ public final class TestUniqueId {
     });
   }
 
+  private static DeleteRequest deleteForRow(final byte[] row) {
+    return argThat(new ArgumentMatcher<DeleteRequest>() {
+      public boolean matches(Object delete) {
+        return Arrays.equals(extractKey((DeleteRequest) delete), row);
+      }
+      public void describeTo(org.hamcrest.Description description) {
+        description.appendText("DeleteRequest for row "
+                               + Arrays.toString(row));
+      }
+    });
+  }
+
   private static RowLockRequest anyRowLockRequest() {
     return any(RowLockRequest.class);
   }
@@ -608,17 +773,35 @@ public final class TestUniqueId {
     return hbe;
   }
 
-  private static final byte[] MAXID = { 0 };
+  private static AtomicIncrementRequest anyIcv() {
+    return any(AtomicIncrementRequest.class);
+  }
+
+  private static byte[] emptyArray() {
+    return eq(HBaseClient.EMPTY_ARRAY);
+  }
 
-  /** Temporary hack until we can do proper ICVs -- see HBASE 2292. */
+  /**
+   * Fakes an ICV on the max ID cell, with the given current max ID.
+   * Also makes all the puts and CAS succeed.
+   */
   private void whenFakeIcvThenReturn(final long value) {
-    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
-    kvs.add(new KeyValue(MAXID, ID, kind_array, Bytes.fromLong(value)));
-    Deferred<ArrayList<KeyValue>> maxid_result = Deferred.fromResult(kvs);
-    when(client.get(getForRow(MAXID)))
-      .thenReturn(maxid_result);
+    when(client.atomicIncrement(anyIcv()))
+      .thenAnswer(fakeIcv(value));
     when(client.put(anyPut()))
       .thenReturn(Deferred.fromResult(null));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true));
+  }
+
+  private static Answer<Deferred<Long>> fakeIcv(final long value) {
+    return new Answer<Deferred<Long>>() {
+      public Deferred<Long> answer(final InvocationOnMock invocation) {
+        final AtomicIncrementRequest icv =
+          (AtomicIncrementRequest) invocation.getArguments()[0];
+        return Deferred.fromResult(value + icv.getAmount());
+      }
+    };
   }
 
 }